@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BatchValuator#valuate(ByteBuffer, java.io.OutputStream)} over a batch of 1000 length delimited bid
+ * requests (each with 10 SelectedEntities) with the sample valuator, on one thread or one per core: the valuation
+ * engine from bytes in to bytes out, without HTTP
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+    @Param({"1", "0"})
+    public int threads;
+
+    private BatchValuator batchValuator;
+    private ByteBuffer batch;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Setup
+    public void setup() throws IOException {
+        batchValuator = new BatchValuator(threads);
+        OpenRtb.BidRequest.Builder builder = Fixtures.bidRequest(10).toBuilder();
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            builder.setId(Integer.toString(i)).build().writeDelimitedTo(requests);
+        }
+        batch = ByteBuffer.wrap(requests.toByteArray());
+    }
+
+    @TearDown
+    public void tearDown() {
+        batchValuator.close();
+    }
+
+    @Benchmark
+    public int valuate() throws IOException {
+        out.reset();
+        return batchValuator.valuate(batch, out);
+    }
+}
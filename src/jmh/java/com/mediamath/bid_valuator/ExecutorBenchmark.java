@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.mediamath.bid_valuator.server.Handler;
+import com.mediamath.bid_valuator.server.Transport;
+import com.mediamath.bid_valuator.server.VirtualThreads;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures end to end /valuate latency over HTTP at high concurrency, comparing each transport's own threads against a
+ * virtual thread per request (see {@code bid-valuator.server.executor}).  Sampling reports the latency distribution, so
+ * compare the p0.99 and p0.999 percentiles rather than the mean.
+ *
+ * With {@code blockMillis} above 0 each request first blocks for that long, standing in for a synchronous lookup
+ * (e.g. a feature store) made while valuing the request.  That is where the platform thread pools run dry: Jetty's is
+ * bounded, and Netty's event loops serve every other connection they own.
+ *
+ * The virtual executor needs the benchmark JVM to be Java 21 or later, e.g.
+ * {@code ./gradlew jmh -PjmhInclude=ExecutorBenchmark -PjavaRuntime=21 -PjavaRuntimeHome=/path/to/jdk-21}
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(256)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+    private static final int PORT = 4599;
+
+    @Param({"spark", "netty"})
+    public String transport;
+
+    @Param({"platform", "virtual"})
+    public String executor;
+
+    @Param({"0", "5"})
+    public int blockMillis;
+
+    private Transport server;
+    private CloseableHttpClient client;
+    private byte[] bidRequest;
+
+    @Setup
+    public void setup() throws IOException {
+        if (executor.equals("virtual") && !VirtualThreads.isAvailable()) {
+            throw new IllegalStateException("The virtual executor needs Java 21 or later, "
+                    + "run with -PjavaRuntime=21 -PjavaRuntimeHome=<JDK 21>");
+        }
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("bid-valuator.server.transport", transport);
+        settings.put("bid-valuator.server.executor", executor);
+        Config config = ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load());
+        server = Endpoint.start(new BlockingTransport(Transport.fromConfig(config), blockMillis), PORT);
+        client = HttpClients.custom()
+                .setMaxConnTotal(1024)
+                .setMaxConnPerRoute(1024)
+                .build();
+        bidRequest = Fixtures.bidRequest(10).toByteArray();
+        // Measure the whole request path, rather than how quickly requests fall back or are shed under load
+        Deadline.enabled = false;
+        Endpoint.loadShedding = false;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public int valuate() throws IOException {
+        HttpPost post = new HttpPost("http://localhost:" + PORT + "/valuate");
+        post.setEntity(new ByteArrayEntity(bidRequest, ContentType.create("application/protobuf")));
+        HttpResponse response = client.execute(post);
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * Blocks for a while before every POST handler
+     */
+    private static final class BlockingTransport implements Transport {
+        private final Transport transport;
+        private final int blockMillis;
+
+        BlockingTransport(Transport transport, int blockMillis) {
+            this.transport = transport;
+            this.blockMillis = blockMillis;
+        }
+
+        @Override
+        public void post(String path, Handler handler) {
+            transport.post(path, (blockMillis <= 0) ? handler : exchange -> {
+                Thread.sleep(blockMillis);
+                handler.handle(exchange);
+            });
+        }
+
+        @Override
+        public void get(String path, Handler handler) {
+            transport.get(path, handler);
+        }
+
+        @Override
+        public void start(int port) {
+            transport.start(port);
+        }
+
+        @Override
+        public void awaitInitialization() {
+            transport.awaitInitialization();
+        }
+
+        @Override
+        public void stop() {
+            transport.stop();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.util.JsonFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds benchmark fixtures from the sample bid request in {@code bid.json} (shared with the tests).
+ *
+ * Variants with a different number of SelectedEntities are generated by cycling through the entities found in the
+ * sample, giving each copy its own StrategyID so that nothing downstream can treat them as duplicates.
+ */
+final class Fixtures {
+    static final String BID_REQUEST_RESOURCE = "bid.json";
+
+    private Fixtures() {}
+
+    /**
+     * @return The sample bid request, exactly as found in {@code bid.json}
+     * @throws IOException if the resource is missing or can not be parsed
+     */
+    static OpenRtb.BidRequest sampleBidRequest() throws IOException {
+        InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(BID_REQUEST_RESOURCE);
+        if (in == null) {
+            throw new IOException("Could not find benchmark fixture " + BID_REQUEST_RESOURCE + " on the classpath");
+        }
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            JsonFormat.parser().merge(reader, builder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param selectedEntities The number of SelectedEntities the generated bid request should carry
+     * @return The sample bid request with its SelectedEntities replaced by {@code selectedEntities} generated copies
+     * @throws IOException if the sample bid request can not be loaded
+     */
+    static OpenRtb.BidRequest bidRequest(int selectedEntities) throws IOException {
+        OpenRtb.BidRequest sample = sampleBidRequest();
+        OpenRtb.MM_Ext sampleExt = sample.getExt().getMmExt();
+        OpenRtb.MM_Ext.Builder mmExt = sampleExt.toBuilder().clearSelectedEntities();
+        for (int i = 0; i < selectedEntities; i++) {
+            OpenRtb.MM_Ext.SelectedEntity.Builder entity =
+                    sampleExt.getSelectedEntities(i % sampleExt.getSelectedEntitiesCount()).toBuilder();
+            long strategyID = Long.parseLong(entity.getCompanionData().getStrategyID()) + i;
+            entity.getCompanionDataBuilder().setStrategyID(Long.toString(strategyID));
+            mmExt.addSelectedEntities(entity);
+        }
+        OpenRtb.BidRequest.Builder builder = sample.toBuilder();
+        builder.getExtBuilder().setMmExt(mmExt);
+        return builder.build();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.TextFormat;
+import com.google.protobuf.util.JsonFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each of the bid request unmarshaling branches in {@link Endpoint#main(String[])}, the same way the
+ * /valuate route invokes them, along with selective decoding of binary protobuf ({@link BidRequestView}) for comparison
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    @Param({"1", "10", "100"})
+    public int selectedEntities;
+
+    private final JsonFormat.Parser jsonFormatParser = JsonFormat.parser();
+    private final TextFormat.Parser textFormatParser = TextFormat.getParser();
+    private byte[] binaryBody;
+    private String jsonBody;
+    private String textBody;
+
+    @Setup
+    public void setup() throws IOException {
+        OpenRtb.BidRequest bidRequest = Fixtures.bidRequest(selectedEntities);
+        binaryBody = bidRequest.toByteArray();
+        jsonBody = JsonFormat.printer().print(bidRequest);
+        textBody = TextFormat.printToString(bidRequest);
+    }
+
+    @Benchmark
+    public OpenRtb.BidRequest binary() throws InvalidProtocolBufferException {
+        return OpenRtb.BidRequest.parseFrom(binaryBody);
+    }
+
+    /**
+     * Selective decoding, reading the one SelectedEntity {@link Endpoint#valuate(BidRequestView)} would choose
+     */
+    @Benchmark
+    public OpenRtb.MM_Ext.SelectedEntity selective() throws InvalidProtocolBufferException {
+        BidRequestView view = BidRequestView.parseFrom(binaryBody);
+        return view.getSelectedEntity(view.getSelectedEntitiesCount() - 1);
+    }
+
+    @Benchmark
+    public OpenRtb.BidRequest json() throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        jsonFormatParser.merge(new StringReader(jsonBody), builder);
+        return builder.build();
+    }
+
+    @Benchmark
+    public OpenRtb.BidRequest text() throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        textFormatParser.merge(new StringReader(textBody), builder);
+        return builder.build();
+    }
+}
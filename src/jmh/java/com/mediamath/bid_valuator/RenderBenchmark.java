@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering a {@link Response} back to Bid Valuator, reflectively through {@link ResponseJsonTransformer}
+ * and streamed as JSON by {@link ResponseJsonWriter} or as binary protobuf by {@link ResponseProtobufWriter}
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+    private final ResponseJsonTransformer transformer = new ResponseJsonTransformer();
+    private final Response withDeal = new Response("516365", "3490748", 0.2712345678901234, "6185828", "334143", Endpoint.ModelID);
+    private final Response noDeal = new Response("516365", "3490748", 0.2712345678901234, "6185828", "", Endpoint.ModelID);
+
+    private OutputStream out;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        out = new NullOutputStream(blackhole);
+    }
+
+    @Benchmark
+    public String renderWithDeal() {
+        return transformer.render(withDeal);
+    }
+
+    @Benchmark
+    public String renderNoDeal() {
+        return transformer.render(noDeal);
+    }
+
+    @Benchmark
+    public void streamWithDeal() throws IOException {
+        ResponseJsonWriter.get().write(withDeal).writeTo(out);
+    }
+
+    @Benchmark
+    public void streamNoDeal() throws IOException {
+        ResponseJsonWriter.get().write(noDeal).writeTo(out);
+    }
+
+    @Benchmark
+    public void protobufWithDeal() throws IOException {
+        ResponseProtobufWriter.get().write(withDeal).writeTo(out);
+    }
+
+    @Benchmark
+    public void protobufNoDeal() throws IOException {
+        ResponseProtobufWriter.get().write(noDeal).writeTo(out);
+    }
+
+    /**
+     * Stands in for the servlet output stream, consuming what is written without copying it anywhere
+     */
+    private static final class NullOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        NullOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.mediamath.bid_valuator.model.TreeEnsemble;
+import com.mediamath.bid_valuator.model.TreeFeatures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link TreeEnsemble#predict(float[])} over its flat arrays with the same ensemble walked as a naive tree of
+ * node objects.  The ensembles are random complete trees of the given depth, and predictions cycle through 1024 random
+ * feature vectors (a tenth of the features missing) so the branches cannot be learned.
+ *
+ * The node objects are allocated in a random order, as a model built while the endpoint is serving (or moved around
+ * by the collector since) would be, rather than neatly one after another.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TreeBenchmark {
+    @Param({"100", "500"})
+    public int trees;
+
+    @Param({"6"})
+    public int depth;
+
+    private TreeEnsemble ensemble;
+    private Node[] roots;
+    private float[][] vectors;
+    private int next = 0;
+
+    static final class Node {
+        int feature;
+        float threshold;
+        boolean missingLeft;
+        Node left;
+        Node right;
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        int nodesPerTree = (1 << (depth + 1)) - 1;
+        int nodes = trees * nodesPerTree;
+        int[] rootIndexes = new int[trees];
+        int[] feature = new int[nodes];
+        float[] threshold = new float[nodes];
+        int[] left = new int[nodes];
+        int[] right = new int[nodes];
+        long[] missingLeft = new long[(nodes + 63) >>> 6];
+        int n = 0;
+        for (int t = 0; t < trees; t++) {
+            rootIndexes[t] = n;
+            n = build(random, 0, n, feature, threshold, left, right, missingLeft);
+        }
+        ensemble = new TreeEnsemble(rootIndexes, feature, threshold, left, right, missingLeft);
+
+        List<Node> allocation = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            allocation.add(null);
+        }
+        List<Integer> order = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+        for (int i : order) {
+            allocation.set(i, new Node());
+        }
+        for (int i = 0; i < nodes; i++) {
+            Node node = allocation.get(i);
+            node.feature = ensemble.feature(i);
+            node.threshold = ensemble.threshold(i);
+            if (node.feature >= 0) {
+                node.missingLeft = ensemble.missingGoesLeft(i);
+                node.left = allocation.get(ensemble.left(i));
+                node.right = allocation.get(ensemble.right(i));
+            }
+        }
+        roots = new Node[trees];
+        for (int t = 0; t < trees; t++) {
+            roots[t] = allocation.get(ensemble.root(t));
+        }
+
+        vectors = new float[1024][];
+        for (int v = 0; v < vectors.length; v++) {
+            vectors[v] = new float[TreeFeatures.COUNT];
+            for (int f = 0; f < TreeFeatures.COUNT; f++) {
+                vectors[v][f] = (random.nextInt(10) == 0) ? Float.NaN : random.nextFloat();
+            }
+        }
+    }
+
+    // Adds a complete subtree depth first, returning the next free node
+    private int build(Random random, int level, int n, int[] feature, float[] threshold, int[] left, int[] right, long[] missingLeft) {
+        if (level == depth) {
+            feature[n] = -1;
+            threshold[n] = (float) random.nextGaussian() * 0.1f;
+            return n + 1;
+        }
+        feature[n] = random.nextInt(TreeFeatures.COUNT);
+        threshold[n] = random.nextFloat();
+        if (random.nextBoolean()) {
+            missingLeft[n >>> 6] |= 1L << n;
+        }
+        left[n] = n + 1;
+        right[n] = build(random, level + 1, n + 1, feature, threshold, left, right, missingLeft);
+        return build(random, level + 1, right[n], feature, threshold, left, right, missingLeft);
+    }
+
+    private float[] nextVector() {
+        next = (next + 1) & (vectors.length - 1);
+        return vectors[next];
+    }
+
+    @Benchmark
+    public float flat() {
+        return ensemble.predict(nextVector());
+    }
+
+    @Benchmark
+    public float objects() {
+        float[] features = nextVector();
+        float sum = 0;
+        for (Node root : roots) {
+            Node node = root;
+            while (node.feature >= 0) {
+                float x = features[node.feature];
+                if (x < node.threshold) {
+                    node = node.left;
+                } else if (x >= node.threshold) {
+                    node = node.right;
+                } else {
+                    node = node.missingLeft ? node.left : node.right;
+                }
+            }
+            sum += node.threshold;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.mediamath.bid_valuator.model.LinearModel;
+import com.mediamath.bid_valuator.model.LinearValuator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Endpoint#valuate(OpenRtb.BidRequest)} on an already unmarshaled bid request, with the sample valuator,
+ * or a {@link LinearValuator} (over 2^20 random weights) that scores every SelectedEntity
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValuateBenchmark {
+    @Param({"1", "10", "100"})
+    public int selectedEntities;
+
+    @Param({"sample", "linear"})
+    public String valuator;
+
+    private OpenRtb.BidRequest bidRequest;
+
+    @Setup
+    public void setup() throws IOException {
+        bidRequest = Fixtures.bidRequest(selectedEntities);
+        if (valuator.equals("linear")) {
+            Random random = new Random(42);
+            float[] weights = new float[1 << 20];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = (float) random.nextGaussian() * 0.01f;
+            }
+            Endpoint.valuators.swap(new LinearValuator(new LinearModel(LinearModel.Link.LOGISTIC, -1, 2, weights),
+                    "linear", 0, 5));
+        }
+    }
+
+    @Benchmark
+    public Response valuate() {
+        return Endpoint.valuate(bidRequest);
+    }
+}
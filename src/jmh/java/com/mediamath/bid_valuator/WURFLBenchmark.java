@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.mediamath.bid_valuator.WURFL.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Helper#getWURFLData(OpenRtb.MM_Ext.CompanionData, Class)} for each of the known
+ * {@link Helper.Dimension}s
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WURFLBenchmark {
+    @Param({"BROWSER", "OS", "DEVICE_FORM_FACTOR", "DEVICE_MFR_AND_MODEL"})
+    public Helper.Dimension dimension;
+
+    private OpenRtb.MM_Ext.CompanionData companionData;
+    private Class<? extends WURFLValue> valueType;
+
+    @Setup
+    public void setup() throws IOException {
+        companionData = Fixtures.sampleBidRequest().getExt().getMmExt().getSelectedEntities(0).getCompanionData();
+        switch (dimension) {
+            case BROWSER:
+                valueType = Browser.class;
+                break;
+            case OS:
+                valueType = OS.class;
+                break;
+            case DEVICE_FORM_FACTOR:
+                valueType = DeviceFormFactor.class;
+                break;
+            case DEVICE_MFR_AND_MODEL:
+                valueType = Device.class;
+                break;
+            default:
+                throw new IllegalArgumentException("No WURFLValue type for dimension " + dimension);
+        }
+    }
+
+    @Benchmark
+    public List<? extends WURFLValue> getWURFLData() {
+        return Helper.getWURFLData(companionData, valueType);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An admission controller that caps how many requests are handled at once, and adapts the cap to how quickly they
+ * are answered (AIMD, as in TCP congestion control).
+ *
+ * Every request answered within the latency threshold (counted from arrival, so including time spent queued in the
+ * transport) grows the limit by 1/limit, i.e. by about one for each limit's worth of requests.  A request slower than
+ * that shrinks it by the backoff ratio, but only once per round: requests that were admitted before the last decrease
+ * only reflect the old limit, so they are not held against the new one.  Requests over the limit are shed straight
+ * away rather than queued, so that under overload some bids are dropped instead of every one timing out.
+ *
+ * <pre>{@code
+ * if (!limiter.tryAcquire()) {
+ *     // Shed the request
+ * }
+ * try {
+ *     // Handle the request
+ * } finally {
+ *     limiter.release(arrivalNanos);
+ * }
+ * }</pre>
+ */
+public final class AdaptiveLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    // The limit is fractional, as it grows by 1/limit at a time, and kept as the bits of a double to update it lock free
+    private final AtomicLong limit;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final LongAdder shed = new LongAdder();
+    // Long enough ago that any request can trigger the first decrease
+    private final AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime() - (1L << 62));
+
+    /**
+     * @param initialLimit The limit to start with
+     * @param minLimit The lowest the limit can go
+     * @param maxLimit The highest the limit can go
+     * @param latencyThresholdNanos The latency above which a request is taken as a sign of overload
+     * @param backoffRatio What the limit is multiplied by on overload, between 0 and 1
+     * @throws IllegalArgumentException if the limits are not ordered, or the backoff ratio is out of range
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdNanos, double backoffRatio)
+            throws IllegalArgumentException {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Limits must be 1 <= min (" + minLimit + ") <= initial (" + initialLimit
+                    + ") <= max (" + maxLimit + ")");
+        }
+        if (!(backoffRatio > 0 && backoffRatio < 1)) {
+            throw new IllegalArgumentException(backoffRatio + " is not a valid backoff ratio, must be between 0 and 1");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.backoffRatio = backoffRatio;
+        this.limit = new AtomicLong(Double.doubleToRawLongBits(initialLimit));
+    }
+
+    /**
+     * @param config The limiter settings, e.g. {@code bid-valuator.limiter}
+     * @return A new limiter
+     * @throws IllegalArgumentException if the settings are not valid
+     */
+    public static AdaptiveLimiter fromConfig(Config config) throws IllegalArgumentException {
+        return new AdaptiveLimiter(config.getInt("initial-limit"), config.getInt("min-limit"),
+                config.getInt("max-limit"), config.getDuration("latency-threshold", TimeUnit.NANOSECONDS),
+                config.getDouble("backoff-ratio"));
+    }
+
+    /**
+     * Admits a request if fewer than the limit are in flight, in which case it must be released once answered
+     * @return Whether or not the request was admitted.  If not it has been counted as shed.
+     */
+    public boolean tryAcquire() {
+        if (inflight.incrementAndGet() > getLimit()) {
+            inflight.decrementAndGet();
+            shed.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases an admitted request, and adapts the limit to how long it took
+     * @param arrivalNanos When the request was received, on the {@link System#nanoTime()} clock
+     */
+    public void release(long arrivalNanos) {
+        long now = System.nanoTime();
+        int inflightBefore = inflight.getAndDecrement();
+        if (now - arrivalNanos > latencyThresholdNanos) {
+            long lastDecrease = lastDecreaseNanos.get();
+            // Of the slow requests finishing at once, only the one that moves the round on backs off
+            if (arrivalNanos - lastDecrease > 0 && lastDecreaseNanos.compareAndSet(lastDecrease, now)) {
+                update(-1);
+            }
+        } else if (inflightBefore * 2 >= getLimit()) {
+            // Only grow while the limit is actually being used, or an idle endpoint would drift up to the maximum
+            update(1);
+        }
+    }
+
+    private void update(int direction) {
+        long current;
+        long next;
+        do {
+            current = limit.get();
+            double value = Double.longBitsToDouble(current);
+            value = (direction > 0) ? value + 1 / value : value * backoffRatio;
+            next = Double.doubleToRawLongBits(Math.max(minLimit, Math.min(maxLimit, value)));
+        } while (current != next && !limit.compareAndSet(current, next));
+    }
+
+    /**
+     * @return Whether or not at least half the limit is in use, which lower priority work should give way to
+     */
+    public boolean isBusy() {
+        return inflight.get() * 2 >= getLimit();
+    }
+
+    /**
+     * @return The number of requests currently admitted at once
+     */
+    public int getLimit() {
+        return (int) Double.longBitsToDouble(limit.get());
+    }
+
+    /**
+     * @return The number of requests admitted and not yet released
+     */
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    /**
+     * @return The number of requests shed since the limiter was created
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Valuates many bid requests at once, spread over a pool of threads, for /valuate/batch: replaying or pre-scoring
+ * traffic, or benchmarking valuation without HTTP in the way.
+ *
+ * A batch is a stream of binary protobuf BidRequests, each preceded by its length as a varint (the framing of
+ * {@code writeDelimitedTo} and {@code parseDelimitedFrom}).  The responses come back in the same order and framing, as
+ * {@link com.mediamath.valuation.ValuationResponse.Response}s, with an empty Response (a single zero byte) for each
+ * request that is not bid on (or fails to valuate).
+ *
+ * <pre>{@code
+ * ByteArrayOutputStream out = new ByteArrayOutputStream();
+ * int count = batchValuator.valuate(body.asByteBuffer(), out);
+ * }</pre>
+ *
+ * Each request is valuated by {@link Endpoint#valuate(BidRequestView, Deadline, boolean)}, without a deadline, so sees
+ * the same valuator, spend limits and bid shading as /valuate, but its bids are not recorded to be joined with win
+ * notices (they were never really made).  The requests are decoded in place (selectively, if
+ * {@link Endpoint#selectiveDecoding} is set) and split into a few chunks per thread, and the calling thread waits for
+ * them before rendering the responses in order.
+ *
+ * Batches come second to live traffic: only a few are valuated at once (max-concurrent), and none are started while
+ * /valuate is busy (see {@link BatchValuator#tryAcquire(AdaptiveLimiter)}).  Those turned away are counted as shed.
+ */
+public final class BatchValuator implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BatchValuator.class);
+    private static final AtomicInteger pools = new AtomicInteger();
+    // Chunks per thread, so a thread that draws slow requests does not hold up the whole batch
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final Semaphore batches;
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * @param threads The number of threads to valuate on, 0 for one per core
+     * @throws IllegalArgumentException if {@code threads} is negative
+     */
+    public BatchValuator(int threads) throws IllegalArgumentException {
+        this(threads, 1);
+    }
+
+    /**
+     * @param threads The number of threads to valuate on, 0 for one per core
+     * @param maxConcurrent The most batches admitted at once (see {@link BatchValuator#tryAcquire(AdaptiveLimiter)})
+     * @throws IllegalArgumentException if {@code threads} is negative, or {@code maxConcurrent} is not positive
+     */
+    public BatchValuator(int threads, int maxConcurrent) throws IllegalArgumentException {
+        if (threads < 0) {
+            throw new IllegalArgumentException("A batch valuator can not have " + threads + " threads");
+        }
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException(maxConcurrent + " is not a valid number of concurrent batches");
+        }
+        this.batches = new Semaphore(maxConcurrent);
+        this.threads = (threads == 0) ? Runtime.getRuntime().availableProcessors() : threads;
+        int pool = pools.incrementAndGet();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch-valuator-" + pool + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param config The bid-valuator.batch section
+     * @return A new batch valuator, as configured
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    public static BatchValuator fromConfig(Config config) throws IllegalArgumentException {
+        return new BatchValuator(config.getInt("threads"), config.getInt("max-concurrent"));
+    }
+
+    /**
+     * Admits a batch if fewer than max-concurrent are being valuated and live traffic is not busy, in which case it
+     * must be released once answered
+     * @param live The limiter of /valuate, whose traffic batches give way to while it {@link AdaptiveLimiter#isBusy()},
+     *             or null to only limit how many batches run at once
+     * @return Whether or not the batch was admitted.  If not it has been counted as shed.
+     */
+    public boolean tryAcquire(AdaptiveLimiter live) {
+        if ((live != null && live.isBusy()) || !batches.tryAcquire()) {
+            shed.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases an admitted batch
+     */
+    public void release() {
+        batches.release();
+    }
+
+    /**
+     * @return The number of batches shed since the valuator was created
+     */
+    public long shed() {
+        return shed.sum();
+    }
+
+    /**
+     * @return The number of threads requests are valuated on
+     */
+    public int threads() {
+        return threads;
+    }
+
+    /**
+     * Splits a batch into its requests, without copying them
+     * @param batch Length delimited BidRequests, from the position to the limit.  Its position is not changed.
+     * @return A view of each request's bytes, in order
+     * @throws InvalidProtocolBufferException if a length is malformed or runs past the end of the batch
+     */
+    public static List<ByteBuffer> split(ByteBuffer batch) throws InvalidProtocolBufferException {
+        ByteBuffer source = batch.slice();
+        CodedInputStream input = CodedInputStream.newInstance(source.duplicate());
+        List<ByteBuffer> requests = new ArrayList<>();
+        try {
+            while (!input.isAtEnd()) {
+                int length = input.readRawVarint32();
+                int offset = input.getTotalBytesRead();
+                if (length < 0 || length > source.limit() - offset) {
+                    throw new InvalidProtocolBufferException("BidRequest " + requests.size() + " has a length of "
+                            + length + ", but only " + (source.limit() - offset) + " bytes are left in the batch");
+                }
+                ByteBuffer request = source.duplicate();
+                request.position(offset);
+                request.limit(offset + length);
+                requests.add(request);
+                input.skipRawBytes(length);
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+        return requests;
+    }
+
+    /**
+     * Valuates every request in a batch, and writes the responses in order
+     * @param batch Length delimited BidRequests.  It must not be modified until this returns.
+     * @param out Where the length delimited Responses are written
+     * @return The number of requests in the batch
+     * @throws InvalidProtocolBufferException if the batch is not framed correctly, or {@link Endpoint#selectiveDecoding}
+     * is not set and a request is not a valid BidRequest
+     * @throws IOException if the responses could not be written, or the thread was interrupted while waiting for them
+     */
+    public int valuate(ByteBuffer batch, OutputStream out) throws IOException {
+        List<ByteBuffer> requests = split(batch);
+        BidRequestView[] views = new BidRequestView[requests.size()];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = Endpoint.selectiveDecoding ?
+                    BidRequestView.parseFrom(requests.get(i)) :
+                    BidRequestView.of(OpenRtb.BidRequest.parseFrom(requests.get(i)));
+        }
+        write(valuate(views), out);
+        return views.length;
+    }
+
+    /**
+     * Valuates requests in parallel
+     * @param requests The requests
+     * @return The response to each request, in order, or null where there is no bid
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the responses
+     */
+    public Response[] valuate(BidRequestView[] requests) throws InterruptedIOException {
+        Response[] responses = new Response[requests.length];
+        int chunk = Math.max(1, (requests.length + threads * CHUNKS_PER_THREAD - 1) / (threads * CHUNKS_PER_THREAD));
+        if (chunk >= requests.length) {
+            valuate(requests, responses, 0, requests.length);
+            return responses;
+        }
+        List<Future<?>> chunks = new ArrayList<>();
+        for (int from = 0; from < requests.length; from += chunk) {
+            int start = from;
+            int end = Math.min(from + chunk, requests.length);
+            chunks.add(executor.submit(() -> valuate(requests, responses, start, end)));
+        }
+        try {
+            for (Future<?> future : chunks) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            chunks.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted valuating a batch of " + requests.length + " requests");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to valuate a batch of " + requests.length + " requests", e.getCause());
+        }
+        // Waiting on each future makes the chunks' writes to responses visible here
+        return responses;
+    }
+
+    private static void valuate(BidRequestView[] requests, Response[] responses, int from, int to) {
+        for (int i = from; i < to; i++) {
+            ValuationContext.reset("/valuate/batch");
+            try {
+                responses[i] = Endpoint.valuate(requests[i], Deadline.NONE, false);
+            } catch (RuntimeException e) {
+                logger.error("Failed to valuate request {} of a batch, not bidding", i, e);
+                responses[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Writes responses length delimited, with an empty Response for each null
+     * @param responses The responses
+     * @param out The stream to write to
+     * @throws IOException if writing fails
+     */
+    static void write(Response[] responses, OutputStream out) throws IOException {
+        CodedOutputStream lengths = CodedOutputStream.newInstance(out, 5);
+        for (Response response : responses) {
+            if (response == null) {
+                lengths.writeUInt32NoTag(0);
+                continue;
+            }
+            ResponseProtobufWriter writer = ResponseProtobufWriter.get().write(response);
+            lengths.writeUInt32NoTag(writer.length());
+            lengths.flush();
+            writer.writeTo(out);
+        }
+        lengths.flush();
+    }
+
+    /**
+     * Stops the threads, once the batches already started have been valuated
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A view of the parts of an OpenRTB BidRequest that valuation reads: the request id, and the MediaMath extensions
+ * found under ext-&gt;mm_ext.
+ *
+ * {@link BidRequestView#parseFrom(ByteBuffer)} decodes binary protobuf selectively: it walks the top level fields with
+ * a {@link CodedInputStream}, skipping the imp, site, app, device and user subtrees without materializing them, and
+ * only records where each SelectedEntity and the BidFeature message are in the buffer.  Each of those is decoded the
+ * first time it is asked for, so a valuator that only looks at one SelectedEntity never pays for the others.
+ *
+ * The full BidRequest is still available through {@link BidRequestView#getBidRequest()}, which parses the whole
+ * buffer on first use.  A selectively decoded view reads from the buffer it was created from for as long as it is in
+ * use, so that buffer must not be modified or reused in the meantime.  Views are not thread safe.
+ */
+public final class BidRequestView {
+    private static final int ID_TAG = tag(OpenRtb.BidRequest.ID_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int EXT_TAG = tag(OpenRtb.BidRequest.EXT_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int MM_EXT_TAG = tag(OpenRtb.Ext.MM_EXT_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int ALLOWED_LATENCY_TAG = tag(OpenRtb.MM_Ext.ALLOWEDLATENCY_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int SELECTED_ENTITIES_TAG = tag(OpenRtb.MM_Ext.SELECTEDENTITIES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int BID_FEATURE_TAG = tag(OpenRtb.MM_Ext.BIDFEATURE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    // Set for views decoded selectively from a buffer
+    private final ByteBuffer source;
+    private String id;
+    private boolean hasAllowedLatency = false;
+    private int allowedLatency = 0;
+    private int[] entityOffsets = new int[8];
+    private int[] entityLengths = new int[8];
+    private int entityCount = 0;
+    private int bidFeatureOffset = -1;
+    private int bidFeatureLength = 0;
+    private OpenRtb.MM_Ext.SelectedEntity[] entities;
+    private OpenRtb.MM_Ext.BidFeatureMsg bidFeature;
+
+    // Set for views of an already parsed request, or once a selectively decoded view has been fully parsed
+    private OpenRtb.BidRequest bidRequest;
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    private BidRequestView(ByteBuffer source, OpenRtb.BidRequest bidRequest) {
+        this.source = source;
+        this.bidRequest = bidRequest;
+    }
+
+    /**
+     * Wraps an already parsed BidRequest (e.g. one unmarshaled from JSON or the protobuf text encoding)
+     * @param bidRequest The full BidRequest
+     * @return A view of {@code bidRequest}
+     */
+    public static BidRequestView of(OpenRtb.BidRequest bidRequest) {
+        return new BidRequestView(null, bidRequest);
+    }
+
+    /**
+     * Selectively decodes a binary protobuf encoded BidRequest
+     * @param data The encoded BidRequest
+     * @return A view over {@code data}
+     * @throws InvalidProtocolBufferException if the data is not a valid BidRequest
+     */
+    public static BidRequestView parseFrom(byte[] data) throws InvalidProtocolBufferException {
+        return parseFrom(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Selectively decodes a binary protobuf encoded BidRequest, from the position to the limit of {@code buffer}.
+     * Only the top level fields, ext and mm_ext are checked for validity here, anything else is checked when (and
+     * if) it is decoded.
+     *
+     * A request that repeats ext, mm_ext or BidFeature (which protobuf merges) is fully parsed instead.
+     * @param buffer The encoded BidRequest.  Its position is not changed.
+     * @return A view over {@code buffer}
+     * @throws InvalidProtocolBufferException if the data is not a valid BidRequest
+     */
+    public static BidRequestView parseFrom(ByteBuffer buffer) throws InvalidProtocolBufferException {
+        BidRequestView view = new BidRequestView(buffer.slice(), null);
+        try {
+            if (!view.scan(CodedInputStream.newInstance(view.source.duplicate()))) {
+                return of(OpenRtb.BidRequest.parseFrom(view.source.duplicate()));
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+        return view;
+    }
+
+    /**
+     * @return false if the request can not be decoded selectively and should be fully parsed instead
+     */
+    private boolean scan(CodedInputStream input) throws IOException {
+        boolean seenExt = false;
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            if (tag == ID_TAG) {
+                id = input.readString();
+            } else if (tag == EXT_TAG) {
+                if (seenExt) {
+                    return false;
+                }
+                seenExt = true;
+                int limit = input.pushLimit(input.readRawVarint32());
+                if (!scanExt(input)) {
+                    return false;
+                }
+                input.popLimit(limit);
+            } else {
+                skipField(input, tag);
+            }
+        }
+        if (id == null) {
+            throw new InvalidProtocolBufferException("Message missing required fields: id");
+        }
+        return true;
+    }
+
+    private boolean scanExt(CodedInputStream input) throws IOException {
+        boolean seenMmExt = false;
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            if (tag == MM_EXT_TAG) {
+                if (seenMmExt) {
+                    return false;
+                }
+                seenMmExt = true;
+                int limit = input.pushLimit(input.readRawVarint32());
+                if (!scanMmExt(input)) {
+                    return false;
+                }
+                input.popLimit(limit);
+            } else {
+                skipField(input, tag);
+            }
+        }
+        return true;
+    }
+
+    private boolean scanMmExt(CodedInputStream input) throws IOException {
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            if (tag == ALLOWED_LATENCY_TAG) {
+                allowedLatency = input.readInt32();
+                hasAllowedLatency = true;
+            } else if (tag == SELECTED_ENTITIES_TAG) {
+                int length = input.readRawVarint32();
+                addEntity(input.getTotalBytesRead(), length);
+                input.skipRawBytes(length);
+            } else if (tag == BID_FEATURE_TAG) {
+                if (bidFeatureOffset >= 0) {
+                    return false;
+                }
+                bidFeatureLength = input.readRawVarint32();
+                bidFeatureOffset = input.getTotalBytesRead();
+                input.skipRawBytes(bidFeatureLength);
+            } else {
+                skipField(input, tag);
+            }
+        }
+        return true;
+    }
+
+    private static void skipField(CodedInputStream input, int tag) throws IOException {
+        if (!input.skipField(tag)) {
+            // An end group tag where no group was started
+            throw new InvalidProtocolBufferException("Protocol message end-group tag did not match expected tag.");
+        }
+    }
+
+    private void addEntity(int offset, int length) {
+        if (entityCount == entityOffsets.length) {
+            entityOffsets = Arrays.copyOf(entityOffsets, entityCount * 2);
+            entityLengths = Arrays.copyOf(entityLengths, entityCount * 2);
+        }
+        entityOffsets[entityCount] = offset;
+        entityLengths[entityCount] = length;
+        entityCount++;
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer slice = source.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice;
+    }
+
+    /**
+     * @return Whether or not this view was decoded selectively (as opposed to wrapping a fully parsed request)
+     */
+    public boolean isSelective() {
+        return source != null;
+    }
+
+    public String getId() {
+        return (source != null) ? id : bidRequest.getId();
+    }
+
+    public boolean hasAllowedLatency() {
+        return (source != null) ? hasAllowedLatency : getMmExt().hasAllowedLatency();
+    }
+
+    public int getAllowedLatency() {
+        return (source != null) ? allowedLatency : getMmExt().getAllowedLatency();
+    }
+
+    public int getSelectedEntitiesCount() {
+        return (source != null) ? entityCount : getMmExt().getSelectedEntitiesCount();
+    }
+
+    /**
+     * Returns a SelectedEntity, decoding it on first use
+     * @param index The index of the SelectedEntity
+     * @return The decoded SelectedEntity
+     * @throws IndexOutOfBoundsException if there is no SelectedEntity at {@code index}
+     * @throws IllegalArgumentException if the SelectedEntity is not valid
+     */
+    public OpenRtb.MM_Ext.SelectedEntity getSelectedEntity(int index) {
+        if (source == null) {
+            return getMmExt().getSelectedEntities(index);
+        }
+        if (index < 0 || index >= entityCount) {
+            throw new IndexOutOfBoundsException("SelectedEntity " + index + " requested, but there are " + entityCount);
+        }
+        if (entities == null) {
+            entities = new OpenRtb.MM_Ext.SelectedEntity[entityCount];
+        }
+        if (entities[index] == null) {
+            try {
+                entities[index] = OpenRtb.MM_Ext.SelectedEntity.parseFrom(slice(entityOffsets[index], entityLengths[index]));
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalArgumentException("Failed to decode SelectedEntity " + index + " of BidRequest " + id, e);
+            }
+        }
+        return entities[index];
+    }
+
+    /**
+     * Returns the BidFeature message, decoding it on first use
+     * @return The decoded BidFeature, or the default instance if the request has none
+     * @throws IllegalArgumentException if the BidFeature message is not valid
+     */
+    public OpenRtb.MM_Ext.BidFeatureMsg getBidFeature() {
+        if (source == null) {
+            return getMmExt().getBidFeature();
+        }
+        if (bidFeature == null) {
+            if (bidFeatureOffset < 0) {
+                bidFeature = OpenRtb.MM_Ext.BidFeatureMsg.getDefaultInstance();
+            } else {
+                try {
+                    bidFeature = OpenRtb.MM_Ext.BidFeatureMsg.parseFrom(slice(bidFeatureOffset, bidFeatureLength));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IllegalArgumentException("Failed to decode BidFeature of BidRequest " + id, e);
+                }
+            }
+        }
+        return bidFeature;
+    }
+
+    /**
+     * Returns the full BidRequest, parsing the whole request on first use if this view was decoded selectively
+     * @return The full BidRequest
+     * @throws IllegalArgumentException if the request is not valid
+     */
+    public OpenRtb.BidRequest getBidRequest() {
+        if (bidRequest == null) {
+            try {
+                bidRequest = OpenRtb.BidRequest.parseFrom(source.duplicate());
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalArgumentException("Failed to fully parse BidRequest " + id, e);
+            }
+        }
+        return bidRequest;
+    }
+
+    private OpenRtb.MM_Ext getMmExt() {
+        return bidRequest.getExt().getMmExt();
+    }
+
+    /**
+     * @return The text encoding of the full BidRequest (parsing it if necessary)
+     */
+    @Override
+    public String toString() {
+        return getBidRequest().toString();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.typesafe.config.ConfigFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The time left to answer a bid request, which Bid Valuator waits MM_Ext.AllowedLatency milliseconds for, counted from
+ * when the transport received it (see {@link com.mediamath.bid_valuator.server.Exchange#arrivalNanos()}).  Bid
+ * Valuator logs a late answer as a timeout, so a request that is about to run out of time is better answered with a
+ * cheap fallback than valued to the end.
+ *
+ * The deadline is checked after each {@link Stage} of handling a request.  Once no more than
+ * {@link Deadline#safetyMarginNanos} is left (kept for the response to be written and reach Bid Valuator) the request
+ * falls back, which is counted against the stage that used up the budget.  If the deadline has already passed by then
+ * that is counted as a miss as well.
+ *
+ * <pre>{@code
+ * Deadline deadline = Deadline.of(exchange.arrivalNanos(), bidRequest.getAllowedLatency());
+ * if (deadline.shouldFallBack(Deadline.Stage.PARSE)) {
+ *     // Answer with a fallback
+ * }
+ * }</pre>
+ */
+public final class Deadline {
+    /**
+     * The stages of handling a request, in order
+     */
+    public enum Stage {
+        /**
+         * Reading and unmarshaling the bid request
+         */
+        PARSE,
+        /**
+         * Choosing the bid, see {@link Endpoint#valuate(BidRequestView, Deadline)}
+         */
+        VALUATE,
+        /**
+         * Rendering the response
+         */
+        RENDER,
+        /**
+         * Writing the response, after which it is too late to fall back, so only misses are counted
+         */
+        RESPOND;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Whether requests fall back when they run out of time.  When false, every deadline is unbounded.
+     */
+    public static boolean enabled = ConfigFactory.load().getBoolean("bid-valuator.deadline.enabled");
+    /**
+     * The time kept in reserve for the response to be written and reach Bid Valuator
+     */
+    public static long safetyMarginNanos = ConfigFactory.load().getDuration("bid-valuator.deadline.safety-margin", TimeUnit.NANOSECONDS);
+    /**
+     * A deadline that never runs out
+     */
+    public static final Deadline NONE = new Deadline(0, Long.MAX_VALUE);
+
+    private static final LongAdder[] misses = counters();
+    private static final LongAdder[] fallbacks = counters();
+
+    private final long arrivalNanos;
+    private final long budgetNanos;
+
+    private Deadline(long arrivalNanos, long budgetNanos) {
+        this.arrivalNanos = arrivalNanos;
+        this.budgetNanos = budgetNanos;
+    }
+
+    private static LongAdder[] counters() {
+        LongAdder[] counters = new LongAdder[Stage.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * @param arrivalNanos When the request was received, on the {@link System#nanoTime()} clock
+     * @param allowedLatencyMillis The request's MM_Ext.AllowedLatency, or 0 if it has none
+     * @return The request's deadline, or {@link Deadline#NONE} if it has no allowed latency or deadlines are disabled
+     */
+    public static Deadline of(long arrivalNanos, int allowedLatencyMillis) {
+        if (!enabled || allowedLatencyMillis <= 0) {
+            return NONE;
+        }
+        return new Deadline(arrivalNanos, TimeUnit.MILLISECONDS.toNanos(allowedLatencyMillis));
+    }
+
+    /**
+     * @return The time left before Bid Valuator stops waiting, which is negative once the deadline has passed
+     */
+    public long remainingNanos() {
+        if (this == NONE) {
+            return Long.MAX_VALUE;
+        }
+        return budgetNanos - (System.nanoTime() - arrivalNanos);
+    }
+
+    /**
+     * @return Whether or not no more than the safety margin is left, so any further work risks answering late
+     */
+    public boolean isRunningOut() {
+        return remainingNanos() <= safetyMarginNanos;
+    }
+
+    /**
+     * Checks the deadline once a stage is done, counting a fallback (and a miss, if the deadline has already passed)
+     * against the stage if the request is running out of time
+     * @param stage The stage just completed
+     * @return Whether or not the request should be answered with a fallback
+     */
+    public boolean shouldFallBack(Stage stage) {
+        long remaining = remainingNanos();
+        if (remaining > safetyMarginNanos) {
+            return false;
+        }
+        fallbacks[stage.ordinal()].increment();
+        if (remaining <= 0) {
+            misses[stage.ordinal()].increment();
+        }
+        return true;
+    }
+
+    /**
+     * Checks the deadline once the response has been written, counting a miss against {@link Stage#RESPOND} if the
+     * answer was late
+     */
+    public void checkResponded() {
+        if (remainingNanos() <= 0) {
+            misses[Stage.RESPOND.ordinal()].increment();
+        }
+    }
+
+    /**
+     * @param stage A stage
+     * @return The number of requests whose deadline had passed by the end of {@code stage}
+     */
+    public static long misses(Stage stage) {
+        return misses[stage.ordinal()].sum();
+    }
+
+    /**
+     * @param stage A stage
+     * @return The number of requests that fell back at the end of {@code stage}
+     */
+    public static long fallbacks(Stage stage) {
+        return fallbacks[stage.ordinal()].sum();
+    }
+}
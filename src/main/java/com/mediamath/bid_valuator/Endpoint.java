@@ -18,32 +18,57 @@ package com.mediamath.bid_valuator;
 
 import com.google.openrtb.OpenRtb;
 import com.mediamath.winnotice.Winnotice;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.util.JsonFormat;
-import com.mediamath.bid_valuator.WURFL.Device;
-import com.mediamath.bid_valuator.WURFL.Helper;
-import com.mediamath.bid_valuator.WURFL.WURFLValue;
+import com.mediamath.bid_valuator.WURFL.WURFLDictionary;
+import com.mediamath.bid_valuator.WURFL.WURFLProfileCache;
+import com.mediamath.bid_valuator.log.ValuationLog;
+import com.mediamath.bid_valuator.log.ValuationRecord;
+import com.mediamath.bid_valuator.server.Exchange;
+import com.mediamath.bid_valuator.server.HaltException;
+import com.mediamath.bid_valuator.server.Transport;
+import com.mediamath.bid_valuator.winnotice.AuctionJoins;
+import com.mediamath.bid_valuator.winnotice.BidShader;
+import com.mediamath.bid_valuator.winnotice.WinCounters;
+import com.mediamath.bid_valuator.winnotice.WinNoticeHandler;
+import com.mediamath.bid_valuator.winnotice.WinNoticeJournal;
+import com.mediamath.bid_valuator.winnotice.WinNoticeRing;
+import com.mediamath.bid_valuator.winnotice.WinTotals;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.Random;
-
-import static spark.Spark.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <h1>Bid Valuator Sample Endpoint</h1>
  *<p>
- * This endpoint exposes two routes, and will listen on all available interfaces on port 4567:
+ * This endpoint exposes two routes, and will listen on all available interfaces on port 4567 (bid-valuator.server.port).
+ * Requests are served by Spark on Jetty, or by Netty, as selected by bid-valuator.server.transport (see
+ * {@link Transport}).
  * </p>
  * <ul>
  *     <li><b>/valuate</b>: Bid valuator will send bid requests here, and will use the response to place a bid</li>
+ *     <li><b>/valuate/batch</b>: Valuates many length delimited binary protobuf bid requests at once, and returns the
+ *     responses in the same order and framing (see {@link BatchValuator})</li>
+ *     <li><b>/winnotice</b>: Bid valuator will send a notification here for each auction won, which is handed to
+ *     {@link Endpoint#winNotices} to be processed in the background</li>
  *     <li><b>/healthz</b>: Simple health check, returns 200 OK, used for health monitoring</li>
+ *     <li><b>/winstats</b>: The wins, spend and prices counted for each strategy and campaign as JSON (see
+ *     {@link WinCounters#snapshot()})</li>
+ *     <li><b>/winrates</b>: The bids, wins, overbids and underbids of each strategy as JSON, when bids are joined with
+ *     their win notices (see {@link AuctionJoins#snapshot()})</li>
+ *     <li><b>/metrics</b>: Current values of the endpoint's internal counters as JSON (see {@link Metrics})</li>
  * </ul>
  * <p>
  *     Responses will be logged by MediaMath to the storage bucket configured for your endpoint ONLY if the
@@ -62,8 +87,15 @@ import static spark.Spark.*;
  * </ul>
  *
  *<p>
+ * Responses are JSON, or the binary protobuf encoding of {@link com.mediamath.valuation.ValuationResponse.Response}
+ * if the request is sent with <i>Accept: application/protobuf</i>.
  * See {@link Endpoint#valuate(OpenRtb.BidRequest)} for details on the response format and behavior
  * </p>
+ * <p>
+ * Requests that are about to exceed their MM_Ext.AllowedLatency (see {@link Deadline}) are answered with a fallback
+ * rather than late: a 204 No Content, or a default bid (bid-valuator.deadline.fallback).  Requests beyond what the
+ * endpoint can currently handle at once (see {@link AdaptiveLimiter}) are shed straight away with a 204 No Content.
+ * </p>
  */
 public class Endpoint {
     // TODO: Making everything static is pretty ugly and not buying much in terms of remaining simple,
@@ -95,104 +127,509 @@ public class Endpoint {
      * The endpoint will use this as the upper bound of the randomly generated CPM
      */
     public static double maxCPM = 0.5;
+    /**
+     * Whether binary protobuf bid requests are decoded selectively (see {@link BidRequestView}) rather than fully parsed
+     */
+    public static boolean selectiveDecoding = ConfigFactory.load().getBoolean("bid-valuator.selective-decoding");
+    /**
+     * Whether /valuate responses are rendered reflectively with Gson ({@link ResponseJsonTransformer}) rather than
+     * streamed by {@link ResponseJsonWriter}.  The output is the same either way, this is only meant for debugging.
+     */
+    public static boolean gsonResponses = ConfigFactory.load().getBoolean("bid-valuator.gson-responses");
+    /**
+     * Whether requests that run out of time fall back to {@link Endpoint#defaultBid(BidRequestView)} rather than a
+     * 204 No Content
+     */
+    public static boolean defaultBidFallback = isDefaultBidFallback(ConfigFactory.load().getString("bid-valuator.deadline.fallback"));
+    /**
+     * The CPM of {@link Endpoint#defaultBid(BidRequestView)}
+     */
+    public static double defaultBidCPM = ConfigFactory.load().getDouble("bid-valuator.deadline.default-bid-cpm");
+    /**
+     * Whether /valuate sheds requests beyond {@link Endpoint#valuateLimiter}'s limit
+     */
+    public static boolean loadShedding = ConfigFactory.load().getBoolean("bid-valuator.limiter.enabled");
+    static AdaptiveLimiter valuateLimiter = AdaptiveLimiter.fromConfig(ConfigFactory.load().getConfig("bid-valuator.limiter"));
+    /**
+     * The valuators /valuate requests are valued with.  A new one can be swapped in at any time, without interrupting
+     * requests (see {@link ValuatorRegistry#swap(Valuator)}).
+     */
+    public static ValuatorRegistry valuators = ValuatorRegistry.fromConfig(ConfigFactory.load().getConfig("bid-valuator.valuator"));
+    /**
+     * Whether each /valuate request is logged to the {@link ValuationLog}
+     */
+    public static boolean valuationLog = ConfigFactory.load().getBoolean("bid-valuator.valuation-log.enabled");
+    /**
+     * Totals the wins reported to /winnotice
+     */
+    public static WinTotals winTotals = new WinTotals();
+    /**
+     * Counts the wins, spend and prices of each strategy and campaign reported to /winnotice
+     */
+    public static WinCounters winCounters = WinCounters.fromConfig(ConfigFactory.load().getConfig("bid-valuator.winnotice.counters"));
+    /**
+     * Stop bidding for a strategy once its wins have spent this much (in micros), or 0 for no limit
+     */
+    public static long maxStrategySpendMicros = Math.round(ConfigFactory.load().getDouble("bid-valuator.winnotice.counters.max-strategy-spend") * 1_000_000);
+    /**
+     * Learns how far each strategy's bids can be shaded from the wins reported to /winnotice
+     */
+    public static BidShader bidShader = BidShader.fromConfig(ConfigFactory.load().getConfig("bid-valuator.shading"));
+    /**
+     * Whether the CPM of each bid is shaded by {@link Endpoint#bidShader}, or it only learns
+     */
+    public static boolean shadeBids = ConfigFactory.load().getBoolean("bid-valuator.shading.enabled");
+    /**
+     * Joins the bids /valuate makes with the notices reported to /winnotice, or null if not configured to
+     */
+    public static AuctionJoins auctionJoins = AuctionJoins.fromConfig(ConfigFactory.load().getConfig("bid-valuator.winnotice.joins"));
+    /**
+     * Appends the notices reported to /winnotice to segment files on disk, or null if not configured to
+     */
+    public static WinNoticeJournal winNoticeJournal = WinNoticeJournal.fromConfig(ConfigFactory.load().getConfig("bid-valuator.winnotice.journal"));
+    /**
+     * Where /winnotice publishes the notices it parses, for {@link Endpoint#winTotals}, {@link Endpoint#winCounters},
+     * {@link Endpoint#bidShader}, {@link Endpoint#auctionJoins} and {@link Endpoint#winNoticeJournal} to process in the
+     * background.  Created (starting its handler threads) by the first {@link Endpoint#start(Transport, int)}, and
+     * null until then.
+     */
+    public static volatile WinNoticeRing winNotices;
+    /**
+     * What /winnotice does with a notice {@link Endpoint#winNotices} is too full to take
+     */
+    public static WinNoticeRing.WhenFull winNoticeWhenFull = WinNoticeRing.whenFull(ConfigFactory.load().getConfig("bid-valuator.winnotice"));
+    /**
+     * Valuates the requests sent to /valuate/batch in parallel
+     */
+    public static BatchValuator batchValuator = BatchValuator.fromConfig(ConfigFactory.load().getConfig("bid-valuator.batch"));
+    private static ResponseJsonTransformer responseJsonTransformer = new ResponseJsonTransformer();
+
+    private static WinNoticeHandler[] winNoticeHandlers() {
+        List<WinNoticeHandler> handlers = new ArrayList<>(Arrays.asList(winTotals, winCounters, bidShader));
+        if(auctionJoins != null) {
+            handlers.add(auctionJoins);
+        }
+        if(winNoticeJournal != null) {
+            handlers.add(winNoticeJournal);
+        }
+        return handlers.toArray(new WinNoticeHandler[0]);
+    }
     private static Random random = new Random();
     private static Logger logger = LoggerFactory.getLogger("com.mediamath.bid_valuator.Endpoint");
 
     public static void main(String[] args) {
-        post("/valuate", (req, res) -> {
-            MDC.clear();
-            MDC.put("path", req.pathInfo());
-            // Responses back to bid valuator are in JSON
-            res.type("application/json");
-
-            // If you do NOT want to bid on any opportunities in a given request, you may send back
-            // an HTTP 204 NO CONTENT. Alternatively you may send back a response with a CPM of 0
-            // Just as an example, we will randomly decide not to bid on things
-            if(!shouldBid()) {
+        Config config = ConfigFactory.load();
+        start(Transport.fromConfig(config), config.getInt("bid-valuator.server.port"));
+    }
+
+    /**
+     * Registers the endpoint's routes with a transport, and starts it
+     * @param transport The server to handle requests with (see {@link Transport#fromConfig(Config)})
+     * @param port The port to listen on
+     * @return {@code transport}, started
+     */
+    public static Transport start(Transport transport, int port) {
+        startWinNotices();
+        registerMetrics();
+        transport.post("/valuate", Endpoint::admitValuate);
+        transport.post("/valuate/batch", Endpoint::admitValuateBatch);
+        transport.post("/winnotice", Endpoint::handleWinNotice);
+        transport.get("/healthz", exchange -> {
+            ValuationContext.reset(exchange.path());
+            transport.awaitInitialization();
+            exchange.respond(HttpStatus.SC_OK, "text/plain", "OK");
+        });
+        transport.get("/winstats", exchange ->
+                exchange.respond(HttpStatus.SC_OK, "application/json", responseJsonTransformer.render(winCounters.snapshot())));
+        transport.get("/winrates", exchange -> exchange.respond(HttpStatus.SC_OK, "application/json",
+                responseJsonTransformer.render((auctionJoins == null) ? Collections.emptyMap() : auctionJoins.snapshot())));
+        transport.get("/metrics", exchange ->
+                exchange.respond(HttpStatus.SC_OK, "application/json", responseJsonTransformer.render(Metrics.snapshot())));
+        transport.start(port);
+        return transport;
+    }
+
+    private static synchronized void startWinNotices() {
+        if(winNotices == null) {
+            WinNoticeRing ring = WinNoticeRing.fromConfig(ConfigFactory.load().getConfig("bid-valuator.winnotice"), winNoticeHandlers());
+            WinNoticeJournal journal = winNoticeJournal;
+            BidShader shader = bidShader;
+            // The ring is drained first, as the journal must not be handed any more notices once it is closed, and the
+            // shader's last save must have all of them
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                ring.close();
+                if(journal != null) {
+                    try {
+                        journal.close();
+                    } catch(IOException e) {
+                        logger.error("Failed to close the win notice journal", e);
+                    }
+                }
+                shader.close();
+            }, "winnotice-shutdown"));
+            winNotices = ring;
+        }
+    }
+
+    private static void admitValuate(Exchange exchange) throws IOException {
+        if(!loadShedding) {
+            handleValuate(exchange);
+            return;
+        }
+        AdaptiveLimiter limiter = valuateLimiter;
+        // Shed before the request is even read, so an overloaded endpoint still answers quickly
+        if(!limiter.tryAcquire()) {
+            halt(HttpStatus.SC_NO_CONTENT);
+        }
+        try {
+            handleValuate(exchange);
+        } finally {
+            limiter.release(exchange.arrivalNanos());
+        }
+    }
+
+    private static void handleValuate(Exchange exchange) throws IOException {
+        ValuationContext context = ValuationContext.reset(exchange.path());
+
+        // If you do NOT want to bid on any opportunities in a given request, you may send back
+        // an HTTP 204 NO CONTENT. Alternatively you may send back a response with a CPM of 0
+        // Just as an example, we will randomly decide not to bid on things
+        if(!shouldBid()) {
+            halt(HttpStatus.SC_NO_CONTENT);
+        }
+        // Prepare the OpenRtb BidRequest builder to parse the inbound request
+        BidRequestView bidRequest = null;
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        RequestBody body = null;
+        try {
+            context.setContentType(exchange.contentType());
+            // The body is read once, and each parser reads it in place (see RequestBody)
+            body = exchange.body();
+            // Bid Valuator only sends binary protobuf (with Content-Type: application/protobuf), but
+            // using the raw json or text protobuf encoding can be useful for testing and debugging
+            switch (exchange.contentType()) {
+                case "application/json":
+                    jsonFormatParser.merge(body.newReader(), builder);
+                    bidRequest = BidRequestView.of(builder.build());
+                    break;
+                case "text/protobuf":
+                    textFormatParser.merge(body.newReader(), builder);
+                    bidRequest = BidRequestView.of(builder.build());
+                    break;
+                case "application/protobuf":
+                    // Only the parts of the request valuation reads are decoded, unless told otherwise
+                    bidRequest = selectiveDecoding ?
+                            BidRequestView.parseFrom(body.asByteBuffer()) :
+                            BidRequestView.of(OpenRtb.BidRequest.parseFrom(body.newCodedInput()));
+                    break;
+                default:
+                    String msg = "Content-Type " + exchange.contentType() + " is not supported";
+                    context.toMDC();
+                    logger.error(msg);
+                    halt(HttpStatus.SC_NOT_IMPLEMENTED, msg);
+                    break;
+            }
+        } catch(IOException e) {
+            context.toMDC();
+            logParseFailure(exchange, "parse-error", body);
+            logger.error("Failed to unmarshal BidRequest: ", e);
+            halt(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+        if(bidRequest == null) {
+            String msg = "Could not unmarshal BidRequest from request body";
+            context.toMDC();
+            logger.error(msg);
+            halt(HttpStatus.SC_INTERNAL_SERVER_ERROR, msg);
+        }
+        // Only sampled requests (and errored ones) have their body dumped to the valuation log
+        boolean sampled = shouldLog();
+        if(sampled) {
+            // Responses will NOT be logged to the bucket configured in your Bid Valuator settings unless this
+            // header is sent in the response
+            exchange.setHeader(LogRequestHeader, "true");
+        }
+        long parsedNanos = System.nanoTime();
+        long valuatedNanos = -1;
+        String outcome = "error";
+        Response sent = null;
+        // The budget runs from when the request arrived, so reading and parsing it count against it too
+        Deadline deadline = Deadline.of(exchange.arrivalNanos(), bidRequest.getAllowedLatency());
+        try {
+            if(deadline.shouldFallBack(Deadline.Stage.PARSE)) {
+                outcome = "fallback-parse";
+                sent = fallBack(exchange, bidRequest);
+                return;
+            }
+            Response response = valuate(bidRequest, deadline);
+            valuatedNanos = System.nanoTime();
+            if(response == null) {
+                outcome = "no-bid";
                 halt(HttpStatus.SC_NO_CONTENT);
             }
-            // Prepare the OpenRtb BidRequest builder to parse the inbound request
-            OpenRtb.BidRequest bidRequest = null;
-            OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
-            try {
-                MDC.put("contentType", req.contentType());
-                // Bid Valuator only sends binary protobuf (with Content-Type: application/protobuf), but
-                // using the raw json or text protobuf encoding can be useful for testing and debugging
-                switch (req.contentType()) {
-                    case "application/json":
-                        jsonFormatParser.merge(new StringReader(req.body()), builder);
-                        bidRequest = builder.build();
-                        break;
-                    case "text/protobuf":
-                        textFormatParser.merge(new StringReader(req.body()), builder);
-                        bidRequest = builder.build();
-                        break;
-                    case "application/protobuf":
-                        bidRequest = OpenRtb.BidRequest.parseFrom(req.bodyAsBytes());
-                        break;
-                    default:
-                        String msg = "Content-Type " + req.contentType() + " is not supported";
-                        logger.error(msg);
-                        halt(HttpStatus.SC_NOT_IMPLEMENTED, msg);
-                        break;
-                }
-            } catch(IOException e) {
-                MDC.put("requestBody", req.body());
-                logger.error("Failed to unmarshal BidRequest: ", e);
-                halt(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            if(deadline.shouldFallBack(Deadline.Stage.VALUATE)) {
+                outcome = "fallback-valuate";
+                sent = fallBack(exchange, bidRequest);
+                return;
             }
-            if(bidRequest == null) {
-                String msg = "Could not unmarshal BidRequest from request body";
-                logger.error(msg);
-                halt(HttpStatus.SC_INTERNAL_SERVER_ERROR, msg);
+            if(!respond(exchange, response, deadline)) {
+                outcome = "fallback-render";
+                halt(HttpStatus.SC_NO_CONTENT);
             }
-            MDC.put("unmarshaledBidRequest", bidRequest.toString());
-            res.type("application/json");
-            if(shouldLog()) {
-                // Responses will NOT be logged to the bucket configured in your Bid Valuator settings unless this
-                // header is sent in the response
-                res.header(LogRequestHeader, "true");
+            outcome = "bid";
+            sent = response;
+        } finally {
+            deadline.checkResponded();
+            if(valuationLog) {
+                long now = System.nanoTime();
+                boolean dump = sampled || outcome.equals("error");
+                ValuationLog.getShared().log(new ValuationRecord(
+                        System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(now - exchange.arrivalNanos()),
+                        bidRequest.getId(), outcome, sent, parsedNanos - exchange.arrivalNanos(),
+                        (valuatedNanos < 0) ? -1 : valuatedNanos - parsedNanos, now - exchange.arrivalNanos(),
+                        exchange.contentType(), dump ? body.toByteArray() : null));
             }
-            return valuate(bidRequest);
-        }, new ResponseJsonTransformer());
-        post("/winnotice", (req, res) -> {
-            MDC.clear();
-            MDC.put("path", req.pathInfo());
-            
-            Winnotice.WinNotification winnotice = null;
-            Winnotice.WinNotification.Builder builder = Winnotice.WinNotification.newBuilder();
-
-            try {
-                MDC.put("contentType", req.contentType());
-                // Bid Valuator only sends binary protobuf (with Content-Type: application/protobuf), but
-                // using the raw json or text protobuf encoding can be useful for testing and debugging
-                switch (req.contentType()) {
-                    case "application/json":
-                        jsonFormatParser.merge(new StringReader(req.body()), builder);
-                        winnotice = builder.build();
-                        break;
-                    case "application/protobuf":
-                        winnotice = Winnotice.WinNotification.parseFrom(req.bodyAsBytes());
-                        break;
-                    default:
-                        String msg = "Content-Type " + req.contentType() + " is not supported";
-                        logger.error(msg);
-                        halt(HttpStatus.SC_NOT_IMPLEMENTED, msg);
-                        break;
-                }
-            } catch(IOException e) {
-                MDC.put("requestBody", req.body());
-                logger.error("Failed to unmarshal BidRequest: ", e);
-                halt(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Hands a body that failed to parse to the valuation log, which renders it off the request thread
+     * @param outcome What the record's outcome is logged as, telling which endpoint the body was sent to
+     * @param body The body, or null if it was not read
+     */
+    private static void logParseFailure(Exchange exchange, String outcome, RequestBody body) {
+        if(valuationLog && body != null) {
+            long totalNanos = System.nanoTime() - exchange.arrivalNanos();
+            ValuationLog.getShared().log(new ValuationRecord(
+                    System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(totalNanos), null, outcome, null, -1,
+                    -1, totalNanos, exchange.contentType(), body.toByteArray()));
+        }
+    }
+
+    private static void admitValuateBatch(Exchange exchange) throws IOException {
+        BatchValuator batches = batchValuator;
+        // Batches give way to /valuate, so are turned away (for the sender to retry later) rather than compete with it
+        if(!batches.tryAcquire(loadShedding ? valuateLimiter : null)) {
+            halt(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        }
+        try {
+            handleValuateBatch(exchange, batches);
+        } finally {
+            batches.release();
+        }
+    }
+
+    private static void handleValuateBatch(Exchange exchange, BatchValuator batches) throws IOException {
+        ValuationContext context = ValuationContext.reset(exchange.path());
+        context.setContentType(exchange.contentType());
+        // Batches are only ever length delimited binary protobuf
+        if(!"application/protobuf".equals(exchange.contentType())) {
+            String msg = "Content-Type " + exchange.contentType() + " is not supported for batches";
+            context.toMDC();
+            logger.error(msg);
+            halt(HttpStatus.SC_NOT_IMPLEMENTED, msg);
+        }
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        try {
+            batches.valuate(exchange.body().asByteBuffer(), responses);
+        } catch(InvalidProtocolBufferException e) {
+            context.toMDC();
+            logger.error("Failed to unmarshal BidRequest batch: ", e);
+            halt(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+        // The whole batch is rendered first, as the response's length has to be known up front
+        responses.writeTo(exchange.respond(HttpStatus.SC_OK, "application/protobuf", responses.size()));
+    }
+
+    /**
+     * Renders and writes a response, unless the deadline runs out once it has been rendered
+     * @return Whether or not the response was written, if not the request should fall back to a 204 No Content, as a
+     * default bid would have to be rendered all over again
+     */
+    private static boolean respond(Exchange exchange, Response response, Deadline deadline) throws IOException {
+        // Responses back to bid valuator are in JSON, unless binary protobuf is asked for
+        if(acceptsProtobuf(exchange.header("Accept"))) {
+            ResponseProtobufWriter writer = ResponseProtobufWriter.get().write(response);
+            if(deadline.shouldFallBack(Deadline.Stage.RENDER)) {
+                return false;
             }
-            return "";
-        });
-        get("/healthz", (req, res) -> {
-            MDC.clear();
-            MDC.put("path", req.pathInfo());
-            awaitInitialization();
-            return "OK";
-        });
+            writer.writeTo(exchange.respond(HttpStatus.SC_OK, "application/protobuf", writer.length()));
+        } else if(gsonResponses) {
+            String json = responseJsonTransformer.render(response);
+            if(deadline.shouldFallBack(Deadline.Stage.RENDER)) {
+                return false;
+            }
+            exchange.respond(HttpStatus.SC_OK, "application/json", json);
+        } else {
+            ResponseJsonWriter writer = ResponseJsonWriter.get().write(response);
+            if(deadline.shouldFallBack(Deadline.Stage.RENDER)) {
+                return false;
+            }
+            writer.writeTo(exchange.respond(HttpStatus.SC_OK, "application/json", writer.length()));
+        }
+        return true;
+    }
+
+    /**
+     * Answers a request that has run out of time with a default bid, or a 204 No Content
+     * @return The default bid sent
+     */
+    private static Response fallBack(Exchange exchange, BidRequestView bidRequest) throws IOException {
+        Response response = defaultBidFallback ? defaultBid(bidRequest) : null;
+        if(response == null) {
+            halt(HttpStatus.SC_NO_CONTENT);
+        }
+        respond(exchange, response, Deadline.NONE);
+        return response;
+    }
+
+    private static void handleWinNotice(Exchange exchange) {
+        ValuationContext context = ValuationContext.reset(exchange.path());
+
+        Winnotice.WinNotification winnotice = null;
+        Winnotice.WinNotification.Builder builder = Winnotice.WinNotification.newBuilder();
+        RequestBody body = null;
+
+        try {
+            context.setContentType(exchange.contentType());
+            body = exchange.body();
+            // Bid Valuator only sends binary protobuf (with Content-Type: application/protobuf), but
+            // using the raw json or text protobuf encoding can be useful for testing and debugging
+            switch (exchange.contentType()) {
+                case "application/json":
+                    jsonFormatParser.merge(body.newReader(), builder);
+                    winnotice = builder.build();
+                    break;
+                case "application/protobuf":
+                    winnotice = Winnotice.WinNotification.parseFrom(body.newCodedInput());
+                    break;
+                default:
+                    String msg = "Content-Type " + exchange.contentType() + " is not supported";
+                    context.toMDC();
+                    logger.error(msg);
+                    halt(HttpStatus.SC_NOT_IMPLEMENTED, msg);
+                    break;
+            }
+        } catch(IOException e) {
+            context.toMDC();
+            logParseFailure(exchange, ValuationRecord.WINNOTICE_PARSE_ERROR, body);
+            logger.error("Failed to unmarshal BidRequest: ", e);
+            halt(HttpStatus.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+
+        // Everything else is done in the background, off the request thread
+        if(!winNotices.publish(winnotice) && winNoticeWhenFull == WinNoticeRing.WhenFull.REJECT) {
+            halt(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private static void halt(int status) {
+        throw new HaltException(status);
+    }
+
+    private static void halt(int status, String body) {
+        throw new HaltException(status, body);
+    }
+
+    private static void registerMetrics() {
+        WURFLProfileCache wurflCache = WURFLProfileCache.getShared();
+        Metrics.register("wurfl-cache.hits", wurflCache::hitCount);
+        Metrics.register("wurfl-cache.misses", wurflCache::missCount);
+        Metrics.register("wurfl-cache.evictions", wurflCache::evictionCount);
+        Metrics.register("wurfl-cache.size", wurflCache::size);
+        Metrics.register("wurfl-dictionary.size", WURFLDictionary::size);
+        Metrics.register("wurfl-dictionary.uninterned", WURFLDictionary::uninterned);
+        Metrics.register("limiter.limit", () -> valuateLimiter.getLimit());
+        Metrics.register("limiter.inflight", () -> valuateLimiter.getInflight());
+        Metrics.register("limiter.shed", () -> valuateLimiter.getShed());
+        Metrics.register("batch.shed", () -> batchValuator.shed());
+        Metrics.register("valuator.swaps", () -> valuators.swaps());
+        Metrics.register("valuator.model-loads", () -> (valuators.getWatcher() == null) ? 0 : valuators.getWatcher().loads());
+        Metrics.register("valuator.model-load-failures", () -> (valuators.getWatcher() == null) ? 0 : valuators.getWatcher().failures());
+        Metrics.register("winnotice.published", () -> winNotices.published());
+        Metrics.register("winnotice.dropped", () -> winNotices.dropped());
+        Metrics.register("winnotice.backlog", () -> winNotices.backlog());
+        Metrics.register("winnotice.errors", () -> winNotices.errors());
+        Metrics.register("winnotice.wins", () -> winTotals.wins());
+        Metrics.register("winnotice.spend-micros", () -> winTotals.spendMicros());
+        Metrics.register("winnotice.strategies", () -> winCounters.strategies().size());
+        Metrics.register("winnotice.campaigns", () -> winCounters.campaigns().size());
+        Metrics.register("winnotice.overflows", () -> winCounters.strategies().overflows() + winCounters.campaigns().overflows());
+        Metrics.register("shading.strategies", () -> bidShader.size());
+        Metrics.register("winnotice.joins.recorded", () -> (auctionJoins == null) ? 0 : auctionJoins.recorded());
+        Metrics.register("winnotice.joins.joined", () -> (auctionJoins == null) ? 0 : auctionJoins.joined());
+        Metrics.register("winnotice.joins.unmatched", () -> (auctionJoins == null) ? 0 : auctionJoins.unmatched());
+        Metrics.register("winnotice.joins.expired", () -> (auctionJoins == null) ? 0 : auctionJoins.expired() + auctionJoins.evicted());
+        Metrics.register("winnotice.journal.records", () -> (winNoticeJournal == null) ? 0 : winNoticeJournal.records());
+        Metrics.register("winnotice.journal.syncs", () -> (winNoticeJournal == null) ? 0 : winNoticeJournal.syncs());
+        if(valuationLog) {
+            ValuationLog log = ValuationLog.getShared();
+            Metrics.register("valuation-log.written", log::written);
+            Metrics.register("valuation-log.dropped", log::dropped);
+            Metrics.register("valuation-log.queued", log::queued);
+        }
+        for(Deadline.Stage stage : Deadline.Stage.values()) {
+            Metrics.register("deadline." + stage + ".misses", () -> Deadline.misses(stage));
+            if(stage != Deadline.Stage.RESPOND) {
+                Metrics.register("deadline." + stage + ".fallbacks", () -> Deadline.fallbacks(stage));
+            }
+        }
+    }
+
+    /**
+     * Parses bid-valuator.deadline.fallback
+     * @param fallback "no-bid" or "default-bid"
+     * @return Whether or not requests that run out of time fall back to a default bid
+     * @throws IllegalArgumentException if {@code fallback} is not known
+     */
+    static boolean isDefaultBidFallback(String fallback) throws IllegalArgumentException {
+        switch(fallback) {
+            case "no-bid":
+                return false;
+            case "default-bid":
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown deadline fallback " + fallback + ", must be no-bid or default-bid");
+        }
+    }
+
+    /**
+     * The fallback for a request that has run out of time: a bid of {@link Endpoint#defaultBidCPM} for the first
+     * SelectedEntity's first creative, without a deal.  Only that SelectedEntity is decoded, and nothing is looked up.
+     * @param req A view of an OpenRTB BidRequest
+     * @return The default bid, or null if the request has nothing to bid with
+     */
+    static Response defaultBid(BidRequestView req) {
+        if(req.getSelectedEntitiesCount() == 0) {
+            return null;
+        }
+        OpenRtb.MM_Ext.SelectedEntity entity = req.getSelectedEntity(0);
+        OpenRtb.MM_Ext.CompanionData companionData = entity.getCompanionData();
+        if(companionData.getCreativesCount() == 0) {
+            return null;
+        }
+        return new Response(entity.getCampaignID(), companionData.getStrategyID(), defaultBidCPM,
+                companionData.getCreatives(0).getID(), "", ModelID);
+    }
+
+    /**
+     * Checks whether an Accept header lists the binary protobuf encoding, in which case /valuate responds with a
+     * {@link com.mediamath.valuation.ValuationResponse.Response} rather than JSON.  Quality values are not weighed,
+     * JSON stays the default whenever protobuf is not mentioned.
+     * @param accept The value of the Accept header, or null if it was not sent
+     * @return Whether or not the response should be binary protobuf
+     */
+    static boolean acceptsProtobuf(String accept) {
+        if(accept == null) {
+            return false;
+        }
+        for(String mediaRange : accept.split(",")) {
+            int params = mediaRange.indexOf(';');
+            String type = (params < 0) ? mediaRange : mediaRange.substring(0, params);
+            if(type.trim().equalsIgnoreCase("application/protobuf")) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -253,68 +690,81 @@ public class Endpoint {
 
 
     /**
-     * Returns a bid valuator response with a made up CPM, and a randomly selected strategy, creative, and Deal.
-     * Slightly alters behavior according to the Helper values present in the selected strategy's enrichments
-     * as an example of the usage of Helper data (see {@link Helper}).
-     *
-     * This makes use of {@link org.slf4j.MDC} to provide contextual info in any generated log entries, including:
-     * <ul>
-     * <li>auctionID : The auction ID in the bid request</li>
-     * <li>cpm : The randomly chosen CPM value</li>
-     * <li>campaignID : The campaign ID containing the selected strategy</li>
-     * <li>strategyID : The selected strategy ID</li>
-     * <li>creativeID : The creative ID randomly chosen from the list of candidates</li>
-     * <li>pmpDealID : The PMP Deal ID randomly selected from the list of candidates, if any are present.  This will be
-     *                a blank string otherwise</li>
-     * </ul>
+     * Returns a bid valuator response from the current valuator (see {@link Endpoint#valuators}), which unless
+     * configured otherwise is {@link SampleValuator}: a made up CPM, and a randomly selected strategy, creative, and
+     * Deal.
      * @param req An OpenRTB BidRequest as deined by the openrtb.proto protobuf schema
      * @return The response object to be returned to Bid Valuator
      */
     public static Response valuate(OpenRtb.BidRequest req) {
-        MDC.put("auctionID", req.getId());
-
-        double cpm = minCPM + (maxCPM - minCPM) * random.nextDouble();
-        MDC.put("cpm", Double.toString(cpm));
-
-        OpenRtb.MM_Ext mmExt = req.getExt().getMmExt();
-        OpenRtb.MM_Ext.SelectedEntity selectedStrategy = mmExt.getSelectedEntities(random.nextInt(mmExt.getSelectedEntitiesCount()));
-        MDC.put("campaignID", selectedStrategy.getCampaignID());
-
-        OpenRtb.MM_Ext.CompanionData companionData = selectedStrategy.getCompanionData();
-        MDC.put("strategyID", companionData.getStrategyID());
-
-        int totalDeals = companionData.getPMPDealsCount();
-
-        logger.debug("Received bid request id {} {} total SelectedEntities selected strategy {} with {} PMPDeals",
-                req.getId(),
-                mmExt.getSelectedEntitiesCount(),
-                companionData.getStrategyID(),
-                totalDeals);
+        return valuate(BidRequestView.of(req));
+    }
 
-        String selectedCreativeID = companionData.getCreatives(random.nextInt(companionData.getCreativesCount())).getID();
-        MDC.put("creativeID", selectedCreativeID);
+    /**
+     * Returns a bid valuator response for a (possibly selectively decoded) bid request, see
+     * {@link Endpoint#valuate(OpenRtb.BidRequest)}.  Only what the valuator reads is decoded.
+     * @param req A view of an OpenRTB BidRequest
+     * @return The response object to be returned to Bid Valuator
+     */
+    public static Response valuate(BidRequestView req) {
+        return valuate(req, Deadline.NONE);
+    }
 
-        // If there are no deals, just pass a blank string
-        String selectedDealID = (totalDeals > 0) ? companionData.getPMPDeals(random.nextInt(totalDeals)).getID() : "";
-        MDC.put("pmpDealID", selectedDealID);
+    /**
+     * Returns a bid valuator response for a (possibly selectively decoded) bid request, see
+     * {@link Endpoint#valuate(OpenRtb.BidRequest)}.  The current valuator is leased for the duration, so is not closed
+     * underneath the request if it is swapped out meanwhile.  Bids for a strategy that has spent
+     * {@link Endpoint#maxStrategySpendMicros} are not made, and if {@link Endpoint#shadeBids} is set the CPM is shaded
+     * by the strategy's {@link BidShader#factor(long)}.  Bids are recorded in {@link Endpoint#auctionJoins}, if set, to
+     * be joined with their win notices.
+     * @param req A view of an OpenRTB BidRequest
+     * @param deadline The request's deadline
+     * @return The response object to be returned to Bid Valuator, or null not to bid
+     */
+    public static Response valuate(BidRequestView req, Deadline deadline) {
+        return valuate(req, deadline, true);
+    }
 
-        try {
-            // Just as an example, if any targeted Device data is available via Helper, increase bid price by 5%
-            List<Device> deviceWURFL = Helper.getDeviceData(selectedStrategy);
-            Optional<Device> targetedDevice = deviceWURFL.stream().filter(WURFLValue::isTargeted).findFirst();
-            if(targetedDevice.isPresent()) {
-                logger.info("Target WURFL device (model: {} manufacturer: {}) found, increasing bid by 5%",
-                        targetedDevice.get().getModel(),
-                        targetedDevice.get().getManufacturer());
-                cpm = cpm * 1.05;
+    /**
+     * Returns a bid valuator response for a (possibly selectively decoded) bid request, see
+     * {@link Endpoint#valuate(BidRequestView, Deadline)}
+     * @param req A view of an OpenRTB BidRequest
+     * @param deadline The request's deadline
+     * @param recordBid Whether or not the bid is recorded in {@link Endpoint#auctionJoins}, false for bids that are not
+     *                  really made (e.g. those of /valuate/batch), which would never be joined
+     * @return The response object to be returned to Bid Valuator, or null not to bid
+     */
+    public static Response valuate(BidRequestView req, Deadline deadline, boolean recordBid) {
+        Response response;
+        try(ValuatorRegistry.Lease lease = valuators.acquire()) {
+            response = lease.valuator().valuate(req, deadline);
+        }
+        if(response == null || isOverSpent(response.getStrategyID())) {
+            return null;
+        }
+        if(shadeBids) {
+            double factor = bidShader.factor(WinCounters.parseID(response.getStrategyID()));
+            if(factor < 1) {
+                // A copy, as the valuator may hand out the same Response more than once
+                response = new Response(response);
+                response.setCpm(response.getCpm() * factor);
+                ValuationContext.get().setCpm(response.getCpm());
             }
-        } catch(IllegalArgumentException e) {
-            logger.debug("No Device WURFL data found for selected strategy, not altering bid");
         }
-
-        Response response = new Response(selectedStrategy.getCampaignID(), companionData.getStrategyID(), cpm, selectedCreativeID, selectedDealID, ModelID);
-        logger.info("Returning bid of {}", cpm);
-        MDC.clear();
+        AuctionJoins joins = auctionJoins;
+        if(recordBid && joins != null) {
+            joins.record(req.getId(), response);
+        }
         return response;
     }
+
+    /**
+     * @param strategyID A StrategyID
+     * @return Whether or not the strategy's wins have spent {@link Endpoint#maxStrategySpendMicros}
+     */
+    static boolean isOverSpent(String strategyID) {
+        long maxSpend = maxStrategySpendMicros;
+        return maxSpend > 0
+                && winCounters.strategies().get(WinCounters.parseID(strategyID), WinCounters.SPEND_MICROS) >= maxSpend;
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Maps (model) files into memory, and unmaps them again.
+ *
+ * A mapped file lives outside the heap: it is paged in from the OS page cache on demand, costs the collector nothing
+ * however large it is, and is shared with any other process (or earlier version of the valuator) mapping the same
+ * file.  Java only unmaps a file once its buffer has been garbage collected, which for a buffer that has been around a
+ * while can be never, so {@link MappedFiles#unmap(MappedByteBuffer)} releases it straight away instead.  Any access
+ * to an unmapped buffer crashes the JVM, so it must only be called once nothing can read the buffer again (e.g. from
+ * {@link Valuator#close()}, which {@link ValuatorRegistry} only calls once the valuator's last request is done).
+ */
+public final class MappedFiles {
+    private static Logger logger = LoggerFactory.getLogger(MappedFiles.class);
+    // Takes a mapped buffer, or null if unmapping is not possible on this JVM
+    private static final MethodHandle unmapper = unmapper();
+
+    private MappedFiles() {}
+
+    private static MethodHandle unmapper() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8: ((sun.nio.ch.DirectBuffer) buffer).cleaner().clean()
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            MethodHandle cleanerOf = lookup.unreflect(cleaner)
+                    .asType(MethodType.methodType(clean.getDeclaringClass(), ByteBuffer.class));
+            return MethodHandles.filterReturnValue(cleanerOf, lookup.unreflect(clean));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Mapped files can not be unmapped on this JVM, they will be left to the garbage collector", e);
+            return null;
+        }
+    }
+
+    /**
+     * Maps a whole file, read only
+     * @param file The file to map
+     * @return The mapped file, big endian
+     * @throws IOException if the file could not be opened or mapped
+     * @throws IllegalArgumentException if the file is 2GB or larger, more than a buffer can address
+     */
+    public static MappedByteBuffer map(Path file) throws IOException, IllegalArgumentException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + " is " + size + " bytes, too large to map");
+            }
+            // The mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Creates a file of a fixed size and maps it for writing, e.g. for an append only journal.  The file reads as
+     * zeros until written.
+     * @param file The file to create, which must not exist yet
+     * @param size The size of the file
+     * @return The mapped file, big endian
+     * @throws IOException if the file already exists, or could not be created or mapped
+     */
+    public static MappedByteBuffer create(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // Mapping beyond the end of the file grows it to the mapped size
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Unmaps a file, without waiting for its buffer to be garbage collected
+     * @param buffer A buffer returned by {@link MappedFiles#map(Path)} or {@link MappedFiles#create(Path, int)} (not
+     *               a slice or duplicate of one), which nothing may access afterwards
+     * @return Whether or not the file was unmapped, false if this JVM does not allow it
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+        if (unmapper == null) {
+            return false;
+        }
+        try {
+            unmapper.invoke((ByteBuffer) buffer);
+            return true;
+        } catch (Throwable e) {
+            logger.warn("Failed to unmap {}, it will be left to the garbage collector", buffer, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A minimal registry of named counters and gauges, exposed by the endpoint on <b>/metrics</b>.
+ *
+ * Components keep their own counters (usually {@link java.util.concurrent.atomic.LongAdder}s) and register a supplier
+ * for each of them here, so reading the registry never sits on the request path.
+ */
+public final class Metrics {
+    private static final Map<String, LongSupplier> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    /**
+     * Registers (or replaces) a named metric
+     * @param name The metric name, dot separated by component (e.g. "wurfl-cache.hits")
+     * @param value Supplies the current value of the metric whenever a snapshot is taken
+     */
+    public static void register(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    /**
+     * @return The current value of every registered metric, sorted by name
+     */
+    public static SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> snapshot = new TreeMap<>();
+        metrics.forEach((name, value) -> snapshot.put(name, value.getAsLong()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Watches a directory of model versions, and swaps a {@link ValuatorRegistry} to a valuator over each new version as
+ * it appears.
+ *
+ * Each version is a model file (e.g. a {@link com.mediamath.bid_valuator.model.LinearModel} weights file) alongside a
+ * checksum file of the same name plus {@link ModelWatcher#CHECKSUM_SUFFIX}, holding its SHA-256 as written by
+ * {@code sha256sum}.  A version is only considered once its checksum file exists, so publishing one is a matter of
+ * copying the model in, then writing its checksum:
+ *
+ * <pre>
+ * $ cp cpm.bvlm /models/cpm-20191015T1200.bvlm
+ * $ (cd /models &amp;&amp; sha256sum cpm-20191015T1200.bvlm &gt; cpm-20191015T1200.bvlm.sha256)
+ * </pre>
+ *
+ * The version served is the one whose name sorts last, so names should sort in the order versions are published (e.g.
+ * by a timestamp), and deleting the latest version rolls back to the one before.  A version is only swapped in once its
+ * checksum matches, so a partly copied or corrupt model is never served, and one that fails is not retried until its
+ * checksum file changes.  The file is mapped once, and the loader is handed the mapping its checksum was checked on
+ * rather than opening the file again, and a version whose file changes (in size or modification time) while it is being
+ * loaded is not swapped in, as it may have been rewritten in place.  Requests already valuing with the previous version
+ * finish with it, and it is closed (unmapping its file) once they are done.
+ *
+ * Changes are picked up as the file system reports them, and in any case every polling interval.
+ */
+public final class ModelWatcher implements AutoCloseable {
+    /**
+     * The suffix of the checksum file marking a model version as complete
+     */
+    public static final String CHECKSUM_SUFFIX = ".sha256";
+    private static Logger logger = LoggerFactory.getLogger(ModelWatcher.class);
+
+    /**
+     * Creates a valuator over a model version
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @param file The model file
+         * @param contents The model file mapped into memory, already checked against its checksum.  The loader owns
+         *                 it, and either keeps it (unmapping it once the valuator is closed) or unmaps it before it
+         *                 returns or throws (see {@link MappedFiles#unmap(MappedByteBuffer)}).
+         * @return A valuator over the version
+         * @throws RuntimeException if the version is not valid
+         */
+        Valuator load(Path file, MappedByteBuffer contents);
+    }
+
+    private final Path directory;
+    private final Loader loader;
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile Path current;
+    // The version that last failed to load, and its expected checksum, so it is not retried until one changes
+    private Path failed;
+    private String failedChecksum;
+    private Thread watcher;
+    private volatile WatchService watchService;
+    private volatile boolean closed = false;
+    // Wakes a watcher that is polling on a timer, rather than a watch service
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * @param directory The directory model versions are published to
+     * @param loader Creates a valuator over a model file, throwing an unchecked exception if it is not valid
+     */
+    public ModelWatcher(Path directory, Loader loader) {
+        this.directory = directory;
+        this.loader = loader;
+    }
+
+    /**
+     * @param model A model file
+     * @return The checksum file that goes with it
+     */
+    public static Path checksumFile(Path model) {
+        return model.resolveSibling(model.getFileName() + CHECKSUM_SUFFIX);
+    }
+
+    /**
+     * @return The complete version whose name sorts last, or null if there are none
+     * @throws IOException if the directory could not be listed
+     */
+    Path latest() throws IOException {
+        Path latest = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                // Hidden files are usually still being copied (e.g. by rsync)
+                if (name.startsWith(".") || name.endsWith(CHECKSUM_SUFFIX) || !Files.isRegularFile(file)
+                        || !Files.exists(checksumFile(file))) {
+                    continue;
+                }
+                if (latest == null || name.compareTo(latest.getFileName().toString()) > 0) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Loads the latest version, e.g. to start a registry with
+     * @return A valuator over the latest version
+     * @throws IllegalArgumentException if there is no version, or the latest one does not match its checksum or could
+     * not be loaded
+     */
+    public synchronized Valuator load() throws IllegalArgumentException {
+        try {
+            Path latest = latest();
+            if (latest == null) {
+                throw new IllegalArgumentException("There is no model with a " + CHECKSUM_SUFFIX + " file in " + directory);
+            }
+            return load(latest, readChecksum(latest));
+        } catch (IOException e) {
+            failures.increment();
+            throw new IllegalArgumentException("Failed to load the latest model in " + directory, e);
+        } catch (RuntimeException e) {
+            failures.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Swaps in the latest version, if it is not the one already loaded
+     * @param registry The registry to swap the new valuator into
+     * @return Whether or not a new version was swapped in
+     */
+    public synchronized boolean poll(ValuatorRegistry registry) {
+        Path latest;
+        String checksum;
+        try {
+            latest = latest();
+            if (latest == null || latest.equals(current)) {
+                return false;
+            }
+            checksum = readChecksum(latest);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to find the latest model in {}", directory, e);
+            return false;
+        }
+        if (latest.equals(failed) && checksum.equals(failedChecksum)) {
+            return false;
+        }
+        try {
+            registry.swap(load(latest, checksum));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            failed = latest;
+            failedChecksum = checksum;
+            logger.error("Failed to load model {}, still serving {}", latest, current, e);
+            return false;
+        }
+    }
+
+    private Valuator load(Path file, String checksum) throws IOException, IllegalArgumentException {
+        BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+        MappedByteBuffer contents = MappedFiles.map(file);
+        try {
+            verify(file, contents, checksum);
+        } catch (RuntimeException e) {
+            MappedFiles.unmap(contents);
+            throw e;
+        }
+        Valuator valuator = loader.load(file, contents);
+        // A file rewritten in place changes under its mapping, and a loader may read the file by name anyway
+        BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+        if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            valuator.close();
+            throw new IllegalArgumentException(file + " changed while it was being loaded");
+        }
+        loads.increment();
+        current = file;
+        logger.info("Loaded model {}", file);
+        return valuator;
+    }
+
+    private static String readChecksum(Path model) throws IOException, IllegalArgumentException {
+        String contents = new String(Files.readAllBytes(checksumFile(model)), StandardCharsets.US_ASCII).trim();
+        // sha256sum writes the checksum followed by the file name
+        String checksum = contents.split("\\s+", 2)[0];
+        if (!checksum.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException(checksumFile(model) + " does not hold a SHA-256 checksum");
+        }
+        return checksum.toLowerCase();
+    }
+
+    /**
+     * Checks a file's contents against its checksum
+     * @param file The file, to report a mismatch
+     * @param contents The file's contents, which are left as they were
+     * @param checksum The expected SHA-256, in lower case hex
+     * @throws IllegalArgumentException if the checksum does not match
+     */
+    static void verify(Path file, ByteBuffer contents, String checksum) throws IllegalArgumentException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        sha256.update(contents.duplicate());
+        StringBuilder actual = new StringBuilder(64);
+        for (byte b : sha256.digest()) {
+            actual.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        if (!actual.toString().equals(checksum)) {
+            throw new IllegalArgumentException("The SHA-256 of " + file + " is " + actual + ", but its checksum file has " + checksum);
+        }
+    }
+
+    /**
+     * Starts watching the directory on a background thread
+     * @param registry The registry to swap new versions into
+     * @param intervalMillis How often to look for new versions, whether or not the file system reports any changes
+     * @return This watcher
+     */
+    public synchronized ModelWatcher start(ValuatorRegistry registry, long intervalMillis) {
+        if (watcher != null) {
+            throw new IllegalStateException("Already watching " + directory);
+        }
+        watcher = new Thread(() -> run(registry, intervalMillis), "model-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return this;
+    }
+
+    private void run(ValuatorRegistry registry, long intervalMillis) {
+        try {
+            WatchService service = directory.getFileSystem().newWatchService();
+            watchService = service;
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+            if (!closed) {
+                logger.warn("Can not watch {} for changes, polling it every {}ms instead", directory, intervalMillis, e);
+            }
+            closeWatchService();
+        }
+        try {
+            while (!closed) {
+                if (watchService == null) {
+                    if (stopped.await(intervalMillis, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                } else {
+                    WatchKey key = watchService.poll(intervalMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        // Whatever changed, the directory is listed again
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+                poll(registry);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        } finally {
+            closeWatchService();
+        }
+    }
+
+    private void closeWatchService() {
+        WatchService service = watchService;
+        watchService = null;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close watch service for {}", directory, e);
+            }
+        }
+    }
+
+    /**
+     * @return The version most recently loaded, or null if none has been
+     */
+    public Path current() {
+        return current;
+    }
+
+    /**
+     * @return The number of versions loaded
+     */
+    public long loads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return The number of versions that failed to load, or did not match their checksum
+     */
+    public long failures() {
+        return failures.sum();
+    }
+
+    /**
+     * Stops watching the directory, waiting for a version being loaded to be swapped in first
+     */
+    @Override
+    public void close() {
+        closed = true;
+        stopped.countDown();
+        // Wakes a watcher waiting on the watch service
+        closeWatchService();
+        Thread thread;
+        synchronized (this) {
+            thread = watcher;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
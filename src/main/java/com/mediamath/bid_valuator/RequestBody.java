@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.protobuf.CodedInputStream;
+import com.typesafe.config.ConfigFactory;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The body of the request currently being handled, read exactly once and then parsed in place.
+ *
+ * On the servlet (Spark/Jetty) transport the body is read into a per-thread buffer that is reused from one request to
+ * the next.  Spark's {@code req.body()} and {@code req.bodyAsBytes()} each copy the payload (on top of the copy Spark
+ * caches the first time either is called), so instead the body is read straight from the underlying servlet input
+ * stream.  Other transports that already hold the body in a buffer (such as Netty's pooled ByteBufs) wrap it without
+ * copying, see {@link RequestBody#wrap(ByteBuffer)}.
+ *
+ * Either way the parsers read the body where it is: binary protobuf through {@link RequestBody#asByteBuffer()} or
+ * {@link RequestBody#newCodedInput()}, JSON and protobuf text through {@link RequestBody#newReader()}.  The body is only
+ * turned into a String (see {@link RequestBody#toString()}) when it has to be logged.
+ *
+ * <pre>{@code
+ * RequestBody body = RequestBody.read(req.raw(), 1024 * 1024);
+ * BidRequestView bidRequest = BidRequestView.parseFrom(body.asByteBuffer());
+ * }</pre>
+ *
+ * The contents are only valid until the request has been handled (for a body read from a servlet request, until the
+ * next call to {@link RequestBody#read(ServletRequest, int)} on the same thread), so anything that still refers to the
+ * buffer (such as a selectively decoded {@link BidRequestView}) must not outlive the request.  Bodies larger than
+ * {@link RequestBody#maxRetainedBytes} are read into a buffer that is not reused: it stays reachable from the thread
+ * until its next read, which replaces it.
+ *
+ * The Content-Length a client sends is only trusted so far: at most {@link RequestBody#maxRetainedBytes} are allocated
+ * up front, and the buffer only grows past that as the bytes actually arrive.  Bodies longer than the limit the
+ * transport reads with are refused with a {@link TooLargeException}, before or while they are read.
+ */
+public final class RequestBody {
+    /**
+     * The largest buffer a thread reuses from one request to the next, and the most allocated before a body arrives
+     */
+    public static int maxRetainedBytes = ConfigFactory.load().getInt("bid-valuator.request-body.max-retained-bytes");
+    // Buffers are only allocated on first read, and sized to the request, as with a thread per request (e.g. virtual
+    // threads) each thread may only ever read one body
+    private static final int minCapacity = 1024;
+    private static final ThreadLocal<RequestBody> current = ThreadLocal.withInitial(() -> new RequestBody(new byte[0]));
+
+    // The reusable array bodies are read into, or null for a wrapped buffer
+    private byte[] array;
+    private ByteBuffer body;
+
+    private RequestBody(byte[] array) {
+        this.array = array;
+        this.body = ByteBuffer.wrap(array, 0, 0);
+    }
+
+    private RequestBody(ByteBuffer body) {
+        this.body = body;
+    }
+
+    /**
+     * Reads the body of a request into this thread's buffer
+     * @param request The servlet request, i.e. Spark's {@code req.raw()}.  Any wrappers are bypassed, so the body
+     *                must not have been read through them already.
+     * @param maxLength The longest body accepted
+     * @return This thread's RequestBody, holding the body of {@code request}
+     * @throws TooLargeException if the body is longer than {@code maxLength}
+     * @throws IOException if the body could not be read
+     */
+    public static RequestBody read(ServletRequest request, int maxLength) throws TooLargeException, IOException {
+        while (request instanceof ServletRequestWrapper) {
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > maxLength) {
+            throw new TooLargeException(contentLength, maxLength);
+        }
+        return read(request.getInputStream(), (int) contentLength, maxLength);
+    }
+
+    /**
+     * Reads a stream to its end into this thread's buffer
+     * @param in The stream to read
+     * @param lengthHint The expected number of bytes, or -1 if not known
+     * @param maxLength The most bytes to read
+     * @return This thread's RequestBody, holding the contents of {@code in}
+     * @throws TooLargeException if the stream holds more than {@code maxLength} bytes
+     * @throws IOException if the stream could not be read
+     */
+    static RequestBody read(InputStream in, int lengthHint, int maxLength) throws TooLargeException, IOException {
+        RequestBody body = current.get();
+        byte[] buffer = body.array;
+        // The hint comes from the client, so it never allocates more than a reusable buffer's worth up front
+        int capacity = Math.max(Math.min(lengthHint, maxRetainedBytes), minCapacity);
+        // Replaces a buffer that is too small, or left over from an oversized request
+        if (buffer.length < capacity || buffer.length > maxRetainedBytes) {
+            buffer = new byte[capacity];
+        }
+        int length = 0;
+        for (int n = in.read(buffer, 0, buffer.length); n >= 0; n = in.read(buffer, length, buffer.length - length)) {
+            length += n;
+            if (length == buffer.length) {
+                // Only grow once the stream has shown it has more to give, so an exact length hint never resizes
+                int next = in.read();
+                if (next < 0) {
+                    break;
+                }
+                if (length >= maxLength) {
+                    throw new TooLargeException(length + 1, maxLength);
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, maxLength));
+                buffer[length++] = (byte) next;
+            }
+        }
+        if (length > maxLength) {
+            // Only possible when reusing a buffer larger than maxLength
+            throw new TooLargeException(length, maxLength);
+        }
+        body.array = buffer;
+        body.body = ByteBuffer.wrap(buffer, 0, length).slice();
+        return body;
+    }
+
+    /**
+     * Wraps a body the transport has already read, without copying it
+     * @param body The body, from its position to its limit.  It must not be modified or released until the request
+     *             has been handled.
+     * @return A RequestBody reading from {@code body}
+     */
+    public static RequestBody wrap(ByteBuffer body) {
+        return new RequestBody(body.slice());
+    }
+
+    /**
+     * @return The number of bytes in the body
+     */
+    public int length() {
+        return body.remaining();
+    }
+
+    /**
+     * @return A view of the body, without copying it.  This is not a read only buffer, as protobuf would copy one of
+     * those before parsing it, but it must not be written to.
+     */
+    public ByteBuffer asByteBuffer() {
+        return body.duplicate();
+    }
+
+    /**
+     * @return A protobuf input reading the body in place (heap or direct)
+     */
+    public CodedInputStream newCodedInput() {
+        return CodedInputStream.newInstance(asByteBuffer());
+    }
+
+    /**
+     * @return A reader decoding the body as UTF-8, for the JSON and protobuf text parsers
+     */
+    public Reader newReader() {
+        return new InputStreamReader(new ByteBufferInputStream(asByteBuffer()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A copy of the body, which stays valid after the request has been handled
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[length()];
+        asByteBuffer().get(copy);
+        return copy;
+    }
+
+    /**
+     * @return The body decoded as UTF-8.  This copies the body, so should only be used for logging
+     */
+    @Override
+    public String toString() {
+        return StandardCharsets.UTF_8.decode(asByteBuffer()).toString();
+    }
+
+    /**
+     * Thrown when a request body is longer than the transport accepts, which should be answered with a 413
+     */
+    public static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long length, int maxLength) {
+            super("Request body of " + ((length >= 0) ? length : "unknown") + " bytes is larger than the "
+                    + maxLength + " accepted");
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
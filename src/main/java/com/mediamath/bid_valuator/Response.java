@@ -17,6 +17,7 @@
 package com.mediamath.bid_valuator;
 
 import com.google.gson.annotations.SerializedName;
+import com.mediamath.valuation.ValuationResponse;
 
 import java.util.Objects;
 
@@ -61,6 +62,20 @@ public final class Response {
         setModelID(other.getModelID());
     }
 
+    /**
+     * Converts a response decoded from the binary protobuf encoding (see {@link ResponseProtobufWriter})
+     * @param proto The decoded protobuf message
+     * @return The equivalent Response, with any fields missing from {@code proto} left null
+     */
+    public static Response fromProto(ValuationResponse.Response proto) {
+        return new Response(proto.hasCampaignID() ? proto.getCampaignID() : null,
+                proto.hasStrategyID() ? proto.getStrategyID() : null,
+                proto.getCPM(),
+                proto.hasCreativeID() ? proto.getCreativeID() : null,
+                proto.hasPmpDealID() ? proto.getPmpDealID() : null,
+                proto.hasModelID() ? proto.getModelID() : null);
+    }
+
     @Override
     public String toString() {
         return "Response{" +
@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Renders {@link Response} objects as UTF-8 JSON into a per-thread buffer that is reused from one response to the next,
+ * without reflection or any intermediate Strings.
+ *
+ * The output is byte for byte what {@link ResponseJsonTransformer} (i.e. Gson) produces, encoded as UTF-8: the fields in
+ * declaration order under their serialized names, null fields left out, strings escaped the way Gson's HTML safe
+ * writer escapes them, and CPM formatted as {@link Double#toString(double)} does.
+ *
+ * <pre>{@code
+ * ResponseJsonWriter writer = ResponseJsonWriter.get().write(response);
+ * res.raw().setContentLength(writer.length());
+ * writer.writeTo(res.raw().getOutputStream());
+ * }</pre>
+ *
+ * The rendered bytes are only valid until the next call to {@link ResponseJsonWriter#write(Response)} on the same
+ * thread.
+ */
+public final class ResponseJsonWriter {
+    // Each key is pre-encoded with the separator that precedes it, which is replaced with '{' for the first field
+    private static final byte[] CAMPAIGN_ID = key("CampaignID");
+    private static final byte[] STRATEGY_ID = key("StrategyID");
+    private static final byte[] CPM = key("CPM");
+    private static final byte[] CREATIVE_ID = key("CreativeID");
+    private static final byte[] PMP_DEAL_ID = key("PmpDealID");
+    private static final byte[] MODEL_ID = key("ModelID");
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // The escape sequence for each ASCII character, or null if it is written as is (matching Gson's HTML safe escaping)
+    private static final byte[][] ASCII_ESCAPES = new byte[128][];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ASCII_ESCAPES[c] = unicodeEscape(c);
+        }
+        ASCII_ESCAPES['"'] = "\\\"".getBytes(StandardCharsets.US_ASCII);
+        ASCII_ESCAPES['\\'] = "\\\\".getBytes(StandardCharsets.US_ASCII);
+        ASCII_ESCAPES['\t'] = "\\t".getBytes(StandardCharsets.US_ASCII);
+        ASCII_ESCAPES['\b'] = "\\b".getBytes(StandardCharsets.US_ASCII);
+        ASCII_ESCAPES['\n'] = "\\n".getBytes(StandardCharsets.US_ASCII);
+        ASCII_ESCAPES['\r'] = "\\r".getBytes(StandardCharsets.US_ASCII);
+        ASCII_ESCAPES['\f'] = "\\f".getBytes(StandardCharsets.US_ASCII);
+        for (char c : new char[]{'<', '>', '&', '=', '\''}) {
+            ASCII_ESCAPES[c] = unicodeEscape(c);
+        }
+    }
+
+    private static final ThreadLocal<ResponseJsonWriter> current = ThreadLocal.withInitial(ResponseJsonWriter::new);
+
+    private byte[] buffer = new byte[512];
+    private int length = 0;
+    // StringBuilder.append(double) formats exactly as Double.toString does, but straight into the builder
+    private final StringBuilder number = new StringBuilder(32);
+
+    private ResponseJsonWriter() {}
+
+    private static byte[] key(String name) {
+        return (",\"" + name + "\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] unicodeEscape(int c) {
+        return String.format("\\u%04x", c).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return This thread's writer
+     */
+    public static ResponseJsonWriter get() {
+        return current.get();
+    }
+
+    /**
+     * Renders a response, replacing whatever this writer held before
+     * @param response The response to render
+     * @return This writer
+     * @throws IllegalArgumentException if the CPM is NaN or infinite, which JSON cannot represent
+     */
+    public ResponseJsonWriter write(Response response) throws IllegalArgumentException {
+        double cpm = response.getCpm();
+        if (Double.isNaN(cpm) || Double.isInfinite(cpm)) {
+            throw new IllegalArgumentException(cpm + " is not a valid double value as per JSON specification.");
+        }
+        length = 0;
+        // Gson leaves out null fields, so the field that opens the object is whichever non null one comes first
+        writeString(CAMPAIGN_ID, response.getCampaignID());
+        writeString(STRATEGY_ID, response.getStrategyID());
+        writeKey(CPM);
+        writeDouble(cpm);
+        writeString(CREATIVE_ID, response.getCreativeID());
+        writeString(PMP_DEAL_ID, response.getPmpDealID());
+        writeString(MODEL_ID, response.getModelID());
+        ensureCapacity(1);
+        buffer[length++] = '}';
+        return this;
+    }
+
+    private void writeKey(byte[] key) {
+        ensureCapacity(key.length);
+        System.arraycopy(key, 0, buffer, length, key.length);
+        if (length == 0) {
+            buffer[0] = '{';
+        }
+        length += key.length;
+    }
+
+    private void writeString(byte[] key, String value) {
+        if (value == null) {
+            return;
+        }
+        writeKey(key);
+        ensureCapacity(value.length() * 6 + 2);
+        byte[] buf = buffer;
+        int pos = length;
+        buf[pos++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ASCII_ESCAPES[c];
+                if (escape == null) {
+                    buf[pos++] = (byte) c;
+                } else {
+                    System.arraycopy(escape, 0, buf, pos, escape.length);
+                    pos += escape.length;
+                }
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c == '\u2028' || c == '\u2029') {
+                buf[pos++] = '\\';
+                buf[pos++] = 'u';
+                buf[pos++] = HEX[c >> 12];
+                buf[pos++] = HEX[(c >> 8) & 0xf];
+                buf[pos++] = HEX[(c >> 4) & 0xf];
+                buf[pos++] = HEX[c & 0xf];
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate, which String.getBytes replaces with '?'
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buf[pos++] = '"';
+        length = pos;
+    }
+
+    private void writeDouble(double value) {
+        number.setLength(0);
+        number.append(value);
+        ensureCapacity(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            buffer[length++] = (byte) number.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * @return The number of bytes in the rendered response
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Writes the rendered response to a stream
+     * @param out The stream to write to, e.g. the servlet response output stream
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    /**
+     * @return The rendered response, decoded back into a String
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
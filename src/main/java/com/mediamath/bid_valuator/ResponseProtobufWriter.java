@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.protobuf.CodedOutputStream;
+import com.mediamath.valuation.ValuationResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Renders {@link Response} objects in the binary protobuf encoding of {@link ValuationResponse.Response}, into a
+ * per-thread buffer that is reused from one response to the next.  The fields are written directly, without building
+ * the protobuf message first, and null fields are left out.
+ *
+ * <pre>{@code
+ * ResponseProtobufWriter writer = ResponseProtobufWriter.get().write(response);
+ * res.raw().setContentLength(writer.length());
+ * writer.writeTo(res.raw().getOutputStream());
+ * }</pre>
+ *
+ * The rendered bytes are only valid until the next call to {@link ResponseProtobufWriter#write(Response)} on the same
+ * thread.
+ */
+public final class ResponseProtobufWriter {
+    private static final ThreadLocal<ResponseProtobufWriter> current = ThreadLocal.withInitial(ResponseProtobufWriter::new);
+
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+
+    private ResponseProtobufWriter() {}
+
+    /**
+     * @return This thread's writer
+     */
+    public static ResponseProtobufWriter get() {
+        return current.get();
+    }
+
+    /**
+     * Renders a response, replacing whatever this writer held before
+     * @param response The response to render
+     * @return This writer
+     */
+    public ResponseProtobufWriter write(Response response) {
+        // The largest each field could encode to, so the strings only have to be walked once
+        int maxLength = CodedOutputStream.computeDoubleSize(ValuationResponse.Response.CPM_FIELD_NUMBER, response.getCpm())
+                + maxStringSize(response.getCampaignID())
+                + maxStringSize(response.getStrategyID())
+                + maxStringSize(response.getCreativeID())
+                + maxStringSize(response.getPmpDealID())
+                + maxStringSize(response.getModelID());
+        if (maxLength > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, maxLength));
+        }
+        CodedOutputStream out = CodedOutputStream.newInstance(buffer);
+        try {
+            writeString(out, ValuationResponse.Response.CAMPAIGNID_FIELD_NUMBER, response.getCampaignID());
+            writeString(out, ValuationResponse.Response.STRATEGYID_FIELD_NUMBER, response.getStrategyID());
+            out.writeDouble(ValuationResponse.Response.CPM_FIELD_NUMBER, response.getCpm());
+            writeString(out, ValuationResponse.Response.CREATIVEID_FIELD_NUMBER, response.getCreativeID());
+            writeString(out, ValuationResponse.Response.PMPDEALID_FIELD_NUMBER, response.getPmpDealID());
+            writeString(out, ValuationResponse.Response.MODELID_FIELD_NUMBER, response.getModelID());
+        } catch (IOException e) {
+            // Only thrown if the buffer is too small, which maxLength rules out
+            throw new IllegalStateException("Failed to encode Response " + response, e);
+        }
+        length = out.getTotalBytesWritten();
+        return this;
+    }
+
+    private static int maxStringSize(String value) {
+        // A one byte tag, a length of up to five bytes, and up to three bytes per char
+        return (value == null) ? 0 : 6 + value.length() * 3;
+    }
+
+    private static void writeString(CodedOutputStream out, int fieldNumber, String value) throws IOException {
+        if (value != null) {
+            out.writeString(fieldNumber, value);
+        }
+    }
+
+    /**
+     * @return The number of bytes in the rendered response
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Writes the rendered response to a stream
+     * @param out The stream to write to, e.g. the servlet response output stream
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+}
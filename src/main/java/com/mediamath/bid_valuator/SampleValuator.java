@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.mediamath.bid_valuator.WURFL.Helper;
+import com.mediamath.bid_valuator.WURFL.WURFLDimensionData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * The sample valuator: a bid with a made up CPM (between {@link Endpoint#minCPM} and {@link Endpoint#maxCPM}), and a
+ * randomly selected strategy, creative, and Deal.  Slightly alters behavior according to the Helper values present in
+ * the selected strategy's enrichments as an example of the usage of Helper data (see {@link Helper}): if any device is
+ * targeted, the bid is increased by 5%.
+ *
+ * This records what it chooses in the thread's {@link ValuationContext}, which provides contextual info (through
+ * {@link org.slf4j.MDC}) in any generated log entries, including:
+ * <ul>
+ * <li>auctionID : The auction ID in the bid request</li>
+ * <li>cpm : The randomly chosen CPM value</li>
+ * <li>campaignID : The campaign ID containing the selected strategy</li>
+ * <li>strategyID : The selected strategy ID</li>
+ * <li>creativeID : The creative ID randomly chosen from the list of candidates</li>
+ * <li>pmpDealID : The PMP Deal ID randomly selected from the list of candidates, if any are present.  This will be
+ *                a blank string otherwise</li>
+ * </ul>
+ */
+public class SampleValuator implements Valuator {
+    private static Logger logger = LoggerFactory.getLogger("com.mediamath.bid_valuator.Endpoint");
+    private final Random random = new Random();
+
+    /**
+     * The WURFL adjustment is skipped if the deadline is running out by the time the strategy has been chosen, as
+     * decoding a WURFL profile that is not cached is the costliest step.
+     */
+    @Override
+    public Response valuate(BidRequestView req, Deadline deadline) {
+        ValuationContext context = ValuationContext.get();
+        context.setAuctionID(req.getId());
+
+        double cpm = Endpoint.minCPM + (Endpoint.maxCPM - Endpoint.minCPM) * random.nextDouble();
+        context.setCpm(cpm);
+
+        int totalEntities = req.getSelectedEntitiesCount();
+        OpenRtb.MM_Ext.SelectedEntity selectedStrategy = req.getSelectedEntity(random.nextInt(totalEntities));
+        context.setCampaignID(selectedStrategy.getCampaignID());
+
+        OpenRtb.MM_Ext.CompanionData companionData = selectedStrategy.getCompanionData();
+        context.setStrategyID(companionData.getStrategyID());
+
+        int totalDeals = companionData.getPMPDealsCount();
+
+        // The context is only copied into the MDC when a line is actually logged
+        boolean debug = logger.isDebugEnabled();
+        if(debug) {
+            context.toMDC();
+        }
+        logger.debug("Received bid request id {} {} total SelectedEntities selected strategy {} with {} PMPDeals",
+                req.getId(),
+                totalEntities,
+                companionData.getStrategyID(),
+                totalDeals);
+
+        String selectedCreativeID = companionData.getCreatives(random.nextInt(companionData.getCreativesCount())).getID();
+        context.setCreativeID(selectedCreativeID);
+
+        // If there are no deals, just pass a blank string
+        String selectedDealID = (totalDeals > 0) ? companionData.getPMPDeals(random.nextInt(totalDeals)).getID() : "";
+        context.setPmpDealID(selectedDealID);
+        if(debug) {
+            context.toMDC();
+        }
+
+        if(deadline.isRunningOut()) {
+            logger.debug("Deadline running out, not checking WURFL data");
+        } else {
+            try {
+                // Just as an example, if any targeted Device data is available via Helper, increase bid price by 5%
+                WURFLDimensionData deviceWURFL = Helper.getProfile(selectedStrategy).getData(Helper.Dimension.DEVICE_MFR_AND_MODEL);
+                int targetedDevice = deviceWURFL.firstTargeted();
+                if(targetedDevice >= 0) {
+                    logger.debug("Target WURFL device (model: {} manufacturer: {}) found, increasing bid by 5%",
+                            deviceWURFL.rightToken(targetedDevice), deviceWURFL.leftToken(targetedDevice));
+                    cpm = cpm * 1.05;
+                    context.setCpm(cpm);
+                }
+            } catch(IllegalArgumentException e) {
+                logger.debug("No Device WURFL data found for selected strategy, not altering bid");
+            }
+        }
+
+        Response response = new Response(selectedStrategy.getCampaignID(), companionData.getStrategyID(), cpm, selectedCreativeID, selectedDealID, Endpoint.ModelID);
+        if(debug) {
+            context.toMDC();
+        }
+        logger.debug("Returning bid of {}", cpm);
+        return response;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import org.slf4j.MDC;
+
+import java.util.function.BiConsumer;
+
+/**
+ * What is known about the request the current thread is handling (its path, the auction, and the bid chosen so far),
+ * held in typed fields of a per-thread object that is reset and reused from one request to the next.
+ *
+ * Nothing is turned into Strings or copied into a map while the request is handled.  Logging copies the context into
+ * {@link MDC} only when a line is actually about to be written (see {@link ValuationContext#toMDC()}), and anything
+ * else that wants the same attributes (metrics tags, trace spans) can read them through
+ * {@link ValuationContext#forEach(BiConsumer)}.
+ *
+ * <pre>{@code
+ * ValuationContext context = ValuationContext.reset(exchange.path());
+ * context.setAuctionID(bidRequest.getId());
+ * if (logger.isDebugEnabled()) {
+ *     context.toMDC();
+ *     logger.debug("...");
+ * }
+ * }</pre>
+ */
+public final class ValuationContext {
+    private static final ThreadLocal<ValuationContext> current = ThreadLocal.withInitial(ValuationContext::new);
+
+    private String path;
+    private String contentType;
+    private String auctionID;
+    private double cpm;
+    private String campaignID;
+    private String strategyID;
+    private String creativeID;
+    private String pmpDealID;
+    // Whether the MDC may hold attributes copied from this context
+    private boolean inMDC = false;
+
+    private ValuationContext() {
+        clear(null);
+    }
+
+    /**
+     * @return This thread's context
+     */
+    public static ValuationContext get() {
+        return current.get();
+    }
+
+    /**
+     * Starts a new request on this thread, forgetting everything about the last one (including anything it copied into
+     * the MDC)
+     * @param path The request path
+     * @return This thread's context
+     */
+    public static ValuationContext reset(String path) {
+        ValuationContext context = current.get();
+        if (context.inMDC) {
+            MDC.clear();
+            context.inMDC = false;
+        }
+        return context.clear(path);
+    }
+
+    private ValuationContext clear(String path) {
+        this.path = path;
+        contentType = null;
+        auctionID = null;
+        cpm = Double.NaN;
+        campaignID = null;
+        strategyID = null;
+        creativeID = null;
+        pmpDealID = null;
+        return this;
+    }
+
+    /**
+     * Passes each attribute that has been set to {@code attribute}, under the names the MDC has always used
+     * @param attribute Receives the name and value of each attribute
+     */
+    public void forEach(BiConsumer<String, String> attribute) {
+        put(attribute, "path", path);
+        put(attribute, "contentType", contentType);
+        put(attribute, "auctionID", auctionID);
+        if (!Double.isNaN(cpm)) {
+            attribute.accept("cpm", Double.toString(cpm));
+        }
+        put(attribute, "campaignID", campaignID);
+        put(attribute, "strategyID", strategyID);
+        put(attribute, "creativeID", creativeID);
+        put(attribute, "pmpDealID", pmpDealID);
+    }
+
+    private static void put(BiConsumer<String, String> attribute, String name, String value) {
+        if (value != null) {
+            attribute.accept(name, value);
+        }
+    }
+
+    /**
+     * Replaces the current thread's MDC with this context, for a log line about to be written
+     */
+    public void toMDC() {
+        MDC.clear();
+        forEach(MDC::put);
+        inMDC = true;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getAuctionID() {
+        return auctionID;
+    }
+
+    public void setAuctionID(String auctionID) {
+        this.auctionID = auctionID;
+    }
+
+    /**
+     * @return The CPM chosen, or NaN if none has been yet
+     */
+    public double getCpm() {
+        return cpm;
+    }
+
+    public void setCpm(double cpm) {
+        this.cpm = cpm;
+    }
+
+    public String getCampaignID() {
+        return campaignID;
+    }
+
+    public void setCampaignID(String campaignID) {
+        this.campaignID = campaignID;
+    }
+
+    public String getStrategyID() {
+        return strategyID;
+    }
+
+    public void setStrategyID(String strategyID) {
+        this.strategyID = strategyID;
+    }
+
+    public String getCreativeID() {
+        return creativeID;
+    }
+
+    public void setCreativeID(String creativeID) {
+        this.creativeID = creativeID;
+    }
+
+    public String getPmpDealID() {
+        return pmpDealID;
+    }
+
+    public void setPmpDealID(String pmpDealID) {
+        this.pmpDealID = pmpDealID;
+    }
+}
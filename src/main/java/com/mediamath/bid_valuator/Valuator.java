@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+/**
+ * Decides what to bid on a request: the strategy, creative and deal to bid with, and the CPM.
+ *
+ * The endpoint asks whichever valuator is currently installed in {@link Endpoint#valuators}, which can be replaced at
+ * runtime (see {@link ValuatorRegistry}).  {@link SampleValuator} is installed unless bid-valuator.valuator.class says
+ * otherwise.  A valuator is called from many request handling threads at once, so must be thread safe.
+ *
+ * A valuator is loaded by class name (see {@link ValuatorRegistry#newValuator(String, com.typesafe.config.Config)}),
+ * through a public constructor that takes its {@link com.typesafe.config.Config} section, or a public no-argument
+ * constructor.
+ */
+public interface Valuator extends AutoCloseable {
+    /**
+     * Values a bid request
+     * @param request A view of the request.  Only what is read from it is decoded (see {@link BidRequestView}), and it
+     *                must not be kept once this returns.
+     * @param deadline The request's deadline.  Valuators that can cut corners (skip a lookup, use a cheaper model)
+     *                 should do so once {@link Deadline#isRunningOut()}.
+     * @return The bid, or null not to bid (answered with a 204 No Content)
+     * @throws IllegalArgumentException if the request cannot be valued
+     */
+    Response valuate(BidRequestView request, Deadline deadline) throws IllegalArgumentException;
+
+    /**
+     * Releases whatever the valuator holds (models, files, caches).  This is called once the valuator has been replaced
+     * and the last request using it has been valued, never while it may still be called.
+     */
+    @Override
+    default void close() {}
+}
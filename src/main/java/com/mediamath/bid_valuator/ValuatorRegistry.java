@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the {@link Valuator} requests are valued with, which can be replaced while the endpoint is serving.
+ *
+ * Each request leases the current valuator for as long as it is valuing with it:
+ *
+ * <pre>{@code
+ * try (ValuatorRegistry.Lease lease = registry.acquire()) {
+ *     return lease.valuator().valuate(request, deadline);
+ * }
+ * }</pre>
+ *
+ * {@link ValuatorRegistry#swap(Valuator)} installs a new valuator atomically: requests that lease after the swap get
+ * the new one, while requests already valuing with the old one finish with it, and the old one is closed once the
+ * last of them releases its lease.  Nothing is dropped or paused, and as the JVM keeps running, a new valuator starts
+ * with the JIT compiled code and caches (e.g. WURFL profiles) the old one left behind.
+ *
+ * Leases are counted on the valuator's slot, so acquiring one is a single CAS and allocates nothing.
+ *
+ * A registry configured with a watch directory swaps itself to each new model version published there, see
+ * {@link ModelWatcher}.
+ */
+public final class ValuatorRegistry implements AutoCloseable {
+    private static Logger logger = LoggerFactory.getLogger(ValuatorRegistry.class);
+
+    private final AtomicReference<Lease> current;
+    private final LongAdder swaps = new LongAdder();
+    private ModelWatcher watcher;
+
+    /**
+     * @param valuator The valuator to start with
+     */
+    public ValuatorRegistry(Valuator valuator) {
+        this.current = new AtomicReference<>(new Lease(valuator));
+    }
+
+    /**
+     * Creates a registry starting with the valuator configured in a bid-valuator.valuator section.  If it has a
+     * watch.directory, the registry starts with the latest model version there, and watches for new ones.
+     * @param config The bid-valuator.valuator section
+     * @return A new registry
+     * @throws IllegalArgumentException if the configured valuator (or the latest model version) cannot be loaded
+     */
+    public static ValuatorRegistry fromConfig(Config config) throws IllegalArgumentException {
+        String className = config.getString("class");
+        String directory = config.getString("watch.directory");
+        if (directory.isEmpty()) {
+            return new ValuatorRegistry(newValuator(className, config));
+        }
+        ModelWatcher watcher = new ModelWatcher(Paths.get(directory),
+                (file, contents) -> newValuator(className, config, file, contents));
+        ValuatorRegistry registry = new ValuatorRegistry(watcher.load());
+        registry.watcher = watcher.start(registry, config.getDuration("watch.interval", TimeUnit.MILLISECONDS));
+        return registry;
+    }
+
+    /**
+     * Creates a valuator by class name, with the valuator's public constructor taking a {@link Config} if it has one,
+     * otherwise its public no-argument constructor
+     * @param className The fully qualified class name of the valuator
+     * @param config The configuration to pass the valuator
+     * @return A new valuator
+     * @throws IllegalArgumentException if the class is not a Valuator, or could not be loaded or instantiated
+     */
+    public static Valuator newValuator(String className, Config config) throws IllegalArgumentException {
+        return newValuator(className, config, Thread.currentThread().getContextClassLoader());
+    }
+
+    /**
+     * Creates a valuator by class name, see {@link ValuatorRegistry#newValuator(String, Config)}
+     * @param className The fully qualified class name of the valuator
+     * @param config The configuration to pass the valuator
+     * @param loader The class loader to load the valuator with, e.g. a URLClassLoader over a newly deployed jar
+     * @return A new valuator
+     * @throws IllegalArgumentException if the class is not a Valuator, or could not be loaded or instantiated
+     */
+    public static Valuator newValuator(String className, Config config, ClassLoader loader) throws IllegalArgumentException {
+        Class<? extends Valuator> type = valuatorClass(className, loader);
+        try {
+            try {
+                Constructor<? extends Valuator> constructor = type.getConstructor(Config.class);
+                return constructor.newInstance(config);
+            } catch (NoSuchMethodException e) {
+                return type.getConstructor().newInstance();
+            }
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Failed to create valuator " + className, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Failed to create valuator " + className
+                    + ", it must have a public constructor taking a Config, or no arguments", e);
+        }
+    }
+
+    /**
+     * Creates a valuator over a model file, with the valuator's public constructor taking a {@link Config} and a
+     * {@link Path}
+     * @param className The fully qualified class name of the valuator
+     * @param config The configuration to pass the valuator
+     * @param modelFile The model file to pass the valuator
+     * @return A new valuator
+     * @throws IllegalArgumentException if the class is not a Valuator, could not be loaded or instantiated, or the
+     * model file is not valid
+     */
+    public static Valuator newValuator(String className, Config config, Path modelFile) throws IllegalArgumentException {
+        Class<? extends Valuator> type = valuatorClass(className, Thread.currentThread().getContextClassLoader());
+        try {
+            return type.getConstructor(Config.class, Path.class).newInstance(config, modelFile);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Failed to create valuator " + className + " over " + modelFile, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Failed to create valuator " + className
+                    + ", it must have a public constructor taking a Config and a Path to load model files", e);
+        }
+    }
+
+    /**
+     * Creates a valuator over a model file already mapped into memory (see {@link ModelWatcher.Loader}), with the
+     * valuator's public constructor taking a {@link Config}, a {@link Path} and a {@link MappedByteBuffer}.  A
+     * valuator without one is created by {@link ValuatorRegistry#newValuator(String, Config, Path)} instead, reading
+     * the file again.
+     * @param className The fully qualified class name of the valuator
+     * @param config The configuration to pass the valuator
+     * @param modelFile The model file to pass the valuator
+     * @param contents The model file's contents, which the valuator takes over
+     * @return A new valuator
+     * @throws IllegalArgumentException if the class is not a Valuator, could not be loaded or instantiated, or the
+     * model file is not valid
+     */
+    public static Valuator newValuator(String className, Config config, Path modelFile, MappedByteBuffer contents)
+            throws IllegalArgumentException {
+        Constructor<? extends Valuator> constructor;
+        try {
+            constructor = valuatorClass(className, Thread.currentThread().getContextClassLoader())
+                    .getConstructor(Config.class, Path.class, MappedByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            MappedFiles.unmap(contents);
+            return newValuator(className, config, modelFile);
+        } catch (IllegalArgumentException e) {
+            MappedFiles.unmap(contents);
+            throw e;
+        }
+        try {
+            return constructor.newInstance(config, modelFile, contents);
+        } catch (InvocationTargetException e) {
+            // The constructor unmaps the contents when it fails
+            throw new IllegalArgumentException("Failed to create valuator " + className + " over " + modelFile, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            MappedFiles.unmap(contents);
+            throw new IllegalArgumentException("Failed to create valuator " + className + " over " + modelFile, e);
+        }
+    }
+
+    private static Class<? extends Valuator> valuatorClass(String className, ClassLoader loader) throws IllegalArgumentException {
+        try {
+            return Class.forName(className, true, loader).asSubclass(Valuator.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown valuator " + className + ", must be a class implementing " + Valuator.class.getName(), e);
+        }
+    }
+
+    /**
+     * Leases the current valuator, which is not closed until the lease is
+     * @return A lease on the current valuator, which must be closed exactly once
+     */
+    public Lease acquire() {
+        while (true) {
+            Lease lease = current.get();
+            // Only fails if the slot has been swapped out and drained since it was read
+            if (lease.retain()) {
+                return lease;
+            }
+        }
+    }
+
+    /**
+     * @return The valuator new requests are valued with.  To value with it, {@link ValuatorRegistry#acquire()} it
+     * instead: once swapped out, a valuator may be closed (and e.g. its model file unmapped) at any moment.
+     */
+    public Valuator current() {
+        return current.get().valuator;
+    }
+
+    /**
+     * Installs a new valuator.  The one it replaces is closed once the requests already using it have been valued.
+     * @param valuator The new valuator
+     * @return The valuator replaced
+     */
+    public Valuator swap(Valuator valuator) {
+        Lease previous = current.getAndSet(new Lease(valuator));
+        swaps.increment();
+        logger.info("Swapped valuator {} for {}", previous.valuator, valuator);
+        previous.release();
+        return previous.valuator;
+    }
+
+    /**
+     * @return The number of times the valuator has been swapped
+     */
+    public long swaps() {
+        return swaps.sum();
+    }
+
+    /**
+     * @return The watcher swapping in new model versions, or null if this registry does not watch for them
+     */
+    public ModelWatcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * Stops watching for new model versions, and closes the current valuator once the requests using it have been
+     * valued.  The registry must not be used after.
+     */
+    @Override
+    public void close() {
+        if (watcher != null) {
+            watcher.close();
+        }
+        current.get().release();
+    }
+
+    /**
+     * A request's use of a valuator, see {@link ValuatorRegistry#acquire()}.  This is the valuator's slot in the
+     * registry, shared by every request using it, so must not be closed more than once per acquire.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Valuator valuator;
+        // One for each lease, plus one for as long as this is the registry's current slot
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Lease(Valuator valuator) {
+            this.valuator = valuator;
+        }
+
+        /**
+         * @return The leased valuator
+         */
+        public Valuator valuator() {
+            return valuator;
+        }
+
+        private boolean retain() {
+            for (int n = references.get(); n > 0; n = references.get()) {
+                if (references.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    valuator.close();
+                } catch (RuntimeException e) {
+                    logger.error("Failed to close valuator {}", valuator, e);
+                }
+            }
+        }
+
+        /**
+         * Releases the lease, closing the valuator if it has been swapped out and this was the last request using it
+         */
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
@@ -27,6 +27,10 @@ public class Browser extends WURFLValue {
         super(wurflText, targeted);
     }
 
+    Browser(String left, String right, boolean targeted) {
+        super(left, right, targeted);
+    }
+
     public String getName() {
         return getLeft();
     }
@@ -29,6 +29,10 @@ public class Device extends WURFLValue {
         super(wurflText, targeted);
     }
 
+    Device(String left, String right, boolean targeted) {
+        super(left, right, targeted);
+    }
+
     public String getManufacturer() {
         return getLeft();
     }
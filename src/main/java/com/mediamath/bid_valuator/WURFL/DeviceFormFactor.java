@@ -13,6 +13,10 @@ public class DeviceFormFactor extends WURFLValue {
         super(wurflText, targeted);
     }
 
+    DeviceFormFactor(String left, String right, boolean targeted) {
+        super(left, right, targeted);
+    }
+
     public String getFormFactor() {
         return getLeft();
     }
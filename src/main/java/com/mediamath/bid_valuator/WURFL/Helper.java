@@ -17,13 +17,8 @@
 package com.mediamath.bid_valuator.WURFL;
 
 import com.google.openrtb.OpenRtb;
-import com.google.protobuf.Struct;
-import com.google.protobuf.Value;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * A helper class to aid in decoding the Helper values used for device classification,
@@ -39,7 +34,6 @@ public class Helper {
     public static final String DIMENSION_SUBKEY = "1";
     public static final String TARGETED = "targeted";
     public static final String UNTARGETED = "untargeted";
-    private static Value emptyList = Value.newBuilder().clearListValue().build();
 
     private Helper() {}
 
@@ -58,107 +52,64 @@ public class Helper {
      *       }</pre>
      * @param targetType The type of value to extract,
      * @param <T> A WURFLValue subclass ({@link Browser}, {@link OS}, {@link Device}, {@link DeviceFormFactor})
-     * @return A list of T class instances representing the Helper values for the selected dimension
+     * @return An unmodifiable list of T class instances representing the Helper values for the selected dimension.
+     * When more than one dimension is needed, prefer a single {@link WURFLProfile#of(OpenRtb.MM_Ext.CompanionData)}
      * @throws IllegalArgumentException will be thrown if the targeted Helper dimension is not present in the data
      */
     public static <T extends WURFLValue> List<T> getWURFLData(OpenRtb.MM_Ext.CompanionData companionData, Class<T> targetType)
     throws IllegalArgumentException
     {
-        Dimension dim = null;
-        try {
-            dim = targetType.newInstance().getDimension();
-        } catch (InstantiationException e) {
-            throw new IllegalArgumentException("Could not instantiate WURFLValue class while determining dimension " + targetType.getName(), e);
-        } catch (IllegalAccessException e) {
-            throw new IllegalArgumentException("Could not access WURFLValue class constructor while determining dimension " + targetType.getName(), e);
-        }
-
+        Dimension dim = Dimension.of(targetType);
         if (dim == Dimension.UNKNOWN) {
             throw new IllegalArgumentException("Cannot get Helper data for unknown dimension " + dim.toString());
         }
+        return WURFLProfile.of(companionData).get(targetType);
+    }
 
-        Struct targetValues = companionData.getTargetValues();
-        Struct dimStruct, root;
-        try {
-            dimStruct = targetValues.getFieldsOrThrow(dim.getKey()).getStructValue();
-        } catch(IllegalArgumentException e) {
-            throw new IllegalArgumentException("Failed to find " + targetType.getName() + " dimension key " + dim.getKey() + " in TargetValues ", e);
-        }
-        try {
-            root = dimStruct.getFieldsOrThrow(DIMENSION_SUBKEY).getStructValue();
-        } catch(IllegalArgumentException e) {
-            throw new IllegalArgumentException("Failed to dimension subkey " + DIMENSION_SUBKEY + " in Helper dimension struct " + dimStruct, e);
-        }
-
-        Constructor<T> ctor = null;
-        try {
-            ctor = targetType.getConstructor(String.class, boolean.class);
-        } catch (NoSuchMethodException e) {
-            throw new IllegalArgumentException("Could not get constructor for target type " + targetType.getName(), e);
-        }
-        List<Value> targetedValues = root.getFieldsOrDefault(TARGETED, emptyList).getListValue().getValuesList();
-        List<Value> untargetedValues = root.getFieldsOrDefault(UNTARGETED, emptyList).getListValue().getValuesList();
-        Constructor<T> finalCtor = ctor;
-        List<T> data = targetedValues.stream().map(v -> {
-            try {
-                return finalCtor.newInstance(v.getStringValue(), true);
-            } catch (InstantiationException e) {
-                throw new IllegalArgumentException("Could not instantiate WURFLValue class " + targetType.getName(), e);
-            } catch (IllegalAccessException e) {
-                throw new IllegalArgumentException("Could not access WURFLValue class constructor" + targetType.getName(), e);
-            } catch (InvocationTargetException e) {
-                throw new IllegalArgumentException("Could not invoke constructor for WURFLValue class " + targetType.getName(), e);
-            }
-        }).collect(Collectors.toList());
-        Constructor<T> finalCtor1 = ctor;
-        untargetedValues.forEach(v -> {
-            try {
-                data.add(finalCtor1.newInstance(v.getStringValue(), false));
-            } catch (InstantiationException e) {
-                throw new IllegalArgumentException("Could not instantiate WURFLValue class " + targetType.getName(), e);
-            } catch (IllegalAccessException e) {
-                throw new IllegalArgumentException("Could not access WURFLValue class constructor" + targetType.getName(), e);
-            } catch (InvocationTargetException e) {
-                throw new IllegalArgumentException("Could not invoke constructor for WURFLValue class " + targetType.getName(), e);
-            }
-        });
-        return data;
+    /**
+     * Returns all of the Helper data found in a selected entity.  Decoded profiles are kept in the shared
+     * {@link WURFLProfileCache}, so strategies seen recently with identical targeting are not decoded again.
+     * @param selectedEntity a selected entity within the MediaMath extension to the OpenRTB schema
+     * @return The (shared, unmodifiable) decoded profile of the selected entity
+     */
+    public static WURFLProfile getProfile(OpenRtb.MM_Ext.SelectedEntity selectedEntity) {
+        return WURFLProfileCache.getShared().get(selectedEntity.getCompanionData());
     }
 
     /**
      * Convenience method for extracting {@link Browser} Helper data
      * @param selectedEntity a selected entity within the MediaMath extension to the OpenRTB schema
-     * @return A list of {@link Browser} Helper data found in the selected entity (see {@link Helper#getWURFLData(OpenRtb.MM_Ext.CompanionData, Class)}
+     * @return A list of {@link Browser} Helper data found in the selected entity (see {@link Helper#getProfile(OpenRtb.MM_Ext.SelectedEntity)})
      */
     public static List<Browser> getBrowserData(OpenRtb.MM_Ext.SelectedEntity selectedEntity) {
-        return getWURFLData(selectedEntity.getCompanionData(), Browser.class);
+        return getProfile(selectedEntity).getBrowsers();
     }
 
     /**
      * Convenience method for extracting {@link OS} Helper data
      * @param selectedEntity a selected entity within the MediaMath extension to the OpenRTB schema
-     * @return A list of {@link OS} Helper data found in the selected entity (see {@link Helper#getWURFLData(OpenRtb.MM_Ext.CompanionData, Class)}
+     * @return A list of {@link OS} Helper data found in the selected entity (see {@link Helper#getProfile(OpenRtb.MM_Ext.SelectedEntity)})
      */
     public static List<OS> getOSData(OpenRtb.MM_Ext.SelectedEntity selectedEntity) {
-        return getWURFLData(selectedEntity.getCompanionData(), OS.class);
+        return getProfile(selectedEntity).getOperatingSystems();
     }
 
     /**
      * Convenience method for extracting {@link Device} Helper data
      * @param selectedEntity a selected entity within the MediaMath extension to the OpenRTB schema
-     * @return A list of {@link Device} Helper data found in the selected entity (see {@link Helper#getWURFLData(OpenRtb.MM_Ext.CompanionData, Class)}
+     * @return A list of {@link Device} Helper data found in the selected entity (see {@link Helper#getProfile(OpenRtb.MM_Ext.SelectedEntity)})
      */
     public static List<Device> getDeviceData(OpenRtb.MM_Ext.SelectedEntity selectedEntity) {
-        return getWURFLData(selectedEntity.getCompanionData(), Device.class);
+        return getProfile(selectedEntity).getDevices();
     }
 
     /**
      * Convenience method for extracting {@link Device} form factor Helper data
      * @param selectedEntity a selected entity within the MediaMath extension to the OpenRTB schema
-     * @return A list of {@link DeviceFormFactor} Helper data found in the selected entity (see {@link Helper#getWURFLData(OpenRtb.MM_Ext.CompanionData, Class)}
+     * @return A list of {@link DeviceFormFactor} Helper data found in the selected entity (see {@link Helper#getProfile(OpenRtb.MM_Ext.SelectedEntity)})
      */
     public static List<DeviceFormFactor> getDeviceFormFactorData(OpenRtb.MM_Ext.SelectedEntity selectedEntity) {
-        return getWURFLData(selectedEntity.getCompanionData(), DeviceFormFactor.class);
+        return getProfile(selectedEntity).getDeviceFormFactors();
     }
 
     /**
@@ -172,6 +123,7 @@ public class Helper {
         DEVICE_FORM_FACTOR(26),
         DEVICE_MFR_AND_MODEL(29);
         private int dimensionNo;
+        private String key;
 
         /**
          *  Dimension enum private constructor which adds the integer value associated with each name
@@ -179,6 +131,39 @@ public class Helper {
          */
         Dimension(int dimensionNo) {
             this.dimensionNo = dimensionNo;
+            this.key = Integer.toString(dimensionNo);
+        }
+
+        /**
+         * Looks up the dimension for a TargetValues key
+         * @param key The string dimension key found in the TargetValues struct (e.g. "29")
+         * @return The matching dimension, or {@link Dimension#UNKNOWN} if the key is not a known Helper dimension
+         */
+        public static Dimension fromKey(String key) {
+            for (Dimension dim : values()) {
+                if (dim != UNKNOWN && dim.key.equals(key)) {
+                    return dim;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        /**
+         * Looks up the dimension associated with a {@link WURFLValue} subclass, without instantiating it
+         * @param targetType The value type
+         * @return The matching dimension, or {@link Dimension#UNKNOWN} if the type is not associated with one
+         */
+        public static Dimension of(Class<? extends WURFLValue> targetType) {
+            if (targetType == Browser.class) {
+                return BROWSER;
+            } else if (targetType == OS.class) {
+                return OS;
+            } else if (targetType == DeviceFormFactor.class) {
+                return DEVICE_FORM_FACTOR;
+            } else if (targetType == Device.class) {
+                return DEVICE_MFR_AND_MODEL;
+            }
+            return UNKNOWN;
         }
 
         /**
@@ -187,7 +172,7 @@ public class Helper {
          * @return The String value for the dimension number associated with this Enum value
          */
         public String getKey() {
-            return Integer.toString(this.dimensionNo);
+            return this.key;
         }
     }
 
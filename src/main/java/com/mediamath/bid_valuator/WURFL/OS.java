@@ -29,6 +29,10 @@ public class OS extends WURFLValue {
         super(wurflText, targeted);
     }
 
+    OS(String left, String right, boolean targeted) {
+        super(left, right, targeted);
+    }
+
     public String getName() {
         return getLeft();
     }
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.WURFL;
+
+import com.typesafe.config.ConfigFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process wide, append-only dictionary of WURFL tokens (each side of a Helper value, e.g. "ma_samsung",
+ * "mo_sm-g360p" or "os_windows"), mapping each distinct token to a small int id.
+ *
+ * Ids are assigned in order of first appearance and never change or get reused, so they can be stored in place of the
+ * strings themselves (see {@link WURFLDimensionData}) and compared with plain int comparisons.  The dictionary is never
+ * pruned.  The real WURFL vocabulary is small, but tokens come from request data, so the dictionary stops growing at
+ * {@link WURFLDictionary#maxSize} tokens.  Tokens first seen after that are not interned: they get
+ * {@link WURFLDictionary#UNINTERNED} instead of an id, and are kept as strings by whoever asked (see
+ * {@link WURFLDimensionData#leftToken(int)}).
+ */
+public final class WURFLDictionary {
+    /**
+     * The id used for a missing token, such as the right hand side of a one part Helper value
+     */
+    public static final int NONE = -1;
+    /**
+     * The id returned for a token first seen once the dictionary is full, which does not resolve to a token
+     */
+    public static final int UNINTERNED = -2;
+    /**
+     * The most distinct tokens the dictionary will hold
+     */
+    public static int maxSize = ConfigFactory.load().getInt("bid-valuator.wurfl-dictionary.max-size");
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] tokens = new String[1024];
+    private static int size = 0;
+    private static final AtomicLong uninterned = new AtomicLong();
+
+    private WURFLDictionary() {}
+
+    /**
+     * Returns the id of a token, assigning the next free id if it has not been seen before
+     * @param token The WURFL token
+     * @return The id of {@code token}, {@link WURFLDictionary#NONE} if the token is null, or
+     * {@link WURFLDictionary#UNINTERNED} if it is new and the dictionary is full
+     */
+    public static int idOf(String token) {
+        if (token == null) {
+            return NONE;
+        }
+        Integer id = ids.get(token);
+        return (id != null) ? id : register(token);
+    }
+
+    /**
+     * Returns the id of a token, without assigning one
+     * @param token The WURFL token
+     * @return The id of {@code token}, or {@link WURFLDictionary#NONE} if it has never been seen
+     */
+    public static int lookup(String token) {
+        Integer id = (token == null) ? null : ids.get(token);
+        return (id != null) ? id : NONE;
+    }
+
+    private static synchronized int register(String token) {
+        Integer existing = ids.get(token);
+        if (existing != null) {
+            return existing;
+        }
+        if (size >= maxSize) {
+            uninterned.incrementAndGet();
+            return UNINTERNED;
+        }
+        String[] current = tokens;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        int id = size;
+        current[id] = token;
+        // Publish the token before the id, so any reader that can see the id can resolve it
+        tokens = current;
+        size++;
+        ids.put(token, id);
+        return id;
+    }
+
+    /**
+     * @param id A token id previously returned by {@link WURFLDictionary#idOf(String)}, other than
+     *           {@link WURFLDictionary#UNINTERNED}
+     * @return The token, or null for {@link WURFLDictionary#NONE}
+     */
+    public static String token(int id) {
+        return (id == NONE) ? null : tokens[id];
+    }
+
+    /**
+     * @return The number of distinct tokens seen so far
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of times a new token was turned away because the dictionary was full
+     */
+    public static long uninterned() {
+        return uninterned.get();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.WURFL;
+
+import java.util.Arrays;
+
+/**
+ * The Helper values of a single {@link Helper.Dimension}, dictionary encoded (see {@link WURFLDictionary}).
+ *
+ * Value {@code i} is stored as the token ids of its left and right hand sides, and whether it was targeted is bit
+ * {@code i} of a bitset, so checking targeting is a handful of bit operations rather than a walk over objects:
+ *
+ * <pre>{@code
+ * WURFLDimensionData devices = profile.getData(Helper.Dimension.DEVICE_MFR_AND_MODEL);
+ * int i = devices.firstTargeted();
+ * if (i >= 0) {
+ *     String model = devices.rightToken(i);
+ * }
+ * }</pre>
+ *
+ * Tokens the dictionary had no room for are stored as {@link WURFLDictionary#UNINTERNED}, with the token itself kept
+ * alongside, so {@link WURFLDimensionData#leftToken(int)} and {@link WURFLDimensionData#rightToken(int)} resolve every
+ * value.  Instances are immutable.
+ */
+public final class WURFLDimensionData {
+    private final Helper.Dimension dimension;
+    // Pairs of (left, right) token ids, one pair per value
+    private final int[] tokens;
+    private final long[] targeted;
+    // The token at each index of tokens holding UNINTERNED, or null if there are none
+    private final String[] uninterned;
+
+    WURFLDimensionData(Helper.Dimension dimension, int[] tokens, long[] targeted, String[] uninterned) {
+        this.dimension = dimension;
+        this.tokens = tokens;
+        this.targeted = targeted;
+        this.uninterned = uninterned;
+    }
+
+    public Helper.Dimension getDimension() {
+        return dimension;
+    }
+
+    /**
+     * @return The number of values (targeted and untargeted) in this dimension
+     */
+    public int size() {
+        return tokens.length >> 1;
+    }
+
+    /**
+     * @param i The value index
+     * @return The token id of the left hand side of value {@code i}
+     */
+    public int left(int i) {
+        return tokens[i << 1];
+    }
+
+    /**
+     * @param i The value index
+     * @return The token id of the right hand side of value {@code i}, or {@link WURFLDictionary#NONE} if it only has one part
+     */
+    public int right(int i) {
+        return tokens[(i << 1) + 1];
+    }
+
+    /**
+     * @param i The value index
+     * @return The left hand side of value {@code i}
+     */
+    public String leftToken(int i) {
+        return token(i << 1);
+    }
+
+    /**
+     * @param i The value index
+     * @return The right hand side of value {@code i}, or null if it only has one part
+     */
+    public String rightToken(int i) {
+        return token((i << 1) + 1);
+    }
+
+    private String token(int index) {
+        int id = tokens[index];
+        return (id == WURFLDictionary.UNINTERNED) ? uninterned[index] : WURFLDictionary.token(id);
+    }
+
+    /**
+     * @param i The value index
+     * @return Whether or not value {@code i} was targeted by the strategy
+     */
+    public boolean isTargeted(int i) {
+        return (targeted[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @return Whether or not any value in this dimension was targeted by the strategy
+     */
+    public boolean anyTargeted() {
+        return firstTargeted() >= 0;
+    }
+
+    /**
+     * @return The index of the first targeted value, or -1 if none were targeted
+     */
+    public int firstTargeted() {
+        for (int w = 0; w < targeted.length; w++) {
+            if (targeted[w] != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(targeted[w]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param tokenId A token id
+     * @return Whether or not either side of any value in this dimension is {@code tokenId}.  Uninterned tokens have no
+     * id, so are never found this way.
+     */
+    public boolean contains(int tokenId) {
+        for (int token : tokens) {
+            if (token == tokenId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("WURFLDimensionData{dimension=").append(dimension).append(", values=[");
+        for (int i = 0; i < size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(leftToken(i));
+            if (right(i) != WURFLDictionary.NONE) {
+                sb.append(':').append(rightToken(i));
+            }
+            if (isTargeted(i)) {
+                sb.append(" (targeted)");
+            }
+        }
+        return sb.append("]}").toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        WURFLDimensionData that = (WURFLDimensionData) o;
+        return dimension == that.dimension && Arrays.equals(tokens, that.tokens) && Arrays.equals(targeted, that.targeted)
+                && Arrays.equals(uninterned, that.uninterned);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * dimension.hashCode() + Arrays.hashCode(tokens)) + Arrays.hashCode(targeted);
+    }
+}
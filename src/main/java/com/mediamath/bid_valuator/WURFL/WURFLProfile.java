@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.WURFL;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All of the Helper data found in a single CompanionData, for every known {@link Helper.Dimension}.
+ *
+ * The TargetValues struct is walked exactly once, and each dimension is stored dictionary encoded as a
+ * {@link WURFLDimensionData}, so a valuation that needs several dimensions pays for a single traversal, no reflection,
+ * and a few ints per value.
+ *
+ * <pre>{@code
+ * WURFLProfile profile = WURFLProfile.of(selectedEntity.getCompanionData());
+ * if (profile.has(Helper.Dimension.DEVICE_MFR_AND_MODEL)) {
+ *     boolean targeted = profile.getData(Helper.Dimension.DEVICE_MFR_AND_MODEL).anyTargeted();
+ * }
+ * }</pre>
+ *
+ * {@link WURFLValue} objects are only built on request (see {@link WURFLProfile#get(Class)}), and the lists returned
+ * are unmodifiable.
+ */
+public final class WURFLProfile {
+    private static final Value emptyList = Value.newBuilder().clearListValue().build();
+
+    private final WURFLDimensionData[] data = new WURFLDimensionData[Helper.Dimension.values().length];
+
+    /**
+     * A direct replacement for looking up a {@link WURFLValue} subclass constructor reflectively
+     * @param <T> The WURFLValue subclass built by this factory
+     */
+    @FunctionalInterface
+    private interface ValueFactory<T extends WURFLValue> {
+        T create(String left, String right, boolean targeted);
+    }
+
+    private WURFLProfile() {}
+
+    /**
+     * Decodes all of the Helper dimensions present in the TargetValues of {@code companionData}
+     * @param companionData The mm_ext CompanionData object parsed from the bid request protobuf
+     * @return The decoded profile.  Dimensions not present in the data are reported as missing by
+     * {@link WURFLProfile#has(Helper.Dimension)}
+     * @throws IllegalArgumentException if any of the Helper values is empty
+     */
+    public static WURFLProfile of(OpenRtb.MM_Ext.CompanionData companionData) throws IllegalArgumentException {
+        WURFLProfile profile = new WURFLProfile();
+        for (Map.Entry<String, Value> entry : companionData.getTargetValues().getFieldsMap().entrySet()) {
+            Helper.Dimension dim = Helper.Dimension.fromKey(entry.getKey());
+            if (dim == Helper.Dimension.UNKNOWN) {
+                continue;
+            }
+            Value root = entry.getValue().getStructValue().getFieldsMap().get(Helper.DIMENSION_SUBKEY);
+            if (root == null) {
+                continue;
+            }
+            profile.data[dim.ordinal()] = encode(dim, root.getStructValue());
+        }
+        return profile;
+    }
+
+    private static WURFLDimensionData encode(Helper.Dimension dim, Struct root) {
+        List<Value> targetedValues = root.getFieldsOrDefault(Helper.TARGETED, emptyList).getListValue().getValuesList();
+        List<Value> untargetedValues = root.getFieldsOrDefault(Helper.UNTARGETED, emptyList).getListValue().getValuesList();
+        int size = targetedValues.size() + untargetedValues.size();
+        int[] tokens = new int[size << 1];
+        long[] targeted = new long[(size + 63) >>> 6];
+        String[] uninterned = null;
+        int i = 0;
+        for (Value v : targetedValues) {
+            targeted[i >>> 6] |= 1L << i;
+            uninterned = encode(v.getStringValue(), tokens, uninterned, i++);
+        }
+        for (Value v : untargetedValues) {
+            uninterned = encode(v.getStringValue(), tokens, uninterned, i++);
+        }
+        return new WURFLDimensionData(dim, tokens, targeted, uninterned);
+    }
+
+    private static String[] encode(String wurflText, int[] tokens, String[] uninterned, int i) {
+        uninterned = intern(WURFLValue.leftOf(wurflText), tokens, uninterned, i << 1);
+        return intern(WURFLValue.rightOf(wurflText), tokens, uninterned, (i << 1) + 1);
+    }
+
+    /**
+     * @return {@code uninterned}, allocated first if {@code token} is the first the dictionary had no room for
+     */
+    private static String[] intern(String token, int[] tokens, String[] uninterned, int index) {
+        int id = WURFLDictionary.idOf(token);
+        if (id == WURFLDictionary.UNINTERNED) {
+            if (uninterned == null) {
+                uninterned = new String[tokens.length];
+            }
+            uninterned[index] = token;
+        }
+        tokens[index] = id;
+        return uninterned;
+    }
+
+    /**
+     * @param dim The dimension to check
+     * @return Whether or not {@code dim} was present in the decoded TargetValues
+     */
+    public boolean has(Helper.Dimension dim) {
+        return data[dim.ordinal()] != null;
+    }
+
+    /**
+     * Returns the encoded data for a given dimension
+     * @param dim The dimension to return
+     * @return The (possibly empty) encoded values found for {@code dim}
+     * @throws IllegalArgumentException if {@code dim} was not present in the data
+     */
+    public WURFLDimensionData getData(Helper.Dimension dim) throws IllegalArgumentException {
+        WURFLDimensionData dimData = data[dim.ordinal()];
+        if (dimData == null) {
+            throw new IllegalArgumentException("Failed to find " + dim + " dimension key " + dim.getKey() + " in TargetValues");
+        }
+        return dimData;
+    }
+
+    /**
+     * Returns the data for the dimension associated with a {@link WURFLValue} subclass, as newly built values
+     * @param targetType The type of value to return ({@link Browser}, {@link OS}, {@link Device}, {@link DeviceFormFactor})
+     * @param <T> A WURFLValue subclass
+     * @return The (possibly empty) list of values found for the dimension of {@code targetType}
+     * @throws IllegalArgumentException if the dimension was not present in the data, or {@code targetType} does not
+     * have a known dimension
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends WURFLValue> List<T> get(Class<T> targetType) throws IllegalArgumentException {
+        Helper.Dimension dim = Helper.Dimension.of(targetType);
+        switch (dim) {
+            case BROWSER:
+                return (List<T>) decode(getData(dim), Browser::new);
+            case OS:
+                return (List<T>) decode(getData(dim), OS::new);
+            case DEVICE_FORM_FACTOR:
+                return (List<T>) decode(getData(dim), DeviceFormFactor::new);
+            case DEVICE_MFR_AND_MODEL:
+                return (List<T>) decode(getData(dim), Device::new);
+            default:
+                throw new IllegalArgumentException("Cannot get Helper data for unknown dimension of " + targetType.getName());
+        }
+    }
+
+    private static <T extends WURFLValue> List<T> decode(WURFLDimensionData dimData, ValueFactory<T> factory) {
+        List<T> values = new ArrayList<>(dimData.size());
+        for (int i = 0; i < dimData.size(); i++) {
+            values.add(factory.create(dimData.leftToken(i), dimData.rightToken(i), dimData.isTargeted(i)));
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    public List<Browser> getBrowsers() throws IllegalArgumentException {
+        return get(Browser.class);
+    }
+
+    public List<OS> getOperatingSystems() throws IllegalArgumentException {
+        return get(OS.class);
+    }
+
+    public List<DeviceFormFactor> getDeviceFormFactors() throws IllegalArgumentException {
+        return get(DeviceFormFactor.class);
+    }
+
+    public List<Device> getDevices() throws IllegalArgumentException {
+        return get(Device.class);
+    }
+
+    @Override
+    public String toString() {
+        return "WURFLProfile{" + Arrays.toString(data) + '}';
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.WURFL;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.Struct;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * A concurrent, size bounded cache of decoded {@link WURFLProfile}s.
+ *
+ * The same strategies show up over and over with identical TargetValues, so profiles are keyed by StrategyID plus the
+ * TargetValues struct itself, and a repeated strategy skips decoding entirely.  Protobuf only memoizes a message's hash
+ * code per instance, so for a freshly parsed request the lookup walks the struct once to hash it, and once more to
+ * compare it with the cached key on a hit.  Both are cheaper than decoding the profile, and comparing the whole struct
+ * means two strategies (or targetings) whose hashes collide can never be handed each other's profile.
+ *
+ * Eviction is W-TinyLFU (see <a href="https://github.com/ben-manes/caffeine">Caffeine</a>).  Profiles (and the values
+ * in them) are shared between requests and threads, and must not be modified.
+ */
+public final class WURFLProfileCache {
+    private static final WURFLProfileCache shared =
+            new WURFLProfileCache(ConfigFactory.load().getLong("bid-valuator.wurfl-cache.maximum-size"));
+
+    private final Cache<Key, WURFLProfile> cache;
+
+    /**
+     * @param maximumSize The maximum number of profiles to keep
+     */
+    public WURFLProfileCache(long maximumSize) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return The process wide cache used by the {@link Helper} convenience methods, sized by
+     * {@code bid-valuator.wurfl-cache.maximum-size}
+     */
+    public static WURFLProfileCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Returns the decoded profile for {@code companionData}, decoding it only if an identical strategy targeting has
+     * not been seen recently
+     * @param companionData The mm_ext CompanionData object parsed from the bid request protobuf
+     * @return The (possibly shared) decoded profile
+     */
+    public WURFLProfile get(OpenRtb.MM_Ext.CompanionData companionData) {
+        Key key = new Key(companionData.getStrategyID(), companionData.getTargetValues());
+        return cache.get(key, k -> WURFLProfile.of(companionData));
+    }
+
+    public long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long missCount() {
+        return cache.stats().missCount();
+    }
+
+    public long evictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Performs any pending maintenance (such as size based eviction) immediately
+     */
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    private static final class Key {
+        private final String strategyID;
+        // Immutable, so safe to keep as part of the key
+        private final Struct targetValues;
+        private final int hash;
+
+        Key(String strategyID, Struct targetValues) {
+            this.strategyID = strategyID;
+            this.targetValues = targetValues;
+            this.hash = 31 * strategyID.hashCode() + targetValues.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return hash == key.hash && strategyID.equals(key.strategyID) && targetValues.equals(key.targetValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -37,15 +37,50 @@ public class WURFLValue {
      * @param targeted Whether or not this value was targeted by the strategy
      */
     public WURFLValue(String wurflText, boolean targeted) {
+        this(leftOf(wurflText), rightOf(wurflText), targeted);
+    }
+
+    /**
+     * Builds a value from an already separated left and right hand side
+     * @param left The left hand side of the Helper value
+     * @param right The right hand side of the Helper value, or null if it only has one part
+     * @param targeted Whether or not this value was targeted by the strategy
+     */
+    WURFLValue(String left, String right, boolean targeted) {
+        setLeft(left);
+        setRight(right);
+        this.targeted = targeted;
+    }
+
+    /**
+     * @param wurflText The String contents of a Helper value
+     * @return Everything up to the first ':' in {@code wurflText}
+     * @throws IllegalArgumentException if {@code wurflText} is null or empty
+     */
+    static String leftOf(String wurflText) {
         if (Strings.isNullOrEmpty(wurflText)) {
             throw new IllegalArgumentException("null or empty Helper value");
         }
-        String[] parts = wurflText.split(":");
-        setLeft(parts[0]);
-        if (parts.length > 1) {
-            setRight(parts[1]);
+        int separator = wurflText.indexOf(':');
+        return (separator < 0) ? wurflText : wurflText.substring(0, separator);
+    }
+
+    /**
+     * @param wurflText The String contents of a Helper value
+     * @return Everything between the first and second ':' in {@code wurflText}, or null if that is empty
+     * @throws IllegalArgumentException if {@code wurflText} is null or empty
+     */
+    static String rightOf(String wurflText) {
+        if (Strings.isNullOrEmpty(wurflText)) {
+            throw new IllegalArgumentException("null or empty Helper value");
         }
-        this.targeted = targeted;
+        int separator = wurflText.indexOf(':');
+        if (separator < 0) {
+            return null;
+        }
+        int end = wurflText.indexOf(':', separator + 1);
+        String right = wurflText.substring(separator + 1, (end < 0) ? wurflText.length() : end);
+        return right.isEmpty() ? null : right;
     }
 
     public String getLeft() {
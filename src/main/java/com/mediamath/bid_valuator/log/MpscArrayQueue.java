@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock free queue for many producers and a single consumer, over a power of two sized ring of slots.
+ *
+ * Producers claim a slot by advancing the producer index with a CAS, then publish into it; the consumer takes
+ * whatever has been published, in order, and frees the slot.  A full queue rejects the element rather than waiting,
+ * so producers never block.  {@link MpscArrayQueue#offer(Object)} may be called from any thread, but
+ * {@link MpscArrayQueue#poll()} and {@link MpscArrayQueue#drain(Consumer, int)} only ever from one.
+ *
+ * @param <E> The element type
+ */
+final class MpscArrayQueue<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /**
+     * @param capacity The most elements the queue holds, rounded up to a power of two
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    MpscArrayQueue(int capacity) throws IllegalArgumentException {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException(capacity + " is not a valid queue capacity");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * @param element The element to add, not null
+     * @return Whether or not the element was added, false if the queue is full
+     */
+    boolean offer(E element) {
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() > mask) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        slots.lazySet((int) index & mask, element);
+        return true;
+    }
+
+    /**
+     * @return The oldest element, or null if there is none (or its producer has not published it yet)
+     */
+    E poll() {
+        long index = consumerIndex.get();
+        int slot = (int) index & mask;
+        E element = slots.get(slot);
+        if (element != null) {
+            slots.lazySet(slot, null);
+            consumerIndex.lazySet(index + 1);
+        }
+        return element;
+    }
+
+    /**
+     * Takes elements in order until the queue is empty or {@code limit} have been taken
+     * @param consumer Receives each element
+     * @param limit The most elements to take
+     * @return The number of elements taken
+     */
+    int drain(Consumer<E> consumer, int limit) {
+        int taken = 0;
+        for (E element; taken < limit && (element = poll()) != null; taken++) {
+            consumer.accept(element);
+        }
+        return taken;
+    }
+
+    /**
+     * @return Roughly the number of elements in the queue, as producers and the consumer may be moving
+     */
+    int size() {
+        return (int) Math.max(0, Math.min(producerIndex.get() - consumerIndex.get(), mask + 1));
+    }
+
+    /**
+     * @return The most elements the queue holds
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
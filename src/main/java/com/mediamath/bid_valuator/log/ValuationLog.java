@@ -0,0 +1,304 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.log;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs a {@link ValuationRecord} per /valuate request as a line of JSON, without formatting or writing anything on the
+ * request thread.
+ *
+ * Request threads only add records to a bounded lock free queue (see {@link MpscArrayQueue}), and if it is full the
+ * record is dropped and counted rather than waited on.  A single background thread takes records off the queue in
+ * batches, formats each batch into one buffer and writes it out in one go.  Request bodies (only carried by sampled or
+ * errored requests) are rendered as text by that thread too.
+ *
+ * Every line has {@code "type":"valuation"} first, to tell it apart from the application's own JSON log lines when both
+ * go to the same stream.
+ *
+ * <pre>{@code
+ * ValuationLog.getShared().log(new ValuationRecord(...));
+ * }</pre>
+ */
+public final class ValuationLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ValuationLog.class);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final JsonFactory jsonFactory = new JsonFactory().setRootValueSeparator(null);
+    private static ValuationLog shared;
+
+    private final MpscArrayQueue<ValuationRecord> queue;
+    private final int batchSize;
+    private final OutputStream out;
+    private final Batch batch = new Batch(64 * 1024);
+    private JsonGenerator json;
+    // Records of the batch being formatted that failed to format, so are not written
+    private int unformatted = 0;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a log, and starts its writer thread
+     * @param capacity The most records queued for the writer at once
+     * @param batchSize The most records written out at once
+     * @param out Where the JSON lines are written, e.g. {@link System#out}
+     * @throws IllegalArgumentException if the capacity or batch size is not positive
+     */
+    public ValuationLog(int capacity, int batchSize, OutputStream out) throws IllegalArgumentException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(batchSize + " is not a valid batch size");
+        }
+        this.queue = new MpscArrayQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.out = out;
+        this.json = newGenerator();
+        writer = new Thread(this::run, "valuation-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The log shared by the endpoint, writing to stdout or stderr as configured by
+     * {@code bid-valuator.valuation-log}
+     * @throws IllegalArgumentException if the configured output is not known
+     */
+    public static synchronized ValuationLog getShared() throws IllegalArgumentException {
+        if (shared == null) {
+            Config config = ConfigFactory.load().getConfig("bid-valuator.valuation-log");
+            shared = new ValuationLog(config.getInt("queue-capacity"), config.getInt("batch-size"),
+                    output(config.getString("output")));
+        }
+        return shared;
+    }
+
+    /**
+     * Parses bid-valuator.valuation-log.output
+     * @param output "stdout" or "stderr"
+     * @return The stream to write to
+     * @throws IllegalArgumentException if {@code output} is not known
+     */
+    static OutputStream output(String output) throws IllegalArgumentException {
+        switch (output) {
+            case "stdout":
+                return System.out;
+            case "stderr":
+                return System.err;
+            default:
+                throw new IllegalArgumentException(output + " is not a valid valuation log output");
+        }
+    }
+
+    /**
+     * Queues a record for the writer, without waiting
+     * @param record The record to log
+     * @return Whether or not the record was queued, false if it was dropped because the queue is full
+     */
+    public boolean log(ValuationRecord record) {
+        if (closed || !queue.offer(record)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of records dropped because the queue was full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of records written
+     */
+    public long written() {
+        return written.sum();
+    }
+
+    /**
+     * @return Roughly the number of records waiting for the writer
+     */
+    public int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting records, and waits for the writer to write out the ones already queued.  If interrupted while
+     * waiting, this returns early with the thread's interrupt status set.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            // Read before draining, so nothing queued before close is left behind
+            boolean closing = closed;
+            int count = queue.drain(this::format, batchSize);
+            if (count > 0) {
+                flush(count - unformatted);
+                unformatted = 0;
+            } else if (closing) {
+                return;
+            } else {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+
+    private JsonGenerator newGenerator() {
+        try {
+            return jsonFactory.createGenerator(batch);
+        } catch (IOException e) {
+            // Not thrown for an in memory stream
+            throw new IllegalStateException("Failed to create JSON generator", e);
+        }
+    }
+
+    /**
+     * Formats a record into the batch.  One that fails to format is cut back out of the batch and counted as dropped,
+     * as the writer thread has to outlive any one record.
+     */
+    private void format(ValuationRecord record) {
+        int start = -1;
+        try {
+            // Everything before this record goes into the batch first, so a partly formatted record can be cut off
+            json.flush();
+            start = batch.size();
+            formatFields(record);
+        } catch (IOException | RuntimeException e) {
+            unformatted++;
+            dropped.increment();
+            logger.error("Failed to format the valuation log record of {}", record.getAuctionID(), e);
+            // The generator is left part way through the record
+            json = newGenerator();
+            if (start >= 0) {
+                batch.truncate(start);
+            }
+        }
+    }
+
+    private void formatFields(ValuationRecord record) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("type", "valuation");
+        json.writeStringField("timestamp", Instant.ofEpochMilli(record.getTimestampMillis()).toString());
+        writeString("auctionID", record.getAuctionID());
+        writeString("outcome", record.getOutcome());
+        writeString("campaignID", record.getCampaignID());
+        writeString("strategyID", record.getStrategyID());
+        writeString("creativeID", record.getCreativeID());
+        writeString("pmpDealID", record.getPmpDealID());
+        if (!Double.isNaN(record.getCpm())) {
+            json.writeNumberField("cpm", record.getCpm());
+        }
+        writeMicros("parseMicros", record.getParseNanos());
+        writeMicros("valuateMicros", record.getValuateNanos());
+        writeMicros("totalMicros", record.getTotalNanos());
+        if (record.hasRequestBody()) {
+            writeString("contentType", record.getContentType());
+            json.writeStringField("requestBody",
+                    render(record.getOutcome(), record.getContentType(), record.getRequestBody()));
+        }
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+
+    private void writeString(String name, String value) throws IOException {
+        if (value != null) {
+            json.writeStringField(name, value);
+        }
+    }
+
+    private void writeMicros(String name, long nanos) throws IOException {
+        if (nanos >= 0) {
+            json.writeNumberField(name, TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
+    /**
+     * Renders a request body as text: binary protobuf in the protobuf text encoding (or base64 if it does not parse),
+     * anything else as UTF-8.  Win notices that failed to parse are rendered as whatever fields of a
+     * {@link WinNotification} they do have, and everything else as a BidRequest.
+     */
+    static String render(String outcome, String contentType, byte[] body) {
+        if ("application/protobuf".equals(contentType)) {
+            try {
+                if (ValuationRecord.WINNOTICE_PARSE_ERROR.equals(outcome)) {
+                    // Without checking for the required fields, whose absence may be why it failed
+                    return WinNotification.newBuilder().mergeFrom(body).buildPartial().toString();
+                }
+                return OpenRtb.BidRequest.parseFrom(body).toString();
+            } catch (InvalidProtocolBufferException e) {
+                return Base64.getEncoder().encodeToString(body);
+            }
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private void flush(int count) {
+        try {
+            json.flush();
+            batch.writeTo(out);
+            out.flush();
+            written.add(count);
+        } catch (IOException e) {
+            dropped.add(count);
+            logger.error("Failed to write {} valuation log records", count, e);
+        } finally {
+            batch.reset();
+        }
+    }
+
+    /**
+     * A batch buffer that a failed record can be cut back out of
+     */
+    private static final class Batch extends ByteArrayOutputStream {
+        Batch(int size) {
+            super(size);
+        }
+
+        void truncate(int size) {
+            count = size;
+        }
+    }
+}
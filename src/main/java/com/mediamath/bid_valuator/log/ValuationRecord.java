@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.log;
+
+import com.mediamath.bid_valuator.Response;
+
+/**
+ * What a /valuate request leaves behind for the {@link ValuationLog}: its ids, the bid it got (if any) and how long
+ * each stage took.  Records are immutable, so they can be handed to the writer thread as they are.
+ *
+ * Only sampled or errored requests carry a copy of their body, which the writer renders as text.  The request thread
+ * never does.  That includes any request (win notices too) whose body failed to parse, which is logged with only its
+ * outcome, timings and body.
+ */
+public final class ValuationRecord {
+    /**
+     * The outcome of a /winnotice request whose body failed to parse, which is rendered as a win notice
+     */
+    public static final String WINNOTICE_PARSE_ERROR = "winnotice-parse-error";
+
+    private final long timestampMillis;
+    private final String auctionID;
+    private final String outcome;
+    private final String campaignID;
+    private final String strategyID;
+    private final String creativeID;
+    private final String pmpDealID;
+    private final double cpm;
+    private final long parseNanos;
+    private final long valuateNanos;
+    private final long totalNanos;
+    private final String contentType;
+    private final byte[] requestBody;
+
+    /**
+     * @param timestampMillis When the request arrived, in milliseconds since the epoch
+     * @param auctionID The bid request id, or null if it was not parsed
+     * @param outcome How the request was answered, e.g. "bid", "fallback-valuate" or "parse-error"
+     * @param response The bid, or null if there was none
+     * @param parseNanos Time from arrival until the request was parsed, or -1 if it was not
+     * @param valuateNanos Time spent valuing the request, or -1 if it was not
+     * @param totalNanos Time from arrival until the request was answered
+     * @param contentType The request's Content-Type, needed to render {@code requestBody}
+     * @param requestBody A copy of the request body to dump, or null.  It must not be modified afterwards.
+     */
+    public ValuationRecord(long timestampMillis, String auctionID, String outcome, Response response, long parseNanos,
+                           long valuateNanos, long totalNanos, String contentType, byte[] requestBody) {
+        this.timestampMillis = timestampMillis;
+        this.auctionID = auctionID;
+        this.outcome = outcome;
+        this.campaignID = (response == null) ? null : response.getCampaignID();
+        this.strategyID = (response == null) ? null : response.getStrategyID();
+        this.creativeID = (response == null) ? null : response.getCreativeID();
+        this.pmpDealID = (response == null) ? null : response.getPmpDealID();
+        this.cpm = (response == null) ? Double.NaN : response.getCpm();
+        this.parseNanos = parseNanos;
+        this.valuateNanos = valuateNanos;
+        this.totalNanos = totalNanos;
+        this.contentType = contentType;
+        this.requestBody = requestBody;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public String getAuctionID() {
+        return auctionID;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public String getCampaignID() {
+        return campaignID;
+    }
+
+    public String getStrategyID() {
+        return strategyID;
+    }
+
+    public String getCreativeID() {
+        return creativeID;
+    }
+
+    public String getPmpDealID() {
+        return pmpDealID;
+    }
+
+    /**
+     * @return The bid CPM, or NaN if there was no bid
+     */
+    public double getCpm() {
+        return cpm;
+    }
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public long getValuateNanos() {
+        return valuateNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return Whether or not this record carries the request body to dump
+     */
+    public boolean hasRequestBody() {
+        return requestBody != null;
+    }
+
+    byte[] getRequestBody() {
+        return requestBody;
+    }
+}
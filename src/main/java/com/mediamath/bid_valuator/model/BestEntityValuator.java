@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.openrtb.OpenRtb;
+import com.mediamath.bid_valuator.BidRequestView;
+import com.mediamath.bid_valuator.Deadline;
+import com.mediamath.bid_valuator.Response;
+import com.mediamath.bid_valuator.ValuationContext;
+import com.mediamath.bid_valuator.Valuator;
+import com.mediamath.bid_valuator.WURFL.Helper;
+import com.mediamath.bid_valuator.WURFL.WURFLProfile;
+
+/**
+ * Bids on the best of a request's SelectedEntities, as scored by a model: every entity with a creative is scored, and
+ * the one with the highest CPM is bid on with its first creative, on the open market (no deal).  Bids below the
+ * minimum CPM are not made, and bids above the maximum are capped.  Once the deadline is running out, the entities not
+ * yet scored are skipped.
+ *
+ * Subclasses only say how a request's entities are scored (see {@link #scorer(BidRequestView)}).
+ */
+public abstract class BestEntityValuator implements Valuator {
+    private final String modelID;
+    private final double minCPM;
+    private final double maxCPM;
+
+    /**
+     * Scores the SelectedEntities of one request
+     */
+    @FunctionalInterface
+    protected interface EntityScorer {
+        /**
+         * @param entity The entity to score, which has at least one creative
+         * @param profile The entity's WURFL profile, or null if it has none or it is malformed
+         * @return The CPM to bid for the entity, before the minimum and maximum CPM are applied
+         */
+        double cpm(OpenRtb.MM_Ext.SelectedEntity entity, WURFLProfile profile);
+    }
+
+    /**
+     * @param modelID The model ID returned in responses
+     * @param minCPM The lowest CPM to bid
+     * @param maxCPM The highest CPM to bid
+     */
+    protected BestEntityValuator(String modelID, double minCPM, double maxCPM) {
+        this.modelID = modelID;
+        this.minCPM = minCPM;
+        this.maxCPM = maxCPM;
+    }
+
+    /**
+     * Does whatever scoring is shared by all of a request's entities, before any of them are scored
+     * @param req The request being valuated
+     * @return How each of the request's entities is scored, on the same thread
+     */
+    protected abstract EntityScorer scorer(BidRequestView req);
+
+    @Override
+    public final Response valuate(BidRequestView req, Deadline deadline) {
+        ValuationContext context = ValuationContext.get();
+        context.setAuctionID(req.getId());
+
+        EntityScorer scorer = scorer(req);
+        OpenRtb.MM_Ext.SelectedEntity best = null;
+        double bestCPM = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < req.getSelectedEntitiesCount(); i++) {
+            if (best != null && deadline.isRunningOut()) {
+                break;
+            }
+            OpenRtb.MM_Ext.SelectedEntity entity = req.getSelectedEntity(i);
+            if (entity.getCompanionData().getCreativesCount() == 0) {
+                continue;
+            }
+            double cpm = scorer.cpm(entity, profile(entity));
+            if (cpm > bestCPM) {
+                best = entity;
+                bestCPM = cpm;
+            }
+        }
+        if (best == null || !(bestCPM >= minCPM)) {
+            return null;
+        }
+        double cpm = Math.min(bestCPM, maxCPM);
+        OpenRtb.MM_Ext.CompanionData companionData = best.getCompanionData();
+        String creativeID = companionData.getCreatives(0).getID();
+        context.setCpm(cpm);
+        context.setCampaignID(best.getCampaignID());
+        context.setStrategyID(companionData.getStrategyID());
+        context.setCreativeID(creativeID);
+        context.setPmpDealID("");
+        return new Response(best.getCampaignID(), companionData.getStrategyID(), cpm, creativeID, "", modelID);
+    }
+
+    private static WURFLProfile profile(OpenRtb.MM_Ext.SelectedEntity entity) {
+        try {
+            return Helper.getProfile(entity);
+        } catch (IllegalArgumentException e) {
+            // Malformed WURFL data only loses those features
+            return null;
+        }
+    }
+
+    /**
+     * @return The model ID returned in responses
+     */
+    protected String getModelID() {
+        return modelID;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Hashes categorical features into weight vector indexes (the "hashing trick"), without allocating.
+ *
+ * Each feature is a namespace (which field it came from) and a value.  The hash is 32 bit FNV-1a, started from the
+ * namespace and run over the UTF-8 bytes of the value (or the four big endian bytes of an int value), then finished
+ * with MurmurHash3's fmix32 so the low bits used as an index are well mixed.  A String and a ByteString holding the
+ * same text hash the same, and anything training weights offline must hash exactly this way:
+ *
+ * <pre>
+ * h = (0x811c9dc5 ^ namespace) * 0x01000193
+ * for each byte b: h = (h ^ b) * 0x01000193
+ * h = fmix32(h)
+ * </pre>
+ */
+public final class FeatureHasher {
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private FeatureHasher() {}
+
+    /**
+     * @param namespace The feature's namespace
+     * @param value The feature's value, as UTF-8
+     * @return The feature's hash
+     */
+    public static int hash(int namespace, ByteString value) {
+        int h = start(namespace);
+        for (int i = 0; i < value.size(); i++) {
+            h = (h ^ (value.byteAt(i) & 0xff)) * FNV_PRIME;
+        }
+        return fmix32(h);
+    }
+
+    /**
+     * @param namespace The feature's namespace
+     * @param value The feature's value
+     * @return The feature's hash
+     */
+    public static int hash(int namespace, CharSequence value) {
+        return fmix32(update(start(namespace), value));
+    }
+
+    /**
+     * Hashes a feature whose value is in two parts (e.g. a WURFL manufacturer and model), as if the parts were joined
+     * with a zero byte
+     * @param namespace The feature's namespace
+     * @param left The first part of the value
+     * @param right The second part of the value, or null if there is only one
+     * @return The feature's hash
+     */
+    public static int hash(int namespace, CharSequence left, CharSequence right) {
+        int h = update(start(namespace), left);
+        if (right != null) {
+            h = update(h * FNV_PRIME, right);
+        }
+        return fmix32(h);
+    }
+
+    /**
+     * @param namespace The feature's namespace
+     * @param value The feature's value
+     * @return The feature's hash
+     */
+    public static int hash(int namespace, int value) {
+        int h = start(namespace);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            h = (h ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return fmix32(h);
+    }
+
+    private static int start(int namespace) {
+        return (FNV_OFFSET ^ namespace) * FNV_PRIME;
+    }
+
+    // Feeds the UTF-8 encoding of value through FNV-1a, a char at a time
+    private static int update(int h, CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                h = (h ^ c) * FNV_PRIME;
+            } else if (c < 0x800) {
+                h = (h ^ (0xc0 | (c >> 6))) * FNV_PRIME;
+                h = (h ^ (0x80 | (c & 0x3f))) * FNV_PRIME;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                h = (h ^ (0xf0 | (cp >> 18))) * FNV_PRIME;
+                h = (h ^ (0x80 | ((cp >> 12) & 0x3f))) * FNV_PRIME;
+                h = (h ^ (0x80 | ((cp >> 6) & 0x3f))) * FNV_PRIME;
+                h = (h ^ (0x80 | (cp & 0x3f))) * FNV_PRIME;
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate, which UTF-8 encoders replace with '?'
+                h = (h ^ '?') * FNV_PRIME;
+            } else {
+                h = (h ^ (0xe0 | (c >> 12))) * FNV_PRIME;
+                h = (h ^ (0x80 | ((c >> 6) & 0x3f))) * FNV_PRIME;
+                h = (h ^ (0x80 | (c & 0x3f))) * FNV_PRIME;
+            }
+        }
+        return h;
+    }
+
+    private static int fmix32(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.mediamath.bid_valuator.BidRequestView;
+import com.mediamath.bid_valuator.MappedFiles;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A {@link BestEntityValuator} that scores each SelectedEntity with a {@link TreeEnsemble}.  An entity's CPM is
+ * scale * link(base-margin + the sum of the trees' leaves), where the link is identity (for regression, e.g. XGBoost's
+ * reg:squarederror) or logistic (binary:logistic, whose base_score of p is a base-margin of ln(p / (1 - p))).
+ *
+ * Configured under bid-valuator.valuator.gbt, e.g.
+ * {@code -Dbid-valuator.valuator.class=com.mediamath.bid_valuator.model.GradientBoostedValuator
+ * -Dbid-valuator.valuator.gbt.model-file=/models/cpm.dump}.  Each thread fills one feature vector, reused from request
+ * to request, and only the entity features are overwritten from one SelectedEntity to the next.
+ */
+public class GradientBoostedValuator extends BestEntityValuator {
+    private static final ThreadLocal<float[]> features = ThreadLocal.withInitial(TreeFeatures::newVector);
+
+    private final TreeEnsemble ensemble;
+    private final float baseMargin;
+    private final LinearModel.Link link;
+    private final double scale;
+
+    /**
+     * @param ensemble The trees to score with
+     * @param modelID The model ID returned in responses
+     * @param baseMargin Added to the sum of the leaves
+     * @param link How the margin is turned into a CPM
+     * @param scale The CPM the linked margin is multiplied by
+     * @param minCPM The lowest CPM to bid
+     * @param maxCPM The highest CPM to bid
+     */
+    public GradientBoostedValuator(TreeEnsemble ensemble, String modelID, float baseMargin, LinearModel.Link link,
+                                   double scale, double minCPM, double maxCPM) {
+        super(modelID, minCPM, maxCPM);
+        this.ensemble = ensemble;
+        this.baseMargin = baseMargin;
+        this.link = link;
+        this.scale = scale;
+    }
+
+    /**
+     * @param config The bid-valuator.valuator section
+     * @throws UncheckedIOException if the model file could not be read
+     * @throws IllegalArgumentException if the model file is not a valid dump, or the link is not known
+     */
+    public GradientBoostedValuator(Config config) throws UncheckedIOException, IllegalArgumentException {
+        this(config, Paths.get(config.getString("gbt.model-file")));
+    }
+
+    /**
+     * @param config The bid-valuator.valuator section
+     * @param modelFile The dump to read, in place of gbt.model-file (e.g. a version found by a
+     *                  {@link com.mediamath.bid_valuator.ModelWatcher})
+     * @throws UncheckedIOException if the model file could not be read
+     * @throws IllegalArgumentException if the model file is not a valid dump, or the link is not known
+     */
+    public GradientBoostedValuator(Config config, Path modelFile) throws UncheckedIOException, IllegalArgumentException {
+        this(config, modelFile, read(modelFile));
+    }
+
+    /**
+     * @param config The bid-valuator.valuator section
+     * @param modelFile The dump, in place of gbt.model-file
+     * @param contents The dump already mapped into memory (e.g. by a {@link com.mediamath.bid_valuator.ModelWatcher}),
+     *                 which is unmapped once it is read
+     * @throws UncheckedIOException if the model file is not UTF-8
+     * @throws IllegalArgumentException if the model file is not a valid dump, or the link is not known
+     */
+    public GradientBoostedValuator(Config config, Path modelFile, MappedByteBuffer contents)
+            throws UncheckedIOException, IllegalArgumentException {
+        this(config, modelFile, read(modelFile, contents));
+    }
+
+    private GradientBoostedValuator(Config config, Path modelFile, TreeEnsemble ensemble) {
+        this(ensemble,
+                modelFile.getFileName().toString(),
+                (float) config.getDouble("gbt.base-margin"),
+                link(config.getString("gbt.link")),
+                config.getDouble("gbt.scale"),
+                config.getDouble("gbt.min-cpm"),
+                config.getDouble("gbt.max-cpm"));
+    }
+
+    private static TreeEnsemble read(Path file) {
+        try {
+            return TreeEnsemble.readXGBoostDump(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read tree ensemble from " + file, e);
+        }
+    }
+
+    private static TreeEnsemble read(Path file, MappedByteBuffer contents) {
+        try {
+            String dump = StandardCharsets.UTF_8.newDecoder().decode(contents).toString();
+            return TreeEnsemble.readXGBoostDump(new StringReader(dump));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read tree ensemble from " + file, e);
+        } finally {
+            // The trees are read onto the heap, so the mapping is no longer needed
+            MappedFiles.unmap(contents);
+        }
+    }
+
+    private static LinearModel.Link link(String link) throws IllegalArgumentException {
+        switch (link) {
+            case "identity":
+                return LinearModel.Link.IDENTITY;
+            case "logistic":
+                return LinearModel.Link.LOGISTIC;
+            default:
+                throw new IllegalArgumentException("Unknown link " + link + ", must be identity or logistic");
+        }
+    }
+
+    @Override
+    protected EntityScorer scorer(BidRequestView req) {
+        float[] vector = features.get();
+        TreeFeatures.fill(vector, req.getBidFeature());
+        return (entity, profile) -> {
+            TreeFeatures.fill(vector, entity, profile);
+            return cpm(ensemble.predict(vector));
+        };
+    }
+
+    /**
+     * @param margin The sum of the trees' leaves
+     * @return The CPM to bid, before min-cpm and max-cpm are applied
+     */
+    double cpm(float margin) {
+        double x = baseMargin + margin;
+        return scale * ((link == LinearModel.Link.LOGISTIC) ? 1 / (1 + Math.exp(-x)) : x);
+    }
+
+    public TreeEnsemble getEnsemble() {
+        return ensemble;
+    }
+
+    @Override
+    public String toString() {
+        return "GradientBoostedValuator(" + getModelID() + ")";
+    }
+}
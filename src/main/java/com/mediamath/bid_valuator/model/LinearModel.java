@@ -0,0 +1,419 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.openrtb.OpenRtb;
+import com.google.openrtb.OpenRtb.MM_Ext.BidFeatureMsg;
+import com.google.protobuf.ByteString;
+import com.mediamath.bid_valuator.MappedFiles;
+import com.mediamath.bid_valuator.WURFL.Helper;
+import com.mediamath.bid_valuator.WURFL.WURFLDimensionData;
+import com.mediamath.bid_valuator.WURFL.WURFLProfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * A linear (or logistic) model over hashed categorical features, whose weights are a single vector of floats: either
+ * a {@code float[]} on the heap, or a weights file mapped straight into memory (see {@link LinearModel#map(Path)}).
+ *
+ * The features are the BidFeatureMsg fields of the request (each string field but UUID, plus the UserTime week day and
+ * hour), the StrategyID of a SelectedEntity, and each WURFL value its strategy targets.  Each is hashed by
+ * {@link FeatureHasher} under its namespace into an index of the weight vector, and the score is the sum of the
+ * weights found there.  The request's features are the same for every SelectedEntity, so they are scored once and each
+ * entity only adds its own:
+ *
+ * <pre>{@code
+ * float requestScore = model.score(request.getBidFeature());
+ * for (int i = 0; i < request.getSelectedEntitiesCount(); i++) {
+ *     OpenRtb.MM_Ext.SelectedEntity entity = request.getSelectedEntity(i);
+ *     double cpm = model.cpm(requestScore + model.score(entity, Helper.getProfile(entity)));
+ * }
+ * }</pre>
+ *
+ * Scoring allocates nothing.  The namespaces are:
+ * <ul>
+ * <li>1-31: The BidFeatureMsg string field with that field number</li>
+ * <li>{@link LinearModel#WEEKDAY_NAMESPACE}, {@link LinearModel#HOUR_NAMESPACE}: UserTime.WeekDay and Hour, as ints</li>
+ * <li>{@link LinearModel#STRATEGY_NAMESPACE}: CompanionData.StrategyID</li>
+ * <li>{@link LinearModel#WURFL_NAMESPACE} + the WURFL dimension number (e.g. 29 for devices): each targeted value, as
+ * its left and right hand sides (see {@link FeatureHasher#hash(int, CharSequence, CharSequence)})</li>
+ * </ul>
+ *
+ * Weights are stored as a big endian binary file: the magic number 0x42564c4d ("BVLM"), the format version (1), the
+ * link (one byte, see {@link Link}), the number of index bits, the bias and CPM scale as floats, and then
+ * 2<sup>bits</sup> float weights.  Models are immutable.
+ *
+ * A mapped model's weights stay in the OS page cache rather than the heap, so even a 2<sup>28</sup> weight model
+ * costs the collector nothing and loads without copying, but it must be {@link LinearModel#close() closed} to unmap
+ * them once it is no longer scoring (see {@link MappedFiles}).
+ */
+public final class LinearModel implements AutoCloseable {
+    static final int MAGIC = 0x42564c4d;
+    static final int VERSION = 1;
+    // The magic number, version, link, bits, bias and scale
+    static final int HEADER_BYTES = 4 + 4 + 1 + 4 + 4 + 4;
+    /**
+     * The largest weight vector is 2<sup>MAX_BITS</sup> floats (1GB)
+     */
+    public static final int MAX_BITS = 28;
+    public static final int WEEKDAY_NAMESPACE = 32;
+    public static final int HOUR_NAMESPACE = 33;
+    public static final int STRATEGY_NAMESPACE = 64;
+    public static final int WURFL_NAMESPACE = 128;
+
+    /**
+     * How the score is turned into a CPM, after the bias is added
+     */
+    public enum Link {
+        /**
+         * CPM = scale * score
+         */
+        IDENTITY,
+        /**
+         * CPM = scale * 1 / (1 + e<sup>-score</sup>), e.g. a win or click probability times what it is worth
+         */
+        LOGISTIC
+    }
+
+    private static final class StringFeature {
+        final int namespace;
+        final Function<BidFeatureMsg, ByteString> value;
+
+        StringFeature(int namespace, Function<BidFeatureMsg, ByteString> value) {
+            this.namespace = namespace;
+            this.value = value;
+        }
+    }
+
+    // UUID is left out, a per user id teaches a shared weight vector nothing
+    private static final StringFeature[] requestFeatures = {
+            new StringFeature(BidFeatureMsg.COUNTRYID_FIELD_NUMBER, BidFeatureMsg::getCountryIDBytes),
+            new StringFeature(BidFeatureMsg.DMAID_FIELD_NUMBER, BidFeatureMsg::getDmaIDBytes),
+            new StringFeature(BidFeatureMsg.REGIONID_FIELD_NUMBER, BidFeatureMsg::getRegionIDBytes),
+            new StringFeature(BidFeatureMsg.ISPID_FIELD_NUMBER, BidFeatureMsg::getIspIDBytes),
+            new StringFeature(BidFeatureMsg.CONNSPEED_FIELD_NUMBER, BidFeatureMsg::getConnSpeedBytes),
+            new StringFeature(BidFeatureMsg.PUBLISHERID_FIELD_NUMBER, BidFeatureMsg::getPublisherIDBytes),
+            new StringFeature(BidFeatureMsg.SITEID_FIELD_NUMBER, BidFeatureMsg::getSiteIDBytes),
+            new StringFeature(BidFeatureMsg.CHANNELID_FIELD_NUMBER, BidFeatureMsg::getChannelIDBytes),
+            new StringFeature(BidFeatureMsg.OSID_FIELD_NUMBER, BidFeatureMsg::getOSIDBytes),
+            new StringFeature(BidFeatureMsg.EXCHANGEID_FIELD_NUMBER, BidFeatureMsg::getExchangeIDBytes),
+            new StringFeature(BidFeatureMsg.APPID_FIELD_NUMBER, BidFeatureMsg::getAppIDBytes),
+            new StringFeature(BidFeatureMsg.INTERSTITIAL_FIELD_NUMBER, BidFeatureMsg::getInterstitialBytes),
+            new StringFeature(BidFeatureMsg.IDVINTAGE_FIELD_NUMBER, BidFeatureMsg::getIdVintageBytes),
+            new StringFeature(BidFeatureMsg.FOLDPOSITION_FIELD_NUMBER, BidFeatureMsg::getFoldPositionBytes),
+            new StringFeature(BidFeatureMsg.BROWSERID_FIELD_NUMBER, BidFeatureMsg::getBrowserIDBytes),
+            new StringFeature(BidFeatureMsg.DEVICEID_FIELD_NUMBER, BidFeatureMsg::getDeviceIDBytes),
+            new StringFeature(BidFeatureMsg.BROWSERLANGID_FIELD_NUMBER, BidFeatureMsg::getBrowserLangIDBytes),
+            new StringFeature(BidFeatureMsg.CHANNELTYPE_FIELD_NUMBER, BidFeatureMsg::getChannelTypeBytes),
+            new StringFeature(BidFeatureMsg.CID_FIELD_NUMBER, BidFeatureMsg::getCIDBytes),
+            new StringFeature(BidFeatureMsg.USERSESSIONFREQ_FIELD_NUMBER, BidFeatureMsg::getUserSessionFreqBytes),
+            new StringFeature(BidFeatureMsg.VIEWPRCNT_FIELD_NUMBER, BidFeatureMsg::getViewPrcntBytes),
+            new StringFeature(BidFeatureMsg.HISTCTR_FIELD_NUMBER, BidFeatureMsg::getHistCtrBytes),
+            new StringFeature(BidFeatureMsg.VIDEOCOMPLETION_FIELD_NUMBER, BidFeatureMsg::getVideoCompletionBytes),
+            new StringFeature(BidFeatureMsg.ISPIXELTARGET_FIELD_NUMBER, BidFeatureMsg::getIsPixelTargetBytes),
+            new StringFeature(BidFeatureMsg.BIDINVBROWSERTYPE_FIELD_NUMBER, BidFeatureMsg::getBidInvBrowserTypeBytes),
+            new StringFeature(BidFeatureMsg.CITYID_FIELD_NUMBER, BidFeatureMsg::getCityIDBytes),
+            new StringFeature(BidFeatureMsg.ZIP_FIELD_NUMBER, BidFeatureMsg::getZipBytes),
+            new StringFeature(BidFeatureMsg.VIDEOSKIPPABILITY_FIELD_NUMBER, BidFeatureMsg::getVideoSkippabilityBytes),
+            new StringFeature(BidFeatureMsg.VIDEOPLACEMENTTYPE_FIELD_NUMBER, BidFeatureMsg::getVideoPlacementTypeBytes)
+    };
+    private static final Helper.Dimension[] dimensions;
+    private static final int[] dimensionNamespaces;
+
+    static {
+        dimensions = Arrays.stream(Helper.Dimension.values())
+                .filter(dim -> dim != Helper.Dimension.UNKNOWN)
+                .toArray(Helper.Dimension[]::new);
+        dimensionNamespaces = new int[dimensions.length];
+        for (int i = 0; i < dimensions.length; i++) {
+            dimensionNamespaces[i] = WURFL_NAMESPACE + Integer.parseInt(dimensions[i].getKey());
+        }
+    }
+
+    private final Link link;
+    private final float bias;
+    private final float scale;
+    private final FloatBuffer weights;
+    private final int mask;
+    // The file the weights are read from, or null if they are on the heap
+    private final MappedByteBuffer mapping;
+
+    /**
+     * @param link How the score is turned into a CPM
+     * @param bias Added to every score
+     * @param scale The CPM the linked score is multiplied by
+     * @param weights The weight vector, which is not copied and must not be modified afterwards.  Its length must be a
+     *                power of two, no more than 2<sup>{@link LinearModel#MAX_BITS}</sup>.
+     * @throws IllegalArgumentException if the length of {@code weights} is not a power of two, or too large
+     */
+    public LinearModel(Link link, float bias, float scale, float[] weights) throws IllegalArgumentException {
+        this(link, bias, scale, FloatBuffer.wrap(weights), null);
+    }
+
+    private LinearModel(Link link, float bias, float scale, FloatBuffer weights, MappedByteBuffer mapping) {
+        int length = weights.capacity();
+        if (Integer.bitCount(length) != 1 || length > (1 << MAX_BITS)) {
+            throw new IllegalArgumentException("The weight vector must have a power of two length, up to 2^" + MAX_BITS
+                    + ", but has " + length);
+        }
+        this.link = link;
+        this.bias = bias;
+        this.scale = scale;
+        this.weights = weights;
+        this.mask = length - 1;
+        this.mapping = mapping;
+    }
+
+    /**
+     * Maps a weights file into memory, rather than reading it onto the heap.  The model must be closed once it is no
+     * longer used, to unmap the file.
+     * @param file The file
+     * @return The model, reading its weights from the file
+     * @throws IOException if the file could not be mapped
+     * @throws IllegalArgumentException if the file is not a valid weights file
+     */
+    public static LinearModel map(Path file) throws IOException, IllegalArgumentException {
+        return map(file, MappedFiles.map(file));
+    }
+
+    /**
+     * Reads the weights from a file already mapped into memory (e.g. by a
+     * {@link com.mediamath.bid_valuator.ModelWatcher} checking its checksum), see {@link LinearModel#map(Path)}
+     * @param file The file, to report it if it is not valid
+     * @param mapping The whole file, mapped by {@link MappedFiles#map(Path)}, which the model takes over: it is
+     *                unmapped when the model is closed, or straight away if the file is not valid
+     * @return The model, reading its weights from the mapping
+     * @throws IllegalArgumentException if the file is not a valid weights file
+     */
+    public static LinearModel map(Path file, MappedByteBuffer mapping) throws IllegalArgumentException {
+        try {
+            if (mapping.remaining() < HEADER_BYTES) {
+                throw new IllegalArgumentException("Linear model weights file " + file + " is truncated");
+            }
+            ByteBuffer header = mapping.duplicate();
+            header.limit(HEADER_BYTES);
+            int bits = readHeader(header);
+            Link link = Link.values()[header.get(8)];
+            long length = HEADER_BYTES + ((long) Float.BYTES << bits);
+            if (mapping.remaining() != length) {
+                throw new IllegalArgumentException("Linear model weights file " + file + " is " + mapping.remaining()
+                        + " bytes, but " + (1 << bits) + " weights take " + length);
+            }
+            ByteBuffer weights = mapping.duplicate();
+            weights.position(HEADER_BYTES);
+            return new LinearModel(link, header.getFloat(13), header.getFloat(17), weights.slice().asFloatBuffer(), mapping);
+        } catch (RuntimeException e) {
+            MappedFiles.unmap(mapping);
+            throw e;
+        }
+    }
+
+    // Checks the header, returning the number of index bits
+    private static int readHeader(ByteBuffer header) throws IllegalArgumentException {
+        int magic = header.getInt(0);
+        if (magic != MAGIC) {
+            throw new IllegalArgumentException("Not a linear model weights file, bad magic number 0x" + Integer.toHexString(magic));
+        }
+        int version = header.getInt(4);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported linear model weights file version " + version);
+        }
+        int linkOrdinal = header.get(8) & 0xff;
+        if (linkOrdinal >= Link.values().length) {
+            throw new IllegalArgumentException("Unknown linear model link " + linkOrdinal);
+        }
+        int bits = header.getInt(9);
+        if (bits < 0 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("Linear model weights file has " + bits + " index bits, must be 0-" + MAX_BITS);
+        }
+        return bits;
+    }
+
+    /**
+     * Reads a weights file
+     * @param file The file
+     * @return The model
+     * @throws IOException if the file could not be read, or is truncated
+     * @throws IllegalArgumentException if the file is not a valid weights file
+     */
+    public static LinearModel read(Path file) throws IOException, IllegalArgumentException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads a model in the weights file format
+     * @param in The stream to read, which is read to its end
+     * @return The model
+     * @throws IOException if the stream could not be read, or is truncated
+     * @throws IllegalArgumentException if the stream does not hold a valid weights file
+     */
+    public static LinearModel read(InputStream in) throws IOException, IllegalArgumentException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        data.readFully(header.array());
+        int bits = readHeader(header);
+        // Read in bulk, rather than a float at a time
+        byte[] bytes = new byte[Float.BYTES << bits];
+        data.readFully(bytes);
+        if (data.read() >= 0) {
+            throw new IllegalArgumentException("Linear model weights file is longer than its " + (1 << bits) + " weights");
+        }
+        float[] weights = new float[1 << bits];
+        ByteBuffer.wrap(bytes).asFloatBuffer().get(weights);
+        return new LinearModel(Link.values()[header.get(8)], header.getFloat(13), header.getFloat(17), weights);
+    }
+
+    /**
+     * Writes the model in the weights file format
+     * @param out The stream to write to
+     * @throws IOException if writing fails
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeByte(link.ordinal());
+        data.writeInt(Integer.numberOfTrailingZeros(size()));
+        data.writeFloat(bias);
+        data.writeFloat(scale);
+        for (int i = 0; i < size(); i++) {
+            data.writeFloat(weights.get(i));
+        }
+        data.flush();
+    }
+
+    /**
+     * Scores the request wide features
+     * @param features The request's BidFeature message
+     * @return The sum of the weights of the request's features
+     */
+    public float score(BidFeatureMsg features) {
+        float score = 0;
+        for (StringFeature feature : requestFeatures) {
+            ByteString value = feature.value.apply(features);
+            if (!value.isEmpty()) {
+                score += weights.get(FeatureHasher.hash(feature.namespace, value) & mask);
+            }
+        }
+        if (features.hasUserTime()) {
+            BidFeatureMsg.user_time userTime = features.getUserTime();
+            if (userTime.hasWeekDay()) {
+                score += weights.get(FeatureHasher.hash(WEEKDAY_NAMESPACE, userTime.getWeekDay()) & mask);
+            }
+            if (userTime.hasHour()) {
+                score += weights.get(FeatureHasher.hash(HOUR_NAMESPACE, userTime.getHour()) & mask);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Scores the features of one SelectedEntity
+     * @param entity The SelectedEntity
+     * @param profile The strategy's decoded WURFL data (see {@link Helper#getProfile(OpenRtb.MM_Ext.SelectedEntity)}), or
+     *                null to leave it out
+     * @return The sum of the weights of the entity's features
+     */
+    public float score(OpenRtb.MM_Ext.SelectedEntity entity, WURFLProfile profile) {
+        OpenRtb.MM_Ext.CompanionData companionData = entity.getCompanionData();
+        float score = weights.get(FeatureHasher.hash(STRATEGY_NAMESPACE, companionData.getStrategyIDBytes()) & mask);
+        if (profile != null) {
+            for (int d = 0; d < dimensions.length; d++) {
+                if (!profile.has(dimensions[d])) {
+                    continue;
+                }
+                WURFLDimensionData data = profile.getData(dimensions[d]);
+                for (int i = 0; i < data.size(); i++) {
+                    if (data.isTargeted(i)) {
+                        int hash = FeatureHasher.hash(dimensionNamespaces[d], data.leftToken(i), data.rightToken(i));
+                        score += weights.get(hash & mask);
+                    }
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * @param score The sum of the weights of a bid's features
+     * @return The CPM to bid
+     */
+    public double cpm(float score) {
+        double linear = bias + score;
+        return scale * ((link == Link.LOGISTIC) ? 1 / (1 + Math.exp(-linear)) : linear);
+    }
+
+    /**
+     * @param hash A feature hash (see {@link FeatureHasher})
+     * @return The weight the feature contributes to the score
+     */
+    public float weight(int hash) {
+        return weights.get(hash & mask);
+    }
+
+    public Link getLink() {
+        return link;
+    }
+
+    public float getBias() {
+        return bias;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return The number of weights
+     */
+    public int size() {
+        return weights.capacity();
+    }
+
+    /**
+     * @return Whether or not the weights are read from a mapped file, rather than the heap
+     */
+    public boolean isMapped() {
+        return mapping != null;
+    }
+
+    /**
+     * Unmaps a mapped model's weights file, after which the model must not be used.  Models on the heap need not be
+     * closed, and closing them does nothing.
+     */
+    @Override
+    public void close() {
+        if (mapping != null) {
+            MappedFiles.unmap(mapping);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.mediamath.bid_valuator.BidRequestView;
+import com.mediamath.bid_valuator.MappedFiles;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A {@link BestEntityValuator} that scores each SelectedEntity with a {@link LinearModel}: an entity's CPM is the
+ * model's link applied to the request's score plus the entity's own (see {@link LinearModel#cpm(float)}).
+ *
+ * Configured under bid-valuator.valuator.linear, e.g.
+ * {@code -Dbid-valuator.valuator.class=com.mediamath.bid_valuator.model.LinearValuator
+ * -Dbid-valuator.valuator.linear.weights-file=/models/cpm.bvlm}.  The request wide features are scored once, and each
+ * entity only adds its own, so scoring every entity costs little more than scoring one.
+ *
+ * The weights file is mapped into memory (see {@link LinearModel#map(Path)}) and unmapped when the valuator is closed.
+ */
+public class LinearValuator extends BestEntityValuator {
+    private final LinearModel model;
+
+    /**
+     * @param model The model to score with, which is closed along with the valuator
+     * @param modelID The model ID returned in responses
+     * @param minCPM The lowest CPM to bid
+     * @param maxCPM The highest CPM to bid
+     */
+    public LinearValuator(LinearModel model, String modelID, double minCPM, double maxCPM) {
+        super(modelID, minCPM, maxCPM);
+        this.model = model;
+    }
+
+    /**
+     * @param config The bid-valuator.valuator section
+     * @throws UncheckedIOException if the weights file could not be read
+     * @throws IllegalArgumentException if the weights file is not valid
+     */
+    public LinearValuator(Config config) throws UncheckedIOException, IllegalArgumentException {
+        this(config, Paths.get(config.getString("linear.weights-file")));
+    }
+
+    /**
+     * @param config The bid-valuator.valuator section
+     * @param weightsFile The weights file to map, in place of linear.weights-file (e.g. a version found by a
+     *                    {@link com.mediamath.bid_valuator.ModelWatcher})
+     * @throws UncheckedIOException if the weights file could not be mapped
+     * @throws IllegalArgumentException if the weights file is not valid
+     */
+    public LinearValuator(Config config, Path weightsFile) throws UncheckedIOException, IllegalArgumentException {
+        this(config, weightsFile, map(weightsFile));
+    }
+
+    /**
+     * @param config The bid-valuator.valuator section
+     * @param weightsFile The weights file, in place of linear.weights-file
+     * @param weights The weights file already mapped into memory (e.g. by a
+     *                {@link com.mediamath.bid_valuator.ModelWatcher}), which is unmapped when the valuator is closed
+     * @throws IllegalArgumentException if the weights file is not valid
+     */
+    public LinearValuator(Config config, Path weightsFile, MappedByteBuffer weights) throws IllegalArgumentException {
+        this(LinearModel.map(weightsFile, weights),
+                weightsFile.getFileName().toString(),
+                config.getDouble("linear.min-cpm"),
+                config.getDouble("linear.max-cpm"));
+    }
+
+    private static MappedByteBuffer map(Path file) {
+        try {
+            return MappedFiles.map(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map linear model weights from " + file, e);
+        }
+    }
+
+    @Override
+    protected EntityScorer scorer(BidRequestView req) {
+        float requestScore = model.score(req.getBidFeature());
+        return (entity, profile) -> model.cpm(requestScore + model.score(entity, profile));
+    }
+
+    public LinearModel getModel() {
+        return model;
+    }
+
+    /**
+     * Closes the model, unmapping its weights file
+     */
+    @Override
+    public void close() {
+        model.close();
+    }
+
+    @Override
+    public String toString() {
+        return "LinearValuator(" + getModelID() + ")";
+    }
+}
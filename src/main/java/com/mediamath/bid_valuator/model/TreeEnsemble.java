@@ -0,0 +1,315 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An ensemble of binary decision trees (e.g. gradient boosted trees), stored as flat primitive arrays rather than node
+ * objects.
+ *
+ * Node {@code n} of the ensemble is described by the n-th element of each array: the feature it splits on (or -1 for a
+ * leaf), its threshold (or, for a leaf, its value), its left and right children, and whether a missing (NaN) feature
+ * goes left.  A value goes left if it is less than the threshold, as XGBoost splits.  Each tree is laid out depth
+ * first with a node's left child straight after it, so walking a tree reads forward through a few cache lines of each
+ * array rather than chasing pointers around the heap:
+ *
+ * <pre>{@code
+ * float[] features = TreeFeatures.newVector();
+ * TreeFeatures.fill(features, request.getBidFeature());
+ * TreeFeatures.fill(features, entity, Helper.getProfile(entity));
+ * float margin = ensemble.predict(features);
+ * }</pre>
+ *
+ * Ensembles are read from XGBoost's text dump ({@code booster.dump_model(path)}, optionally with stats, with or
+ * without a feature map naming the {@link TreeFeatures}):
+ *
+ * <pre>
+ * booster[0]:
+ * 0:[ExchangeID&lt;5.5] yes=1,no=2,missing=1
+ * 	1:leaf=0.25
+ * 	2:leaf=-0.1
+ * </pre>
+ *
+ * Ensembles are immutable.
+ */
+public final class TreeEnsemble {
+    private static final Pattern BOOSTER = Pattern.compile("booster\\[(\\d+)]:?");
+    private static final Pattern SPLIT = Pattern.compile(
+            "(\\d+):\\[([^<\\]]+)<([^\\]]+)] yes=(\\d+),no=(\\d+),missing=(\\d+)(,.*)?");
+    private static final Pattern LEAF = Pattern.compile("(\\d+):leaf=([^,]+)(,.*)?");
+
+    private final int[] roots;
+    private final int[] feature;
+    private final float[] threshold;
+    private final int[] left;
+    private final int[] right;
+    private final long[] missingLeft;
+
+    /**
+     * @param roots The index of each tree's root node
+     * @param feature The feature each node splits on, or -1 for a leaf
+     * @param threshold Each split's threshold, or each leaf's value
+     * @param left The index of each split's left child (taken when the feature is less than the threshold)
+     * @param right The index of each split's right child
+     * @param missingLeft A bitset of the splits that send missing features left
+     * @throws IllegalArgumentException if the arrays do not describe trees of features known to {@link TreeFeatures}
+     */
+    public TreeEnsemble(int[] roots, int[] feature, float[] threshold, int[] left, int[] right, long[] missingLeft)
+            throws IllegalArgumentException {
+        int nodes = feature.length;
+        if (threshold.length != nodes || left.length != nodes || right.length != nodes || missingLeft.length < (nodes + 63) >>> 6) {
+            throw new IllegalArgumentException("Every node of the ensemble must have a feature, threshold, children and missing direction");
+        }
+        for (int n = 0; n < nodes; n++) {
+            if (feature[n] >= TreeFeatures.COUNT || feature[n] < -1) {
+                throw new IllegalArgumentException("Node " + n + " splits on unknown feature " + feature[n]);
+            }
+            // Children always come after their parent, so every walk ends
+            if (feature[n] >= 0 && (left[n] <= n || left[n] >= nodes || right[n] <= n || right[n] >= nodes)) {
+                throw new IllegalArgumentException("Node " + n + " has children out of order or out of range");
+            }
+        }
+        for (int root : roots) {
+            if (root < 0 || root >= nodes) {
+                throw new IllegalArgumentException("Tree root " + root + " is out of range");
+            }
+        }
+        this.roots = roots;
+        this.feature = feature;
+        this.threshold = threshold;
+        this.left = left;
+        this.right = right;
+        this.missingLeft = missingLeft;
+    }
+
+    /**
+     * Sums the leaf each tree reaches
+     * @param features The feature vector (see {@link TreeFeatures}), where NaN means missing
+     * @return The sum of the leaves, i.e. the raw margin before any base score or link function
+     */
+    public float predict(float[] features) {
+        float sum = 0;
+        for (int root : roots) {
+            int n = root;
+            for (int f = feature[n]; f >= 0; f = feature[n]) {
+                float x = features[f];
+                if (x < threshold[n]) {
+                    n = left[n];
+                } else if (x >= threshold[n]) {
+                    n = right[n];
+                } else {
+                    // NaN
+                    n = ((missingLeft[n >>> 6] & (1L << n)) != 0) ? left[n] : right[n];
+                }
+            }
+            sum += threshold[n];
+        }
+        return sum;
+    }
+
+    /**
+     * @return The number of trees
+     */
+    public int trees() {
+        return roots.length;
+    }
+
+    /**
+     * @return The number of nodes, across all trees
+     */
+    public int nodes() {
+        return feature.length;
+    }
+
+    /**
+     * @param tree A tree number
+     * @return The index of the tree's root node
+     */
+    public int root(int tree) {
+        return roots[tree];
+    }
+
+    /**
+     * @param node A node index
+     * @return The feature the node splits on, or -1 if it is a leaf
+     */
+    public int feature(int node) {
+        return feature[node];
+    }
+
+    /**
+     * @param node A node index
+     * @return The split's threshold, or the leaf's value
+     */
+    public float threshold(int node) {
+        return threshold[node];
+    }
+
+    public int left(int node) {
+        return left[node];
+    }
+
+    public int right(int node) {
+        return right[node];
+    }
+
+    public boolean missingGoesLeft(int node) {
+        return (missingLeft[node >>> 6] & (1L << node)) != 0;
+    }
+
+    /**
+     * Reads an XGBoost text dump
+     * @param file The dump
+     * @return The ensemble
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if the file is not a valid dump, or uses features unknown to {@link TreeFeatures}
+     */
+    public static TreeEnsemble readXGBoostDump(Path file) throws IOException, IllegalArgumentException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return readXGBoostDump(reader);
+        }
+    }
+
+    /**
+     * Reads an XGBoost text dump, see {@link TreeEnsemble#readXGBoostDump(Path)}
+     * @param reader The dump, which is read to its end
+     * @return The ensemble
+     * @throws IOException if the dump could not be read
+     * @throws IllegalArgumentException if the dump is not valid, or uses features unknown to {@link TreeFeatures}
+     */
+    public static TreeEnsemble readXGBoostDump(Reader reader) throws IOException, IllegalArgumentException {
+        Builder builder = new Builder();
+        Map<Integer, String[]> tree = null;
+        BufferedReader lines = new BufferedReader(reader);
+        int lineNumber = 0;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            Matcher matcher;
+            if (BOOSTER.matcher(line).matches()) {
+                if (tree != null) {
+                    builder.add(tree);
+                }
+                tree = new HashMap<>();
+            } else if (tree == null) {
+                throw new IllegalArgumentException("Line " + lineNumber + " of the tree dump is not in a booster: " + line);
+            } else if ((matcher = SPLIT.matcher(line)).matches()) {
+                tree.put(Integer.parseInt(matcher.group(1)), new String[]{
+                        matcher.group(2), matcher.group(3), matcher.group(4), matcher.group(5), matcher.group(6)});
+            } else if ((matcher = LEAF.matcher(line)).matches()) {
+                tree.put(Integer.parseInt(matcher.group(1)), new String[]{matcher.group(2)});
+            } else {
+                throw new IllegalArgumentException("Line " + lineNumber + " of the tree dump is not a split or leaf: " + line);
+            }
+        }
+        if (tree != null) {
+            builder.add(tree);
+        }
+        return builder.build();
+    }
+
+    // Lays trees out depth first as they are added
+    private static final class Builder {
+        private final List<Integer> roots = new ArrayList<>();
+        private int[] feature = new int[256];
+        private float[] threshold = new float[256];
+        private int[] left = new int[256];
+        private int[] right = new int[256];
+        private long[] missingLeft = new long[4];
+        private int nodes = 0;
+
+        // Nodes are a leaf value, or a split's feature, threshold, yes, no and missing node ids
+        void add(Map<Integer, String[]> tree) {
+            if (!tree.containsKey(0)) {
+                throw new IllegalArgumentException("Tree " + roots.size() + " of the dump has no root node");
+            }
+            roots.add(nodes);
+            int added = add(tree, 0, 0);
+            if (added != tree.size()) {
+                throw new IllegalArgumentException("Tree " + (roots.size() - 1) + " of the dump has nodes that are not reachable");
+            }
+        }
+
+        private int add(Map<Integer, String[]> tree, int id, int depth) {
+            String[] node = tree.get(id);
+            if (node == null) {
+                throw new IllegalArgumentException("Tree " + (roots.size() - 1) + " of the dump is missing node " + id);
+            }
+            if (depth > 64) {
+                throw new IllegalArgumentException("Tree " + (roots.size() - 1) + " of the dump is deeper than 64 nodes");
+            }
+            int n = allocate();
+            if (node.length == 1) {
+                feature[n] = -1;
+                threshold[n] = Float.parseFloat(node[0]);
+                return 1;
+            }
+            int yes = Integer.parseInt(node[2]);
+            int no = Integer.parseInt(node[3]);
+            int missing = Integer.parseInt(node[4]);
+            if (missing != yes && missing != no) {
+                throw new IllegalArgumentException("Node " + id + " of tree " + (roots.size() - 1) + " sends missing values to neither child");
+            }
+            feature[n] = TreeFeatures.indexOf(node[0]);
+            threshold[n] = Float.parseFloat(node[1]);
+            if (missing == yes) {
+                missingLeft[n >>> 6] |= 1L << n;
+            }
+            left[n] = n + 1;
+            int added = 1 + add(tree, yes, depth + 1);
+            right[n] = nodes;
+            return added + add(tree, no, depth + 1);
+        }
+
+        private int allocate() {
+            if (nodes == feature.length) {
+                int capacity = nodes * 2;
+                feature = Arrays.copyOf(feature, capacity);
+                threshold = Arrays.copyOf(threshold, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                missingLeft = Arrays.copyOf(missingLeft, capacity >>> 6);
+            }
+            return nodes++;
+        }
+
+        TreeEnsemble build() {
+            if (roots.isEmpty()) {
+                throw new IllegalArgumentException("The tree dump has no trees");
+            }
+            return new TreeEnsemble(roots.stream().mapToInt(Integer::intValue).toArray(),
+                    Arrays.copyOf(feature, nodes), Arrays.copyOf(threshold, nodes), Arrays.copyOf(left, nodes),
+                    Arrays.copyOf(right, nodes), Arrays.copyOf(missingLeft, (nodes + 63) >>> 6));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.openrtb.OpenRtb;
+import com.google.openrtb.OpenRtb.MM_Ext.BidFeatureMsg;
+import com.google.protobuf.ByteString;
+import com.mediamath.bid_valuator.WURFL.Helper;
+import com.mediamath.bid_valuator.WURFL.WURFLDimensionData;
+import com.mediamath.bid_valuator.WURFL.WURFLProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The dense numeric feature vector {@link TreeEnsemble}s are evaluated on, filled in place without allocating.
+ *
+ * Features are numbered, and named as below (a model dump may refer to them either way, e.g. "f9" or "ExchangeID").
+ * Features that are not set, or not numeric, are NaN (i.e. missing, which each split sends one way or the other).
+ * <ol start="0">
+ * <li>The BidFeatureMsg fields as numbers (apart from UUID and CID, per user ids no model should split on), in field
+ * number order, with UserTime as UserTime.WeekDay, UserTime.Hour and UserTime.Minute.  Interstitial "true"/"false"
+ * is 1/0.</li>
+ * <li>Then for each SelectedEntity: CampaignID, Pacing.PI, Pacing.PacingIntervalPercentThru, StrategyID,
+ * StrategyGoalType (its index in {@link TreeFeatures#GOAL_TYPES}), StrategyGoalValue, PmpFloorPriceInMicro, Creatives
+ * and PMPDeals (how many there are), and Creative.Width and Creative.Height of the first creative.</li>
+ * <li>Then for each WURFL dimension (by dimension number, e.g. WURFL.29 for devices): WURFL.&lt;n&gt;.targeted and
+ * WURFL.&lt;n&gt;.untargeted, how many values the strategy targets and does not.</li>
+ * </ol>
+ * The request wide features come first (up to {@link TreeFeatures#REQUEST_FEATURES}), so a vector filled for a request
+ * can be reused for each of its SelectedEntities with only the rest overwritten.
+ */
+public final class TreeFeatures {
+    /**
+     * The StrategyGoalType values, numbered by their index
+     */
+    public static final List<String> GOAL_TYPES = Collections.unmodifiableList(Arrays.asList(
+            "CPA", "CPC", "CPM", "CTR", "REACH", "ROI", "SPEND", "VCPM", "VCR", "VIEWABILITY"));
+
+    private static final class StringFeature {
+        final String name;
+        final Function<BidFeatureMsg, ByteString> value;
+
+        StringFeature(String name, Function<BidFeatureMsg, ByteString> value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private static final StringFeature[] requestStringFeatures = {
+            new StringFeature("CountryID", BidFeatureMsg::getCountryIDBytes),
+            new StringFeature("DmaID", BidFeatureMsg::getDmaIDBytes),
+            new StringFeature("RegionID", BidFeatureMsg::getRegionIDBytes),
+            new StringFeature("IspID", BidFeatureMsg::getIspIDBytes),
+            new StringFeature("ConnSpeed", BidFeatureMsg::getConnSpeedBytes),
+            new StringFeature("PublisherID", BidFeatureMsg::getPublisherIDBytes),
+            new StringFeature("SiteID", BidFeatureMsg::getSiteIDBytes),
+            new StringFeature("ChannelID", BidFeatureMsg::getChannelIDBytes),
+            new StringFeature("OSID", BidFeatureMsg::getOSIDBytes),
+            new StringFeature("ExchangeID", BidFeatureMsg::getExchangeIDBytes),
+            new StringFeature("AppID", BidFeatureMsg::getAppIDBytes),
+            new StringFeature("Interstitial", BidFeatureMsg::getInterstitialBytes),
+            new StringFeature("IdVintage", BidFeatureMsg::getIdVintageBytes),
+            new StringFeature("FoldPosition", BidFeatureMsg::getFoldPositionBytes),
+            new StringFeature("BrowserID", BidFeatureMsg::getBrowserIDBytes),
+            new StringFeature("DeviceID", BidFeatureMsg::getDeviceIDBytes),
+            new StringFeature("BrowserLangID", BidFeatureMsg::getBrowserLangIDBytes),
+            new StringFeature("ChannelType", BidFeatureMsg::getChannelTypeBytes),
+            new StringFeature("UserSessionFreq", BidFeatureMsg::getUserSessionFreqBytes),
+            new StringFeature("ViewPrcnt", BidFeatureMsg::getViewPrcntBytes),
+            new StringFeature("HistCtr", BidFeatureMsg::getHistCtrBytes),
+            new StringFeature("VideoCompletion", BidFeatureMsg::getVideoCompletionBytes),
+            new StringFeature("IsPixelTarget", BidFeatureMsg::getIsPixelTargetBytes),
+            new StringFeature("BidInvBrowserType", BidFeatureMsg::getBidInvBrowserTypeBytes),
+            new StringFeature("CityID", BidFeatureMsg::getCityIDBytes),
+            new StringFeature("Zip", BidFeatureMsg::getZipBytes),
+            new StringFeature("VideoSkippability", BidFeatureMsg::getVideoSkippabilityBytes),
+            new StringFeature("VideoPlacementType", BidFeatureMsg::getVideoPlacementTypeBytes)
+    };
+    // UserTime is field 22, between UserSessionFreq and ViewPrcnt
+    private static final int USER_TIME = 19;
+    private static final String[] entityFeatures = {
+            "CampaignID", "Pacing.PI", "Pacing.PacingIntervalPercentThru", "StrategyID", "StrategyGoalType",
+            "StrategyGoalValue", "PmpFloorPriceInMicro", "Creatives", "PMPDeals", "Creative.Width", "Creative.Height"
+    };
+    private static final Helper.Dimension[] dimensions = Arrays.stream(Helper.Dimension.values())
+            .filter(dim -> dim != Helper.Dimension.UNKNOWN)
+            .toArray(Helper.Dimension[]::new);
+    private static final ByteString TRUE = ByteString.copyFromUtf8("true");
+    private static final ByteString FALSE = ByteString.copyFromUtf8("false");
+    private static final double[] POWERS_OF_TEN = new double[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * The number of request wide features, which come first
+     */
+    public static final int REQUEST_FEATURES = requestStringFeatures.length + 3;
+    private static final int ENTITY = REQUEST_FEATURES;
+    private static final int WURFL = ENTITY + entityFeatures.length;
+    /**
+     * The length of a feature vector
+     */
+    public static final int COUNT = WURFL + 2 * dimensions.length;
+    private static final List<String> names;
+
+    static {
+        List<String> list = new ArrayList<>(COUNT);
+        for (int i = 0; i < requestStringFeatures.length; i++) {
+            if (i == USER_TIME) {
+                list.addAll(Arrays.asList("UserTime.WeekDay", "UserTime.Hour", "UserTime.Minute"));
+            }
+            list.add(requestStringFeatures[i].name);
+        }
+        list.addAll(Arrays.asList(entityFeatures));
+        for (Helper.Dimension dim : dimensions) {
+            list.add("WURFL." + dim.getKey() + ".targeted");
+            list.add("WURFL." + dim.getKey() + ".untargeted");
+        }
+        names = Collections.unmodifiableList(list);
+    }
+
+    private TreeFeatures() {}
+
+    /**
+     * @return The name of each feature, by feature number
+     */
+    public static List<String> names() {
+        return names;
+    }
+
+    /**
+     * Looks up a feature as a model dump names it
+     * @param name A feature name (see {@link TreeFeatures#names()}), or "f" followed by the feature number
+     * @return The feature number
+     * @throws IllegalArgumentException if there is no such feature
+     */
+    public static int indexOf(String name) throws IllegalArgumentException {
+        int index = names.indexOf(name);
+        if (index < 0 && name.matches("f\\d{1,9}")) {
+            index = Integer.parseInt(name.substring(1));
+        }
+        if (index < 0 || index >= COUNT) {
+            throw new IllegalArgumentException("Unknown tree feature " + name);
+        }
+        return index;
+    }
+
+    /**
+     * @return A new feature vector, with every feature missing
+     */
+    public static float[] newVector() {
+        float[] features = new float[COUNT];
+        Arrays.fill(features, Float.NaN);
+        return features;
+    }
+
+    /**
+     * Fills in the request wide features
+     * @param features The feature vector, of length {@link TreeFeatures#COUNT}
+     * @param bidFeature The request's BidFeature message
+     */
+    public static void fill(float[] features, BidFeatureMsg bidFeature) {
+        int f = 0;
+        for (int i = 0; i < requestStringFeatures.length; i++) {
+            if (i == USER_TIME) {
+                BidFeatureMsg.user_time userTime = bidFeature.getUserTime();
+                features[f++] = userTime.hasWeekDay() ? userTime.getWeekDay() : Float.NaN;
+                features[f++] = userTime.hasHour() ? userTime.getHour() : Float.NaN;
+                features[f++] = userTime.hasMinute() ? userTime.getMinute() : Float.NaN;
+            }
+            features[f++] = parse(requestStringFeatures[i].value.apply(bidFeature));
+        }
+    }
+
+    /**
+     * Fills in (overwriting) the features of one SelectedEntity
+     * @param features The feature vector, of length {@link TreeFeatures#COUNT}
+     * @param entity The SelectedEntity
+     * @param profile The strategy's decoded WURFL data, or null to leave those features missing
+     */
+    public static void fill(float[] features, OpenRtb.MM_Ext.SelectedEntity entity, WURFLProfile profile) {
+        OpenRtb.MM_Ext.CompanionData companionData = entity.getCompanionData();
+        OpenRtb.MM_Ext.SelectedEntity.PacingMsg pacing = entity.getPacing();
+        int f = ENTITY;
+        features[f++] = parse(entity.getCampaignIDBytes());
+        features[f++] = pacing.hasPI() ? pacing.getPI() : Float.NaN;
+        features[f++] = pacing.hasPacingIntervalPercentThru() ? pacing.getPacingIntervalPercentThru() : Float.NaN;
+        features[f++] = parse(companionData.getStrategyIDBytes());
+        features[f++] = goalType(companionData.getStrategyGoalType());
+        features[f++] = parse(companionData.getStrategyGoalValueBytes());
+        features[f++] = parse(companionData.getPmpFloorPriceInMicroBytes());
+        features[f++] = companionData.getCreativesCount();
+        features[f++] = companionData.getPMPDealsCount();
+        OpenRtb.MM_Ext.CompanionData.Creative creative = (companionData.getCreativesCount() > 0) ?
+                companionData.getCreatives(0) : null;
+        features[f++] = (creative != null && creative.hasWidth()) ? creative.getWidth() : Float.NaN;
+        features[f++] = (creative != null && creative.hasHeight()) ? creative.getHeight() : Float.NaN;
+        for (Helper.Dimension dim : dimensions) {
+            if (profile == null || !profile.has(dim)) {
+                features[f++] = Float.NaN;
+                features[f++] = Float.NaN;
+                continue;
+            }
+            WURFLDimensionData data = profile.getData(dim);
+            int targeted = 0;
+            for (int i = 0; i < data.size(); i++) {
+                if (data.isTargeted(i)) {
+                    targeted++;
+                }
+            }
+            features[f++] = targeted;
+            features[f++] = data.size() - targeted;
+        }
+    }
+
+    private static float goalType(String goalType) {
+        for (int i = 0; i < GOAL_TYPES.size(); i++) {
+            if (GOAL_TYPES.get(i).equalsIgnoreCase(goalType)) {
+                return i;
+            }
+        }
+        return Float.NaN;
+    }
+
+    /**
+     * Reads a feature value: a decimal number (optionally signed, with a fraction), or true/false as 1/0
+     * @param value The UTF-8 text of the value
+     * @return The value, or NaN if it is empty or not a number
+     */
+    static float parse(ByteString value) {
+        int length = value.size();
+        if (length == 0) {
+            return Float.NaN;
+        }
+        if (value.equals(TRUE)) {
+            return 1;
+        }
+        if (value.equals(FALSE)) {
+            return 0;
+        }
+        int i = 0;
+        boolean negative = value.byteAt(0) == '-';
+        if (negative || value.byteAt(0) == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        // The power of ten the mantissa is scaled by
+        int exponent = 0;
+        boolean fraction = false;
+        for (; i < length; i++) {
+            byte b = value.byteAt(i);
+            if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (b >= '0' && b <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else if (!fraction) {
+                    // More precision than a float keeps, only the magnitude matters from here
+                    exponent++;
+                }
+            } else {
+                return Float.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Float.NaN;
+        }
+        double number = (exponent == 0) ? mantissa
+                : (exponent < 0) ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * Math.pow(10, exponent);
+        return (float) (negative ? -number : number);
+    }
+}
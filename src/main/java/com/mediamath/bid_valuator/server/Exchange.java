@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.server;
+
+import com.mediamath.bid_valuator.RequestBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single HTTP request and its response, as seen by a {@link Handler} regardless of which {@link Transport} received
+ * it.  Exchanges are only valid for the duration of {@link Handler#handle(Exchange)}, and are not thread safe.
+ */
+public interface Exchange {
+    /**
+     * @return When the transport received the request, on the {@link System#nanoTime()} clock
+     */
+    long arrivalNanos();
+
+    /**
+     * @return The request path, without the query string
+     */
+    String path();
+
+    /**
+     * @return The request Content-Type, or null if it was not sent
+     */
+    String contentType();
+
+    /**
+     * @param name A request header name
+     * @return The value of the header, or null if it was not sent
+     */
+    String header(String name);
+
+    /**
+     * Returns the request body, without copying it any more than the transport already has.  The body (and anything
+     * still reading from it) is only valid until the handler returns.
+     * @return The request body
+     * @throws IOException if the body could not be read
+     */
+    RequestBody body() throws IOException;
+
+    /**
+     * Sets a response header.  Must be called before responding.
+     * @param name The header name
+     * @param value The header value
+     */
+    void setHeader(String name, String value);
+
+    /**
+     * Starts the response, which is complete once exactly {@code contentLength} bytes have been written to the stream
+     * returned (and the handler has returned)
+     * @param status The HTTP status code
+     * @param contentType The response Content-Type
+     * @param contentLength The number of bytes in the response body
+     * @return The stream to write the response body to
+     * @throws IOException if the response could not be started
+     */
+    OutputStream respond(int status, String contentType, int contentLength) throws IOException;
+
+    /**
+     * Responds with a String body, encoded as UTF-8
+     * @param status The HTTP status code
+     * @param contentType The response Content-Type
+     * @param body The response body
+     * @throws IOException if the response could not be written
+     */
+    default void respond(int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        respond(status, contentType, bytes.length).write(bytes);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.server;
+
+/**
+ * Thrown by a {@link Handler} to stop handling a request immediately and respond with the given status (and body),
+ * the transport independent equivalent of Spark's {@code halt()}
+ */
+public class HaltException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final String body;
+
+    public HaltException(int status) {
+        this(status, null);
+    }
+
+    public HaltException(int status, String body) {
+        super(null, null, false, false);
+        this.status = status;
+        this.body = body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The response body, or null for an empty one
+     */
+    public String getBody() {
+        return body;
+    }
+}
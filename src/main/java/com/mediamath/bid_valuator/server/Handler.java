@@ -0,0 +1,32 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.server;
+
+/**
+ * Handles requests to a single route, independently of the {@link Transport} serving it
+ */
+@FunctionalInterface
+public interface Handler {
+    /**
+     * Handles a request.  A handler that returns without calling one of the {@link Exchange} respond methods sends an
+     * empty 200 OK.
+     * @param exchange The request, and the means of responding to it
+     * @throws HaltException to stop handling the request and respond with an error status
+     * @throws Exception if the request could not be handled, which is sent as a 500 Internal Server Error
+     */
+    void handle(Exchange exchange) throws Exception;
+}
@@ -0,0 +1,431 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.server;
+
+import com.mediamath.bid_valuator.RequestBody;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.AsciiString;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves routes with Netty, using native epoll where available (and NIO otherwise).
+ *
+ * Connections are kept alive, requests are aggregated into a single pooled {@link ByteBuf} that handlers read the body
+ * from in place (see {@link RequestBody#wrap(java.nio.ByteBuffer)}), and responses are written into pooled buffers.
+ * By default handlers run on the event loop thread that owns the connection, so there are only as many request
+ * handling threads as event loops, one per core by default.  Given a handler executor (such as
+ * {@link VirtualThreads#newExecutor()}) requests are instead handed off to it, so a handler that blocks does not stall
+ * every other connection on its event loop.  Requests on the same connection are still handled one at a time, in the
+ * order they arrived, so pipelined responses go out in order.
+ *
+ * Given HTTP/2 settings, the transport also speaks cleartext HTTP/2 (h2c) on the same port, to clients that either
+ * start with the HTTP/2 connection preface (prior knowledge) or ask for an {@code Upgrade: h2c}.  Each HTTP/2 stream
+ * is then handled like an HTTP/1.1 request on a connection of its own, so many requests can be in flight on one
+ * connection at once, and a slow one does not hold up the others.  The settings cap the streams a client may open at
+ * once and set each stream's flow control window; the connection's window is widened separately.
+ */
+public final class NettyTransport implements Transport {
+    private static final Logger logger = LoggerFactory.getLogger(NettyTransport.class);
+    // The last request handed to the handler executor for each connection, which the next one runs after
+    private static final AttributeKey<CompletableFuture<Void>> lastRequest = AttributeKey.valueOf("lastRequest");
+
+    private final Map<String, Handler> postRoutes = new HashMap<>();
+    private final Map<String, Handler> getRoutes = new HashMap<>();
+    private final int workerThreads;
+    private final int maxContentLength;
+    private final ExecutorService handlerExecutor;
+    private final Http2Settings http2Settings;
+    private final int http2ConnectionWindowSize;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel channel;
+
+    /**
+     * @param workerThreads The number of event loop threads handling connections, or 0 for one per core
+     * @param maxContentLength The largest request body accepted, larger ones get a 413 Request Entity Too Large
+     */
+    public NettyTransport(int workerThreads, int maxContentLength) {
+        this(workerThreads, maxContentLength, null);
+    }
+
+    /**
+     * @param workerThreads The number of event loop threads handling connections, or 0 for one per core
+     * @param maxContentLength The largest request body accepted, larger ones get a 413 Request Entity Too Large
+     * @param handlerExecutor The executor to run handlers on, which is shut down when the transport stops, or null to
+     *                        run them on the event loops
+     */
+    public NettyTransport(int workerThreads, int maxContentLength, ExecutorService handlerExecutor) {
+        this(workerThreads, maxContentLength, handlerExecutor, null, 0);
+    }
+
+    /**
+     * @param workerThreads The number of event loop threads handling connections, or 0 for one per core
+     * @param maxContentLength The largest request body accepted, larger ones get a 413 Request Entity Too Large
+     * @param handlerExecutor The executor to run handlers on, which is shut down when the transport stops, or null to
+     *                        run them on the event loops
+     * @param http2Settings The settings sent to HTTP/2 clients (e.g. the max concurrent streams and initial window
+     *                      size), or null to only serve HTTP/1.1
+     * @param http2ConnectionWindowSize The flow control window of each HTTP/2 connection, across all of its streams.
+     *                                  It is never narrower than the initial window size of a stream.
+     */
+    public NettyTransport(int workerThreads, int maxContentLength, ExecutorService handlerExecutor,
+                          Http2Settings http2Settings, int http2ConnectionWindowSize) {
+        this.workerThreads = (workerThreads > 0) ? workerThreads : Runtime.getRuntime().availableProcessors();
+        this.maxContentLength = maxContentLength;
+        this.handlerExecutor = handlerExecutor;
+        this.http2Settings = http2Settings;
+        this.http2ConnectionWindowSize = http2ConnectionWindowSize;
+    }
+
+    @Override
+    public void post(String path, Handler handler) {
+        postRoutes.put(path, handler);
+    }
+
+    @Override
+    public void get(String path, Handler handler) {
+        getRoutes.put(path, handler);
+    }
+
+    @Override
+    public void start(int port) {
+        boolean epoll = Epoll.isAvailable();
+        bossGroup = epoll ? new EpollEventLoopGroup(1) : new NioEventLoopGroup(1);
+        workerGroup = epoll ? new EpollEventLoopGroup(workerThreads) : new NioEventLoopGroup(workerThreads);
+        RouteHandler routeHandler = new RouteHandler();
+        channel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .childOption(ChannelOption.ALLOCATOR, allocator())
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        HttpServerCodec http1 = new HttpServerCodec();
+                        ch.pipeline().addLast((http2Settings == null) ? http1 : cleartextHttp2(http1, routeHandler))
+                                .addLast(new HttpServerKeepAliveHandler())
+                                .addLast(new HttpObjectAggregator(maxContentLength))
+                                .addLast(routeHandler);
+                    }
+                })
+                .bind(port)
+                .syncUninterruptibly()
+                .channel();
+        logger.info("Netty {} transport listening on port {} with {} event loops{}", epoll ? "epoll" : "NIO", port,
+                workerThreads, (http2Settings == null) ? "" : ", and HTTP/2 (h2c)");
+    }
+
+    /**
+     * @return A handler that serves HTTP/1.1 through {@code http1} until the client starts HTTP/2, by prior knowledge or
+     * by upgrading
+     */
+    private ChannelHandler cleartextHttp2(HttpServerCodec http1, RouteHandler routeHandler) {
+        // Each stream gets the same handlers as an HTTP/1.1 connection, the HTTP/2 frames translated to HTTP/1.1 objects
+        ChannelInitializer<Channel> streamInitializer = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel stream) {
+                stream.pipeline()
+                        .addLast(new Http2StreamFrameToHttpObjectCodec(true))
+                        .addLast(new HttpObjectAggregator(maxContentLength))
+                        .addLast(routeHandler);
+            }
+        };
+        HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(http1, protocol ->
+                AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol) ?
+                        new Http2ServerUpgradeCodec(Http2FrameCodecBuilder.forServer().initialSettings(http2Settings).build(),
+                                new Http2MultiplexHandler(streamInitializer, streamInitializer), new ConnectionWindow()) :
+                        null,
+                maxContentLength);
+        return new CleartextHttp2ServerUpgradeHandler(http1, upgradeHandler, new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(Http2FrameCodecBuilder.forServer().initialSettings(http2Settings).build(),
+                        new Http2MultiplexHandler(streamInitializer), new ConnectionWindow());
+            }
+        });
+    }
+
+    /**
+     * Widens an HTTP/2 connection's flow control window to {@link NettyTransport#http2ConnectionWindowSize}, from
+     * whatever the frame codec has already made it, then removes itself
+     */
+    private final class ConnectionWindow extends ChannelInboundHandlerAdapter {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            Http2Connection connection = ctx.pipeline().get(Http2FrameCodec.class).connection();
+            int increment = http2ConnectionWindowSize - connection.local().flowController().windowSize(connection.connectionStream());
+            if (increment > 0) {
+                // A window update without a stream is for the whole connection
+                ctx.writeAndFlush(new DefaultHttp2WindowUpdateFrame(increment));
+            }
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    private PooledByteBufAllocator allocator() {
+        if (handlerExecutor == null) {
+            return PooledByteBufAllocator.DEFAULT;
+        }
+        // Responses are allocated on the executor's threads, which may each live for a single request (virtual
+        // threads do), so only the event loops get a thread local cache
+        return new PooledByteBufAllocator(PooledByteBufAllocator.defaultPreferDirect(),
+                PooledByteBufAllocator.defaultNumHeapArena(), PooledByteBufAllocator.defaultNumDirectArena(),
+                PooledByteBufAllocator.defaultPageSize(), PooledByteBufAllocator.defaultMaxOrder(),
+                PooledByteBufAllocator.defaultTinyCacheSize(), PooledByteBufAllocator.defaultSmallCacheSize(),
+                PooledByteBufAllocator.defaultNormalCacheSize(), false);
+    }
+
+    @Override
+    public void awaitInitialization() {
+        // start() only returns once the port is bound
+    }
+
+    @Override
+    public void stop() {
+        if (channel != null) {
+            channel.close().syncUninterruptibly();
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully().syncUninterruptibly();
+            if (handlerExecutor != null) {
+                handlerExecutor.shutdown();
+            }
+            channel = null;
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private final class RouteHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            // Stamped before any hand off, so time spent waiting for the executor counts against the request
+            long arrivalNanos = System.nanoTime();
+            if (handlerExecutor == null) {
+                dispatch(ctx, request, arrivalNanos);
+                return;
+            }
+            // Released once the executor is done with it (or has refused it), rather than when this returns
+            request.retain();
+            // Completed however the request ends, so the connection's next request always gets its turn
+            CompletableFuture<Void> handled = new CompletableFuture<>();
+            Runnable task = () -> {
+                try {
+                    dispatch(ctx, request, arrivalNanos);
+                } catch (RuntimeException e) {
+                    exceptionCaught(ctx, e);
+                } finally {
+                    request.release();
+                    handled.complete(null);
+                }
+            };
+            Runnable submit = () -> {
+                try {
+                    handlerExecutor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    reject(ctx, request);
+                    handled.complete(null);
+                }
+            };
+            // Only ever touched from the connection's event loop
+            Attribute<CompletableFuture<Void>> last = ctx.channel().attr(lastRequest);
+            CompletableFuture<Void> previous = last.get();
+            last.set(handled);
+            if (previous == null || previous.isDone()) {
+                submit.run();
+            } else {
+                previous.thenRun(submit);
+            }
+        }
+
+        /**
+         * Answers a request the executor refused (e.g. because it is shutting down or saturated) with a 503
+         */
+        private void reject(ChannelHandlerContext ctx, FullHttpRequest request) {
+            logger.warn("Handler executor rejected {} {}", request.method(), request.uri());
+            request.release();
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.SERVICE_UNAVAILABLE, Unpooled.EMPTY_BUFFER);
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+            ctx.writeAndFlush(response);
+        }
+
+        private void dispatch(ChannelHandlerContext ctx, FullHttpRequest request, long arrivalNanos) {
+            NettyExchange exchange = new NettyExchange(ctx, request, arrivalNanos);
+            try {
+                if (!request.decoderResult().isSuccess()) {
+                    exchange.respond(HttpResponseStatus.BAD_REQUEST.code(), "text/plain", "Bad Request");
+                } else {
+                    Map<String, Handler> routes = HttpMethod.POST.equals(request.method()) ? postRoutes :
+                            HttpMethod.GET.equals(request.method()) ? getRoutes : null;
+                    Handler handler = (routes == null) ? null : routes.get(exchange.path());
+                    if (handler == null) {
+                        exchange.respond(HttpResponseStatus.NOT_FOUND.code(), "text/plain", "Not Found");
+                    } else {
+                        handle(handler, exchange);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Failed to respond to {} {}", request.method(), request.uri(), e);
+                exchange.release();
+                ctx.close();
+                return;
+            }
+            exchange.send();
+        }
+
+        private void handle(Handler handler, NettyExchange exchange) throws IOException {
+            try {
+                handler.handle(exchange);
+            } catch (HaltException e) {
+                exchange.respond(e.getStatus(), "text/plain", (e.getBody() == null) ? "" : e.getBody());
+            } catch (Exception e) {
+                logger.error("Failed to handle request to {}", exchange.path(), e);
+                exchange.respond(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "text/plain", "Internal Server Error");
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Closing connection from {}", ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+    }
+
+    private static final class NettyExchange implements Exchange {
+        private final ChannelHandlerContext ctx;
+        private final FullHttpRequest request;
+        private final long arrivalNanos;
+        private final HttpHeaders responseHeaders = new DefaultHttpHeaders(false);
+        private String path;
+        private int status = HttpResponseStatus.OK.code();
+        private ByteBuf content = Unpooled.EMPTY_BUFFER;
+
+        NettyExchange(ChannelHandlerContext ctx, FullHttpRequest request, long arrivalNanos) {
+            this.ctx = ctx;
+            this.request = request;
+            this.arrivalNanos = arrivalNanos;
+        }
+
+        @Override
+        public long arrivalNanos() {
+            return arrivalNanos;
+        }
+
+        @Override
+        public String path() {
+            if (path == null) {
+                path = new QueryStringDecoder(request.uri()).path();
+            }
+            return path;
+        }
+
+        @Override
+        public String contentType() {
+            return request.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        }
+
+        @Override
+        public String header(String name) {
+            return request.headers().get(name);
+        }
+
+        @Override
+        public RequestBody body() {
+            // Released once the request has been handled, see RouteHandler#channelRead0
+            return RequestBody.wrap(request.content().nioBuffer());
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            responseHeaders.set(name, value);
+        }
+
+        @Override
+        public OutputStream respond(int status, String contentType, int contentLength) {
+            release();
+            this.status = status;
+            responseHeaders.set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            content = ctx.alloc().buffer(contentLength);
+            return new ByteBufOutputStream(content);
+        }
+
+        void release() {
+            content.release();
+            content = Unpooled.EMPTY_BUFFER;
+        }
+
+        void send() {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.valueOf(status), content, responseHeaders, new DefaultHttpHeaders(false));
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+            ctx.writeAndFlush(response);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.server;
+
+import com.mediamath.bid_valuator.RequestBody;
+import org.eclipse.jetty.io.ChannelEndPoint;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.ManagedSelector;
+import org.eclipse.jetty.io.SocketChannelEndPoint;
+import org.eclipse.jetty.server.ForwardedRequestCustomizer;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves routes with Spark, on Jetty's thread per request model.  Requests are handled on Jetty's bounded pool of
+ * platform threads, or optionally each on its own virtual thread, so handlers that block do not tie up a scarce
+ * platform thread.
+ *
+ * Under load, requests wait in Jetty's queue before any thread reads them, so the time a request arrived is taken on
+ * Jetty's selector thread, as soon as its connection becomes readable, rather than when a handler gets to it.  That way
+ * deadlines (see {@link Exchange#arrivalNanos()}) and the admission limiter both see the time spent queued.
+ */
+public final class SparkTransport implements Transport {
+    private final Service service = Service.ignite();
+    private final boolean virtualThreads;
+    private final int maxContentLength;
+    // Spark starts its server as soon as the first route is added, which is too late to set the port
+    private final List<Runnable> routes = new ArrayList<>();
+    // The request attribute holding when the request's connection became readable, on the System.nanoTime() clock
+    private static final String ARRIVAL_NANOS = SparkTransport.class.getName() + ".arrivalNanos";
+    // Converts Jetty's millisecond request timestamps to the System.nanoTime() clock
+    private static final long nanoTimeOffset = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+    /**
+     * Creates a transport handling requests on Jetty's default thread pool, accepting request bodies of up to 1MiB
+     */
+    public SparkTransport() {
+        this(false, 1024 * 1024);
+    }
+
+    /**
+     * @param virtualThreads Whether to run all of Jetty's work, including handling each request, on virtual threads
+     *                       rather than its bounded thread pool.  This requires Java 21 or later.
+     * @param maxContentLength The largest request body accepted, larger ones get a 413 Request Entity Too Large
+     */
+    public SparkTransport(boolean virtualThreads, int maxContentLength) {
+        this.virtualThreads = virtualThreads;
+        this.maxContentLength = maxContentLength;
+    }
+
+    @Override
+    public void post(String path, Handler handler) {
+        routes.add(() -> service.post(path, route(handler)));
+    }
+
+    @Override
+    public void get(String path, Handler handler) {
+        routes.add(() -> service.get(path, route(handler)));
+    }
+
+    private Route route(Handler handler) {
+        return (req, res) -> {
+            try {
+                handler.handle(new SparkExchange(req, res));
+            } catch (HaltException e) {
+                throw (e.getBody() == null) ? service.halt(e.getStatus()) : service.halt(e.getStatus(), e.getBody());
+            }
+            // Anything to send has already been written to the servlet output stream
+            return "";
+        };
+    }
+
+    @Override
+    public void start(int port) {
+        // Spark looks its Jetty factory up globally, so this applies to any Service started after it
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), new EmbeddedJettyFactory(new StampingServerFactory(port))
+                .withThreadPool(virtualThreads ? new ExecutorPool(VirtualThreads.newExecutor()) : null));
+        service.port(port);
+        routes.forEach(Runnable::run);
+        service.init();
+        service.awaitInitialization();
+    }
+
+    @Override
+    public void awaitInitialization() {
+        service.awaitInitialization();
+    }
+
+    @Override
+    public void stop() {
+        service.stop();
+    }
+
+    /**
+     * Creates Jetty servers as Spark does, but listening through a {@link StampingConnector}.  Spark uses a server's
+     * own connectors when it already has some, so this must be told the port up front.
+     */
+    private static final class StampingServerFactory implements JettyServerFactory {
+        private final int port;
+
+        StampingServerFactory(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+            return create((maxThreads > 0) ? new QueuedThreadPool(maxThreads, (minThreads > 0) ? minThreads : 8,
+                    (threadTimeoutMillis > 0) ? threadTimeoutMillis : 60000) : new QueuedThreadPool());
+        }
+
+        @Override
+        public Server create(ThreadPool threadPool) {
+            Server server = new Server(threadPool);
+            // The same HTTP configuration and timeouts as Spark's own connector
+            HttpConfiguration httpConfig = new HttpConfiguration();
+            httpConfig.setSecureScheme("https");
+            httpConfig.addCustomizer(new ForwardedRequestCustomizer());
+            ServerConnector connector = new StampingConnector(server, new HttpConnectionFactory(httpConfig));
+            // Jetty tells every HttpChannel.Listener bean on a connector about each of its requests
+            connector.addBean(new HttpChannel.Listener() {
+                @Override
+                public void onRequestBegin(org.eclipse.jetty.server.Request request) {
+                    EndPoint endPoint = request.getHttpChannel().getEndPoint();
+                    long readableNanos = (endPoint instanceof StampedEndPoint) ? ((StampedEndPoint) endPoint).takeReadableNanos() : 0;
+                    if (readableNanos != 0) {
+                        request.setAttribute(ARRIVAL_NANOS, readableNanos);
+                    }
+                }
+
+                @Override
+                public void onComplete(org.eclipse.jetty.server.Request request) {
+                    // Before the connection reads again, so anything read while handling (i.e. the body) is forgotten
+                    EndPoint endPoint = request.getHttpChannel().getEndPoint();
+                    if (endPoint instanceof StampedEndPoint) {
+                        ((StampedEndPoint) endPoint).clearReadableNanos();
+                    }
+                }
+            });
+            connector.setIdleTimeout(TimeUnit.HOURS.toMillis(1));
+            connector.setSoLingerTime(-1);
+            connector.setPort(port);
+            server.addConnector(connector);
+            return server;
+        }
+    }
+
+    private static final class StampingConnector extends ServerConnector {
+        StampingConnector(Server server, HttpConnectionFactory connectionFactory) {
+            super(server, connectionFactory);
+        }
+
+        @Override
+        protected ChannelEndPoint newEndPoint(SocketChannel channel, ManagedSelector selectSet, SelectionKey key) {
+            StampedEndPoint endPoint = new StampedEndPoint(channel, selectSet, key, this);
+            endPoint.setIdleTimeout(getIdleTimeout());
+            return endPoint;
+        }
+    }
+
+    /**
+     * Remembers when bytes were first seen on its connection since the last request completed, whether the selector saw
+     * them or Jetty read them straight after finishing the last request.  A request that arrived with the one before it
+     * (i.e. pipelined) shares that request's stamp, as nothing was seen for it on its own.
+     */
+    private static final class StampedEndPoint extends SocketChannelEndPoint {
+        private final SelectionKey key;
+        private final AtomicLong readableNanos = new AtomicLong();
+        private volatile long lastReadableNanos;
+
+        StampedEndPoint(SocketChannel channel, ManagedSelector selector, SelectionKey key, ServerConnector connector) {
+            super(channel, selector, key, connector.getScheduler());
+            this.key = key;
+        }
+
+        @Override
+        public Runnable onSelected() {
+            // On the selector thread, before the read is handed to (and possibly queued for) a worker thread
+            if ((key.readyOps() & SelectionKey.OP_READ) != 0) {
+                readableNanos.compareAndSet(0, System.nanoTime());
+            }
+            return super.onSelected();
+        }
+
+        @Override
+        public int fill(ByteBuffer buffer) throws IOException {
+            int filled = super.fill(buffer);
+            if (filled > 0) {
+                readableNanos.compareAndSet(0, System.nanoTime());
+            }
+            return filled;
+        }
+
+        /**
+         * @return When the connection became readable, or the previous stamp if it has not since the last call
+         */
+        long takeReadableNanos() {
+            long nanos = readableNanos.getAndSet(0);
+            if (nanos != 0) {
+                lastReadableNanos = nanos;
+            }
+            return lastReadableNanos;
+        }
+
+        void clearReadableNanos() {
+            readableNanos.set(0);
+        }
+    }
+
+    /**
+     * Runs all of Jetty's work on an executor that starts a thread per task, so there is no pool to size or run low.
+     * Jetty's own ExecutorThreadPool only wraps a ThreadPoolExecutor without deprecation.
+     */
+    private static final class ExecutorPool extends AbstractLifeCycle implements ThreadPool {
+        private final ExecutorService executor;
+
+        ExecutorPool(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable job) {
+            executor.execute(job);
+        }
+
+        @Override
+        public void join() throws InterruptedException {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int getThreads() {
+            return 0;
+        }
+
+        @Override
+        public int getIdleThreads() {
+            return 0;
+        }
+
+        @Override
+        public boolean isLowOnThreads() {
+            return false;
+        }
+
+        @Override
+        protected void doStop() {
+            executor.shutdown();
+        }
+    }
+
+    private final class SparkExchange implements Exchange {
+        private final Request req;
+        private final Response res;
+        private final long arrivalNanos;
+
+        SparkExchange(Request req, Response res) {
+            this.req = req;
+            this.res = res;
+            this.arrivalNanos = arrivalNanos(req.raw());
+        }
+
+        private long arrivalNanos(HttpServletRequest request) {
+            Object readableNanos = request.getAttribute(ARRIVAL_NANOS);
+            if (readableNanos != null) {
+                return (Long) readableNanos;
+            }
+            // Not stamped by the connector, so falls back to Jetty's timestamp, taken as its headers were parsed
+            org.eclipse.jetty.server.Request base = org.eclipse.jetty.server.Request.getBaseRequest(request);
+            long now = System.nanoTime();
+            return (base == null) ? now : Math.min(now, TimeUnit.MILLISECONDS.toNanos(base.getTimeStamp()) + nanoTimeOffset);
+        }
+
+        @Override
+        public long arrivalNanos() {
+            return arrivalNanos;
+        }
+
+        @Override
+        public String path() {
+            return req.pathInfo();
+        }
+
+        @Override
+        public String contentType() {
+            return req.contentType();
+        }
+
+        @Override
+        public String header(String name) {
+            return req.headers(name);
+        }
+
+        @Override
+        public RequestBody body() throws IOException {
+            try {
+                return RequestBody.read(req.raw(), maxContentLength);
+            } catch (RequestBody.TooLargeException e) {
+                throw new HaltException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request Entity Too Large");
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            res.header(name, value);
+        }
+
+        @Override
+        public OutputStream respond(int status, String contentType, int contentLength) throws IOException {
+            res.status(status);
+            res.type(contentType);
+            res.raw().setContentLength(contentLength);
+            return res.raw().getOutputStream();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.server;
+
+import com.typesafe.config.Config;
+import io.netty.handler.codec.http2.Http2Settings;
+
+/**
+ * The HTTP server the endpoint's routes are served by.  Routes are added before {@link Transport#start(int)}, and
+ * requests to any other path get a 404 Not Found.
+ *
+ * <pre>{@code
+ * Transport transport = Transport.fromConfig(ConfigFactory.load());
+ * transport.post("/valuate", exchange -> ...);
+ * transport.start(4567);
+ * }</pre>
+ */
+public interface Transport {
+    /**
+     * @param path The exact path to route
+     * @param handler The handler for POST requests to {@code path}
+     */
+    void post(String path, Handler handler);
+
+    /**
+     * @param path The exact path to route
+     * @param handler The handler for GET requests to {@code path}
+     */
+    void get(String path, Handler handler);
+
+    /**
+     * Starts listening on all available interfaces, returning once the server is ready to accept requests
+     * @param port The port to listen on
+     */
+    void start(int port);
+
+    /**
+     * Blocks until the server is ready to accept requests
+     */
+    void awaitInitialization();
+
+    /**
+     * Stops the server, and releases its threads
+     */
+    void stop();
+
+    /**
+     * Creates the transport selected by {@code bid-valuator.server.transport}, either "spark" (Jetty, one thread per
+     * request) or "netty" (NIO event loops), running handlers on the threads selected by
+     * {@code bid-valuator.server.executor}, either "platform" (the transport's own threads) or "virtual" (a new
+     * virtual thread per request, see {@link VirtualThreads}).  The netty transport also serves cleartext HTTP/2 when
+     * {@code bid-valuator.server.netty.http2.enabled} is set.
+     * @param config The application config
+     * @return A new, unstarted Transport
+     * @throws IllegalArgumentException if the configured transport or executor is not known, or the HTTP/2 settings
+     * are out of range
+     * @throws IllegalStateException if virtual threads are configured but not supported by the running JVM
+     */
+    static Transport fromConfig(Config config) throws IllegalArgumentException, IllegalStateException {
+        String executor = config.getString("bid-valuator.server.executor");
+        boolean virtualThreads;
+        switch (executor) {
+            case "platform":
+                virtualThreads = false;
+                break;
+            case "virtual":
+                virtualThreads = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown server executor " + executor + ", must be platform or virtual");
+        }
+        String transport = config.getString("bid-valuator.server.transport");
+        switch (transport) {
+            case "spark":
+                return new SparkTransport(virtualThreads, config.getInt("bid-valuator.server.spark.max-content-length"));
+            case "netty":
+                Config http2 = config.getConfig("bid-valuator.server.netty.http2");
+                Http2Settings http2Settings = !http2.getBoolean("enabled") ? null : new Http2Settings()
+                        .maxConcurrentStreams(http2.getLong("max-concurrent-streams"))
+                        .initialWindowSize(http2.getInt("initial-window-size"));
+                return new NettyTransport(config.getInt("bid-valuator.server.netty.worker-threads"),
+                        config.getInt("bid-valuator.server.netty.max-content-length"),
+                        virtualThreads ? VirtualThreads.newExecutor() : null,
+                        http2Settings, http2.getInt("connection-window-size"));
+            default:
+                throw new IllegalArgumentException("Unknown server transport " + transport + ", must be spark or netty");
+        }
+    }
+}
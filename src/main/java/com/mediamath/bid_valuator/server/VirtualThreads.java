@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21+) from code that still targets Java 8.  The executor factory is looked up
+ * reflectively once, so on older runtimes virtual threads are simply reported as unavailable.
+ */
+public final class VirtualThreads {
+    private static final Method newVirtualThreadPerTaskExecutor = find();
+
+    private VirtualThreads() {}
+
+    private static Method find() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether or not the running JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * @return An executor that runs each task on a new virtual thread
+     * @throws IllegalStateException if the running JVM does not support virtual threads
+     */
+    public static ExecutorService newExecutor() throws IllegalStateException {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later, but running on Java "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Failed to create a virtual thread executor", e);
+        }
+    }
+}
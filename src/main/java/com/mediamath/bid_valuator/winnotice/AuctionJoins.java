@@ -0,0 +1,440 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.bid_valuator.Response;
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.Config;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the bid made for each auction (its strategy, creative, CPM and time) until the auction's win notice
+ * arrives, then joins the two to count each strategy's bids, wins, overbids and underbids.
+ *
+ * Bids are kept off the heap, in open addressing hash tables (linear probing) of fixed size entries in direct
+ * ByteBuffers, so millions of auctions in flight cost the garbage collector nothing and memory is fixed up front.  The
+ * tables are split into stripes by the auction's hash, each with its own lock, so the threads recording bids rarely
+ * contend with each other or with the win notice handler.
+ *
+ * Rather than expire entries one by one, each stripe has two generations: bids are recorded in the current one, and
+ * looked up in both.  Once the current generation is a ttl old (or full), it becomes the previous one, and the previous
+ * one is cleared and reused as the new current one.  So a bid can be joined for at least ttl (unless its stripe filled
+ * up first), and is forgotten after at most twice that.  Bids that were never joined are counted as expired (or
+ * evicted, if their generation was cleared early because the stripe filled up).  A joined entry is marked rather than
+ * removed, so a repeated win notice is not counted twice.
+ *
+ * Auctions are keyed by the BidRequest's id, as a number if it is a decimal one and otherwise hashed to 64 bits (see
+ * {@link AuctionJoins#auctionKey(CharSequence)}).  A win notice is joined by its AuctionID, or failing that its
+ * ExchangeAuctionID.
+ *
+ * <pre>{@code
+ * joins.record(bidRequest.getId(), response);
+ * long wins = joins.strategies().get(strategyID, AuctionJoins.WINS);
+ * }</pre>
+ */
+public final class AuctionJoins implements WinNoticeHandler {
+    /**
+     * The number of bids recorded
+     */
+    public static final int BIDS = 0;
+    /**
+     * The number of bids joined with a win notice
+     */
+    public static final int WINS = 1;
+    /**
+     * The number of wins whose CPM was above the ClearPriceCpm
+     */
+    public static final int OVERBIDS = 2;
+    /**
+     * The sum of how far the CPM of the overbids was above the ClearPriceCpm, in micros
+     */
+    public static final int OVERBID_MICROS = 3;
+    /**
+     * The number of wins whose CPM was below the ClearPriceCpm
+     */
+    public static final int UNDERBIDS = 4;
+    /**
+     * The sum of how far the CPM of the underbids was below the ClearPriceCpm, in micros
+     */
+    public static final int UNDERBID_MICROS = 5;
+    private static final int FIELDS = 6;
+
+    // Each entry is the auction key, StrategyID, CreativeID, CPM and the time of the bid (or JOINED)
+    private static final int KEY = 0;
+    private static final int STRATEGY = 8;
+    private static final int CREATIVE = 16;
+    private static final int CPM = 24;
+    private static final int MILLIS = 32;
+    static final int ENTRY_BYTES = 40;
+    private static final long EMPTY = 0;
+    private static final long JOINED = -1;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final LongKeyedCounters strategies;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param maxAuctions The most bids each generation holds, across all stripes
+     * @param ttlMillis How long a bid waits for its win notice (at least)
+     * @param stripes The number of stripes, rounded up to a power of two
+     * @param maxStrategies The most strategies counted
+     * @throws IllegalArgumentException if any setting is out of range
+     */
+    public AuctionJoins(int maxAuctions, long ttlMillis, int stripes, int maxStrategies) throws IllegalArgumentException {
+        this(maxAuctions, ttlMillis, stripes, maxStrategies, System::currentTimeMillis);
+    }
+
+    AuctionJoins(int maxAuctions, long ttlMillis, int stripes, int maxStrategies, LongSupplier clock)
+            throws IllegalArgumentException {
+        if (stripes < 1 || stripes > (1 << 16) || maxAuctions < stripes || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Can not join " + maxAuctions + " auctions over " + stripes
+                    + " stripes for " + ttlMillis + "ms");
+        }
+        int stripeCount = Integer.highestOneBit(stripes - 1) << 1;
+        if (stripes == 1) {
+            stripeCount = 1;
+        }
+        int perStripe = (maxAuctions + stripeCount - 1) / stripeCount;
+        // At most three quarters full, so probe sequences stay short
+        long capacity = Long.highestOneBit((long) perStripe * 4 / 3) << 1;
+        if (capacity * ENTRY_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(maxAuctions + " auctions over " + stripes + " stripes is too many for each stripe");
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe((int) capacity, perStripe, clock.getAsLong());
+        }
+        this.stripeMask = stripeCount - 1;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.strategies = new LongKeyedCounters(maxStrategies, FIELDS);
+    }
+
+    /**
+     * @param config The bid-valuator.winnotice.joins section
+     * @return A new join store, or null if max-auctions is 0
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    public static AuctionJoins fromConfig(Config config) throws IllegalArgumentException {
+        int maxAuctions = config.getInt("max-auctions");
+        if (maxAuctions == 0) {
+            return null;
+        }
+        return new AuctionJoins(maxAuctions, config.getDuration("ttl", TimeUnit.MILLISECONDS), config.getInt("stripes"),
+                config.getInt("max-strategies"));
+    }
+
+    /**
+     * Turns an auction id into the key it is joined by, without allocating
+     * @param auctionID A BidRequest id or ExchangeAuctionID
+     * @return The id as a number if it is a decimal one, otherwise a 64 bit hash of it (FNV-1a), or 0 if it is empty
+     */
+    public static long auctionKey(CharSequence auctionID) {
+        long key = WinCounters.parseID(auctionID);
+        if (key != 0 || auctionID == null || auctionID.length() == 0) {
+            return key;
+        }
+        key = 0xcbf29ce484222325L;
+        for (int i = 0; i < auctionID.length(); i++) {
+            key ^= auctionID.charAt(i);
+            key *= 0x100000001b3L;
+        }
+        return (key == EMPTY || key == JOINED) ? 1 : key;
+    }
+
+    /**
+     * Records the bid made for an auction, until it is joined with its win notice or expires
+     * @param auctionID The BidRequest's id
+     * @param response The bid
+     */
+    public void record(String auctionID, Response response) {
+        long key = auctionKey(auctionID);
+        if (key == EMPTY) {
+            return;
+        }
+        long strategyID = WinCounters.parseID(response.getStrategyID());
+        long mixed = LongKeyedCounters.mix(key);
+        Stripe stripe = stripes[(int) (mixed >>> 32) & stripeMask];
+        synchronized (stripe) {
+            stripe.put(key, (int) mixed, strategyID, WinCounters.parseID(response.getCreativeID()), response.getCpm(),
+                    clock.getAsLong());
+        }
+        recorded.increment();
+        int slot = strategies.slot(strategyID);
+        if (slot >= 0) {
+            strategies.add(slot, BIDS, 1);
+        }
+    }
+
+    @Override
+    public void onWinNotice(WinNotice notice, long sequence, boolean endOfBatch) {
+        if (notice.has(WinNotification.AUCTIONID_FIELD_NUMBER) && join(notice.getAuctionID(), notice)) {
+            return;
+        }
+        if (notice.has(WinNotification.EXCHANGEAUCTIONID_FIELD_NUMBER) && join(auctionKey(notice.getExchangeAuctionID()), notice)) {
+            return;
+        }
+        unmatched.increment();
+    }
+
+    private boolean join(long key, WinNotice notice) {
+        if (key == EMPTY || key == JOINED) {
+            return false;
+        }
+        long mixed = LongKeyedCounters.mix(key);
+        Stripe stripe = stripes[(int) (mixed >>> 32) & stripeMask];
+        long strategyID;
+        double cpm;
+        synchronized (stripe) {
+            long now = clock.getAsLong();
+            ByteBuffer table = stripe.current;
+            int entry = stripe.find(table, key, (int) mixed);
+            if (entry < 0) {
+                table = stripe.previous;
+                entry = stripe.find(table, key, (int) mixed);
+            }
+            if (entry < 0) {
+                return false;
+            }
+            long millis = table.getLong(entry + MILLIS);
+            if (millis == JOINED || now - millis > ttlMillis) {
+                return false;
+            }
+            table.putLong(entry + MILLIS, JOINED);
+            if (table == stripe.current) {
+                stripe.currentJoined++;
+            } else {
+                stripe.previousJoined++;
+            }
+            strategyID = table.getLong(entry + STRATEGY);
+            cpm = table.getDouble(entry + CPM);
+        }
+        joined.increment();
+        int slot = strategies.slot(strategyID);
+        if (slot >= 0) {
+            strategies.add(slot, WINS, 1);
+            double clear = notice.getClearPriceCpm();
+            if (notice.has(WinNotification.CLEARPRICECPM_FIELD_NUMBER) && cpm != clear) {
+                boolean overbid = cpm > clear;
+                strategies.add(slot, overbid ? OVERBIDS : UNDERBIDS, 1);
+                strategies.add(slot, overbid ? OVERBID_MICROS : UNDERBID_MICROS, WinTotals.micros(Math.abs(cpm - clear)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The bids, wins, overbids and underbids of each strategy, by StrategyID
+     */
+    public LongKeyedCounters strategies() {
+        return strategies;
+    }
+
+    /**
+     * @param strategyID A StrategyID
+     * @return The fraction of the strategy's recorded bids joined with a win notice, or NaN if it has no bids
+     */
+    public double winRate(long strategyID) {
+        long bids = strategies.get(strategyID, BIDS);
+        return (bids == 0) ? Double.NaN : (double) strategies.get(strategyID, WINS) / bids;
+    }
+
+    /**
+     * @return The number of bids recorded
+     */
+    public long recorded() {
+        return recorded.sum();
+    }
+
+    /**
+     * @return The number of win notices joined with their bid
+     */
+    public long joined() {
+        return joined.sum();
+    }
+
+    /**
+     * @return The number of win notices with no bid to join (never recorded, expired, or already joined)
+     */
+    public long unmatched() {
+        return unmatched.sum();
+    }
+
+    /**
+     * @return The number of bids forgotten without being joined, once older than the ttl
+     */
+    public long expired() {
+        return expired.sum();
+    }
+
+    /**
+     * @return The number of bids forgotten without being joined before they were a ttl old, as their stripe was full
+     */
+    public long evicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return A copy of every strategy's counters, by StrategyID
+     */
+    public Map<Long, Rates> snapshot() {
+        Map<Long, Rates> copy = new TreeMap<>();
+        strategies.forEachSlot(slot -> copy.put(strategies.key(slot), new Rates(strategies.get(slot, BIDS),
+                strategies.get(slot, WINS), strategies.get(slot, OVERBIDS), strategies.get(slot, OVERBID_MICROS),
+                strategies.get(slot, UNDERBIDS), strategies.get(slot, UNDERBID_MICROS))));
+        return copy;
+    }
+
+    private final class Stripe {
+        private ByteBuffer current;
+        private ByteBuffer previous;
+        private final int mask;
+        private final int maxEntries;
+        private long currentStartMillis;
+        private int currentSize = 0;
+        private int currentJoined = 0;
+        private int previousSize = 0;
+        private int previousJoined = 0;
+
+        Stripe(int capacity, int maxEntries, long now) {
+            current = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+            previous = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+            mask = capacity - 1;
+            this.maxEntries = maxEntries;
+            currentStartMillis = now;
+        }
+
+        void put(long key, int hash, long strategyID, long creativeID, double cpm, long now) {
+            boolean aged = now - currentStartMillis >= ttlMillis;
+            if (aged || currentSize >= maxEntries) {
+                rotate(aged, now);
+            }
+            int entry = hash & mask;
+            while (true) {
+                long found = current.getLong(entry * ENTRY_BYTES + KEY);
+                if (found == EMPTY) {
+                    currentSize++;
+                    break;
+                }
+                if (found == key) {
+                    // The same auction again, e.g. a retried request: the latest bid is the one that counts
+                    if (current.getLong(entry * ENTRY_BYTES + MILLIS) == JOINED) {
+                        currentJoined--;
+                    }
+                    break;
+                }
+                entry = (entry + 1) & mask;
+            }
+            int offset = entry * ENTRY_BYTES;
+            current.putLong(offset + KEY, key);
+            current.putLong(offset + STRATEGY, strategyID);
+            current.putLong(offset + CREATIVE, creativeID);
+            current.putDouble(offset + CPM, cpm);
+            current.putLong(offset + MILLIS, now);
+        }
+
+        /**
+         * @return The entry's offset in {@code table}, or -1 if it is not there
+         */
+        int find(ByteBuffer table, long key, int hash) {
+            for (int entry = hash & mask, probes = 0; probes <= mask; probes++, entry = (entry + 1) & mask) {
+                long found = table.getLong(entry * ENTRY_BYTES + KEY);
+                if (found == key) {
+                    return entry * ENTRY_BYTES;
+                }
+                if (found == EMPTY) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private void rotate(boolean aged, long now) {
+            // Anything still in the previous generation is at least a ttl old unless the stripe filled up early
+            (aged ? expired : evicted).add(previousSize - previousJoined);
+            ByteBuffer cleared = previous;
+            previous = current;
+            previousSize = currentSize;
+            previousJoined = currentJoined;
+            for (int entry = 0; entry <= mask; entry++) {
+                cleared.putLong(entry * ENTRY_BYTES + KEY, EMPTY);
+            }
+            current = cleared;
+            currentSize = 0;
+            currentJoined = 0;
+            currentStartMillis = now;
+        }
+    }
+
+    /**
+     * One strategy's counters
+     */
+    public static final class Rates {
+        private final long bids;
+        private final long wins;
+        private final long overbids;
+        private final long overbidMicros;
+        private final long underbids;
+        private final long underbidMicros;
+
+        Rates(long bids, long wins, long overbids, long overbidMicros, long underbids, long underbidMicros) {
+            this.bids = bids;
+            this.wins = wins;
+            this.overbids = overbids;
+            this.overbidMicros = overbidMicros;
+            this.underbids = underbids;
+            this.underbidMicros = underbidMicros;
+        }
+
+        public long getBids() {
+            return bids;
+        }
+
+        public long getWins() {
+            return wins;
+        }
+
+        public long getOverbids() {
+            return overbids;
+        }
+
+        public long getOverbidMicros() {
+            return overbidMicros;
+        }
+
+        public long getUnderbids() {
+            return underbids;
+        }
+
+        public long getUnderbidMicros() {
+            return underbidMicros;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns from win notices how far each strategy's bids can be shaded, i.e. scaled down towards what they would have
+ * cleared at.
+ *
+ * For each win, the ratio of ClearPriceCpm to BidPriceCpm says how much of the bid was needed.  Each strategy keeps a
+ * streaming estimate of a quantile of that ratio (by stochastic gradient descent: the estimate moves up by
+ * {@code step * quantile} for a ratio above it and down by {@code step * (1 - quantile)} for one below, starting from
+ * the strategy's first ratio, so it settles where that fraction of ratios fall below it).  A strategy's bids are then
+ * multiplied by its estimate, clamped between min-factor and 1:
+ *
+ * <pre>{@code
+ * double cpm = rawCPM * shader.factor(strategyID);
+ * }</pre>
+ *
+ * A high quantile (e.g. 0.9) shades conservatively, as most wins needed no more than that fraction of the bid.  Until
+ * a strategy has min-wins wins its estimate is not used.  The estimate and win count of each strategy are two longs in
+ * a {@link LongKeyedCounters} table, updated only by the handler thread and read without locking by the bid path, so
+ * memory stays constant per strategy.
+ *
+ * The estimates can be saved to a file (see {@link BidShader#save(Path)}), periodically when configured to, and are
+ * restored from it when the shader is created, so a restarted endpoint does not have to learn them all over again.
+ */
+public final class BidShader implements WinNoticeHandler, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BidShader.class);
+    static final int MAGIC = 0x42565348;
+    static final int VERSION = 1;
+    private static final int ESTIMATE = 0;
+    private static final int WINS = 1;
+    // How long the save on close waits for a periodic save under way to finish
+    private static final long FINAL_SAVE_WAIT_SECONDS = 10;
+
+    private final LongKeyedCounters strategies;
+    private final double quantile;
+    private final double step;
+    private final long minWins;
+    private final double minFactor;
+    private ScheduledExecutorService saver;
+    private Path snapshotFile;
+
+    /**
+     * @param maxStrategies The most strategies learned
+     * @param quantile The quantile of the clear to bid price ratio to shade to, between 0 and 1
+     * @param step How far each win moves the estimate, between 0 and 1: larger adapts faster but is noisier
+     * @param minWins The wins a strategy needs before its bids are shaded
+     * @param minFactor The most a bid is shaded, e.g. 0.5 to never bid less than half the raw CPM
+     * @throws IllegalArgumentException if any setting is out of range
+     */
+    public BidShader(int maxStrategies, double quantile, double step, long minWins, double minFactor)
+            throws IllegalArgumentException {
+        if (!(quantile > 0 && quantile < 1) || !(step > 0 && step <= 1) || !(minFactor > 0 && minFactor <= 1)) {
+            throw new IllegalArgumentException("The shading quantile (" + quantile + ") and step (" + step
+                    + ") must be between 0 and 1, and the min factor (" + minFactor + ") must be in (0, 1]");
+        }
+        this.strategies = new LongKeyedCounters(maxStrategies, 2);
+        this.quantile = quantile;
+        this.step = step;
+        this.minWins = minWins;
+        this.minFactor = minFactor;
+    }
+
+    /**
+     * Creates a shader as configured in a bid-valuator.shading section, restoring its estimates from the snapshot file
+     * (if there is one yet), and saving them back to it periodically
+     * @param config The bid-valuator.shading section
+     * @return A new shader
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    public static BidShader fromConfig(Config config) throws IllegalArgumentException {
+        BidShader shader = new BidShader(config.getInt("max-strategies"), config.getDouble("quantile"),
+                config.getDouble("step"), config.getLong("min-wins"), config.getDouble("min-factor"));
+        String snapshotFile = config.getString("snapshot-file");
+        if (!snapshotFile.isEmpty()) {
+            Path file = Paths.get(snapshotFile);
+            try {
+                int restored = shader.restore(file);
+                logger.info("Restored the bid shading estimates of {} strategies from {}", restored, file);
+            } catch (NoSuchFileException e) {
+                logger.info("No bid shading snapshot at {} yet, starting afresh", file);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.error("Failed to restore bid shading estimates from {}, starting afresh", file, e);
+            }
+            shader.saveEvery(file, config.getDuration("snapshot-interval", TimeUnit.MILLISECONDS));
+        }
+        return shader;
+    }
+
+    @Override
+    public void onWinNotice(WinNotice notice, long sequence, boolean endOfBatch) {
+        double bid = notice.getBidPriceCpm();
+        double clear = notice.getClearPriceCpm();
+        if (!(bid > 0) || !(clear >= 0)) {
+            return;
+        }
+        int slot = strategies.slot(notice.getStrategyID());
+        if (slot < 0) {
+            return;
+        }
+        // A clear price above the bid is not something shading can learn from
+        double ratio = Math.min(clear / bid, 1);
+        long wins = strategies.get(slot, WINS);
+        // The first win seeds the estimate, so it starts near the quantile rather than crawling there from 0
+        double estimate = (wins == 0) ? ratio : Double.longBitsToDouble(strategies.get(slot, ESTIMATE));
+        if (ratio > estimate) {
+            estimate += step * quantile;
+        } else if (ratio < estimate) {
+            estimate -= step * (1 - quantile);
+        }
+        strategies.set(slot, ESTIMATE, Double.doubleToRawLongBits(Math.max(0, Math.min(estimate, 1))));
+        strategies.set(slot, WINS, wins + 1);
+    }
+
+    /**
+     * @param strategyID A StrategyID
+     * @return What to multiply the strategy's raw CPM by, 1 if it has too few wins to shade yet
+     */
+    public double factor(long strategyID) {
+        int slot = strategies.find(strategyID);
+        if (slot < 0 || strategies.get(slot, WINS) < minWins) {
+            return 1;
+        }
+        return Math.max(minFactor, Double.longBitsToDouble(strategies.get(slot, ESTIMATE)));
+    }
+
+    /**
+     * @param strategyID A StrategyID
+     * @return The strategy's current estimate of the quantile of its clear to bid price ratio, or NaN if it has no wins
+     */
+    public double estimate(long strategyID) {
+        int slot = strategies.find(strategyID);
+        return (slot < 0 || strategies.get(slot, WINS) == 0) ? Double.NaN : Double.longBitsToDouble(strategies.get(slot, ESTIMATE));
+    }
+
+    /**
+     * @return The number of strategies with an estimate
+     */
+    public int size() {
+        return strategies.size();
+    }
+
+    /**
+     * Writes every strategy's estimate and win count: the magic number 0x42565348 ("BVSH"), the format version (1) and
+     * the number of strategies, then the StrategyID, estimate and wins of each, big endian
+     * @param out The stream to write to
+     * @throws IOException if writing fails
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        int[] slots = new int[strategies.size()];
+        int[] count = {0};
+        strategies.forEachSlot(slot -> {
+            if (count[0] < slots.length) {
+                slots[count[0]++] = slot;
+            }
+        });
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(count[0]);
+        for (int i = 0; i < count[0]; i++) {
+            data.writeLong(strategies.key(slots[i]));
+            data.writeDouble(Double.longBitsToDouble(strategies.get(slots[i], ESTIMATE)));
+            data.writeLong(strategies.get(slots[i], WINS));
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads estimates written by {@link BidShader#write(OutputStream)}, replacing those of the same strategies
+     * @param in The stream to read
+     * @return The number of strategies read
+     * @throws IOException if the stream could not be read, or is truncated
+     * @throws IllegalArgumentException if the stream does not hold shading estimates
+     */
+    public int read(InputStream in) throws IOException, IllegalArgumentException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        int magic = data.readInt();
+        if (magic != MAGIC) {
+            throw new IllegalArgumentException("Not a bid shading snapshot, bad magic number 0x" + Integer.toHexString(magic));
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported bid shading snapshot version " + version);
+        }
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            long strategyID = data.readLong();
+            double estimate = data.readDouble();
+            long wins = data.readLong();
+            int slot = strategies.slot(strategyID);
+            if (slot >= 0 && estimate >= 0 && estimate <= 1 && wins >= 0) {
+                strategies.set(slot, ESTIMATE, Double.doubleToRawLongBits(estimate));
+                strategies.set(slot, WINS, wins);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Saves the estimates to a file, replacing it atomically so a crash midway leaves the previous snapshot in place
+     * @param file The snapshot file
+     * @throws IOException if the file could not be written
+     */
+    public void save(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            write(out);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the estimates saved to a file
+     * @param file The snapshot file
+     * @return The number of strategies restored
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if the file does not hold shading estimates
+     */
+    public int restore(Path file) throws IOException, IllegalArgumentException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Saves the estimates to a file periodically, on a background thread, and once more when the shader is closed
+     * @param file The snapshot file
+     * @param intervalMillis How often to save
+     * @throws IllegalStateException if the estimates are already being saved
+     */
+    public synchronized void saveEvery(Path file, long intervalMillis) {
+        if (saver != null) {
+            throw new IllegalStateException("Already saving bid shading estimates");
+        }
+        saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bid-shading-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(() -> saveQuietly(file), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        snapshotFile = file;
+    }
+
+    private void saveQuietly(Path file) {
+        try {
+            save(file);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to save bid shading estimates to {}", file, e);
+        }
+    }
+
+    /**
+     * Stops saving the estimates periodically, and saves them one last time.  Whoever feeds the shader win notices
+     * should stop first (see {@link WinNoticeRing#close()}), so the last save has all of them.
+     */
+    @Override
+    public synchronized void close() {
+        if (saver == null) {
+            return;
+        }
+        // Lets a periodic save under way finish first, as both write the same temporary file
+        ScheduledExecutorService periodic = saver;
+        saver = null;
+        periodic.shutdown();
+        try {
+            if (!periodic.awaitTermination(FINAL_SAVE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Periodic save of bid shading estimates still running, not saving them to {}", snapshotFile);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        saveQuietly(snapshotFile);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * A fixed number of long counters for each of up to a fixed number of long keys (e.g. strategy ids), which any number
+ * of threads can add to and read without locking.
+ *
+ * Keys live in an open addressing hash table (linear probing over a power of two sized array, at most half full), and
+ * each key's counters sit next to each other in one flat array, so there are no per-key objects and nothing is
+ * allocated once the table has been created.  A key is added by CASing it into an empty slot, and is never removed;
+ * counters are added to atomically.  Looking up a key takes a probe or two:
+ *
+ * <pre>{@code
+ * LongKeyedCounters counters = new LongKeyedCounters(10000, 2);
+ * int slot = counters.slot(strategyID);
+ * if (slot >= 0) {
+ *     counters.add(slot, WINS, 1);
+ *     counters.add(slot, SPEND, spendMicros);
+ * }
+ * long wins = counters.get(strategyID, WINS);
+ * }</pre>
+ *
+ * Once the table holds its maximum number of keys, new keys are turned away (and counted, see
+ * {@link LongKeyedCounters#overflows()}) rather than the table grown.  0 is not a valid key.  Reading several counters
+ * of a key while it is being added to may see some additions and not others.
+ */
+public final class LongKeyedCounters {
+    private static final long EMPTY = 0;
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray counters;
+    private final int fields;
+    private final int mask;
+    private final int maxKeys;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder overflows = new LongAdder();
+
+    /**
+     * @param maxKeys The most keys the table holds
+     * @param fields The number of counters each key has
+     * @throws IllegalArgumentException if either is not positive, or the table would be too large
+     */
+    public LongKeyedCounters(int maxKeys, int fields) throws IllegalArgumentException {
+        if (maxKeys < 1 || maxKeys > (1 << 28) || fields < 1 || (long) maxKeys * 2 * fields > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can not hold " + fields + " counters for each of " + maxKeys + " keys");
+        }
+        // At most half full, so probe sequences stay short
+        int capacity = Integer.highestOneBit(maxKeys) << 1;
+        if (capacity < maxKeys * 2) {
+            capacity <<= 1;
+        }
+        keys = new AtomicLongArray(capacity);
+        counters = new AtomicLongArray(capacity * fields);
+        this.fields = fields;
+        this.mask = capacity - 1;
+        this.maxKeys = maxKeys;
+    }
+
+    private static int hash(long key) {
+        return (int) mix(key);
+    }
+
+    /**
+     * The murmur3 64 bit finalizer, which spreads keys that are often sequential (such as ids) over every bit
+     * @param key A key
+     * @return The key's bits, mixed
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Finds a key's slot, adding the key if it is not in the table yet
+     * @param key The key, not 0
+     * @return The key's slot, or -1 if the table is full (or the key is 0)
+     */
+    public int slot(long key) {
+        if (key == EMPTY) {
+            return -1;
+        }
+        for (int i = hash(key) & mask, probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+            long found = keys.get(i);
+            if (found == key) {
+                return i;
+            }
+            if (found == EMPTY) {
+                if (size.get() >= maxKeys) {
+                    overflows.increment();
+                    return -1;
+                }
+                if (keys.compareAndSet(i, EMPTY, key)) {
+                    size.incrementAndGet();
+                    return i;
+                }
+                // Another thread took the slot first, perhaps for this same key
+                if (keys.get(i) == key) {
+                    return i;
+                }
+            }
+        }
+        overflows.increment();
+        return -1;
+    }
+
+    /**
+     * Finds a key's slot, without adding it
+     * @param key The key
+     * @return The key's slot, or -1 if the key is not in the table
+     */
+    public int find(long key) {
+        if (key == EMPTY) {
+            return -1;
+        }
+        for (int i = hash(key) & mask, probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+            long found = keys.get(i);
+            if (found == key) {
+                return i;
+            }
+            if (found == EMPTY) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param slot A slot returned by {@link LongKeyedCounters#slot(long)}
+     * @param field The counter to add to
+     * @param delta The amount to add
+     */
+    public void add(int slot, int field, long delta) {
+        counters.getAndAdd(slot * fields + field, delta);
+    }
+
+    /**
+     * Overwrites a counter, e.g. with an estimate only one thread updates (such as the bits of a double)
+     * @param slot A slot returned by {@link LongKeyedCounters#slot(long)}
+     * @param field The counter to set
+     * @param value The new value
+     */
+    public void set(int slot, int field, long value) {
+        counters.set(slot * fields + field, value);
+    }
+
+    /**
+     * @param slot A slot returned by {@link LongKeyedCounters#slot(long)} or {@link LongKeyedCounters#find(long)}
+     * @param field The counter to read
+     * @return The counter's value
+     */
+    public long get(int slot, int field) {
+        return counters.get(slot * fields + field);
+    }
+
+    /**
+     * @param key The key
+     * @param field The counter to read
+     * @return The key's counter, or 0 if the key is not in the table
+     */
+    public long get(long key, int field) {
+        int slot = find(key);
+        return (slot < 0) ? 0 : get(slot, field);
+    }
+
+    /**
+     * @param slot A slot
+     * @return The key in the slot, or 0 if it is empty
+     */
+    public long key(int slot) {
+        return keys.get(slot);
+    }
+
+    /**
+     * Calls back with each slot holding a key, e.g. to take a snapshot
+     * @param action Receives each occupied slot
+     */
+    public void forEachSlot(IntConsumer action) {
+        for (int i = 0; i <= mask; i++) {
+            if (keys.get(i) != EMPTY) {
+                action.accept(i);
+            }
+        }
+    }
+
+    /**
+     * @return The number of keys in the table
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return The number of times a new key was turned away because the table was full
+     */
+    public long overflows() {
+        return overflows.sum();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.typesafe.config.Config;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the wins, spend and prices of each strategy and each campaign, from the StrategyID and CampaignID of the
+ * win notices.  Spend and prices are kept in micros.
+ *
+ * The counters are {@link LongKeyedCounters}, so the endpoint can read a strategy's counters on the bid path in a
+ * probe or two, without locking or allocating, e.g. to stop bidding for a strategy that has spent its budget:
+ *
+ * <pre>{@code
+ * long spent = counters.strategies().get(strategyID, WinCounters.SPEND_MICROS);
+ * }</pre>
+ *
+ * {@link WinCounters#snapshot()} copies every counter, e.g. to export them.  Notices without a StrategyID (or
+ * CampaignID) are not counted for one.
+ */
+public final class WinCounters implements WinNoticeHandler {
+    /**
+     * The number of wins
+     */
+    public static final int WINS = 0;
+    /**
+     * The sum of the TotalSpend of the wins, in micros
+     */
+    public static final int SPEND_MICROS = 1;
+    /**
+     * The sum of the ClearPriceCpm of the wins, in micros
+     */
+    public static final int CLEAR_PRICE_MICROS = 2;
+    /**
+     * The sum of the BidPriceCpm of the wins, in micros
+     */
+    public static final int BID_PRICE_MICROS = 3;
+    private static final int FIELDS = 4;
+
+    private final LongKeyedCounters strategies;
+    private final LongKeyedCounters campaigns;
+
+    /**
+     * @param maxStrategies The most strategies counted
+     * @param maxCampaigns The most campaigns counted
+     * @throws IllegalArgumentException if either is not positive, or too large
+     */
+    public WinCounters(int maxStrategies, int maxCampaigns) throws IllegalArgumentException {
+        strategies = new LongKeyedCounters(maxStrategies, FIELDS);
+        campaigns = new LongKeyedCounters(maxCampaigns, FIELDS);
+    }
+
+    /**
+     * @param config The bid-valuator.winnotice.counters section
+     * @return New counters, as configured
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    public static WinCounters fromConfig(Config config) throws IllegalArgumentException {
+        return new WinCounters(config.getInt("max-strategies"), config.getInt("max-campaigns"));
+    }
+
+    @Override
+    public void onWinNotice(WinNotice notice, long sequence, boolean endOfBatch) {
+        count(strategies, notice.getStrategyID(), notice);
+        count(campaigns, notice.getCampaignID(), notice);
+    }
+
+    private static void count(LongKeyedCounters counters, long id, WinNotice notice) {
+        int slot = counters.slot(id);
+        if (slot >= 0) {
+            counters.add(slot, WINS, 1);
+            counters.add(slot, SPEND_MICROS, WinTotals.micros(notice.getTotalSpend()));
+            counters.add(slot, CLEAR_PRICE_MICROS, WinTotals.micros(notice.getClearPriceCpm()));
+            counters.add(slot, BID_PRICE_MICROS, WinTotals.micros(notice.getBidPriceCpm()));
+        }
+    }
+
+    /**
+     * @return The counters of each strategy, by StrategyID
+     */
+    public LongKeyedCounters strategies() {
+        return strategies;
+    }
+
+    /**
+     * @return The counters of each campaign, by CampaignID
+     */
+    public LongKeyedCounters campaigns() {
+        return campaigns;
+    }
+
+    /**
+     * Parses an id, e.g. the StrategyID of a {@link com.mediamath.bid_valuator.Response}, without allocating
+     * @param id A decimal id
+     * @return The id, or 0 if it is not a positive decimal number that fits in a long
+     */
+    public static long parseID(CharSequence id) {
+        if (id == null || id.length() == 0 || id.length() > 19) {
+            return 0;
+        }
+        long value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            int digit = c - '0';
+            // Only a nineteenth digit can overflow
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return 0;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return A copy of every strategy's and campaign's counters
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(copy(strategies), copy(campaigns));
+    }
+
+    private static Map<Long, Counts> copy(LongKeyedCounters counters) {
+        Map<Long, Counts> copy = new TreeMap<>();
+        counters.forEachSlot(slot -> copy.put(counters.key(slot), new Counts(counters.get(slot, WINS),
+                counters.get(slot, SPEND_MICROS), counters.get(slot, CLEAR_PRICE_MICROS), counters.get(slot, BID_PRICE_MICROS))));
+        return copy;
+    }
+
+    /**
+     * The counters of every strategy and campaign at one point in time
+     */
+    public static final class Snapshot {
+        private final Map<Long, Counts> strategies;
+        private final Map<Long, Counts> campaigns;
+
+        Snapshot(Map<Long, Counts> strategies, Map<Long, Counts> campaigns) {
+            this.strategies = strategies;
+            this.campaigns = campaigns;
+        }
+
+        /**
+         * @return Each strategy's counters, by StrategyID
+         */
+        public Map<Long, Counts> getStrategies() {
+            return strategies;
+        }
+
+        /**
+         * @return Each campaign's counters, by CampaignID
+         */
+        public Map<Long, Counts> getCampaigns() {
+            return campaigns;
+        }
+    }
+
+    /**
+     * One strategy's or campaign's counters
+     */
+    public static final class Counts {
+        private final long wins;
+        private final long spendMicros;
+        private final long clearPriceMicros;
+        private final long bidPriceMicros;
+
+        Counts(long wins, long spendMicros, long clearPriceMicros, long bidPriceMicros) {
+            this.wins = wins;
+            this.spendMicros = spendMicros;
+            this.clearPriceMicros = clearPriceMicros;
+            this.bidPriceMicros = bidPriceMicros;
+        }
+
+        public long getWins() {
+            return wins;
+        }
+
+        public long getSpendMicros() {
+            return spendMicros;
+        }
+
+        public long getClearPriceMicros() {
+            return clearPriceMicros;
+        }
+
+        public long getBidPriceMicros() {
+            return bidPriceMicros;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.winnotice.Winnotice.WinNotification;
+
+/**
+ * One slot of a {@link WinNoticeRing}, holding a copy of a {@link WinNotification}'s fields.
+ *
+ * Slots are allocated once, with the ring, and reused each time the ring wraps around, so publishing a notice
+ * allocates nothing and the parsed WinNotification can be collected straight away rather than live on in the ring.
+ * Unset fields read as their protobuf defaults, see {@link WinNotice#has(int)}.
+ *
+ * A slot is only valid while a {@link WinNoticeHandler} is being handed it: once the handler returns, the slot may be
+ * overwritten with a later notice, so handlers must copy anything they keep.
+ */
+public final class WinNotice {
+    private long receivedMillis;
+    // A bit for each field set, by field number
+    private int present;
+    private String exchangeAuctionID;
+    private long auctionID;
+    private double bidPriceCpm;
+    private double clearPriceCpm;
+    private double totalSpend;
+    private String mmUuid;
+    private long advertiserID;
+    private long campaignID;
+    private long strategyID;
+    private long creativeID;
+    private String bidTimestamp;
+
+    WinNotice() {}
+
+    void copyFrom(WinNotification notification, long receivedMillis) {
+        this.receivedMillis = receivedMillis;
+        present = 0;
+        present |= notification.hasExchangeAuctionID() ? 1 << WinNotification.EXCHANGEAUCTIONID_FIELD_NUMBER : 0;
+        present |= notification.hasAuctionID() ? 1 << WinNotification.AUCTIONID_FIELD_NUMBER : 0;
+        present |= notification.hasBidPriceCpm() ? 1 << WinNotification.BIDPRICECPM_FIELD_NUMBER : 0;
+        present |= notification.hasClearPriceCpm() ? 1 << WinNotification.CLEARPRICECPM_FIELD_NUMBER : 0;
+        present |= notification.hasTotalSpend() ? 1 << WinNotification.TOTALSPEND_FIELD_NUMBER : 0;
+        present |= notification.hasMmUuid() ? 1 << WinNotification.MMUUID_FIELD_NUMBER : 0;
+        present |= notification.hasAdvertiserID() ? 1 << WinNotification.ADVERTISERID_FIELD_NUMBER : 0;
+        present |= notification.hasCampaignID() ? 1 << WinNotification.CAMPAIGNID_FIELD_NUMBER : 0;
+        present |= notification.hasStrategyID() ? 1 << WinNotification.STRATEGYID_FIELD_NUMBER : 0;
+        present |= notification.hasCreativeID() ? 1 << WinNotification.CREATIVEID_FIELD_NUMBER : 0;
+        present |= notification.hasBidTimestamp() ? 1 << WinNotification.BIDTIMESTAMP_FIELD_NUMBER : 0;
+        exchangeAuctionID = notification.getExchangeAuctionID();
+        auctionID = notification.getAuctionID();
+        bidPriceCpm = notification.getBidPriceCpm();
+        clearPriceCpm = notification.getClearPriceCpm();
+        totalSpend = notification.getTotalSpend();
+        mmUuid = notification.getMmUuid();
+        advertiserID = notification.getAdvertiserID();
+        campaignID = notification.getCampaignID();
+        strategyID = notification.getStrategyID();
+        creativeID = notification.getCreativeID();
+        bidTimestamp = notification.getBidTimestamp();
+    }
+
+    /**
+     * @param fieldNumber A WinNotification field number, e.g. {@link WinNotification#CLEARPRICECPM_FIELD_NUMBER}
+     * @return Whether or not the notice had that field set
+     */
+    public boolean has(int fieldNumber) {
+        return (present & (1 << fieldNumber)) != 0;
+    }
+
+    /**
+     * @return When the endpoint received the notice, in milliseconds since the epoch
+     */
+    public long getReceivedMillis() {
+        return receivedMillis;
+    }
+
+    public String getExchangeAuctionID() {
+        return exchangeAuctionID;
+    }
+
+    public long getAuctionID() {
+        return auctionID;
+    }
+
+    public double getBidPriceCpm() {
+        return bidPriceCpm;
+    }
+
+    public double getClearPriceCpm() {
+        return clearPriceCpm;
+    }
+
+    public double getTotalSpend() {
+        return totalSpend;
+    }
+
+    public String getMmUuid() {
+        return mmUuid;
+    }
+
+    public long getAdvertiserID() {
+        return advertiserID;
+    }
+
+    public long getCampaignID() {
+        return campaignID;
+    }
+
+    public long getStrategyID() {
+        return strategyID;
+    }
+
+    public long getCreativeID() {
+        return creativeID;
+    }
+
+    public String getBidTimestamp() {
+        return bidTimestamp;
+    }
+
+    /**
+     * @return The notice as a WinNotification again, e.g. for logging
+     */
+    public WinNotification toWinNotification() {
+        WinNotification.Builder builder = WinNotification.newBuilder();
+        if (has(WinNotification.EXCHANGEAUCTIONID_FIELD_NUMBER)) {
+            builder.setExchangeAuctionID(exchangeAuctionID);
+        }
+        if (has(WinNotification.AUCTIONID_FIELD_NUMBER)) {
+            builder.setAuctionID(auctionID);
+        }
+        if (has(WinNotification.BIDPRICECPM_FIELD_NUMBER)) {
+            builder.setBidPriceCpm(bidPriceCpm);
+        }
+        if (has(WinNotification.CLEARPRICECPM_FIELD_NUMBER)) {
+            builder.setClearPriceCpm(clearPriceCpm);
+        }
+        if (has(WinNotification.TOTALSPEND_FIELD_NUMBER)) {
+            builder.setTotalSpend(totalSpend);
+        }
+        if (has(WinNotification.MMUUID_FIELD_NUMBER)) {
+            builder.setMmUuid(mmUuid);
+        }
+        if (has(WinNotification.ADVERTISERID_FIELD_NUMBER)) {
+            builder.setAdvertiserID(advertiserID);
+        }
+        if (has(WinNotification.CAMPAIGNID_FIELD_NUMBER)) {
+            builder.setCampaignID(campaignID);
+        }
+        if (has(WinNotification.STRATEGYID_FIELD_NUMBER)) {
+            builder.setStrategyID(strategyID);
+        }
+        if (has(WinNotification.CREATIVEID_FIELD_NUMBER)) {
+            builder.setCreativeID(creativeID);
+        }
+        if (has(WinNotification.BIDTIMESTAMP_FIELD_NUMBER)) {
+            builder.setBidTimestamp(bidTimestamp);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return toWinNotification().toString();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+/**
+ * Processes the win notices published to a {@link WinNoticeRing}, e.g. to aggregate, persist or learn from them.
+ *
+ * Each handler runs on its own thread, and is handed every notice in the order they were published, in batches of
+ * whatever has been published since it last caught up.  Work that is cheaper done once per batch (flushing a file,
+ * publishing aggregates) can be done when {@code endOfBatch} is true.  A handler that falls behind holds up the ring
+ * for everyone, so once the ring is full new notices are dropped rather than wait on it.
+ */
+public interface WinNoticeHandler {
+    /**
+     * Processes one notice
+     * @param notice The notice, which is only valid until this returns (see {@link WinNotice})
+     * @param sequence The notice's position in the ring, counting from 0
+     * @param endOfBatch Whether or not this is the last notice published so far
+     * @throws Exception if the notice could not be processed, which is logged and counted before moving on to the next
+     */
+    void onWinNotice(WinNotice notice, long sequence, boolean endOfBatch) throws Exception;
+
+    /**
+     * Called on the handler's thread each time it has caught up and is about to wait for more notices (roughly every
+     * millisecond while the ring is quiet), e.g. to finish work held back for a batch that never came.  Does nothing
+     * by default.
+     * @throws Exception if the work failed, which is logged and counted like a notice that failed
+     */
+    default void onIdle() throws Exception {
+    }
+}
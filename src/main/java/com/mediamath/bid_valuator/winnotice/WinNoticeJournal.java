@@ -0,0 +1,446 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mediamath.bid_valuator.MappedFiles;
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Appends every win notice to memory mapped segment files in a directory, so win data survives the endpoint.
+ *
+ * Each record is the record's length (an int, not counting the eight byte header), the CRC32 of what follows it, the
+ * time the notice was received (a long, in milliseconds since the epoch), and then the notice encoded as a
+ * {@link WinNotification} in binary protobuf, all big endian.  The fields are encoded straight from the
+ * {@link WinNotice} into the mapped file.  A segment is a fixed size file, named after its number (e.g.
+ * {@code winnotices-0000000000000001.journal}), that reads as zeros after its last record: when the next record does
+ * not fit, a new segment is started and the full one is truncated to the records it holds.  A new journal always
+ * starts a new segment after the last one already in the directory.
+ *
+ * Writes to a mapped file are in the OS page cache as soon as they are made, so they outlive the endpoint's process,
+ * but only survive the OS crashing once forced to disk.  Rather than sync each record, the journal syncs in groups:
+ * once sync-bytes have been written since the last sync, or at the end of a batch of notices once sync-interval has
+ * passed.  A journal that falls idle has its last few records synced by its own thread once sync-interval has passed
+ * (see {@link WinNoticeHandler#onIdle()}), so sync-interval bounds how long any record goes unsynced.
+ *
+ * As a {@link WinNoticeHandler} the journal runs on its own {@link WinNoticeRing} thread, so neither the HTTP threads nor
+ * the other handlers ever wait on the disk.  The records are read back in order with a {@link Reader}:
+ *
+ * <pre>{@code
+ * try (WinNoticeJournal.Reader reader = WinNoticeJournal.read(directory)) {
+ *     while (reader.hasNext()) {
+ *         WinNotice notice = reader.next();
+ *     }
+ * }
+ * }</pre>
+ */
+public final class WinNoticeJournal implements WinNoticeHandler, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WinNoticeJournal.class);
+    static final String PREFIX = "winnotices-";
+    static final String SUFFIX = ".journal";
+    // The length and CRC32 before each record
+    static final int HEADER_BYTES = 8;
+    // The received time before each notice
+    private static final int RECEIVED_BYTES = 8;
+    // Each int64 field encodes to at most a one byte tag and a ten byte varint, each double to a tag and eight bytes
+    private static final int MAX_FIXED_BYTES = 5 * 11 + 3 * 9;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncBytes;
+    private final long syncIntervalNanos;
+    private final CRC32 crc = new CRC32();
+    private long segmentNumber;
+    private Path segmentFile;
+    private MappedByteBuffer segment;
+    private long unsyncedBytes = 0;
+    private long lastSyncNanos = System.nanoTime();
+    private volatile long records = 0;
+    private volatile long syncs = 0;
+    private volatile long segments = 0;
+
+    /**
+     * Opens a journal, creating its directory if need be
+     * @param directory Where the segment files are written
+     * @param segmentSize The size of each segment file, in bytes
+     * @param syncBytes How many bytes are written before they are synced to disk
+     * @param syncIntervalMillis How long records are written before they are synced to disk
+     * @throws IOException if the directory could not be created or listed
+     * @throws IllegalArgumentException if the segment size is too small to hold a record
+     */
+    public WinNoticeJournal(Path directory, int segmentSize, long syncBytes, long syncIntervalMillis)
+            throws IOException, IllegalArgumentException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("A win notice journal's segments must be at least 1KB, not " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncBytes = syncBytes;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        Files.createDirectories(directory);
+        List<Path> existing = segments(directory);
+        segmentNumber = existing.isEmpty() ? 0 : number(existing.get(existing.size() - 1));
+    }
+
+    /**
+     * Opens a journal as configured in a bid-valuator.winnotice.journal section
+     * @param config The bid-valuator.winnotice.journal section
+     * @return A new journal, or null if no directory is configured
+     * @throws IllegalArgumentException if the configuration is not valid, or the directory could not be opened
+     */
+    public static WinNoticeJournal fromConfig(Config config) throws IllegalArgumentException {
+        String directory = config.getString("directory");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        long segmentSize = config.getBytes("segment-size");
+        if (segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A win notice journal's segments must be smaller than 2GB, not " + segmentSize);
+        }
+        try {
+            return new WinNoticeJournal(Paths.get(directory), (int) segmentSize, config.getBytes("sync-bytes"),
+                    config.getDuration("sync-interval", TimeUnit.MILLISECONDS));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to open the win notice journal in " + directory, e);
+        }
+    }
+
+    /**
+     * @param directory A journal's directory
+     * @return Its segment files, oldest first
+     * @throws IOException if the directory could not be listed
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // The numbers are zero padded, so sort by name
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long number(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    @Override
+    public void onWinNotice(WinNotice notice, long sequence, boolean endOfBatch) throws IOException {
+        int maxLength = HEADER_BYTES + RECEIVED_BYTES + MAX_FIXED_BYTES + maxStringSize(notice.getExchangeAuctionID())
+                + maxStringSize(notice.getMmUuid()) + maxStringSize(notice.getBidTimestamp());
+        if (maxLength > segmentSize) {
+            throw new IllegalArgumentException("A " + maxLength + " byte win notice does not fit in a journal segment");
+        }
+        if (segment == null || segment.remaining() < maxLength) {
+            roll();
+        }
+        int start = segment.position();
+        segment.position(start + HEADER_BYTES);
+        segment.putLong(notice.getReceivedMillis());
+        CodedOutputStream out = CodedOutputStream.newInstance(segment);
+        write(out, notice);
+        out.flush();
+        int length = segment.position() - start - HEADER_BYTES;
+        ByteBuffer body = segment.duplicate();
+        body.limit(segment.position());
+        body.position(start + HEADER_BYTES);
+        crc.reset();
+        crc.update(body);
+        segment.putInt(start + 4, (int) crc.getValue());
+        // The length goes in last, as until it does the record reads as the end of the segment
+        segment.putInt(start, length);
+        records++;
+        unsyncedBytes += HEADER_BYTES + length;
+        if (unsyncedBytes >= syncBytes || (endOfBatch && System.nanoTime() - lastSyncNanos >= syncIntervalNanos)) {
+            sync();
+        }
+    }
+
+    @Override
+    public void onIdle() {
+        if (unsyncedBytes > 0 && System.nanoTime() - lastSyncNanos >= syncIntervalNanos) {
+            sync();
+        }
+    }
+
+    private static int maxStringSize(String value) {
+        // A one byte tag, a length of up to five bytes, and up to three bytes per char
+        return 6 + value.length() * 3;
+    }
+
+    private static void write(CodedOutputStream out, WinNotice notice) throws IOException {
+        if (notice.has(WinNotification.EXCHANGEAUCTIONID_FIELD_NUMBER)) {
+            out.writeString(WinNotification.EXCHANGEAUCTIONID_FIELD_NUMBER, notice.getExchangeAuctionID());
+        }
+        if (notice.has(WinNotification.AUCTIONID_FIELD_NUMBER)) {
+            out.writeInt64(WinNotification.AUCTIONID_FIELD_NUMBER, notice.getAuctionID());
+        }
+        if (notice.has(WinNotification.BIDPRICECPM_FIELD_NUMBER)) {
+            out.writeDouble(WinNotification.BIDPRICECPM_FIELD_NUMBER, notice.getBidPriceCpm());
+        }
+        if (notice.has(WinNotification.CLEARPRICECPM_FIELD_NUMBER)) {
+            out.writeDouble(WinNotification.CLEARPRICECPM_FIELD_NUMBER, notice.getClearPriceCpm());
+        }
+        if (notice.has(WinNotification.TOTALSPEND_FIELD_NUMBER)) {
+            out.writeDouble(WinNotification.TOTALSPEND_FIELD_NUMBER, notice.getTotalSpend());
+        }
+        if (notice.has(WinNotification.MMUUID_FIELD_NUMBER)) {
+            out.writeString(WinNotification.MMUUID_FIELD_NUMBER, notice.getMmUuid());
+        }
+        if (notice.has(WinNotification.ADVERTISERID_FIELD_NUMBER)) {
+            out.writeInt64(WinNotification.ADVERTISERID_FIELD_NUMBER, notice.getAdvertiserID());
+        }
+        if (notice.has(WinNotification.CAMPAIGNID_FIELD_NUMBER)) {
+            out.writeInt64(WinNotification.CAMPAIGNID_FIELD_NUMBER, notice.getCampaignID());
+        }
+        if (notice.has(WinNotification.STRATEGYID_FIELD_NUMBER)) {
+            out.writeInt64(WinNotification.STRATEGYID_FIELD_NUMBER, notice.getStrategyID());
+        }
+        if (notice.has(WinNotification.CREATIVEID_FIELD_NUMBER)) {
+            out.writeInt64(WinNotification.CREATIVEID_FIELD_NUMBER, notice.getCreativeID());
+        }
+        if (notice.has(WinNotification.BIDTIMESTAMP_FIELD_NUMBER)) {
+            out.writeString(WinNotification.BIDTIMESTAMP_FIELD_NUMBER, notice.getBidTimestamp());
+        }
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        segmentNumber++;
+        segmentFile = directory.resolve(String.format("%s%016d%s", PREFIX, segmentNumber, SUFFIX));
+        segment = MappedFiles.create(segmentFile, segmentSize);
+        segments++;
+        logger.info("Journaling win notices to {}", segmentFile);
+    }
+
+    /**
+     * Forces the records written since the last sync to disk
+     */
+    private void sync() {
+        if (segment != null && unsyncedBytes > 0) {
+            segment.force();
+            syncs++;
+        }
+        unsyncedBytes = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        sync();
+        int written = segment.position();
+        MappedByteBuffer full = segment;
+        segment = null;
+        // A file can only be truncated once it is unmapped, otherwise the reader stops at the zeros anyway
+        if (MappedFiles.unmap(full)) {
+            try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+                channel.truncate(written);
+            }
+        }
+    }
+
+    /**
+     * @return The number of records written
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * @return The number of times records have been synced to disk
+     */
+    public long syncs() {
+        return syncs;
+    }
+
+    /**
+     * @return The number of segments written to
+     */
+    public long segments() {
+        return segments;
+    }
+
+    /**
+     * Syncs and truncates the current segment.  The journal must no longer be handed notices, i.e. its
+     * {@link WinNoticeRing} must be closed first.
+     * @throws IOException if the segment could not be truncated
+     */
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    /**
+     * Reads a journal's records, oldest first
+     * @param directory The journal's directory
+     * @return A reader of every record in the directory's segments
+     * @throws IOException if the directory could not be listed
+     */
+    public static Reader read(Path directory) throws IOException {
+        return new Reader(segments(directory));
+    }
+
+    /**
+     * Reads the records of a journal's segments in order, for replay or offline analysis.  Segments should not be read
+     * while they are still being written to, as a record that is still being written reads as the end of its segment.
+     *
+     * A record that fails its CRC check (e.g. one that was only partly synced before the OS crashed) ends its segment:
+     * it is logged and counted (see {@link Reader#corrupt()}), and reading carries on with the next segment.
+     */
+    public static final class Reader implements Iterator<WinNotice>, AutoCloseable {
+        private final Iterator<Path> files;
+        private final CRC32 crc = new CRC32();
+        private Path file;
+        private MappedByteBuffer segment;
+        private WinNotice next;
+        private long corrupt = 0;
+
+        private Reader(List<Path> files) {
+            this.files = files.iterator();
+        }
+
+        /**
+         * @return Whether or not there is another record
+         * @throws IllegalArgumentException if a segment could not be read
+         */
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (segment == null || !readRecord()) {
+                    if (!nextSegment()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The next record, as a WinNotice of its own
+         * @throws NoSuchElementException if there are no more records
+         */
+        @Override
+        public WinNotice next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more win notices in the journal");
+            }
+            WinNotice notice = next;
+            next = null;
+            return notice;
+        }
+
+        private boolean nextSegment() {
+            unmap();
+            if (!files.hasNext()) {
+                return false;
+            }
+            file = files.next();
+            try {
+                segment = MappedFiles.map(file);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to read win notice journal segment " + file, e);
+            }
+            return true;
+        }
+
+        /**
+         * @return false at the end of the segment
+         */
+        private boolean readRecord() {
+            int start = segment.position();
+            if (segment.remaining() < HEADER_BYTES + RECEIVED_BYTES) {
+                return false;
+            }
+            int length = segment.getInt(start);
+            if (length == 0) {
+                return false;
+            }
+            ByteBuffer body = segment.duplicate();
+            if (length < RECEIVED_BYTES || length > segment.remaining() - HEADER_BYTES) {
+                return corrupt(start, "has a length of " + length);
+            }
+            body.position(start + HEADER_BYTES);
+            body.limit(start + HEADER_BYTES + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != segment.getInt(start + 4)) {
+                return corrupt(start, "fails its CRC check");
+            }
+            long receivedMillis = body.getLong();
+            WinNotice notice = new WinNotice();
+            try {
+                notice.copyFrom(WinNotification.parseFrom(body), receivedMillis);
+            } catch (InvalidProtocolBufferException e) {
+                return corrupt(start, "is not a WinNotification");
+            }
+            segment.position(start + HEADER_BYTES + length);
+            next = notice;
+            return true;
+        }
+
+        private boolean corrupt(int offset, String reason) {
+            logger.warn("The win notice journal record at {} in {} {}, skipping the rest of the segment", offset, file, reason);
+            corrupt++;
+            return false;
+        }
+
+        /**
+         * @return The number of corrupt records found so far
+         */
+        public long corrupt() {
+            return corrupt;
+        }
+
+        private void unmap() {
+            if (segment != null) {
+                MappedFiles.unmap(segment);
+                segment = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            unmap();
+        }
+    }
+}
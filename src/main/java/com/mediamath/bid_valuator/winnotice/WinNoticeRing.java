@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands win notices from request threads to {@link WinNoticeHandler}s running on background threads, through a ring
+ * of pre-allocated {@link WinNotice} slots (in the style of the LMAX Disruptor).
+ *
+ * Any number of request threads publish: each claims the next sequence with a CAS, copies its notice into that slot,
+ * and marks it published, then gets on with answering the request.  Every handler has its own thread, which follows
+ * the published sequences, processes everything published since it last caught up as one batch, and then records
+ * how far it got.  A slot is only reused once every handler is past it.  Publishing never waits: if the slowest
+ * handler is a whole ring behind, the notice is dropped and counted, and the caller decides what to tell the sender
+ * (see {@link WhenFull}).
+ *
+ * <pre>{@code
+ * WinNoticeRing ring = new WinNoticeRing(65536, 1024, new WinTotals());
+ * if (!ring.publish(notification)) {
+ *     // Dropped
+ * }
+ * }</pre>
+ *
+ * Idle handler threads park (for up to a millisecond at a time) rather than spin, so a quiet ring costs the cores
+ * /valuate runs on nothing.
+ */
+public final class WinNoticeRing implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WinNoticeRing.class);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * What the /winnotice handler does with a notice the ring is too full to take
+     */
+    public enum WhenFull {
+        /**
+         * Acknowledge the notice anyway, losing it (it is counted as dropped)
+         */
+        DROP,
+        /**
+         * Answer 503 Service Unavailable, so the sender can retry it later
+         */
+        REJECT
+    }
+
+    private final WinNotice[] slots;
+    private final int mask;
+    private final int shift;
+    // The lap each slot was last published on, so a consumer can tell a published slot from one still being filled
+    private final AtomicIntegerArray published;
+    // The next sequence to claim
+    private final AtomicLong claimed = new AtomicLong();
+    // The lowest sequence any processor has yet to process, as of when it was last looked up
+    private final AtomicLong gate = new AtomicLong();
+    private final Processor[] processors;
+    private final int batchSize;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a ring, and starts a thread for each handler
+     * @param capacity The number of slots, rounded up to a power of two
+     * @param batchSize The most notices a handler processes before recording how far it got (freeing their slots)
+     * @param handlers The handlers every notice is processed by
+     * @throws IllegalArgumentException if the capacity or batch size is not positive
+     */
+    public WinNoticeRing(int capacity, int batchSize, WinNoticeHandler... handlers) throws IllegalArgumentException {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException(capacity + " is not a valid ring capacity");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(batchSize + " is not a valid batch size");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new WinNotice[size];
+        published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new WinNotice();
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        shift = Integer.numberOfTrailingZeros(size);
+        this.batchSize = batchSize;
+        processors = new Processor[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            processors[i] = new Processor(handlers[i], i);
+        }
+        for (Processor processor : processors) {
+            processor.thread.start();
+        }
+    }
+
+    /**
+     * Creates a ring as configured in a bid-valuator.winnotice section
+     * @param config The bid-valuator.winnotice section
+     * @param handlers The handlers every notice is processed by
+     * @return A new ring, with its handlers running
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    public static WinNoticeRing fromConfig(Config config, WinNoticeHandler... handlers) throws IllegalArgumentException {
+        return new WinNoticeRing(config.getInt("ring-size"), config.getInt("batch-size"), handlers);
+    }
+
+    /**
+     * @param config The bid-valuator.winnotice section
+     * @return The configured policy for notices the ring is too full to take
+     * @throws IllegalArgumentException if the policy is not "drop" or "reject"
+     */
+    public static WhenFull whenFull(Config config) throws IllegalArgumentException {
+        String whenFull = config.getString("when-full");
+        switch (whenFull) {
+            case "drop":
+                return WhenFull.DROP;
+            case "reject":
+                return WhenFull.REJECT;
+            default:
+                throw new IllegalArgumentException("Unknown bid-valuator.winnotice.when-full " + whenFull + ", must be drop or reject");
+        }
+    }
+
+    /**
+     * Publishes a notice to the handlers, without waiting
+     * @param notification The notice
+     * @return Whether or not the notice was published, false if it was dropped because the ring is full (or closed)
+     */
+    public boolean publish(WinNotification notification) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (closed || (sequence - gate.get() > mask && sequence - updateGate() > mask)) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int index = (int) sequence & mask;
+        slots[index].copyFrom(notification, System.currentTimeMillis());
+        published.lazySet(index, (int) (sequence >>> shift));
+        return true;
+    }
+
+    // Looks up the slowest processor again, only once the cached gate suggests the ring is full
+    private long updateGate() {
+        long lowest = claimed.get();
+        for (Processor processor : processors) {
+            lowest = Math.min(lowest, processor.next.get());
+        }
+        gate.lazySet(lowest);
+        return lowest;
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    /**
+     * @return The number of notices published
+     */
+    public long published() {
+        return claimed.get();
+    }
+
+    /**
+     * @return The number of notices dropped because the ring was full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of notices a handler failed to process, plus the times one failed while idle
+     */
+    public long errors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return How many notices the slowest handler has yet to process
+     */
+    public long backlog() {
+        long claimed = this.claimed.get();
+        long backlog = 0;
+        for (Processor processor : processors) {
+            backlog = Math.max(backlog, claimed - processor.next.get());
+        }
+        return backlog;
+    }
+
+    /**
+     * @return The number of slots
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Stops taking notices, and waits for the handlers to process the ones already published.  If interrupted while
+     * waiting, this returns early with the thread's interrupt status set.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Processor processor : processors) {
+            LockSupport.unpark(processor.thread);
+        }
+        try {
+            for (Processor processor : processors) {
+                processor.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Processor {
+        private final WinNoticeHandler handler;
+        // The next sequence this processor will process, everything before it is done with
+        private final AtomicLong next = new AtomicLong();
+        private final Thread thread;
+
+        Processor(WinNoticeHandler handler, int number) {
+            this.handler = handler;
+            thread = new Thread(this::run, "winnotice-" + number + "-" + handler.getClass().getSimpleName());
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            long next = 0;
+            while (true) {
+                // Read before looking for notices, so nothing published before close is left behind
+                boolean closing = closed;
+                long last = next - 1;
+                long limit = Math.min(claimed.get(), next + batchSize);
+                while (last + 1 < limit && isPublished(last + 1)) {
+                    last++;
+                }
+                if (last >= next) {
+                    for (long sequence = next; sequence <= last; sequence++) {
+                        process(sequence, sequence == last);
+                    }
+                    next = last + 1;
+                    this.next.lazySet(next);
+                } else if (closing && next == claimed.get()) {
+                    return;
+                } else {
+                    idle();
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+        }
+
+        private void idle() {
+            try {
+                handler.onIdle();
+            } catch (Exception e) {
+                errors.increment();
+                logger.error("{} failed while idle", handler.getClass().getSimpleName(), e);
+            }
+        }
+
+        private void process(long sequence, boolean endOfBatch) {
+            try {
+                handler.onWinNotice(slots[(int) sequence & mask], sequence, endOfBatch);
+            } catch (Exception e) {
+                errors.increment();
+                logger.error("{} failed to process win notice {}", handler.getClass().getSimpleName(), sequence, e);
+            }
+        }
+    }
+}
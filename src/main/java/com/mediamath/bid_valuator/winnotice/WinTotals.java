@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+/**
+ * Totals the wins, spend and prices across every win notice.  Prices and spend are kept in micros, as longs.
+ *
+ * Only the handler thread updates the totals, so they are plain volatile fields rather than atomics; any thread may
+ * read them.
+ */
+public final class WinTotals implements WinNoticeHandler {
+    private volatile long wins = 0;
+    private volatile long spendMicros = 0;
+    private volatile long bidPriceMicros = 0;
+    private volatile long clearPriceMicros = 0;
+
+    static long micros(double value) {
+        return Math.round(value * 1_000_000);
+    }
+
+    @Override
+    public void onWinNotice(WinNotice notice, long sequence, boolean endOfBatch) {
+        // Single writer, so these read-modify-writes are not racing anyone
+        wins = wins + 1;
+        spendMicros = spendMicros + micros(notice.getTotalSpend());
+        bidPriceMicros = bidPriceMicros + micros(notice.getBidPriceCpm());
+        clearPriceMicros = clearPriceMicros + micros(notice.getClearPriceCpm());
+    }
+
+    /**
+     * @return The number of win notices processed
+     */
+    public long wins() {
+        return wins;
+    }
+
+    /**
+     * @return The sum of the TotalSpend of every win, in micros
+     */
+    public long spendMicros() {
+        return spendMicros;
+    }
+
+    /**
+     * @return The sum of the BidPriceCpm of every win, in micros
+     */
+    public long bidPriceMicros() {
+        return bidPriceMicros;
+    }
+
+    /**
+     * @return The sum of the ClearPriceCpm of every win, in micros
+     */
+    public long clearPriceMicros() {
+        return clearPriceMicros;
+    }
+}
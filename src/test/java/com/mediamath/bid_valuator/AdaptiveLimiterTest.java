@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class AdaptiveLimiterTest {
+    private static final long threshold = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static long millisAgo(long millis) {
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    void testShedsOverLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, threshold, 0.5);
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isFalse();
+        assertThat(limiter.getInflight()).isEqualTo(2);
+        assertThat(limiter.getShed()).isEqualTo(1);
+        limiter.release(System.nanoTime());
+        assertThat(limiter.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void testDecreasesOncePerRound() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(8, 1, 10, threshold, 0.5);
+        long arrival = millisAgo(20);
+        for(int i = 0; i < 4; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+        }
+        // All four were admitted before the first decrease, so only that one counts
+        for(int i = 0; i < 4; i++) {
+            limiter.release(arrival);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(4);
+        // A slow request admitted since then decreases it again
+        arrival = System.nanoTime();
+        assertThat(limiter.tryAcquire()).isTrue();
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(threshold) + 1);
+        limiter.release(arrival);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    void testDecreasesOncePerRoundConcurrently() throws InterruptedException {
+        int threads = 8;
+        // The race is narrow, so it gets many rounds to show up in
+        for(int round = 0; round < 200; round++) {
+            AdaptiveLimiter limiter = new AdaptiveLimiter(64, 1, 64, threshold, 0.5);
+            long arrival = millisAgo(20);
+            for(int i = 0; i < threads; i++) {
+                assertThat(limiter.tryAcquire()).isTrue();
+            }
+            // Every slow request of the round is released at the same moment, each on its own thread spinning until then
+            AtomicBoolean start = new AtomicBoolean();
+            CountDownLatch ready = new CountDownLatch(threads);
+            List<Thread> releasers = new ArrayList<>();
+            for(int t = 0; t < threads; t++) {
+                Thread thread = new Thread(() -> {
+                    ready.countDown();
+                    while(!start.get()) {
+                        Thread.yield();
+                    }
+                    limiter.release(arrival);
+                });
+                thread.start();
+                releasers.add(thread);
+            }
+            ready.await();
+            start.set(true);
+            for(Thread thread : releasers) {
+                thread.join();
+            }
+            assertThat(limiter.getInflight()).isEqualTo(0);
+            assertThat(limiter.getLimit()).isEqualTo(32);
+        }
+    }
+
+    @Test
+    void testIncreasesWhileUsed() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 3, threshold, 0.5);
+        // One in flight out of two is enough use to grow, by 1/limit each time
+        for(int i = 0; i < 4; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+            limiter.release(System.nanoTime());
+        }
+        assertThat(limiter.getLimit()).isEqualTo(3);
+        // ...but never past the maximum
+        for(int i = 0; i < 100; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+            assertThat(limiter.tryAcquire()).isTrue();
+            limiter.release(System.nanoTime());
+            limiter.release(System.nanoTime());
+        }
+        assertThat(limiter.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    void testIdleDoesNotIncrease() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 10, threshold, 0.5);
+        for(int i = 0; i < 100; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+            limiter.release(System.nanoTime());
+        }
+        assertThat(limiter.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    void testInvalidSettings() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new AdaptiveLimiter(0, 0, 10, threshold, 0.5));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new AdaptiveLimiter(20, 1, 10, threshold, 0.5));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new AdaptiveLimiter(5, 1, 10, threshold, 1.0));
+    }
+}
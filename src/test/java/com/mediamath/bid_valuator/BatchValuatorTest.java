@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import com.mediamath.valuation.ValuationResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class BatchValuatorTest {
+    private BatchValuator batchValuator;
+
+    static byte[] batch(int count) throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        JsonFormat.parser().merge(Helper.getJsonBidRequest(), builder);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            builder.setId(Integer.toString(i)).build().writeDelimitedTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    @BeforeEach
+    void setUp() {
+        batchValuator = new BatchValuator(4);
+        // Bids on odd request ids only, with the id as the ModelID
+        Endpoint.valuators.swap((request, deadline) -> (Integer.parseInt(request.getId()) % 2 == 0) ? null :
+                new Response("1", "2", Integer.parseInt(request.getId()), "3", null, request.getId()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        batchValuator.close();
+        Endpoint.valuators.swap(new SampleValuator());
+    }
+
+    @Test
+    void testResponsesInOrder() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(batchValuator.valuate(ByteBuffer.wrap(batch(1000)), out)).isEqualTo(1000);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (int i = 0; i < 1000; i++) {
+            ValuationResponse.Response response = ValuationResponse.Response.parseDelimitedFrom(in);
+            if (i % 2 == 0) {
+                assertThat(response).isEqualTo(ValuationResponse.Response.getDefaultInstance());
+            } else {
+                assertThat(response.getModelID()).isEqualTo(Integer.toString(i));
+                assertThat(response.getCPM()).isEqualTo(i);
+            }
+        }
+        assertThat(in.read()).isEqualTo(-1);
+    }
+
+    @Test
+    void testSmallAndEmptyBatches() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(batchValuator.valuate(ByteBuffer.wrap(batch(0)), out)).isEqualTo(0);
+        assertThat(out.size()).isEqualTo(0);
+        assertThat(batchValuator.valuate(ByteBuffer.wrap(batch(2)), out)).isEqualTo(2);
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertThat(ValuationResponse.Response.parseDelimitedFrom(in).hasCPM()).isFalse();
+        assertThat(ValuationResponse.Response.parseDelimitedFrom(in).getModelID()).isEqualTo("1");
+    }
+
+    @Test
+    void testFailedValuationIsNoBid() throws IOException {
+        Endpoint.valuators.swap((request, deadline) -> {
+            throw new IllegalArgumentException("Failed on purpose");
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(batchValuator.valuate(ByteBuffer.wrap(batch(20)), out)).isEqualTo(20);
+        assertThat(out.toByteArray()).containsOnly(0).hasSize(20);
+    }
+
+    @Test
+    void testAdmission() {
+        BatchValuator single = new BatchValuator(1, 1);
+        try {
+            assertThat(single.tryAcquire(null)).isTrue();
+            assertThat(single.tryAcquire(null)).isFalse();
+            single.release();
+            // Gives way while live traffic uses half its limit
+            AdaptiveLimiter live = new AdaptiveLimiter(2, 1, 2, TimeUnit.SECONDS.toNanos(1), 0.5);
+            assertThat(live.tryAcquire()).isTrue();
+            assertThat(single.tryAcquire(live)).isFalse();
+            live.release(System.nanoTime());
+            assertThat(single.tryAcquire(live)).isTrue();
+            single.release();
+            assertThat(single.shed()).isEqualTo(2);
+        } finally {
+            single.close();
+        }
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new BatchValuator(1, 0));
+    }
+
+    @Test
+    void testSplit() throws IOException {
+        byte[] batch = batch(3);
+        ByteBuffer buffer = ByteBuffer.allocate(batch.length + 2);
+        buffer.position(2);
+        buffer.put(batch);
+        buffer.position(2);
+        assertThat(BatchValuator.split(buffer)).hasSize(3);
+        assertThat(OpenRtb.BidRequest.parseFrom(BatchValuator.split(buffer).get(2)).getId()).isEqualTo("2");
+        assertThat(buffer.position()).isEqualTo(2);
+
+        // Truncated
+        assertThatExceptionOfType(InvalidProtocolBufferException.class)
+                .isThrownBy(() -> BatchValuator.split(ByteBuffer.wrap(batch, 0, batch.length - 1)));
+    }
+}
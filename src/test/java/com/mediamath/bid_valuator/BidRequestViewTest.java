@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class BidRequestViewTest {
+    private static OpenRtb.BidRequest jsonBidRequest() throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        JsonFormat.parser().merge(new StringReader(Helper.getJsonBidRequest()), builder);
+        return builder.build();
+    }
+
+    private static void assertSameAs(BidRequestView view, OpenRtb.BidRequest bidRequest) {
+        OpenRtb.MM_Ext mmExt = bidRequest.getExt().getMmExt();
+        assertThat(view.getId()).isEqualTo(bidRequest.getId());
+        assertThat(view.hasAllowedLatency()).isEqualTo(mmExt.hasAllowedLatency());
+        assertThat(view.getAllowedLatency()).isEqualTo(mmExt.getAllowedLatency());
+        assertThat(view.getSelectedEntitiesCount()).isEqualTo(mmExt.getSelectedEntitiesCount());
+        for (int i = 0; i < mmExt.getSelectedEntitiesCount(); i++) {
+            assertThat(view.getSelectedEntity(i)).isEqualTo(mmExt.getSelectedEntities(i));
+        }
+        assertThat(view.getBidFeature()).isEqualTo(mmExt.getBidFeature());
+        assertThat(view.getBidRequest()).isEqualTo(bidRequest);
+    }
+
+    @Test
+    void testSelectiveDecodingMatchesFullParse() throws IOException {
+        OpenRtb.BidRequest bidRequest = jsonBidRequest();
+        BidRequestView view = BidRequestView.parseFrom(bidRequest.toByteArray());
+        assertThat(view.isSelective()).isTrue();
+        assertSameAs(view, bidRequest);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {Helper.bidRequestProtoTextWithDeal, Helper.bidRequestProtoTextNoDeal, Helper.bidRequestProtoTextAllWURFL})
+    void testSelectiveDecodingOfSamples(String protobufText) throws IOException {
+        OpenRtb.BidRequest bidRequest = Helper.bidRequestBuilderFromText(protobufText).build();
+        assertSameAs(BidRequestView.parseFrom(bidRequest.toByteArray()), bidRequest);
+    }
+
+    @Test
+    void testRepeatedExtIsMerged() throws IOException {
+        // Concatenated messages are merged by protobuf, which the view should fall back to full parsing for
+        OpenRtb.BidRequest bidRequest = jsonBidRequest();
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        bidRequest.writeTo(concatenated);
+        bidRequest.writeTo(concatenated);
+        OpenRtb.BidRequest merged = OpenRtb.BidRequest.parseFrom(concatenated.toByteArray());
+        BidRequestView view = BidRequestView.parseFrom(concatenated.toByteArray());
+        assertThat(view.isSelective()).isFalse();
+        assertSameAs(view, merged);
+    }
+
+    @Test
+    void testMissingId() throws IOException {
+        byte[] noId = jsonBidRequest().toBuilder().clearId().buildPartial().toByteArray();
+        assertThatExceptionOfType(InvalidProtocolBufferException.class).isThrownBy(() -> BidRequestView.parseFrom(noId))
+                .withMessageContaining("id");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"This is not a real bid request", "Guess what? Also not valid!"})
+    void testInvalidBidRequest(String body) {
+        assertThatExceptionOfType(InvalidProtocolBufferException.class).isThrownBy(() -> BidRequestView.parseFrom(body.getBytes()));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeadlineTest {
+    private boolean enabled;
+
+    @BeforeEach
+    void enable() {
+        enabled = Deadline.enabled;
+        Deadline.enabled = true;
+    }
+
+    @AfterEach
+    void restore() {
+        Deadline.enabled = enabled;
+    }
+
+    private static long millisAgo(long millis) {
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    void testUnbounded() {
+        assertThat(Deadline.of(System.nanoTime(), 0)).isSameAs(Deadline.NONE);
+        Deadline.enabled = false;
+        assertThat(Deadline.of(millisAgo(1000), 20)).isSameAs(Deadline.NONE);
+        assertThat(Deadline.NONE.isRunningOut()).isFalse();
+        assertThat(Deadline.NONE.shouldFallBack(Deadline.Stage.PARSE)).isFalse();
+    }
+
+    @Test
+    void testRemaining() {
+        Deadline deadline = Deadline.of(millisAgo(5), 20);
+        assertThat(deadline.remainingNanos())
+                .isLessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(15))
+                .isGreaterThan(0);
+    }
+
+    @Test
+    void testPlentyOfTime() {
+        long fallbacks = Deadline.fallbacks(Deadline.Stage.VALUATE);
+        Deadline deadline = Deadline.of(System.nanoTime(), 60000);
+        assertThat(deadline.isRunningOut()).isFalse();
+        assertThat(deadline.shouldFallBack(Deadline.Stage.VALUATE)).isFalse();
+        assertThat(Deadline.fallbacks(Deadline.Stage.VALUATE)).isEqualTo(fallbacks);
+    }
+
+    @Test
+    void testWithinSafetyMargin() {
+        long misses = Deadline.misses(Deadline.Stage.VALUATE);
+        long fallbacks = Deadline.fallbacks(Deadline.Stage.VALUATE);
+        // Allowed a whole minute, but with an hour of safety margin
+        long safetyMarginNanos = Deadline.safetyMarginNanos;
+        try {
+            Deadline.safetyMarginNanos = TimeUnit.HOURS.toNanos(1);
+            Deadline deadline = Deadline.of(System.nanoTime(), 60000);
+            assertThat(deadline.isRunningOut()).isTrue();
+            assertThat(deadline.shouldFallBack(Deadline.Stage.VALUATE)).isTrue();
+        } finally {
+            Deadline.safetyMarginNanos = safetyMarginNanos;
+        }
+        // Not yet late, so only a fallback
+        assertThat(Deadline.fallbacks(Deadline.Stage.VALUATE)).isEqualTo(fallbacks + 1);
+        assertThat(Deadline.misses(Deadline.Stage.VALUATE)).isEqualTo(misses);
+    }
+
+    @Test
+    void testMissed() {
+        long misses = Deadline.misses(Deadline.Stage.RENDER);
+        long fallbacks = Deadline.fallbacks(Deadline.Stage.RENDER);
+        long respondMisses = Deadline.misses(Deadline.Stage.RESPOND);
+        Deadline deadline = Deadline.of(millisAgo(30), 20);
+        assertThat(deadline.remainingNanos()).isNegative();
+        assertThat(deadline.shouldFallBack(Deadline.Stage.RENDER)).isTrue();
+        deadline.checkResponded();
+        assertThat(Deadline.fallbacks(Deadline.Stage.RENDER)).isEqualTo(fallbacks + 1);
+        assertThat(Deadline.misses(Deadline.Stage.RENDER)).isEqualTo(misses + 1);
+        assertThat(Deadline.misses(Deadline.Stage.RESPOND)).isEqualTo(respondMisses + 1);
+    }
+}
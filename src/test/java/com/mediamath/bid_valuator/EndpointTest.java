@@ -17,12 +17,24 @@
 package com.mediamath.bid_valuator;
 
 import com.google.openrtb.OpenRtb;
+import com.mediamath.valuation.ValuationResponse;
+import com.mediamath.winnotice.Winnotice;
+import com.mediamath.bid_valuator.server.Transport;
+import com.mediamath.bid_valuator.winnotice.AuctionJoins;
+import com.mediamath.bid_valuator.winnotice.BidShader;
+import com.mediamath.bid_valuator.winnotice.WinCounters;
+import com.typesafe.config.ConfigFactory;
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -34,9 +46,15 @@ import org.junit.jupiter.params.provider.ArgumentsProvider;
 import org.junit.jupiter.params.provider.ArgumentsSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -47,13 +65,6 @@ import static org.junit.jupiter.params.provider.Arguments.arguments;
 public class EndpointTest {
     final String url = "http://localhost:4567";
 
-    static class ServerRunner implements Runnable {
-        @Override
-        public void run() {
-            Endpoint.main(new String[0]);
-        }
-    }
-
     static class ValidTestArgumentsProvider implements ArgumentsProvider {
         @Override
         public Stream<? extends Arguments> provideArguments(ExtensionContext context) throws IOException {
@@ -86,11 +97,11 @@ public class EndpointTest {
         }
     }
 
-    private static Thread serverThread = new Thread(new ServerRunner());
+    private static Transport transport;
 
     @BeforeAll
     static void startServer() {
-        serverThread.run();
+        transport = Endpoint.start(Transport.fromConfig(ConfigFactory.load()), 4567);
     }
 
     @BeforeEach
@@ -99,9 +110,13 @@ public class EndpointTest {
     @BeforeEach
     void setAlwaysLog() { Endpoint.setLogChance(100); }
 
+    // A cold server can take longer than the sample requests' AllowedLatency, the deadline tests turn them back on
+    @BeforeEach
+    void disableDeadlines() { Deadline.enabled = false; }
+
     @AfterAll
     static void stopServer() {
-        serverThread.stop();
+        transport.stop();
     }
 
 
@@ -122,12 +137,42 @@ public class EndpointTest {
                 .isNotEmpty();
     }
 
+    @ParameterizedTest
+    @ArgumentsSource(ValidTestArgumentsProvider.class)
+    void testProtobufResponse(byte[] request, String contentType) throws IOException {
+        HttpResponse response = Helper.sendPost("/valuate", request, contentType,
+                Collections.singletonMap("Accept", "application/protobuf"));
+        assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_OK);
+        assertThat(response.getEntity().getContentType().getElements())
+                .extracting(HeaderElement::getName)
+                .contains("application/protobuf");
+        Response decoded = Helper.getProtobufResponse(response);
+        assertThat(decoded.getCpm()).isBetween(Endpoint.minCPM, Endpoint.maxCPM * 1.05);
+        assertThat(decoded.getModelID()).isEqualTo(Endpoint.ModelID);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"application/protobuf", "application/json;q=0.5, application/protobuf;q=0.9", " Application/Protobuf "})
+    void testAcceptsProtobuf(String accept) {
+        assertThat(Endpoint.acceptsProtobuf(accept)).isTrue();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"application/json", "*/*", "application/protobuffer", ""})
+    void testDoesNotAcceptProtobuf(String accept) {
+        assertThat(Endpoint.acceptsProtobuf(accept)).isFalse();
+        assertThat(Endpoint.acceptsProtobuf(null)).isFalse();
+    }
+
     @ParameterizedTest
     @ArgumentsSource(ValidTestArgumentsProviderWinNotice.class)
     void testValidWinNoticeRequest(byte[] request, String contentType) throws IOException {
+        long published = Endpoint.winNotices.published();
         HttpResponse response = Helper.sendPost("/winnotice", request, contentType);
         assertThat(response.getStatusLine().getStatusCode())
                 .isEqualTo(HttpStatus.SC_OK);
+        assertThat(Endpoint.winNotices.published()).isGreaterThan(published);
     }
     
     @ParameterizedTest
@@ -138,6 +183,17 @@ public class EndpointTest {
                 .isEqualTo(HttpStatus.SC_INTERNAL_SERVER_ERROR);
     }
 
+    @Test
+    void testRejectsOversizedBody() throws IOException {
+        // Expect: 100-continue, so the server can refuse the body before it is sent
+        HttpPost request = new HttpPost(Helper.endpointURL + "/valuate");
+        request.setConfig(RequestConfig.custom().setExpectContinueEnabled(true).build());
+        request.setEntity(new ByteArrayEntity(new byte[2 * 1024 * 1024], ContentType.create("application/protobuf")));
+        HttpResponse response = HttpClientBuilder.create().build().execute(request);
+        assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_REQUEST_TOO_LONG);
+    }
+
     @Test
     void testHealthz() throws IOException {
         HttpGet request = new HttpGet(Helper.endpointURL + "/healthz");
@@ -147,6 +203,183 @@ public class EndpointTest {
 
     }
 
+    @Test
+    void testMetrics() throws IOException {
+        HttpGet request = new HttpGet(Helper.endpointURL + "/metrics");
+        HttpResponse response = HttpClientBuilder.create().build().execute(request);
+        assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_OK);
+        assertThat(EntityUtils.toString(response.getEntity()))
+                .contains("wurfl-cache.hits")
+                .contains("deadline.parse.fallbacks")
+                .contains("deadline.respond.misses")
+                .contains("limiter.shed")
+                .contains("valuator.swaps")
+                .contains("winnotice.dropped")
+                .contains("winnotice.backlog");
+    }
+
+    @Test
+    void testSwapValuator() throws IOException {
+        ValuatorRegistryTest.FixedValuator fixed = new ValuatorRegistryTest.FixedValuator(0.42);
+        Valuator previous = Endpoint.valuators.swap(fixed);
+        try {
+            HttpResponse response = Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "application/json");
+            assertThat(response.getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_OK);
+            assertThat(Helper.getResponse(response).getCpm()).isEqualTo(0.42);
+        } finally {
+            Endpoint.valuators.swap(new SampleValuator());
+        }
+        assertThat(fixed.closed).isTrue();
+        assertThat(previous).isInstanceOf(SampleValuator.class);
+    }
+
+    @Test
+    void testValuatorDeclinesToBid() throws IOException {
+        Endpoint.valuators.swap((request, deadline) -> null);
+        try {
+            HttpResponse response = Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "application/json");
+            assertThat(response.getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_NO_CONTENT);
+        } finally {
+            Endpoint.valuators.swap(new SampleValuator());
+        }
+    }
+
+    @Test
+    void testStopsBiddingForOverSpentStrategy() throws Exception {
+        byte[] winnotice = Winnotice.WinNotification.newBuilder()
+                .setStrategyID(424242)
+                .setCampaignID(4242)
+                .setClearPriceCpm(2)
+                .setTotalSpend(0.002)
+                .build().toByteArray();
+        // Other transports' runs of this test count against the same strategy
+        long wins = Endpoint.winCounters.strategies().get(424242L, WinCounters.WINS);
+        long spent = Endpoint.winCounters.strategies().get(424242L, WinCounters.SPEND_MICROS);
+        assertThat(Helper.sendPost("/winnotice", winnotice, "application/protobuf").getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_OK);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Endpoint.winCounters.strategies().get(424242L, WinCounters.WINS) == wins && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        spent += 2000;
+        assertThat(Endpoint.winCounters.strategies().get(424242L, WinCounters.SPEND_MICROS)).isEqualTo(spent);
+
+        HttpResponse stats = HttpClientBuilder.create().build().execute(new HttpGet(Helper.endpointURL + "/winstats"));
+        assertThat(stats.getStatusLine().getStatusCode()).isEqualTo(HttpStatus.SC_OK);
+        assertThat(EntityUtils.toString(stats.getEntity())).contains("\"424242\":{\"wins\":" + (wins + 1) + ",\"spendMicros\":" + spent);
+
+        Endpoint.valuators.swap((request, d) -> new Response("4242", "424242", 1.0, "creative", "", "fixed"));
+        long maxStrategySpendMicros = Endpoint.maxStrategySpendMicros;
+        try {
+            Endpoint.maxStrategySpendMicros = spent + 1;
+            assertThat(Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "application/json").getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_OK);
+            Endpoint.maxStrategySpendMicros = spent;
+            assertThat(Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "application/json").getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_NO_CONTENT);
+        } finally {
+            Endpoint.maxStrategySpendMicros = maxStrategySpendMicros;
+            Endpoint.valuators.swap(new SampleValuator());
+        }
+    }
+
+    @Test
+    void testShadesBids() throws Exception {
+        // A learned estimate of 0.75 for strategy 434343, in the snapshot format
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(snapshot);
+        data.writeInt(0x42565348);
+        data.writeInt(1);
+        data.writeInt(1);
+        data.writeLong(434343);
+        data.writeDouble(0.75);
+        data.writeLong(1000);
+        BidShader shader = new BidShader(16, 0.9, 0.01, 100, 0.5);
+        assertThat(shader.read(new ByteArrayInputStream(snapshot.toByteArray()))).isEqualTo(1);
+
+        Endpoint.valuators.swap((request, d) -> new Response("4343", "434343", 2.0, "creative", "", "fixed"));
+        BidShader bidShader = Endpoint.bidShader;
+        boolean shadeBids = Endpoint.shadeBids;
+        try {
+            Endpoint.bidShader = shader;
+            Endpoint.shadeBids = false;
+            assertThat(Helper.getResponse(Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "application/json")).getCpm())
+                    .isEqualTo(2.0);
+            Endpoint.shadeBids = true;
+            assertThat(Helper.getResponse(Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "application/json")).getCpm())
+                    .isEqualTo(1.5);
+        } finally {
+            Endpoint.bidShader = bidShader;
+            Endpoint.shadeBids = shadeBids;
+            Endpoint.valuators.swap(new SampleValuator());
+        }
+    }
+
+    @Test
+    void testRecordsBidsForJoining() throws Exception {
+        Endpoint.valuators.swap((request, d) -> new Response("4545", "454545", 2.0, "creative", "", "fixed"));
+        AuctionJoins auctionJoins = Endpoint.auctionJoins;
+        try {
+            Endpoint.auctionJoins = new AuctionJoins(1024, 60000, 4, 16);
+            assertThat(Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "application/json").getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_OK);
+            assertThat(Endpoint.auctionJoins.recorded()).isEqualTo(1);
+            assertThat(Endpoint.auctionJoins.strategies().get(454545L, AuctionJoins.BIDS)).isEqualTo(1);
+
+            HttpResponse rates = HttpClientBuilder.create().build().execute(new HttpGet(Helper.endpointURL + "/winrates"));
+            assertThat(rates.getStatusLine().getStatusCode()).isEqualTo(HttpStatus.SC_OK);
+            assertThat(EntityUtils.toString(rates.getEntity())).contains("\"454545\":{\"bids\":1,\"wins\":0");
+        } finally {
+            Endpoint.auctionJoins = auctionJoins;
+            Endpoint.valuators.swap(new SampleValuator());
+        }
+    }
+
+    @Test
+    void testValuateBatch() throws IOException {
+        HttpResponse response = Helper.sendPost("/valuate/batch", BatchValuatorTest.batch(50), "application/protobuf");
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(HttpStatus.SC_OK);
+        assertThat(response.getFirstHeader("Content-Type").getValue()).startsWith("application/protobuf");
+        InputStream in = response.getEntity().getContent();
+        for (int i = 0; i < 50; i++) {
+            ValuationResponse.Response decoded = ValuationResponse.Response.parseDelimitedFrom(in);
+            assertThat(decoded.getCPM()).isBetween(Endpoint.minCPM, Endpoint.maxCPM * 1.05);
+        }
+        assertThat(in.read()).isEqualTo(-1);
+
+        response = Helper.sendPost("/valuate/batch", new byte[]{10, 1, 2}, "application/protobuf");
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        response = Helper.sendPost("/valuate/batch", Helper.getJsonBidRequest().getBytes(), "application/json");
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(HttpStatus.SC_NOT_IMPLEMENTED);
+    }
+
+    @Test
+    void testValuateBatchGivesWay() throws IOException {
+        AdaptiveLimiter limiter = Endpoint.valuateLimiter;
+        AuctionJoins auctionJoins = Endpoint.auctionJoins;
+        try {
+            Endpoint.auctionJoins = new AuctionJoins(1024, 60000, 4, 16);
+            HttpResponse response = Helper.sendPost("/valuate/batch", BatchValuatorTest.batch(10), "application/protobuf");
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(HttpStatus.SC_OK);
+            // Batch bids are never really made, so are not joined
+            assertThat(Endpoint.auctionJoins.recorded()).isEqualTo(0);
+
+            // Live traffic using its whole limit
+            Endpoint.valuateLimiter = new AdaptiveLimiter(1, 1, 1, TimeUnit.SECONDS.toNanos(1), 0.5);
+            assertThat(Endpoint.valuateLimiter.tryAcquire()).isTrue();
+            long shed = Endpoint.batchValuator.shed();
+            response = Helper.sendPost("/valuate/batch", BatchValuatorTest.batch(10), "application/protobuf");
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(HttpStatus.SC_SERVICE_UNAVAILABLE);
+            assertThat(Endpoint.batchValuator.shed()).isEqualTo(shed + 1);
+        } finally {
+            Endpoint.valuateLimiter = limiter;
+            Endpoint.auctionJoins = auctionJoins;
+        }
+    }
+
     @Test
     void testUnknownContentType() throws IOException {
         HttpResponse response = Helper.sendPost("/valuate", Helper.getJsonBidRequest().getBytes(), "bad/content/type");
@@ -208,6 +441,73 @@ public class EndpointTest {
                 .isEqualTo(HttpStatus.SC_NO_CONTENT);
     }
 
+    private static byte[] bidRequestWithAllowedLatency(int allowedLatency) throws IOException {
+        OpenRtb.BidRequest.Builder builder = Helper.bidRequestBuilderFromText(Helper.bidRequestProtoTextWithDeal);
+        builder.getExtBuilder().getMmExtBuilder().setAllowedLatency(allowedLatency);
+        return builder.build().toByteArray();
+    }
+
+    @Test
+    void testDeadlineFallsBackToNoBid() throws IOException {
+        Deadline.enabled = true;
+        long fallbacks = Deadline.fallbacks(Deadline.Stage.PARSE);
+        // Less than the safety margin from the start, so the request always falls back once parsed
+        HttpResponse response = Helper.sendPost("/valuate", bidRequestWithAllowedLatency(1), "application/protobuf");
+        assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_NO_CONTENT);
+        assertThat(Deadline.fallbacks(Deadline.Stage.PARSE))
+                .isGreaterThan(fallbacks);
+    }
+
+    @Test
+    void testDeadlineFallsBackToDefaultBid() throws IOException {
+        Deadline.enabled = true;
+        Endpoint.defaultBidFallback = true;
+        try {
+            HttpResponse response = Helper.sendPost("/valuate", bidRequestWithAllowedLatency(1), "application/protobuf");
+            assertThat(response.getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_OK);
+            Response defaultBid = Helper.getResponse(response);
+            assertThat(defaultBid.getCpm()).isEqualTo(Endpoint.defaultBidCPM);
+            assertThat(defaultBid.getStrategyID()).isEqualTo("4229124");
+            assertThat(defaultBid.getCreativeID()).isEqualTo("6438114");
+        } finally {
+            Endpoint.defaultBidFallback = false;
+        }
+    }
+
+    @Test
+    void testUnknownDeadlineFallback() {
+        assertThat(Endpoint.isDefaultBidFallback("default-bid")).isTrue();
+        assertThat(Endpoint.isDefaultBidFallback("no-bid")).isFalse();
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> Endpoint.isDefaultBidFallback("late-bid"));
+    }
+
+    @Test
+    void testShedsOverLimit() throws IOException {
+        AdaptiveLimiter limiter = Endpoint.valuateLimiter;
+        Endpoint.valuateLimiter = new AdaptiveLimiter(1, 1, 1, TimeUnit.SECONDS.toNanos(1), 0.5);
+        try {
+            // Take the only slot, so the request is over the limit
+            assertThat(Endpoint.valuateLimiter.tryAcquire()).isTrue();
+            HttpResponse response = Helper.sendPost("/valuate", Helper.binaryProtoFromText(Helper.bidRequestProtoTextNoDeal),
+                    "application/protobuf");
+            assertThat(response.getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_NO_CONTENT);
+            assertThat(Endpoint.valuateLimiter.getShed()).isEqualTo(1);
+
+            Endpoint.valuateLimiter.release(System.nanoTime());
+            response = Helper.sendPost("/valuate", Helper.binaryProtoFromText(Helper.bidRequestProtoTextNoDeal),
+                    "application/protobuf");
+            assertThat(response.getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_OK);
+            assertThat(Endpoint.valuateLimiter.getShed()).isEqualTo(1);
+        } finally {
+            Endpoint.valuateLimiter = limiter;
+        }
+    }
+
     @ParameterizedTest
     @ValueSource(ints={0, 100})
     void testLogHeaderSent(int chance) throws IOException {
@@ -149,4 +149,73 @@ class HelperTest {
         assertThat(com.mediamath.bid_valuator.WURFL.Helper.getDeviceFormFactorData(bidRequest.getExt().getMmExt().getSelectedEntities(0)))
                 .hasSameElementsAs(dffResults);
     }
-  }
\ No newline at end of file
+
+    @Test
+    void testProfileDecodesAllDimensions() throws IOException {
+        OpenRtb.BidRequest bidRequest = com.mediamath.bid_valuator.Helper.allWURFLBidRequest();
+        OpenRtb.MM_Ext.SelectedEntity selectedEntity = bidRequest.getExt().getMmExt().getSelectedEntities(0);
+        WURFLProfile profile = WURFLProfile.of(selectedEntity.getCompanionData());
+        assertThat(profile.getBrowsers())
+                .hasSameElementsAs(com.mediamath.bid_valuator.WURFL.Helper.getBrowserData(selectedEntity));
+        assertThat(profile.getOperatingSystems())
+                .hasSameElementsAs(com.mediamath.bid_valuator.WURFL.Helper.getOSData(selectedEntity));
+        assertThat(profile.getDevices())
+                .hasSameElementsAs(com.mediamath.bid_valuator.WURFL.Helper.getDeviceData(selectedEntity));
+        assertThat(profile.getDeviceFormFactors())
+                .hasSameElementsAs(com.mediamath.bid_valuator.WURFL.Helper.getDeviceFormFactorData(selectedEntity));
+    }
+
+    @Test
+    void testMissingDimension() {
+        OpenRtb.MM_Ext.CompanionData companionData = OpenRtb.MM_Ext.CompanionData.newBuilder()
+                .setStrategyID("1")
+                .setStrategyGoalType("CPC")
+                .setStrategyGoalValue("1")
+                .build();
+        WURFLProfile profile = WURFLProfile.of(companionData);
+        assertThat(profile.has(com.mediamath.bid_valuator.WURFL.Helper.Dimension.DEVICE_MFR_AND_MODEL)).isFalse();
+        Throwable thrown = catchThrowableOfType(() -> com.mediamath.bid_valuator.WURFL.Helper.getWURFLData(companionData, Device.class),
+                IllegalArgumentException.class);
+        assertThat(thrown).hasMessageContaining("Failed to find");
+    }
+
+    @Test
+    void testEncodedDimensionData() throws IOException {
+        OpenRtb.BidRequest bidRequest = com.mediamath.bid_valuator.Helper.allWURFLBidRequest();
+        WURFLProfile profile = WURFLProfile.of(bidRequest.getExt().getMmExt().getSelectedEntities(0).getCompanionData());
+        WURFLDimensionData browsers = profile.getData(com.mediamath.bid_valuator.WURFL.Helper.Dimension.BROWSER);
+        assertThat(browsers.size()).isEqualTo(2);
+        assertThat(browsers.anyTargeted()).isTrue();
+        int targeted = browsers.firstTargeted();
+        int untargeted = 1 - targeted;
+        assertThat(WURFLDictionary.token(browsers.left(targeted))).isEqualTo("br_firefox");
+        assertThat(browsers.right(targeted)).isEqualTo(WURFLDictionary.NONE);
+        assertThat(browsers.isTargeted(untargeted)).isFalse();
+        assertThat(WURFLDictionary.token(browsers.right(untargeted))).isEqualTo("ve_46.1.2");
+        // Both values share the same left hand token
+        assertThat(browsers.left(untargeted)).isEqualTo(browsers.left(targeted));
+        assertThat(browsers.contains(WURFLDictionary.lookup("ve_46.1.2"))).isTrue();
+    }
+
+    @Test
+    void testFullDictionaryKeepsTokensUninterned() throws IOException {
+        OpenRtb.BidRequest bidRequest = com.mediamath.bid_valuator.Helper.bidRequestBuilderFromText(
+                com.mediamath.bid_valuator.Helper.bidRequestProtoTextNoDeal.replace("br_Chrome:ve_72.0.3626", "br_unseen:ve_unseen"))
+                .build();
+        int maxSize = WURFLDictionary.maxSize;
+        long uninterned = WURFLDictionary.uninterned();
+        try {
+            WURFLDictionary.maxSize = WURFLDictionary.size();
+            WURFLProfile profile = WURFLProfile.of(bidRequest.getExt().getMmExt().getSelectedEntities(0).getCompanionData());
+            WURFLDimensionData browsers = profile.getData(com.mediamath.bid_valuator.WURFL.Helper.Dimension.BROWSER);
+            assertThat(browsers.left(0)).isEqualTo(WURFLDictionary.UNINTERNED);
+            assertThat(browsers.leftToken(0)).isEqualTo("br_unseen");
+            assertThat(browsers.rightToken(0)).isEqualTo("ve_unseen");
+            assertThat(profile.getBrowsers().get(0).getLeft()).isEqualTo("br_unseen");
+            assertThat(WURFLDictionary.lookup("br_unseen")).isEqualTo(WURFLDictionary.NONE);
+            assertThat(WURFLDictionary.uninterned()).isEqualTo(uninterned + 2);
+        } finally {
+            WURFLDictionary.maxSize = maxSize;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.mediamath.bid_valuator.model.LinearModel;
+import com.mediamath.bid_valuator.model.LinearValuator;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class ModelWatcherTest {
+    private static String sha256(Path file) throws IOException, NoSuchAlgorithmException {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // Publishes a version as sha256sum would, the model first and then its checksum
+    private static Path publish(Path dir, String name, double cpm) throws IOException, NoSuchAlgorithmException {
+        Path file = dir.resolve(name);
+        Files.write(file, Double.toString(cpm).getBytes(StandardCharsets.US_ASCII));
+        writeChecksum(file, sha256(file));
+        return file;
+    }
+
+    private static void writeChecksum(Path file, String checksum) throws IOException {
+        Files.write(ModelWatcher.checksumFile(file), (checksum + "  " + file.getFileName() + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // A model file here is just the CPM to bid
+    private static ValuatorRegistryTest.FixedValuator load(Path file, MappedByteBuffer contents) {
+        try {
+            return new ValuatorRegistryTest.FixedValuator(Double.parseDouble(StandardCharsets.US_ASCII.decode(contents).toString()));
+        } finally {
+            MappedFiles.unmap(contents);
+        }
+    }
+
+    private static double cpm(ValuatorRegistry registry) {
+        try (ValuatorRegistry.Lease lease = registry.acquire()) {
+            return lease.valuator().valuate(null, null).getCpm();
+        }
+    }
+
+    @Test
+    void testSwapsToNewVersions(@TempDir Path dir) throws Exception {
+        Path first = publish(dir, "cpm-1", 1);
+        ModelWatcher watcher = new ModelWatcher(dir, ModelWatcherTest::load);
+        ValuatorRegistry registry = new ValuatorRegistry(watcher.load());
+        assertThat(watcher.current()).isEqualTo(first);
+        assertThat(watcher.poll(registry)).isFalse();
+
+        // Not considered until its checksum is written
+        Path second = dir.resolve("cpm-2");
+        Files.write(second, "2".getBytes(StandardCharsets.US_ASCII));
+        assertThat(watcher.poll(registry)).isFalse();
+        ValuatorRegistry.Lease inFlight = registry.acquire();
+        writeChecksum(second, sha256(second));
+        assertThat(watcher.poll(registry)).isTrue();
+        assertThat(watcher.current()).isEqualTo(second);
+        assertThat(cpm(registry)).isEqualTo(2);
+        assertThat(watcher.loads()).isEqualTo(2);
+
+        // The old version is only closed once the requests using it are done
+        ValuatorRegistryTest.FixedValuator old = (ValuatorRegistryTest.FixedValuator) inFlight.valuator();
+        assertThat(old.closed).isFalse();
+        assertThat(old.valuate(null, null).getCpm()).isEqualTo(1);
+        inFlight.close();
+        assertThat(old.closed).isTrue();
+
+        // Hidden files are ignored, and deleting the latest version rolls back to the one before
+        publish(dir, ".cpm-3", 3);
+        assertThat(watcher.poll(registry)).isFalse();
+        Files.delete(ModelWatcher.checksumFile(second));
+        Files.delete(second);
+        assertThat(watcher.poll(registry)).isTrue();
+        assertThat(cpm(registry)).isEqualTo(1);
+        assertThat(registry.swaps()).isEqualTo(2);
+    }
+
+    @Test
+    void testRejectsBadVersions(@TempDir Path dir) throws Exception {
+        publish(dir, "cpm-1", 1);
+        ModelWatcher watcher = new ModelWatcher(dir, ModelWatcherTest::load);
+        ValuatorRegistry registry = new ValuatorRegistry(watcher.load());
+
+        Path second = dir.resolve("cpm-2");
+        Files.write(second, "2".getBytes(StandardCharsets.US_ASCII));
+        writeChecksum(second, sha256(dir.resolve("cpm-1")));
+        assertThat(watcher.poll(registry)).isFalse();
+        assertThat(watcher.failures()).isEqualTo(1);
+        // Not retried until its checksum file changes
+        assertThat(watcher.poll(registry)).isFalse();
+        assertThat(watcher.failures()).isEqualTo(1);
+        assertThat(cpm(registry)).isEqualTo(1);
+
+        writeChecksum(second, sha256(second));
+        assertThat(watcher.poll(registry)).isTrue();
+        assertThat(cpm(registry)).isEqualTo(2);
+
+        // A version that matches its checksum, but fails to load
+        Path third = dir.resolve("cpm-3");
+        Files.write(third, "not a number".getBytes(StandardCharsets.US_ASCII));
+        writeChecksum(third, sha256(third));
+        assertThat(watcher.poll(registry)).isFalse();
+        assertThat(watcher.failures()).isEqualTo(2);
+        assertThat(watcher.current()).isEqualTo(second);
+
+        Files.write(ModelWatcher.checksumFile(third), "garbage".getBytes(StandardCharsets.US_ASCII));
+        assertThat(watcher.poll(registry)).isFalse();
+    }
+
+    @Test
+    void testRejectsVersionsChangedWhileLoading(@TempDir Path dir) throws Exception {
+        publish(dir, "cpm-1", 1);
+        ModelWatcher watcher = new ModelWatcher(dir, ModelWatcherTest::load);
+        ValuatorRegistry registry = new ValuatorRegistry(watcher.load());
+
+        // The file is replaced (as rsync does) after it is verified, but the loader is handed the contents that were
+        publish(dir, "cpm-2", 2);
+        ValuatorRegistryTest.FixedValuator[] loaded = new ValuatorRegistryTest.FixedValuator[1];
+        double[] loadedCpm = new double[1];
+        ModelWatcher rewritten = new ModelWatcher(dir, (file, contents) -> {
+            try {
+                Path replacement = dir.resolve(".cpm-2");
+                Files.write(replacement, "3".getBytes(StandardCharsets.US_ASCII));
+                Files.setLastModifiedTime(replacement, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+                Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            loaded[0] = load(file, contents);
+            loadedCpm[0] = loaded[0].valuate(null, null).getCpm();
+            return loaded[0];
+        });
+        assertThat(rewritten.poll(registry)).isFalse();
+        assertThat(loadedCpm[0]).isEqualTo(2);
+        // A loader reading the file again could have read another version, so it is closed rather than swapped in
+        assertThat(loaded[0].closed).isTrue();
+        assertThat(rewritten.failures()).isEqualTo(1);
+        assertThat(rewritten.current()).isNull();
+        assertThat(cpm(registry)).isEqualTo(1);
+    }
+
+    @Test
+    void testNoVersions(@TempDir Path dir) throws IOException {
+        Files.write(dir.resolve("cpm-1"), "1".getBytes(StandardCharsets.US_ASCII));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new ModelWatcher(dir, ModelWatcherTest::load).load());
+    }
+
+    @Test
+    void testWatchesFromConfig(@TempDir Path dir) throws Exception {
+        Path first = dir.resolve("cpm-1.bvlm");
+        try (OutputStream out = Files.newOutputStream(first)) {
+            new LinearModel(LinearModel.Link.IDENTITY, 1, 1, new float[16]).write(out);
+        }
+        writeChecksum(first, sha256(first));
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("class", LinearValuator.class.getName());
+        settings.put("watch.directory", dir.toString());
+        settings.put("watch.interval", "50ms");
+        Config config = ConfigFactory.parseMap(settings)
+                .withFallback(ConfigFactory.load().getConfig("bid-valuator.valuator"));
+
+        ValuatorRegistry registry = ValuatorRegistry.fromConfig(config);
+        try {
+            LinearModel model = ((LinearValuator) registry.current()).getModel();
+            assertThat(model.isMapped()).isTrue();
+            assertThat(model.getBias()).isEqualTo(1);
+
+            Path second = dir.resolve("cpm-2.bvlm");
+            try (OutputStream out = Files.newOutputStream(second)) {
+                new LinearModel(LinearModel.Link.IDENTITY, 2, 1, new float[16]).write(out);
+            }
+            writeChecksum(second, sha256(second));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (registry.swaps() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(((LinearValuator) registry.current()).getModel().getBias()).isEqualTo(2);
+            assertThat(registry.getWatcher().loads()).isEqualTo(2);
+        } finally {
+            registry.close();
+        }
+    }
+}
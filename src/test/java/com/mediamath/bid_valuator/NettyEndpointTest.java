@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.mediamath.bid_valuator.server.NettyTransport;
+import com.mediamath.bid_valuator.server.Transport;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs all of the {@link EndpointTest} tests against the Netty transport
+ */
+public class NettyEndpointTest extends EndpointTest {
+    private static final int port = 4568;
+    private static Transport transport;
+
+    // Hides EndpointTest's, so the Spark server is not started here
+    @BeforeAll
+    static void startServer() {
+        transport = Endpoint.start(new NettyTransport(2, 1024 * 1024), port);
+        Helper.endpointURL = "http://localhost:" + port;
+    }
+
+    @AfterAll
+    static void stopServer() {
+        transport.stop();
+        Helper.endpointURL = "http://localhost:4567";
+    }
+
+    @Test
+    void testUnknownRoute() throws IOException {
+        HttpResponse response = HttpClientBuilder.create().build().execute(new HttpGet(Helper.endpointURL + "/unknown"));
+        assertThat(response.getStatusLine().getStatusCode())
+                .isEqualTo(HttpStatus.SC_NOT_FOUND);
+    }
+
+    @Test
+    void testKeepAlive() throws IOException {
+        // Both requests should be served over the same pooled connection
+        CloseableHttpClient client = HttpClientBuilder.create().setMaxConnTotal(1).build();
+        for (int i = 0; i < 2; i++) {
+            HttpResponse response = client.execute(new HttpGet(Helper.endpointURL + "/healthz"));
+            assertThat(response.getStatusLine().getStatusCode())
+                    .isEqualTo(HttpStatus.SC_OK);
+            assertThat(response.getFirstHeader("Connection"))
+                    .isNull();
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.mediamath.bid_valuator.server.NettyTransport;
+import com.mediamath.bid_valuator.server.Transport;
+import com.mediamath.bid_valuator.server.VirtualThreads;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs all of the {@link NettyEndpointTest} tests with handlers handed off the event loops to an executor: virtual
+ * threads where the JVM supports them, otherwise a plain thread pool
+ */
+public class NettyExecutorEndpointTest extends NettyEndpointTest {
+    private static final int port = 4569;
+    private static Transport transport;
+
+    // Hides NettyEndpointTest's, so the event loop transport is not started here
+    @BeforeAll
+    static void startServer() {
+        transport = Endpoint.start(new NettyTransport(2, 1024 * 1024,
+                VirtualThreads.isAvailable() ? VirtualThreads.newExecutor() : Executors.newCachedThreadPool()), port);
+        Helper.endpointURL = "http://localhost:" + port;
+    }
+
+    @AfterAll
+    static void stopServer() {
+        transport.stop();
+        Helper.endpointURL = "http://localhost:4567";
+    }
+
+    @Test
+    void testRejectedRequests() throws IOException {
+        // An executor that has been shut down rejects everything
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        Transport rejecting = Endpoint.start(new NettyTransport(1, 1024 * 1024, executor), 4571);
+        try {
+            // Each rejection is answered, and does not hold up the next request on the connection
+            CloseableHttpClient client = HttpClientBuilder.create().setMaxConnTotal(1).build();
+            for (int i = 0; i < 2; i++) {
+                HttpResponse response = client.execute(new HttpGet("http://localhost:4571/healthz"));
+                assertThat(response.getStatusLine().getStatusCode())
+                        .isEqualTo(HttpStatus.SC_SERVICE_UNAVAILABLE);
+                EntityUtils.consume(response.getEntity());
+            }
+        } finally {
+            rejecting.stop();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.mediamath.bid_valuator.server.NettyTransport;
+import com.mediamath.bid_valuator.server.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs all of the {@link NettyEndpointTest} tests (over HTTP/1.1) with cleartext HTTP/2 enabled, and checks that
+ * HTTP/2 clients are served too, both by prior knowledge and by upgrading
+ */
+public class NettyHttp2EndpointTest extends NettyEndpointTest {
+    private static final int port = 4570;
+    private static final int maxConcurrentStreams = 100;
+    private static final int connectionWindowSize = 16 * 1024 * 1024;
+    private static Transport transport;
+
+    // Hides NettyEndpointTest's, so the HTTP/1.1 only transport is not started here
+    @BeforeAll
+    static void startServer() {
+        transport = Endpoint.start(new NettyTransport(2, 1024 * 1024, null,
+                new Http2Settings().maxConcurrentStreams(maxConcurrentStreams).initialWindowSize(1024 * 1024),
+                connectionWindowSize), port);
+        Helper.endpointURL = "http://localhost:" + port;
+    }
+
+    @AfterAll
+    static void stopServer() {
+        transport.stop();
+        Helper.endpointURL = "http://localhost:4567";
+    }
+
+    @Test
+    void testMultiplexedStreams() throws Exception {
+        byte[] bidRequest = Helper.getJsonBidRequest().getBytes(StandardCharsets.UTF_8);
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            // Prior knowledge: the client starts with the HTTP/2 connection preface
+            Channel connection = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(Http2FrameCodecBuilder.forClient().build(),
+                                    new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                        }
+                    })
+                    .connect("localhost", port)
+                    .syncUninterruptibly()
+                    .channel();
+            try {
+                List<CompletableFuture<FullHttpResponse>> responses = new ArrayList<>();
+                Set<Integer> streamIDs = new HashSet<>();
+                for (int i = 0; i < 50; i++) {
+                    CompletableFuture<FullHttpResponse> response = new CompletableFuture<>();
+                    Http2StreamChannel stream = new Http2StreamChannelBootstrap(connection)
+                            .handler(new ChannelInitializer<Channel>() {
+                                @Override
+                                protected void initChannel(Channel ch) {
+                                    ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false),
+                                            new HttpObjectAggregator(1024 * 1024),
+                                            new SimpleChannelInboundHandler<FullHttpResponse>() {
+                                                @Override
+                                                protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                                    response.complete(msg.retain());
+                                                }
+                                            });
+                                }
+                            })
+                            .open()
+                            .syncUninterruptibly()
+                            .getNow();
+                    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST,
+                            "/valuate", Unpooled.wrappedBuffer(bidRequest));
+                    request.headers()
+                            .set(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                            .set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), "http")
+                            .setInt(HttpHeaderNames.CONTENT_LENGTH, bidRequest.length);
+                    // All of the requests are in flight before any response is read
+                    stream.writeAndFlush(request).syncUninterruptibly();
+                    streamIDs.add(stream.stream().id());
+                    responses.add(response);
+                }
+                assertThat(streamIDs).hasSize(50);
+                for (CompletableFuture<FullHttpResponse> future : responses) {
+                    FullHttpResponse response = future.get(10, TimeUnit.SECONDS);
+                    try {
+                        assertThat(response.status().code())
+                                .isEqualTo(200);
+                        assertThat(response.headers().get(HttpHeaderNames.CONTENT_TYPE))
+                                .contains("application/json");
+                        assertThat(response.content().toString(StandardCharsets.UTF_8))
+                                .contains("\"CPM\":");
+                    } finally {
+                        response.release();
+                    }
+                }
+
+                // The server's settings, and its widened connection window, have been applied by now
+                Http2Connection http2 = connection.pipeline().get(Http2FrameCodec.class).connection();
+                assertThat(http2.local().maxActiveStreams())
+                        .isEqualTo(maxConcurrentStreams);
+                // Less the request bodies sent, far too few for the server to have handed the window back yet
+                assertThat(http2.remote().flowController().windowSize(http2.connectionStream()))
+                        .isEqualTo(connectionWindowSize - 50 * bidRequest.length);
+            } finally {
+                connection.close().syncUninterruptibly();
+            }
+        } finally {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    @Test
+    void testUpgrade() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            // HTTP2-Settings holds SETTINGS_MAX_CONCURRENT_STREAMS = 100, base64url encoded
+            out.write(("GET /healthz HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Connection: Upgrade, HTTP2-Settings\r\n" +
+                    "Upgrade: h2c\r\n" +
+                    "HTTP2-Settings: AAMAAABk\r\n" +
+                    "\r\n").getBytes(StandardCharsets.US_ASCII));
+            // Then the connection preface, and an empty SETTINGS frame
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[]{0, 0, 0, 4, 0, 0, 0, 0, 0});
+            out.flush();
+
+            // The response to the upgraded request comes back on stream 1, with "OK" in a DATA frame
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!received.toString("ISO-8859-1").contains("OK")) {
+                int n = in.read(buffer);
+                assertThat(n).isGreaterThan(0);
+                received.write(buffer, 0, n);
+            }
+            assertThat(received.toString("ISO-8859-1"))
+                    .startsWith("HTTP/1.1 101 Switching Protocols\r\n");
+        }
+    }
+}
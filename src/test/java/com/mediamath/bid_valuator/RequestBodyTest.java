@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.util.JsonFormat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RequestBodyTest {
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 16 * 1024, 16 * 1024 + 1, 100000})
+    void testReadsWholeStream(int length) throws IOException {
+        byte[] data = bytes(length);
+        // With and without an accurate length hint
+        assertThat(toArray(RequestBody.read(new ByteArrayInputStream(data), length, Integer.MAX_VALUE).asByteBuffer())).isEqualTo(data);
+        assertThat(toArray(RequestBody.read(new ByteArrayInputStream(data), -1, Integer.MAX_VALUE).asByteBuffer())).isEqualTo(data);
+        assertThat(RequestBody.read(new ByteArrayInputStream(data), 7, Integer.MAX_VALUE).length()).isEqualTo(length);
+    }
+
+    @Test
+    void testBufferIsReused() throws IOException {
+        RequestBody first = RequestBody.read(new ByteArrayInputStream(bytes(100)), 100, Integer.MAX_VALUE);
+        RequestBody second = RequestBody.read(new ByteArrayInputStream(bytes(10)), 10, Integer.MAX_VALUE);
+        assertThat(second).isSameAs(first);
+        assertThat(second.length()).isEqualTo(10);
+        assertThat(toArray(second.asByteBuffer())).isEqualTo(bytes(10));
+    }
+
+    @Test
+    void testOversizedBufferIsNotRetained() throws IOException {
+        int maxRetainedBytes = RequestBody.maxRetainedBytes;
+        try {
+            RequestBody.maxRetainedBytes = 32 * 1024;
+            RequestBody.read(new ByteArrayInputStream(bytes(64 * 1024)), -1, Integer.MAX_VALUE);
+            RequestBody body = RequestBody.read(new ByteArrayInputStream(bytes(5)), 5, Integer.MAX_VALUE);
+            assertThat(body.asByteBuffer().array().length).isLessThanOrEqualTo(RequestBody.maxRetainedBytes);
+            assertThat(toArray(body.asByteBuffer())).isEqualTo(bytes(5));
+        } finally {
+            RequestBody.maxRetainedBytes = maxRetainedBytes;
+        }
+    }
+
+    @Test
+    void testLengthHintIsNotTrusted() throws IOException {
+        int maxRetainedBytes = RequestBody.maxRetainedBytes;
+        try {
+            RequestBody.maxRetainedBytes = 32 * 1024;
+            // A forged Content-Length does not get its buffer allocated before the bytes arrive
+            RequestBody body = RequestBody.read(new ByteArrayInputStream(bytes(5)), 2000000000, Integer.MAX_VALUE);
+            assertThat(body.asByteBuffer().array().length).isLessThanOrEqualTo(RequestBody.maxRetainedBytes);
+            assertThat(toArray(body.asByteBuffer())).isEqualTo(bytes(5));
+            // But a body that really is that long still grows to fit
+            body = RequestBody.read(new ByteArrayInputStream(bytes(100000)), 100000, Integer.MAX_VALUE);
+            assertThat(toArray(body.asByteBuffer())).isEqualTo(bytes(100000));
+        } finally {
+            RequestBody.maxRetainedBytes = maxRetainedBytes;
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {-1, 100, 100000})
+    void testTooLarge(int lengthHint) throws IOException {
+        assertThat(RequestBody.read(new ByteArrayInputStream(bytes(4096)), lengthHint, 4096).length()).isEqualTo(4096);
+        assertThatThrownBy(() -> RequestBody.read(new ByteArrayInputStream(bytes(4097)), lengthHint, 4096))
+                .isInstanceOf(RequestBody.TooLargeException.class);
+        assertThatThrownBy(() -> RequestBody.read(new ByteArrayInputStream(bytes(100)), lengthHint, 10))
+                .isInstanceOf(RequestBody.TooLargeException.class);
+    }
+
+    @Test
+    void testWrapDirectBuffer() throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        JsonFormat.parser().merge(Helper.getJsonBidRequest(), builder);
+        byte[] binary = builder.build().toByteArray();
+        ByteBuffer direct = ByteBuffer.allocateDirect(binary.length + 3);
+        direct.position(3);
+        direct.put(binary);
+        direct.position(3);
+
+        RequestBody body = RequestBody.wrap(direct);
+        assertThat(body.length()).isEqualTo(binary.length);
+        assertThat(toArray(body.asByteBuffer())).isEqualTo(binary);
+        assertThat(OpenRtb.BidRequest.parseFrom(body.newCodedInput())).isEqualTo(builder.build());
+        assertThat(BidRequestView.parseFrom(body.asByteBuffer()).getBidRequest()).isEqualTo(builder.build());
+        // Reading the body does not consume it
+        assertThat(direct.position()).isEqualTo(3);
+    }
+
+    @Test
+    void testParsers() throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        String json = Helper.getJsonBidRequest();
+        RequestBody body = RequestBody.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), -1, Integer.MAX_VALUE);
+        assertThat(body.toString()).isEqualTo(json);
+        JsonFormat.parser().merge(body.newReader(), builder);
+        OpenRtb.BidRequest bidRequest = builder.build();
+
+        byte[] binary = bidRequest.toByteArray();
+        body = RequestBody.read(new ByteArrayInputStream(binary), binary.length, Integer.MAX_VALUE);
+        assertThat(OpenRtb.BidRequest.parseFrom(body.newCodedInput())).isEqualTo(bidRequest);
+        assertThat(BidRequestView.parseFrom(body.asByteBuffer()).getBidRequest()).isEqualTo(bidRequest);
+        assertThat(Arrays.copyOf(body.asByteBuffer().array(), body.length())).isEqualTo(binary);
+    }
+}
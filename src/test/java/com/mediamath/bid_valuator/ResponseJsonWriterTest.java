@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class ResponseJsonWriterTest {
+    private ResponseJsonTransformer transformer = new ResponseJsonTransformer();
+
+    static Stream<Response> responseProvider() {
+        return Stream.of(
+                new Response("12345", "5678", 0.1234, "7890", "abc123", "ResponseJsonWriterTest"),
+                new Response("12345", "5678", 0.1234, "7890", null, "ResponseJsonWriterTest"),
+                new Response("12345", "5678", 0.1234, "7890", "", "ResponseJsonWriterTest"),
+                new Response(null, null, 0.1234, null, null, null),
+                new Response(null, "5678", 0.1234, "7890", null, null),
+                new Response(),
+                // Values Double.toString renders in scientific notation, or (on older JDKs) not in the shortest form
+                new Response("1", "2", 1.0E7, "3", "4", "5"),
+                new Response("1", "2", 1.0E-4, "3", "4", "5"),
+                new Response("1", "2", 1.0E23, "3", "4", "5"),
+                new Response("1", "2", -0.0, "3", "4", "5"),
+                new Response("1", "2", Double.MIN_VALUE, "3", "4", "5"),
+                // Everything Gson escapes, and multi-byte UTF-8
+                new Response("\"quoted\" \\ <tag> & a=b 'single'", "\t\b\n\r\f\u0000\u001f\u007f", 0.5,
+                        "café € 😀", "  ", "unpaired \ud83d surrogate \ude00")
+        );
+    }
+
+    private static byte[] bytes(ResponseJsonWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @ParameterizedTest
+    @MethodSource("responseProvider")
+    public void testMatchesGson(Response response) throws IOException {
+        ResponseJsonWriter writer = ResponseJsonWriter.get().write(response);
+        byte[] expected = transformer.render(response).getBytes(StandardCharsets.UTF_8);
+        assertThat(bytes(writer)).isEqualTo(expected);
+        assertThat(writer.length()).isEqualTo(expected.length);
+    }
+
+    @Test
+    public void testRandomCPMsMatchGson() throws IOException {
+        Random random = new Random(42);
+        Response response = new Response("12345", "5678", 0, "7890", "abc123", Endpoint.ModelID);
+        for (int i = 0; i < 10000; i++) {
+            response.setCpm((i % 2 == 0) ? random.nextDouble() : Double.longBitsToDouble(random.nextLong()));
+            if (Double.isNaN(response.getCpm()) || Double.isInfinite(response.getCpm())) {
+                continue;
+            }
+            assertThat(ResponseJsonWriter.get().write(response).toString()).isEqualTo(transformer.render(response));
+        }
+    }
+
+    @Test
+    public void testWriterIsReused() {
+        ResponseJsonWriter writer = ResponseJsonWriter.get().write(new Response("1", "2", 0.1, "3", "4", "5"));
+        assertThat(ResponseJsonWriter.get().write(new Response("6", "7", 0.2, "8", null, null))).isSameAs(writer);
+        assertThat(writer.toString()).isEqualTo("{\"CampaignID\":\"6\",\"StrategyID\":\"7\",\"CPM\":0.2,\"CreativeID\":\"8\"}");
+    }
+
+    @Test
+    public void testInvalidCPM() {
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() ->
+                ResponseJsonWriter.get().write(new Response("1", "2", Double.NaN, "3", "4", "5")));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() ->
+                ResponseJsonWriter.get().write(new Response("1", "2", Double.POSITIVE_INFINITY, "3", "4", "5")));
+    }
+}
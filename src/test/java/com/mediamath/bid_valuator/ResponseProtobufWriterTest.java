@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.mediamath.valuation.ValuationResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResponseProtobufWriterTest {
+    static Stream<Response> responseProvider() {
+        return Stream.of(
+                new Response("12345", "5678", 0.1234, "7890", "abc123", "ResponseProtobufWriterTest"),
+                new Response("12345", "5678", 0.1234, "7890", null, "ResponseProtobufWriterTest"),
+                new Response("12345", "5678", 0.1234, "7890", "", "ResponseProtobufWriterTest"),
+                new Response(),
+                new Response("café € 😀", "unpaired \ud83d surrogate", 1.0E23, "7890", null, null)
+        );
+    }
+
+    private static byte[] bytes(ResponseProtobufWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @ParameterizedTest
+    @MethodSource("responseProvider")
+    public void testMatchesGeneratedMessage(Response response) throws IOException {
+        ValuationResponse.Response.Builder builder = ValuationResponse.Response.newBuilder().setCPM(response.getCpm());
+        if (response.getCampaignID() != null) builder.setCampaignID(response.getCampaignID());
+        if (response.getStrategyID() != null) builder.setStrategyID(response.getStrategyID());
+        if (response.getCreativeID() != null) builder.setCreativeID(response.getCreativeID());
+        if (response.getPmpDealID() != null) builder.setPmpDealID(response.getPmpDealID());
+        if (response.getModelID() != null) builder.setModelID(response.getModelID());
+
+        ResponseProtobufWriter writer = ResponseProtobufWriter.get().write(response);
+        assertThat(bytes(writer)).isEqualTo(builder.build().toByteArray());
+        assertThat(writer.length()).isEqualTo(builder.build().getSerializedSize());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Response response = new Response("12345", "5678", 0.1234, "7890", null, Endpoint.ModelID);
+        Response decoded = Response.fromProto(ValuationResponse.Response.parseFrom(bytes(ResponseProtobufWriter.get().write(response))));
+        assertThat(decoded).isEqualTo(response);
+        assertThat(decoded.getPmpDealID()).isNull();
+        assertThat(decoded.getModelID()).isEqualTo(Endpoint.ModelID);
+    }
+
+    @Test
+    public void testLargeResponse() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("€");
+        }
+        Response response = new Response("12345", "5678", 0.1234, "7890", sb.toString(), Endpoint.ModelID);
+        Response decoded = Response.fromProto(ValuationResponse.Response.parseFrom(bytes(ResponseProtobufWriter.get().write(response))));
+        assertThat(decoded.getPmpDealID()).isEqualTo(sb.toString());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.util.JsonFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class ValuationContextTest {
+    private static Map<String, String> attributes(ValuationContext context) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        context.forEach(attributes::put);
+        return attributes;
+    }
+
+    @AfterEach
+    void clearMDC() {
+        ValuationContext.reset(null);
+        MDC.clear();
+    }
+
+    @Test
+    void testResetForgetsLastRequest() {
+        ValuationContext context = ValuationContext.reset("/valuate");
+        context.setContentType("application/json");
+        context.setAuctionID("auction");
+        context.setCpm(1.5);
+        context.setCampaignID("campaign");
+        context.setStrategyID("strategy");
+        context.setCreativeID("creative");
+        context.setPmpDealID("");
+
+        assertThat(attributes(context)).containsExactly(
+                entry("path", "/valuate"), entry("contentType", "application/json"), entry("auctionID", "auction"),
+                entry("cpm", "1.5"), entry("campaignID", "campaign"), entry("strategyID", "strategy"),
+                entry("creativeID", "creative"), entry("pmpDealID", ""));
+
+        ValuationContext next = ValuationContext.reset("/winnotice");
+        assertThat(next).isSameAs(context);
+        assertThat(next.getCpm()).isNaN();
+        assertThat(attributes(next)).containsExactly(entry("path", "/winnotice"));
+    }
+
+    @Test
+    void testMDCOnlyWhenLogged() {
+        ValuationContext context = ValuationContext.reset("/valuate");
+        context.setAuctionID("auction");
+        assertThat(MDC.get("auctionID")).isNull();
+
+        context.toMDC();
+        assertThat(MDC.get("path")).isEqualTo("/valuate");
+        assertThat(MDC.get("auctionID")).isEqualTo("auction");
+        assertThat(MDC.get("cpm")).isNull();
+
+        // Nothing from the last request is left behind for the next one
+        ValuationContext.reset("/healthz");
+        assertThat(MDC.get("path")).isNull();
+        assertThat(MDC.get("auctionID")).isNull();
+    }
+
+    @Test
+    void testValuateFillsContext() throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        JsonFormat.parser().merge(Helper.getJsonBidRequest(), builder);
+
+        ValuationContext context = ValuationContext.reset("/valuate");
+        Response response = Endpoint.valuate(builder.build());
+        assertThat(context.getAuctionID()).isEqualTo(builder.getId());
+        assertThat(context.getCpm()).isEqualTo(response.getCpm());
+        assertThat(context.getCampaignID()).isEqualTo(response.getCampaignID());
+        assertThat(context.getStrategyID()).isEqualTo(response.getStrategyID());
+        assertThat(context.getCreativeID()).isEqualTo(response.getCreativeID());
+        assertThat(context.getPmpDealID()).isEqualTo(response.getPmpDealID());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class ValuatorRegistryTest {
+    static class FixedValuator implements Valuator {
+        final double cpm;
+        volatile boolean closed = false;
+
+        FixedValuator(double cpm) {
+            this.cpm = cpm;
+        }
+
+        public FixedValuator(Config config) {
+            this(config.getDouble("cpm"));
+        }
+
+        @Override
+        public Response valuate(BidRequestView request, Deadline deadline) {
+            if (closed) {
+                throw new IllegalStateException("Valued with a closed valuator");
+            }
+            return new Response("campaign", "strategy", cpm, "creative", "", "fixed");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    void testClosedOnceDrained() {
+        FixedValuator first = new FixedValuator(1);
+        FixedValuator second = new FixedValuator(2);
+        ValuatorRegistry registry = new ValuatorRegistry(first);
+
+        ValuatorRegistry.Lease inFlight = registry.acquire();
+        assertThat(registry.swap(second)).isSameAs(first);
+        assertThat(registry.current()).isSameAs(second);
+        assertThat(registry.swaps()).isEqualTo(1);
+        // A request already using the old valuator carries on with it...
+        assertThat(inFlight.valuator()).isSameAs(first);
+        assertThat(first.closed).isFalse();
+        // ...while new requests get the new one
+        try (ValuatorRegistry.Lease lease = registry.acquire()) {
+            assertThat(lease.valuator()).isSameAs(second);
+        }
+        inFlight.close();
+        assertThat(first.closed).isTrue();
+        assertThat(second.closed).isFalse();
+
+        registry.close();
+        assertThat(second.closed).isTrue();
+    }
+
+    @Test
+    void testSwapWithoutLeasesClosesImmediately() {
+        FixedValuator first = new FixedValuator(1);
+        ValuatorRegistry registry = new ValuatorRegistry(first);
+        registry.swap(new FixedValuator(2));
+        assertThat(first.closed).isTrue();
+    }
+
+    @Test
+    void testSwapUnderLoad() throws Exception {
+        ValuatorRegistry registry = new ValuatorRegistry(new FixedValuator(0));
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> workers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                workers.add(executor.submit(() -> {
+                    int valued = 0;
+                    while (running.get()) {
+                        try (ValuatorRegistry.Lease lease = registry.acquire()) {
+                            lease.valuator().valuate(null, Deadline.NONE);
+                        }
+                        valued++;
+                    }
+                    return valued;
+                }));
+            }
+            List<FixedValuator> swapped = new ArrayList<>();
+            for (int i = 1; i <= 200; i++) {
+                swapped.add((FixedValuator) registry.swap(new FixedValuator(i)));
+            }
+            running.set(false);
+            for (Future<Integer> worker : workers) {
+                // Fails with the valuator's IllegalStateException if a closed valuator was ever used
+                assertThat(worker.get(10, TimeUnit.SECONDS)).isPositive();
+            }
+            // Every replaced valuator has been drained and closed
+            assertThat(swapped).allMatch(valuator -> valuator.closed);
+            assertThat(((FixedValuator) registry.current()).closed).isFalse();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testNewValuator() {
+        Config config = ConfigFactory.parseString("cpm = 0.25");
+        Valuator fixed = ValuatorRegistry.newValuator(FixedValuator.class.getName(), config);
+        assertThat(fixed.valuate(null, Deadline.NONE).getCpm()).isEqualTo(0.25);
+        assertThat(ValuatorRegistry.newValuator(SampleValuator.class.getName(), config)).isInstanceOf(SampleValuator.class);
+        assertThat(ValuatorRegistry.fromConfig(ConfigFactory.load().getConfig("bid-valuator.valuator")).current())
+                .isInstanceOf(SampleValuator.class);
+    }
+
+    @Test
+    void testNewValuatorFailures() {
+        Config config = ConfigFactory.empty();
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> ValuatorRegistry.newValuator("com.example.Missing", config));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> ValuatorRegistry.newValuator(String.class.getName(), config));
+        // The Config constructor is found, but fails on the missing setting
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> ValuatorRegistry.newValuator(FixedValuator.class.getName(), config));
+    }
+}
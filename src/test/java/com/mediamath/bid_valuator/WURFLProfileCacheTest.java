@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import com.mediamath.bid_valuator.WURFL.WURFLProfile;
+import com.mediamath.bid_valuator.WURFL.WURFLProfileCache;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WURFLProfileCacheTest {
+    private static OpenRtb.MM_Ext.CompanionData companionData() throws IOException {
+        return Helper.allWURFLBidRequest().getExt().getMmExt().getSelectedEntities(0).getCompanionData();
+    }
+
+    @Test
+    void testRepeatedStrategyIsDecodedOnce() throws IOException {
+        WURFLProfileCache cache = new WURFLProfileCache(100);
+        WURFLProfile first = cache.get(companionData());
+        // A freshly parsed, but identical, CompanionData should hit
+        WURFLProfile second = cache.get(companionData());
+        assertThat(second).isSameAs(first);
+        assertThat(cache.missCount()).isEqualTo(1);
+        assertThat(cache.hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testChangedTargetingIsDecodedAgain() throws IOException {
+        WURFLProfileCache cache = new WURFLProfileCache(100);
+        OpenRtb.MM_Ext.CompanionData original = companionData();
+        OpenRtb.MM_Ext.CompanionData retargeted = original.toBuilder().setTargetValues(Struct.getDefaultInstance()).build();
+        WURFLProfile first = cache.get(original);
+        WURFLProfile second = cache.get(retargeted);
+        assertThat(second).isNotSameAs(first);
+        assertThat(cache.missCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testSameSizedTargetingIsDecodedAgain() throws IOException {
+        WURFLProfileCache cache = new WURFLProfileCache(100);
+        OpenRtb.MM_Ext.CompanionData original = companionData();
+        OpenRtb.MM_Ext.CompanionData first = original.toBuilder().setTargetValues(targeting("x")).build();
+        OpenRtb.MM_Ext.CompanionData second = original.toBuilder().setTargetValues(targeting("y")).build();
+        assertThat(first.getTargetValues().getSerializedSize()).isEqualTo(second.getTargetValues().getSerializedSize());
+        assertThat(cache.get(second)).isNotSameAs(cache.get(first));
+        assertThat(cache.missCount()).isEqualTo(2);
+    }
+
+    private static Struct targeting(String value) {
+        return Struct.newBuilder().putFields("24", Value.newBuilder().setStringValue(value).build()).build();
+    }
+
+    @Test
+    void testEviction() throws IOException {
+        WURFLProfileCache cache = new WURFLProfileCache(10);
+        OpenRtb.MM_Ext.CompanionData companionData = companionData();
+        for (int i = 0; i < 100; i++) {
+            cache.get(companionData.toBuilder().setStrategyID(Integer.toString(i)).build());
+        }
+        cache.cleanUp();
+        assertThat(cache.size()).isLessThanOrEqualTo(10);
+        assertThat(cache.evictionCount()).isGreaterThanOrEqualTo(90);
+    }
+}
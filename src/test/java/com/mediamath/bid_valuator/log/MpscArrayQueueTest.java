@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.log;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class MpscArrayQueueTest {
+    @Test
+    void testCapacityRoundsUp() {
+        assertThat(new MpscArrayQueue<>(1).capacity()).isEqualTo(1);
+        assertThat(new MpscArrayQueue<>(5).capacity()).isEqualTo(8);
+        assertThat(new MpscArrayQueue<>(8).capacity()).isEqualTo(8);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new MpscArrayQueue<>(0));
+    }
+
+    @Test
+    void testRejectsWhenFull() {
+        MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(queue.offer(i)).isTrue();
+        }
+        assertThat(queue.offer(4)).isFalse();
+        assertThat(queue.size()).isEqualTo(4);
+        assertThat(queue.poll()).isEqualTo(0);
+        assertThat(queue.offer(4)).isTrue();
+        List<Integer> drained = new ArrayList<>();
+        assertThat(queue.drain(drained::add, 10)).isEqualTo(4);
+        assertThat(drained).containsExactly(1, 2, 3, 4);
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    void testConcurrentProducers() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 100000;
+        MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(64);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(producer * perProducer + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        // Each producer's elements come out in the order it added them, and none are lost
+        int[] next = new int[producers];
+        for (int taken = 0; taken < producers * perProducer; ) {
+            Integer element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = element / perProducer;
+            assertThat(element % perProducer).isEqualTo(next[producer]);
+            next[producer]++;
+            taken++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(queue.poll()).isNull();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mediamath.bid_valuator.Response;
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ValuationLogTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static ValuationRecord record(String auctionID, byte[] body) {
+        Response response = new Response("12345", "5678", 0.25, "7890", "", "model");
+        return new ValuationRecord(0, auctionID, "bid", response, TimeUnit.MICROSECONDS.toNanos(150),
+                TimeUnit.MICROSECONDS.toNanos(20), TimeUnit.MICROSECONDS.toNanos(300), "application/json", body);
+    }
+
+    @Test
+    void testWritesJsonLines() throws InterruptedException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ValuationLog log = new ValuationLog(1024, 16, out);
+        for (int i = 0; i < 100; i++) {
+            assertThat(log.log(record("auction-" + i, null))).isTrue();
+        }
+        assertThat(log.log(record("sampled", "{\"id\":\"sampled\"}".getBytes(StandardCharsets.UTF_8)))).isTrue();
+        log.close();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertThat(lines).hasSize(101);
+        assertThat(log.written()).isEqualTo(101);
+        assertThat(lines[0]).startsWith("{\"type\":\"valuation\",");
+        JsonNode first = mapper.readTree(lines[0]);
+        assertThat(first.get("timestamp").asText()).isEqualTo("1970-01-01T00:00:00Z");
+        assertThat(first.get("auctionID").asText()).isEqualTo("auction-0");
+        assertThat(first.get("outcome").asText()).isEqualTo("bid");
+        assertThat(first.get("strategyID").asText()).isEqualTo("5678");
+        assertThat(first.get("cpm").asDouble()).isEqualTo(0.25);
+        assertThat(first.get("parseMicros").asLong()).isEqualTo(150);
+        assertThat(first.get("totalMicros").asLong()).isEqualTo(300);
+        assertThat(first.has("requestBody")).isFalse();
+        JsonNode sampled = mapper.readTree(lines[100]);
+        assertThat(sampled.get("requestBody").asText()).isEqualTo("{\"id\":\"sampled\"}");
+    }
+
+    @Test
+    void testNoBid() throws InterruptedException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ValuationLog log = new ValuationLog(16, 16, out);
+        log.log(new ValuationRecord(0, "no-bid", "fallback-parse", null, 10, -1, 20, "application/protobuf", null));
+        log.close();
+        JsonNode line = mapper.readTree(out.toString("UTF-8"));
+        assertThat(line.has("cpm")).isFalse();
+        assertThat(line.has("strategyID")).isFalse();
+        assertThat(line.has("valuateMicros")).isFalse();
+    }
+
+    @Test
+    void testParseFailure() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ValuationLog log = new ValuationLog(16, 16, out);
+        log.log(new ValuationRecord(0, null, "parse-error", null, -1, -1, 20, "application/json",
+                "{\"id\":".getBytes(StandardCharsets.UTF_8)));
+        log.close();
+        JsonNode line = mapper.readTree(out.toString("UTF-8"));
+        assertThat(line.get("outcome").asText()).isEqualTo("parse-error");
+        assertThat(line.has("auctionID")).isFalse();
+        assertThat(line.has("parseMicros")).isFalse();
+        assertThat(line.get("requestBody").asText()).isEqualTo("{\"id\":");
+    }
+
+    @Test
+    void testOutput() {
+        assertThat(ValuationLog.output("stdout")).isSameAs(System.out);
+        assertThat(ValuationLog.output("stderr")).isSameAs(System.err);
+        assertThatThrownBy(() -> ValuationLog.output("file")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testDropsOnceClosed() throws InterruptedException {
+        ValuationLog log = new ValuationLog(16, 16, new ByteArrayOutputStream());
+        log.close();
+        assertThat(log.log(record("late", null))).isFalse();
+        assertThat(log.dropped()).isEqualTo(1);
+    }
+
+    @Test
+    void testRenderBinaryProtobuf() {
+        assertThat(ValuationLog.render("bid", "application/protobuf", new byte[]{10, 1, 'x'}))
+                .isEqualTo("id: \"x\"\n");
+        // Not a valid BidRequest
+        assertThat(ValuationLog.render("parse-error", "application/protobuf", new byte[]{(byte) 0xff}))
+                .isEqualTo("/w==");
+        assertThat(ValuationLog.render("parse-error", "application/json", "{\"id\":".getBytes(StandardCharsets.UTF_8)))
+                .isEqualTo("{\"id\":");
+    }
+
+    @Test
+    void testRenderWinNotice() {
+        // Only an ExchangeAuctionID, which also reads as a BidRequest id
+        byte[] body = WinNotification.newBuilder().setExchangeAuctionID("x").buildPartial().toByteArray();
+        assertThat(ValuationLog.render(ValuationRecord.WINNOTICE_PARSE_ERROR, "application/protobuf", body))
+                .isEqualTo("ExchangeAuctionID: \"x\"\n");
+        assertThat(ValuationLog.render(ValuationRecord.WINNOTICE_PARSE_ERROR, "application/protobuf", new byte[]{(byte) 0xff}))
+                .isEqualTo("/w==");
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FeatureHasherTest {
+    // The reference definition from the FeatureHasher documentation, over an already encoded value
+    private static int reference(int namespace, byte[] value) {
+        int h = (0x811c9dc5 ^ namespace) * 0x01000193;
+        for (byte b : value) {
+            h = (h ^ (b & 0xff)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "60231", "ma_Apple:mo_iPhone", "café", "€100", "😀", "\ud83d"})
+    void testMatchesReference(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        assertThat(FeatureHasher.hash(7, value)).isEqualTo(reference(7, utf8));
+        assertThat(FeatureHasher.hash(7, ByteString.copyFromUtf8(value))).isEqualTo(reference(7, utf8));
+        assertThat(FeatureHasher.hash(7, value, null)).isEqualTo(reference(7, utf8));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, -1, 11, 0x12345678})
+    void testIntValues(int value) {
+        byte[] bytes = {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        assertThat(FeatureHasher.hash(32, value)).isEqualTo(reference(32, bytes));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"ma_Apple", "br_firefox"})
+    void testTwoParts(String left) {
+        String right = "mo_iPhone";
+        assertThat(FeatureHasher.hash(157, left, right)).isEqualTo(FeatureHasher.hash(157, left + "\0" + right));
+        // Namespaces keep equal values in different fields apart
+        assertThat(FeatureHasher.hash(157, left)).isNotEqualTo(FeatureHasher.hash(158, left));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.mediamath.bid_valuator.BidRequestView;
+import com.mediamath.bid_valuator.Deadline;
+import com.mediamath.bid_valuator.Response;
+import com.mediamath.bid_valuator.ValuatorRegistry;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+
+public class GradientBoostedValuatorTest {
+    // Bids 0.5 on the first strategy in bid.json (3490748) and 1.5 on the second (3490750)
+    private static final String dump = "booster[0]:\n"
+            + "0:[StrategyID<3490749] yes=1,no=2,missing=1\n"
+            + "\t1:leaf=0.5\n"
+            + "\t2:leaf=1.5\n";
+
+    @Test
+    void testBidsBestEntity() throws IOException {
+        GradientBoostedValuator valuator = new GradientBoostedValuator(TreeEnsemble.readXGBoostDump(new StringReader(dump)),
+                "gbt", 0, LinearModel.Link.IDENTITY, 1, 0.01, 5);
+        Response response = valuator.valuate(BidRequestView.of(LinearModelTest.bidRequest()), Deadline.NONE);
+        assertThat(response.getCpm()).isCloseTo(1.5, within(1e-6));
+        assertThat(response.getStrategyID()).isEqualTo("3490750");
+        assertThat(response.getPmpDealID()).isEmpty();
+        assertThat(response.getModelID()).isEqualTo("gbt");
+
+        GradientBoostedValuator capped = new GradientBoostedValuator(valuator.getEnsemble(), "gbt", 0,
+                LinearModel.Link.IDENTITY, 1, 0.01, 1);
+        assertThat(capped.valuate(BidRequestView.of(LinearModelTest.bidRequest()), Deadline.NONE).getCpm()).isEqualTo(1);
+        GradientBoostedValuator floored = new GradientBoostedValuator(valuator.getEnsemble(), "gbt", 0,
+                LinearModel.Link.IDENTITY, 1, 2, 5);
+        assertThat(floored.valuate(BidRequestView.of(LinearModelTest.bidRequest()), Deadline.NONE)).isNull();
+    }
+
+    @Test
+    void testLogisticLink() throws IOException {
+        GradientBoostedValuator valuator = new GradientBoostedValuator(TreeEnsemble.readXGBoostDump(new StringReader(dump)),
+                "gbt", -0.5f, LinearModel.Link.LOGISTIC, 4, 0, 5);
+        assertThat(valuator.cpm(0.5f)).isCloseTo(2, within(1e-9));
+    }
+
+    @Test
+    void testFromConfig(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("cpm.dump");
+        Files.write(file, dump.getBytes(StandardCharsets.UTF_8));
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("gbt.model-file", file.toString());
+        settings.put("gbt.link", "logistic");
+        GradientBoostedValuator valuator = (GradientBoostedValuator) ValuatorRegistry.newValuator(
+                GradientBoostedValuator.class.getName(),
+                ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load().getConfig("bid-valuator.valuator")));
+        assertThat(valuator.getEnsemble().trees()).isEqualTo(1);
+        assertThat(valuator.valuate(BidRequestView.of(LinearModelTest.bidRequest()), Deadline.NONE).getModelID())
+                .isEqualTo("cpm.dump");
+
+        settings.put("gbt.link", "softmax");
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> ValuatorRegistry.newValuator(GradientBoostedValuator.class.getName(),
+                        ConfigFactory.parseMap(settings).withFallback(ConfigFactory.load().getConfig("bid-valuator.valuator"))));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.openrtb.OpenRtb;
+import com.google.openrtb.OpenRtb.MM_Ext.BidFeatureMsg;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.util.JsonFormat;
+import com.mediamath.bid_valuator.WURFL.Helper;
+import com.mediamath.bid_valuator.WURFL.WURFLProfile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+
+public class LinearModelTest {
+    static OpenRtb.BidRequest bidRequest() throws IOException {
+        OpenRtb.BidRequest.Builder builder = OpenRtb.BidRequest.newBuilder();
+        JsonFormat.parser().merge(new InputStreamReader(LinearModelTest.class.getClassLoader().getResourceAsStream("bid.json"),
+                StandardCharsets.UTF_8), builder);
+        return builder.build();
+    }
+
+    static byte[] toBytes(LinearModel model) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        model.write(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        float[] weights = new float[16];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i * 0.25f - 1;
+        }
+        LinearModel model = new LinearModel(LinearModel.Link.LOGISTIC, 0.5f, 2, weights);
+        byte[] bytes = toBytes(model);
+        assertThat(bytes).hasSize(4 + 4 + 1 + 4 + 4 + 4 + 16 * 4);
+
+        LinearModel read = LinearModel.read(new ByteArrayInputStream(bytes));
+        assertThat(read.getLink()).isEqualTo(LinearModel.Link.LOGISTIC);
+        assertThat(read.getBias()).isEqualTo(0.5f);
+        assertThat(read.getScale()).isEqualTo(2);
+        assertThat(read.size()).isEqualTo(16);
+        for (int i = 0; i < weights.length; i++) {
+            assertThat(read.weight(i)).isEqualTo(weights[i]);
+        }
+    }
+
+    @Test
+    void testInvalidFiles() throws IOException {
+        byte[] bytes = toBytes(new LinearModel(LinearModel.Link.IDENTITY, 0, 1, new float[4]));
+        assertThatExceptionOfType(EOFException.class)
+                .isThrownBy(() -> LinearModel.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1))));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> LinearModel.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length + 1))));
+        byte[] badMagic = bytes.clone();
+        badMagic[0] = 0;
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> LinearModel.read(new ByteArrayInputStream(badMagic)));
+        byte[] badLink = bytes.clone();
+        badLink[8] = 9;
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> LinearModel.read(new ByteArrayInputStream(badLink)));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new LinearModel(LinearModel.Link.IDENTITY, 0, 1, new float[12]));
+    }
+
+    @Test
+    void testMap(@TempDir Path dir) throws IOException {
+        float[] weights = new float[1 << 10];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i * 0.5f;
+        }
+        Path file = dir.resolve("cpm.bvlm");
+        Files.write(file, toBytes(new LinearModel(LinearModel.Link.LOGISTIC, 0.5f, 2, weights)));
+
+        try (LinearModel mapped = LinearModel.map(file)) {
+            assertThat(mapped.isMapped()).isTrue();
+            assertThat(mapped.getLink()).isEqualTo(LinearModel.Link.LOGISTIC);
+            assertThat(mapped.getBias()).isEqualTo(0.5f);
+            assertThat(mapped.getScale()).isEqualTo(2);
+            assertThat(mapped.size()).isEqualTo(weights.length);
+            for (int i = 0; i < weights.length; i++) {
+                assertThat(mapped.weight(i)).isEqualTo(weights[i]);
+            }
+            assertThat(toBytes(mapped)).isEqualTo(Files.readAllBytes(file));
+            OpenRtb.BidRequest request = bidRequest();
+            LinearModel read = LinearModel.read(file);
+            assertThat(read.isMapped()).isFalse();
+            assertThat(mapped.score(request.getExt().getMmExt().getBidFeature()))
+                    .isEqualTo(read.score(request.getExt().getMmExt().getBidFeature()));
+        }
+
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> LinearModel.map(file));
+        Files.write(file, Arrays.copyOf(bytes, 10));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> LinearModel.map(file));
+    }
+
+    @Test
+    void testScoresHashedFeatures() throws IOException {
+        OpenRtb.BidRequest request = bidRequest();
+        BidFeatureMsg features = request.getExt().getMmExt().getBidFeature();
+        float[] weights = new float[1 << 20];
+        // Hash collisions aside (which 2^20 buckets make unlikely here), each weight is picked up once
+        weights[FeatureHasher.hash(BidFeatureMsg.COUNTRYID_FIELD_NUMBER, "60231") & (weights.length - 1)] = 1;
+        weights[FeatureHasher.hash(BidFeatureMsg.EXCHANGEID_FIELD_NUMBER, features.getExchangeID()) & (weights.length - 1)] = 2;
+        weights[FeatureHasher.hash(LinearModel.HOUR_NAMESPACE, features.getUserTime().getHour()) & (weights.length - 1)] = 4;
+        // UUID is not a feature
+        weights[FeatureHasher.hash(BidFeatureMsg.UUID_FIELD_NUMBER, features.getUUID()) & (weights.length - 1)] = 100;
+        LinearModel model = new LinearModel(LinearModel.Link.IDENTITY, 0.5f, 0.1f, weights);
+        assertThat(model.score(features)).isEqualTo(7);
+        assertThat(model.cpm(7)).isCloseTo(0.75, within(1e-6));
+        // Unset fields are skipped
+        assertThat(model.score(BidFeatureMsg.getDefaultInstance())).isEqualTo(0);
+    }
+
+    // The first SelectedEntity of bid.json, with a different strategy targeting a single device
+    static OpenRtb.MM_Ext.SelectedEntity entity(String strategyID, String targetedDevice) throws IOException {
+        OpenRtb.MM_Ext.SelectedEntity.Builder builder = bidRequest().getExt().getMmExt().getSelectedEntities(0).toBuilder();
+        OpenRtb.MM_Ext.CompanionData.Builder companionData = builder.getCompanionDataBuilder().setStrategyID(strategyID);
+        companionData.clearTargetValues();
+        JsonFormat.parser().merge("{\"29\": {\"1\": {\"targeted\": [\"" + targetedDevice + "\"], "
+                + "\"untargeted\": [\"ma_Generic:mo_Android 7.1\"]}}}", companionData.getTargetValuesBuilder());
+        return builder.build();
+    }
+
+    @Test
+    void testScoresEntities() throws IOException {
+        float[] weights = new float[1 << 20];
+        int mask = weights.length - 1;
+        weights[FeatureHasher.hash(LinearModel.STRATEGY_NAMESPACE, "3490748") & mask] = 1;
+        weights[FeatureHasher.hash(LinearModel.STRATEGY_NAMESPACE, "3490750") & mask] = 2;
+        weights[FeatureHasher.hash(LinearModel.WURFL_NAMESPACE + 29, "ma_Apple", "mo_iPhone") & mask] = 10;
+        // Only targeted WURFL values count
+        weights[FeatureHasher.hash(LinearModel.WURFL_NAMESPACE + 29, "ma_Generic", "mo_Android 7.1") & mask] = 100;
+        LinearModel model = new LinearModel(LinearModel.Link.IDENTITY, 0, 1, weights);
+
+        OpenRtb.MM_Ext.SelectedEntity iPhone = entity("3490748", "ma_Apple:mo_iPhone");
+        OpenRtb.MM_Ext.SelectedEntity other = entity("3490750", "ma_Samsung:mo_Galaxy");
+        assertThat(model.score(iPhone, Helper.getProfile(iPhone))).isEqualTo(11);
+        assertThat(model.score(other, Helper.getProfile(other))).isEqualTo(2);
+        assertThat(model.score(iPhone, null)).isEqualTo(1);
+    }
+
+    @Test
+    void testLogisticLink() {
+        LinearModel model = new LinearModel(LinearModel.Link.LOGISTIC, 1, 3, new float[1]);
+        assertThat(model.cpm(-1)).isCloseTo(1.5, within(1e-9));
+        assertThat(model.cpm(1000)).isCloseTo(3, within(1e-9));
+    }
+
+    @Test
+    void testScoringAllocatesNothing() throws IOException {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        org.junit.jupiter.api.Assumptions.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        org.junit.jupiter.api.Assumptions.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+
+        OpenRtb.MM_Ext mmExt = bidRequest().getExt().getMmExt();
+        BidFeatureMsg features = mmExt.getBidFeature();
+        OpenRtb.MM_Ext.SelectedEntity entity = entity("3490748", "ma_Apple:mo_iPhone");
+        WURFLProfile profile = Helper.getProfile(entity);
+        LinearModel model = new LinearModel(LinearModel.Link.LOGISTIC, 0, 1, new float[1 << 10]);
+        float score = 0;
+        // The first calls cache each field's UTF-8 bytes on the message
+        for (int i = 0; i < 1000; i++) {
+            score += model.score(features) + model.score(entity, profile);
+        }
+        int calls = 10000;
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            score += model.score(features) + model.score(entity, profile);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+        assertThat(score).isEqualTo(0);
+        // Less than a byte a call, i.e. no objects (reading the counter itself may allocate a little)
+        assertThat(allocated).isLessThan(calls);
+    }
+
+    @Test
+    void testByteStringAndStringFeaturesAgree() {
+        BidFeatureMsg fromString = BidFeatureMsg.newBuilder().setSiteID("café").build();
+        BidFeatureMsg fromBytes = BidFeatureMsg.newBuilder().setSiteIDBytes(ByteString.copyFromUtf8("café")).build();
+        float[] weights = new float[64];
+        weights[FeatureHasher.hash(BidFeatureMsg.SITEID_FIELD_NUMBER, "café") & 63] = 1;
+        LinearModel model = new LinearModel(LinearModel.Link.IDENTITY, 0, 1, weights);
+        assertThat(model.score(fromString)).isEqualTo(1);
+        assertThat(model.score(fromBytes)).isEqualTo(1);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.openrtb.OpenRtb;
+import com.mediamath.bid_valuator.BidRequestView;
+import com.mediamath.bid_valuator.Deadline;
+import com.mediamath.bid_valuator.Response;
+import com.mediamath.bid_valuator.ValuatorRegistry;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+
+public class LinearValuatorTest {
+    private static final int bits = 16;
+
+    // Bids 0.5 on the first strategy in bid.json and 1.5 on the second
+    private static LinearModel model() {
+        float[] weights = new float[1 << bits];
+        weights[FeatureHasher.hash(LinearModel.STRATEGY_NAMESPACE, "3490748") & ((1 << bits) - 1)] = 0.5f;
+        weights[FeatureHasher.hash(LinearModel.STRATEGY_NAMESPACE, "3490750") & ((1 << bits) - 1)] = 1.5f;
+        return new LinearModel(LinearModel.Link.IDENTITY, 0, 1, weights);
+    }
+
+    @Test
+    void testBidsBestEntity() throws IOException {
+        OpenRtb.BidRequest request = LinearModelTest.bidRequest();
+        Response response = new LinearValuator(model(), "linear", 0.01, 5).valuate(BidRequestView.of(request), Deadline.NONE);
+        OpenRtb.MM_Ext.SelectedEntity best = request.getExt().getMmExt().getSelectedEntities(1);
+        assertThat(response.getCpm()).isCloseTo(1.5, within(1e-6));
+        assertThat(response.getStrategyID()).isEqualTo(best.getCompanionData().getStrategyID());
+        assertThat(response.getCampaignID()).isEqualTo(best.getCampaignID());
+        assertThat(response.getCreativeID()).isEqualTo(best.getCompanionData().getCreatives(0).getID());
+        assertThat(response.getPmpDealID()).isEmpty();
+        assertThat(response.getModelID()).isEqualTo("linear");
+    }
+
+    @Test
+    void testCPMLimits() throws IOException {
+        BidRequestView request = BidRequestView.of(LinearModelTest.bidRequest());
+        assertThat(new LinearValuator(model(), "linear", 0.01, 1).valuate(request, Deadline.NONE).getCpm()).isEqualTo(1);
+        assertThat(new LinearValuator(model(), "linear", 2, 5).valuate(request, Deadline.NONE)).isNull();
+    }
+
+    @Test
+    void testStopsScoringWhenOutOfTime() throws IOException {
+        BidRequestView request = BidRequestView.of(LinearModelTest.bidRequest());
+        // Already past its deadline, so only the first entity is scored
+        Deadline deadline = Deadline.of(System.nanoTime() - 1_000_000_000L, 1);
+        boolean enabled = Deadline.enabled;
+        try {
+            Deadline.enabled = true;
+            assertThat(new LinearValuator(model(), "linear", 0.01, 5).valuate(request, deadline).getCpm())
+                    .isCloseTo(0.5, within(1e-6));
+        } finally {
+            Deadline.enabled = enabled;
+        }
+    }
+
+    @Test
+    void testFromConfig(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("cpm.bvlm");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            model().write(out);
+        }
+        LinearValuator valuator = (LinearValuator) ValuatorRegistry.newValuator(LinearValuator.class.getName(),
+                ConfigFactory.parseMap(Collections.singletonMap("linear.weights-file", file.toString()))
+                        .withFallback(ConfigFactory.load().getConfig("bid-valuator.valuator")));
+        assertThat(valuator.getModel().size()).isEqualTo(1 << bits);
+        assertThat(valuator.valuate(BidRequestView.of(LinearModelTest.bidRequest()), Deadline.NONE).getModelID())
+                .isEqualTo("cpm.bvlm");
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> ValuatorRegistry.newValuator(LinearValuator.class.getName(),
+                        ConfigFactory.parseMap(Collections.singletonMap("linear.weights-file", dir.resolve("missing").toString()))
+                                .withFallback(ConfigFactory.load().getConfig("bid-valuator.valuator"))))
+                .withCauseInstanceOf(UncheckedIOException.class);
+    }
+}
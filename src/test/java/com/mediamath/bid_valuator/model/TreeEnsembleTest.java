@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+
+public class TreeEnsembleTest {
+    // Two trees, as XGBoost dumps them (node ids breadth first, the second with stats)
+    static final String dump = "booster[0]:\n"
+            + "0:[ExchangeID<5.5] yes=1,no=2,missing=2\n"
+            + "\t1:[UserTime.Hour<12] yes=3,no=4,missing=3\n"
+            + "\t\t3:leaf=0.25\n"
+            + "\t\t4:leaf=0.5\n"
+            + "\t2:leaf=-0.125\n"
+            + "booster[1]:\n"
+            + "0:[f0<100] yes=1,no=2,missing=1,gain=12.5,cover=100\n"
+            + "\t1:leaf=1,cover=60\n"
+            + "\t2:leaf=2,cover=40\n";
+
+    private static float[] features(float exchange, float hour, float country) {
+        float[] features = TreeFeatures.newVector();
+        features[TreeFeatures.indexOf("ExchangeID")] = exchange;
+        features[TreeFeatures.indexOf("UserTime.Hour")] = hour;
+        features[TreeFeatures.indexOf("CountryID")] = country;
+        return features;
+    }
+
+    @Test
+    void testPredict() throws IOException {
+        TreeEnsemble ensemble = TreeEnsemble.readXGBoostDump(new StringReader(dump));
+        assertThat(ensemble.trees()).isEqualTo(2);
+        assertThat(ensemble.nodes()).isEqualTo(8);
+        assertThat(ensemble.predict(features(4, 11, 50))).isCloseTo(1.25f, within(1e-6f));
+        assertThat(ensemble.predict(features(4, 12, 50))).isCloseTo(1.5f, within(1e-6f));
+        assertThat(ensemble.predict(features(6, 11, 150))).isCloseTo(1.875f, within(1e-6f));
+        // Missing values go whichever way the split says
+        assertThat(ensemble.predict(features(Float.NaN, 11, Float.NaN))).isCloseTo(0.875f, within(1e-6f));
+        assertThat(ensemble.predict(features(4, Float.NaN, 150))).isCloseTo(2.25f, within(1e-6f));
+    }
+
+    @Test
+    void testDepthFirstLayout() throws IOException {
+        TreeEnsemble ensemble = TreeEnsemble.readXGBoostDump(new StringReader(dump));
+        // Each split's left child follows it, and the second tree follows the first
+        assertThat(ensemble.root(0)).isEqualTo(0);
+        assertThat(ensemble.left(0)).isEqualTo(1);
+        assertThat(ensemble.left(1)).isEqualTo(2);
+        assertThat(ensemble.right(1)).isEqualTo(3);
+        assertThat(ensemble.right(0)).isEqualTo(4);
+        assertThat(ensemble.feature(4)).isEqualTo(-1);
+        assertThat(ensemble.threshold(4)).isEqualTo(-0.125f);
+        assertThat(ensemble.missingGoesLeft(0)).isFalse();
+        assertThat(ensemble.missingGoesLeft(1)).isTrue();
+        assertThat(ensemble.root(1)).isEqualTo(5);
+    }
+
+    @Test
+    void testInvalidDumps() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> TreeEnsemble.readXGBoostDump(new StringReader("")));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> TreeEnsemble.readXGBoostDump(new StringReader("0:leaf=1\n")));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> TreeEnsemble.readXGBoostDump(new StringReader("booster[0]:\n0:[UUID<1] yes=1,no=2,missing=1\n1:leaf=0\n2:leaf=0\n")));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> TreeEnsemble.readXGBoostDump(new StringReader("booster[0]:\n0:[f0<1] yes=1,no=2,missing=1\n1:leaf=0\n")));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> TreeEnsemble.readXGBoostDump(new StringReader("booster[0]:\n0:[f0<1] yes=1,no=2,missing=3\n1:leaf=0\n2:leaf=0\n")));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> TreeEnsemble.readXGBoostDump(new StringReader("booster[0]:\n0:[f0<1] yes=0,no=1,missing=1\n1:leaf=0\n")));
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> TreeEnsemble.readXGBoostDump(new StringReader("booster[0]:\n0:leaf=1\n1:leaf=2\n")));
+        // Children must come after their parent
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> new TreeEnsemble(new int[]{0}, new int[]{0, -1}, new float[2], new int[]{0, 0}, new int[]{1, 0}, new long[1]));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.model;
+
+import com.google.openrtb.OpenRtb;
+import com.google.protobuf.ByteString;
+import com.mediamath.bid_valuator.WURFL.Helper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class TreeFeaturesTest {
+    private static float feature(float[] features, String name) {
+        return features[TreeFeatures.indexOf(name)];
+    }
+
+    @ParameterizedTest
+    @CsvSource({"0, 0", "60231, 60231", "-1, -1", "-1.000, -1", "+2.5, 2.5", "0.125, 0.125", "true, 1", "false, 0",
+            "1285284662, 1285284662", "12345678901234567890, 12345678901234567890", "1.23456789012345678901, 1.2345679"})
+    void testParse(String text, float expected) {
+        assertThat(TreeFeatures.parse(ByteString.copyFromUtf8(text))).isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "-", ".", "abc", "1.2.3", "1e5", "XXXXXXXX-1234"})
+    void testParseNotANumber(String text) {
+        assertThat(TreeFeatures.parse(ByteString.copyFromUtf8(text))).isNaN();
+    }
+
+    @Test
+    void testNames() {
+        assertThat(TreeFeatures.names()).hasSize(TreeFeatures.COUNT).doesNotContain("UUID", "CID");
+        assertThat(TreeFeatures.names().subList(0, TreeFeatures.REQUEST_FEATURES))
+                .startsWith("CountryID")
+                .containsSubsequence("UserSessionFreq", "UserTime.WeekDay", "UserTime.Hour", "UserTime.Minute", "ViewPrcnt");
+        assertThat(TreeFeatures.indexOf("f0")).isEqualTo(0);
+        assertThat(TreeFeatures.indexOf("ExchangeID")).isEqualTo(TreeFeatures.indexOf("f9"));
+        assertThat(TreeFeatures.indexOf("WURFL.29.targeted")).isGreaterThanOrEqualTo(TreeFeatures.REQUEST_FEATURES);
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> TreeFeatures.indexOf("UUID"));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> TreeFeatures.indexOf("f" + TreeFeatures.COUNT));
+    }
+
+    @Test
+    void testFill() throws IOException {
+        OpenRtb.MM_Ext mmExt = LinearModelTest.bidRequest().getExt().getMmExt();
+        float[] features = TreeFeatures.newVector();
+        TreeFeatures.fill(features, mmExt.getBidFeature());
+        assertThat(feature(features, "CountryID")).isEqualTo(60231);
+        assertThat(feature(features, "ExchangeID")).isEqualTo(4);
+        assertThat(feature(features, "HistCtr")).isEqualTo(-1);
+        assertThat(feature(features, "UserTime.Hour")).isEqualTo(mmExt.getBidFeature().getUserTime().getHour());
+        assertThat(feature(features, "CityID")).isNaN();
+        // Entity features are left alone
+        assertThat(feature(features, "StrategyID")).isNaN();
+
+        OpenRtb.MM_Ext.SelectedEntity entity = LinearModelTest.entity("3490750", "ma_Apple:mo_iPhone");
+        TreeFeatures.fill(features, entity, Helper.getProfile(entity));
+        assertThat(feature(features, "StrategyID")).isEqualTo(3490750);
+        assertThat(feature(features, "StrategyGoalType"))
+                .isEqualTo(TreeFeatures.GOAL_TYPES.indexOf(entity.getCompanionData().getStrategyGoalType()));
+        assertThat(feature(features, "Creatives")).isEqualTo(entity.getCompanionData().getCreativesCount());
+        assertThat(feature(features, "Pacing.PI")).isEqualTo(entity.getPacing().getPI());
+        assertThat(feature(features, "WURFL.29.targeted")).isEqualTo(1);
+        assertThat(feature(features, "WURFL.29.untargeted")).isEqualTo(1);
+        assertThat(feature(features, "WURFL.24.targeted")).isNaN();
+        assertThat(feature(features, "CountryID")).isEqualTo(60231);
+
+        TreeFeatures.fill(features, entity, null);
+        assertThat(feature(features, "WURFL.29.targeted")).isNaN();
+    }
+}
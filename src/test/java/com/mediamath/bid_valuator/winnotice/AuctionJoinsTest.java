@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.bid_valuator.Response;
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class AuctionJoinsTest {
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private static Response bid(String strategyID, double cpm) {
+        return new Response("1", strategyID, cpm, "3", null, "model");
+    }
+
+    private static WinNotice win(long auctionID, double clearPrice) {
+        WinNotice notice = new WinNotice();
+        notice.copyFrom(WinNotification.newBuilder().setAuctionID(auctionID).setClearPriceCpm(clearPrice).build(), 0);
+        return notice;
+    }
+
+    @Test
+    void testJoinsWinsWithBids() {
+        AuctionJoins joins = new AuctionJoins(1000, 60000, 4, 16, now::get);
+        joins.record("101", bid("9", 2.0));
+        joins.record("102", bid("9", 1.0));
+        joins.record("103", bid("9", 1.0));
+        joins.record("104", bid("8", 1.0));
+
+        joins.onWinNotice(win(101, 1.5), 0, false);
+        joins.onWinNotice(win(102, 1.25), 1, false);
+        // Already joined
+        joins.onWinNotice(win(101, 1.5), 2, false);
+        // Never bid on
+        joins.onWinNotice(win(999, 1.5), 3, true);
+
+        assertThat(joins.recorded()).isEqualTo(4);
+        assertThat(joins.joined()).isEqualTo(2);
+        assertThat(joins.unmatched()).isEqualTo(2);
+        assertThat(joins.strategies().get(9L, AuctionJoins.BIDS)).isEqualTo(3);
+        assertThat(joins.strategies().get(9L, AuctionJoins.WINS)).isEqualTo(2);
+        assertThat(joins.strategies().get(9L, AuctionJoins.OVERBIDS)).isEqualTo(1);
+        assertThat(joins.strategies().get(9L, AuctionJoins.OVERBID_MICROS)).isEqualTo(500_000);
+        assertThat(joins.strategies().get(9L, AuctionJoins.UNDERBIDS)).isEqualTo(1);
+        assertThat(joins.strategies().get(9L, AuctionJoins.UNDERBID_MICROS)).isEqualTo(250_000);
+        assertThat(joins.winRate(9)).isEqualTo(2.0 / 3);
+        assertThat(joins.winRate(8)).isEqualTo(0);
+        assertThat(joins.winRate(7)).isNaN();
+        assertThat(joins.snapshot()).containsOnlyKeys(8L, 9L);
+        assertThat(joins.snapshot().get(9L).getOverbidMicros()).isEqualTo(500_000);
+    }
+
+    @Test
+    void testJoinsNineteenDigitIDs() {
+        AuctionJoins joins = new AuctionJoins(1000, 60000, 4, 16, now::get);
+        joins.record("1234567890123456789", bid("9", 2.0));
+        joins.record(Long.toString(Long.MAX_VALUE), bid("9", 2.0));
+
+        joins.onWinNotice(win(1234567890123456789L, 1.5), 0, false);
+        joins.onWinNotice(win(Long.MAX_VALUE, 1.5), 1, true);
+
+        assertThat(joins.joined()).isEqualTo(2);
+        assertThat(joins.unmatched()).isEqualTo(0);
+    }
+
+    @Test
+    void testJoinsByExchangeAuctionID() {
+        AuctionJoins joins = new AuctionJoins(1000, 60000, 4, 16, now::get);
+        joins.record("5bf46a74000e24150ab388d1a70070b6", bid("9", 2.0));
+        WinNotice notice = new WinNotice();
+        notice.copyFrom(WinNotification.newBuilder()
+                .setAuctionID(12345)
+                .setExchangeAuctionID("5bf46a74000e24150ab388d1a70070b6")
+                .build(), 0);
+        joins.onWinNotice(notice, 0, true);
+        assertThat(joins.joined()).isEqualTo(1);
+        assertThat(joins.strategies().get(9L, AuctionJoins.WINS)).isEqualTo(1);
+    }
+
+    @Test
+    void testExpires() {
+        AuctionJoins joins = new AuctionJoins(1000, 100, 1, 16, now::get);
+        joins.record("1", bid("9", 1.0));
+        now.addAndGet(50);
+        joins.record("2", bid("9", 1.0));
+        now.addAndGet(60);
+        // The first bid is past its ttl, the second is not, though it is now in the previous generation
+        joins.record("3", bid("9", 1.0));
+        joins.onWinNotice(win(1, 1), 0, false);
+        joins.onWinNotice(win(2, 1), 1, false);
+        assertThat(joins.joined()).isEqualTo(1);
+        assertThat(joins.unmatched()).isEqualTo(1);
+
+        // Two generations later, the first three bids are forgotten
+        now.addAndGet(100);
+        joins.record("4", bid("9", 1.0));
+        now.addAndGet(100);
+        joins.record("5", bid("9", 1.0));
+        // The first and third were never joined
+        assertThat(joins.expired()).isEqualTo(2);
+        assertThat(joins.evicted()).isEqualTo(0);
+    }
+
+    @Test
+    void testEvictsWhenFull() {
+        AuctionJoins joins = new AuctionJoins(10, 60000, 1, 16, now::get);
+        for (int i = 1; i <= 30; i++) {
+            joins.record(Integer.toString(i), bid("9", 1.0));
+        }
+        assertThat(joins.evicted()).isEqualTo(10);
+        joins.onWinNotice(win(1, 1), 0, false);
+        joins.onWinNotice(win(15, 1), 1, false);
+        joins.onWinNotice(win(30, 1), 2, false);
+        assertThat(joins.joined()).isEqualTo(2);
+    }
+
+    @Test
+    void testLatestBidCounts() {
+        AuctionJoins joins = new AuctionJoins(1000, 60000, 1, 16, now::get);
+        joins.record("1", bid("9", 1.0));
+        joins.record("1", bid("8", 3.0));
+        joins.onWinNotice(win(1, 2), 0, false);
+        assertThat(joins.strategies().get(8L, AuctionJoins.WINS)).isEqualTo(1);
+        assertThat(joins.strategies().get(8L, AuctionJoins.OVERBIDS)).isEqualTo(1);
+        assertThat(joins.strategies().get(9L, AuctionJoins.WINS)).isEqualTo(0);
+    }
+
+    @Test
+    void testAuctionKey() {
+        assertThat(AuctionJoins.auctionKey("549644393846517582")).isEqualTo(549644393846517582L);
+        assertThat(AuctionJoins.auctionKey("1234567890123456789")).isEqualTo(1234567890123456789L);
+        assertThat(AuctionJoins.auctionKey("")).isEqualTo(0);
+        assertThat(AuctionJoins.auctionKey(null)).isEqualTo(0);
+        assertThat(AuctionJoins.auctionKey("abc")).isNotEqualTo(0).isEqualTo(AuctionJoins.auctionKey("abc"))
+                .isNotEqualTo(AuctionJoins.auctionKey("abd"));
+    }
+
+    @Test
+    void testFromConfig() {
+        assertThat(AuctionJoins.fromConfig(ConfigFactory.load().getConfig("bid-valuator.winnotice.joins"))).isNull();
+        assertThat(AuctionJoins.fromConfig(ConfigFactory.parseString("max-auctions = 1000")
+                .withFallback(ConfigFactory.load().getConfig("bid-valuator.winnotice.joins")))).isNotNull();
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new AuctionJoins(10, 0, 1, 16));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new AuctionJoins(2, 1000, 4, 16));
+    }
+}
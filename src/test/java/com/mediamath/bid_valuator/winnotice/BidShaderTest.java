@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+
+public class BidShaderTest {
+    private static WinNotice notice(long strategyID, double bidPrice, double clearPrice) {
+        WinNotice notice = new WinNotice();
+        notice.copyFrom(WinNotification.newBuilder()
+                .setStrategyID(strategyID)
+                .setBidPriceCpm(bidPrice)
+                .setClearPriceCpm(clearPrice)
+                .build(), 0);
+        return notice;
+    }
+
+    @Test
+    void testConvergesOnQuantile() {
+        BidShader shader = new BidShader(16, 0.9, 0.01, 100, 0.1);
+        Random random = new Random(42);
+        WinNotice notice = new WinNotice();
+        for (int i = 0; i < 20000; i++) {
+            // Clear to bid price ratios uniform between 0.5 and 1, so the 0.9 quantile is 0.95
+            shader.onWinNotice(notice(7, 2, 2 * (0.5 + 0.5 * random.nextDouble())), i, false);
+        }
+        assertThat(shader.estimate(7)).isCloseTo(0.95, within(0.02));
+        assertThat(shader.factor(7)).isEqualTo(shader.estimate(7));
+        assertThat(shader.size()).isEqualTo(1);
+    }
+
+    @Test
+    void testNotShadedUntilMinWins() {
+        BidShader shader = new BidShader(16, 0.5, 0.01, 3, 0.1);
+        assertThat(shader.factor(7)).isEqualTo(1);
+        assertThat(shader.estimate(7)).isNaN();
+        shader.onWinNotice(notice(7, 4, 1), 0, false);
+        shader.onWinNotice(notice(7, 4, 1), 1, false);
+        assertThat(shader.estimate(7)).isEqualTo(0.25);
+        assertThat(shader.factor(7)).isEqualTo(1);
+        shader.onWinNotice(notice(7, 4, 1), 2, false);
+        assertThat(shader.factor(7)).isEqualTo(0.25);
+    }
+
+    @Test
+    void testClamped() {
+        BidShader shader = new BidShader(16, 0.5, 0.01, 1, 0.5);
+        shader.onWinNotice(notice(7, 10, 1), 0, false);
+        assertThat(shader.factor(7)).isEqualTo(0.5);
+        // A clear price above the bid is never shaded up
+        shader.onWinNotice(notice(8, 1, 3), 0, false);
+        assertThat(shader.estimate(8)).isEqualTo(1);
+        assertThat(shader.factor(8)).isEqualTo(1);
+        // No bid price, or no strategy, is not learned from
+        shader.onWinNotice(notice(9, 0, 1), 0, false);
+        shader.onWinNotice(notice(0, 2, 1), 0, false);
+        assertThat(shader.size()).isEqualTo(2);
+    }
+
+    @Test
+    void testInvalidSettings() {
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new BidShader(16, 1, 0.01, 1, 0.5));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new BidShader(16, 0.5, 0, 1, 0.5));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new BidShader(16, 0.5, 0.01, 1, 0));
+    }
+
+    @Test
+    void testSnapshot(@TempDir Path directory) throws IOException {
+        BidShader shader = new BidShader(16, 0.5, 0.01, 1, 0.1);
+        shader.onWinNotice(notice(7, 4, 1), 0, false);
+        shader.onWinNotice(notice(8, 4, 3), 1, false);
+        Path file = directory.resolve("shading.bin");
+        shader.save(file);
+        assertThat(Files.exists(directory.resolve("shading.bin.tmp"))).isFalse();
+
+        BidShader restored = new BidShader(16, 0.5, 0.01, 1, 0.1);
+        assertThat(restored.restore(file)).isEqualTo(2);
+        assertThat(restored.estimate(7)).isEqualTo(0.25);
+        assertThat(restored.estimate(8)).isEqualTo(0.75);
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> restored.read(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8})));
+    }
+
+    @Test
+    void testFromConfig(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("shading.bin");
+        BidShader shader = new BidShader(16, 0.5, 0.01, 1, 0.1);
+        shader.onWinNotice(notice(7, 4, 1), 0, false);
+        shader.save(file);
+
+        BidShader restored = BidShader.fromConfig(ConfigFactory.parseMap(Collections.singletonMap("snapshot-file", file.toString()))
+                .withFallback(ConfigFactory.load().getConfig("bid-valuator.shading")));
+        try {
+            assertThat(restored.estimate(7)).isEqualTo(0.25);
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    void testSavesOnClose(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("shading.bin");
+        BidShader shader = BidShader.fromConfig(ConfigFactory.parseMap(Collections.singletonMap("snapshot-file", file.toString()))
+                .withFallback(ConfigFactory.load().getConfig("bid-valuator.shading")));
+        shader.onWinNotice(notice(7, 4, 1), 0, false);
+        assertThat(Files.exists(file)).isFalse();
+        shader.close();
+
+        BidShader restored = new BidShader(16, 0.5, 0.01, 1, 0.1);
+        assertThat(restored.restore(file)).isEqualTo(1);
+        assertThat(restored.estimate(7)).isEqualTo(0.25);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class LongKeyedCountersTest {
+    @Test
+    void testCounts() {
+        LongKeyedCounters counters = new LongKeyedCounters(100, 2);
+        int slot = counters.slot(3490749);
+        assertThat(slot).isGreaterThanOrEqualTo(0);
+        assertThat(counters.slot(3490749)).isEqualTo(slot);
+        assertThat(counters.find(3490749)).isEqualTo(slot);
+        assertThat(counters.key(slot)).isEqualTo(3490749);
+        counters.add(slot, 0, 1);
+        counters.add(slot, 1, 250);
+        counters.add(counters.slot(3490749), 1, 50);
+        assertThat(counters.get(3490749L, 0)).isEqualTo(1);
+        assertThat(counters.get(3490749L, 1)).isEqualTo(300);
+        assertThat(counters.get(slot, 1)).isEqualTo(300);
+        // Unknown keys are not added by looking them up
+        assertThat(counters.get(42L, 0)).isEqualTo(0);
+        assertThat(counters.find(42)).isEqualTo(-1);
+        assertThat(counters.size()).isEqualTo(1);
+        // 0 is reserved for empty slots
+        assertThat(counters.slot(0)).isEqualTo(-1);
+        assertThat(counters.find(0)).isEqualTo(-1);
+    }
+
+    @Test
+    void testTurnsAwayKeysOnceFull() {
+        LongKeyedCounters counters = new LongKeyedCounters(10, 1);
+        for (long key = 1; key <= 10; key++) {
+            assertThat(counters.slot(key)).isGreaterThanOrEqualTo(0);
+        }
+        assertThat(counters.slot(11)).isEqualTo(-1);
+        assertThat(counters.overflows()).isEqualTo(1);
+        // Keys already in the table can still be counted
+        assertThat(counters.slot(5)).isGreaterThanOrEqualTo(0);
+        Set<Long> keys = new HashSet<>();
+        counters.forEachSlot(slot -> keys.add(counters.key(slot)));
+        assertThat(keys).hasSize(10).doesNotContain(11L);
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new LongKeyedCounters(0, 1));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new LongKeyedCounters(1 << 20, 4096));
+    }
+
+    @Test
+    void testConcurrentUpdates() throws Exception {
+        int threads = 8;
+        int keys = 1000;
+        int rounds = 200;
+        LongKeyedCounters counters = new LongKeyedCounters(keys, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                for (int r = 0; r < rounds; r++) {
+                    for (long key = 1; key <= keys; key++) {
+                        int slot = counters.slot(key);
+                        counters.add(slot, 0, 1);
+                        counters.add(slot, 1, key);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertThat(counters.size()).isEqualTo(keys);
+        assertThat(counters.overflows()).isEqualTo(0);
+        for (long key = 1; key <= keys; key++) {
+            assertThat(counters.get(key, 0)).isEqualTo((long) threads * rounds);
+            assertThat(counters.get(key, 1)).isEqualTo(key * threads * rounds);
+        }
+    }
+}
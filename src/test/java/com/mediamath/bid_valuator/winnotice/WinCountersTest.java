@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WinCountersTest {
+    private static WinNotice notice(long strategyID, long campaignID, double clearPrice) {
+        WinNotice notice = new WinNotice();
+        notice.copyFrom(WinNotification.newBuilder()
+                .setStrategyID(strategyID)
+                .setCampaignID(campaignID)
+                .setBidPriceCpm(clearPrice * 2)
+                .setClearPriceCpm(clearPrice)
+                .setTotalSpend(clearPrice / 1000)
+                .build(), 0);
+        return notice;
+    }
+
+    @Test
+    void testCountsStrategiesAndCampaigns() {
+        WinCounters counters = new WinCounters(16, 16);
+        counters.onWinNotice(notice(9, 8, 1.5), 0, false);
+        counters.onWinNotice(notice(9, 8, 2.5), 1, false);
+        counters.onWinNotice(notice(10, 8, 1), 2, true);
+        // No StrategyID, only counted for its campaign
+        counters.onWinNotice(notice(0, 8, 1), 3, true);
+
+        assertThat(counters.strategies().get(9L, WinCounters.WINS)).isEqualTo(2);
+        assertThat(counters.strategies().get(9L, WinCounters.CLEAR_PRICE_MICROS)).isEqualTo(4_000_000);
+        assertThat(counters.strategies().get(9L, WinCounters.BID_PRICE_MICROS)).isEqualTo(8_000_000);
+        assertThat(counters.strategies().get(9L, WinCounters.SPEND_MICROS)).isEqualTo(4_000);
+        assertThat(counters.strategies().size()).isEqualTo(2);
+        assertThat(counters.campaigns().get(8L, WinCounters.WINS)).isEqualTo(4);
+
+        WinCounters.Snapshot snapshot = counters.snapshot();
+        assertThat(snapshot.getStrategies()).containsOnlyKeys(9L, 10L);
+        assertThat(snapshot.getStrategies().get(10L).getWins()).isEqualTo(1);
+        assertThat(snapshot.getStrategies().get(10L).getClearPriceMicros()).isEqualTo(1_000_000);
+        assertThat(snapshot.getCampaigns().get(8L).getSpendMicros()).isEqualTo(6_000);
+    }
+
+    @Test
+    void testParseID() {
+        assertThat(WinCounters.parseID("3490749")).isEqualTo(3490749);
+        assertThat(WinCounters.parseID("123456789012345678")).isEqualTo(123456789012345678L);
+        assertThat(WinCounters.parseID("")).isEqualTo(0);
+        assertThat(WinCounters.parseID(null)).isEqualTo(0);
+        assertThat(WinCounters.parseID("-5")).isEqualTo(0);
+        assertThat(WinCounters.parseID("strategy")).isEqualTo(0);
+        assertThat(WinCounters.parseID("1234567890123456789")).isEqualTo(1234567890123456789L);
+        assertThat(WinCounters.parseID("9223372036854775807")).isEqualTo(Long.MAX_VALUE);
+        assertThat(WinCounters.parseID("9223372036854775808")).isEqualTo(0);
+        assertThat(WinCounters.parseID("9999999999999999999")).isEqualTo(0);
+        assertThat(WinCounters.parseID("12345678901234567890")).isEqualTo(0);
+    }
+}
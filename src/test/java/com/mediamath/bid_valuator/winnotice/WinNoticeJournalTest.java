@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class WinNoticeJournalTest {
+    private static WinNotification notification(int i) {
+        return WinNotification.newBuilder()
+                .setExchangeAuctionID("exchange-" + i)
+                .setAuctionID(i)
+                .setBidPriceCpm(2)
+                .setClearPriceCpm(1.5)
+                .setTotalSpend(0.0015)
+                .setMmUuid("uuid-é-" + i)
+                .setAdvertiserID(-1)
+                .setCampaignID(8)
+                .setStrategyID(9)
+                .setCreativeID(10)
+                .setBidTimestamp("2019-01-01T00:00:00Z")
+                .build();
+    }
+
+    private static WinNotice notice(WinNotification notification, long receivedMillis) {
+        WinNotice notice = new WinNotice();
+        notice.copyFrom(notification, receivedMillis);
+        return notice;
+    }
+
+    private static List<WinNotice> readAll(Path directory) throws IOException {
+        List<WinNotice> notices = new ArrayList<>();
+        try (WinNoticeJournal.Reader reader = WinNoticeJournal.read(directory)) {
+            reader.forEachRemaining(notices::add);
+        }
+        return notices;
+    }
+
+    @Test
+    void testRoundTripAcrossSegments(@TempDir Path directory) throws IOException {
+        try (WinNoticeJournal journal = new WinNoticeJournal(directory, 1024, 1 << 20, 60000)) {
+            for (int i = 0; i < 50; i++) {
+                journal.onWinNotice(notice(notification(i), 1000 + i), i, i == 49);
+            }
+            assertThat(journal.records()).isEqualTo(50);
+            assertThat(journal.segments()).isGreaterThan(1);
+        }
+        List<Path> segments = WinNoticeJournal.segments(directory);
+        assertThat(segments.size()).isGreaterThan(1);
+        // Closed segments are truncated to their records
+        assertThat(Files.size(segments.get(0))).isLessThan(1024);
+
+        List<WinNotice> notices = readAll(directory);
+        assertThat(notices).hasSize(50);
+        for (int i = 0; i < 50; i++) {
+            assertThat(notices.get(i).toWinNotification()).isEqualTo(notification(i));
+            assertThat(notices.get(i).getReceivedMillis()).isEqualTo(1000 + i);
+        }
+    }
+
+    @Test
+    void testUnsetFieldsStayUnset(@TempDir Path directory) throws IOException {
+        WinNotification sparse = WinNotification.newBuilder().setStrategyID(9).build();
+        try (WinNoticeJournal journal = new WinNoticeJournal(directory, 1024, 1 << 20, 60000)) {
+            journal.onWinNotice(notice(sparse, 5), 0, true);
+        }
+        List<WinNotice> notices = readAll(directory);
+        assertThat(notices).hasSize(1);
+        assertThat(notices.get(0).toWinNotification()).isEqualTo(sparse);
+        assertThat(notices.get(0).has(WinNotification.CLEARPRICECPM_FIELD_NUMBER)).isFalse();
+    }
+
+    @Test
+    void testGroupSync(@TempDir Path directory) throws IOException {
+        // Synced by size every few records, and never by time
+        try (WinNoticeJournal journal = new WinNoticeJournal(directory, 1 << 16, 500, 60000)) {
+            for (int i = 0; i < 20; i++) {
+                journal.onWinNotice(notice(notification(i), 0), i, true);
+            }
+            assertThat(journal.syncs()).isBetween(2L, 10L);
+        }
+        // Synced at the end of each batch
+        try (WinNoticeJournal journal = new WinNoticeJournal(directory, 1 << 16, 1 << 20, 0)) {
+            journal.onWinNotice(notice(notification(0), 0), 0, false);
+            assertThat(journal.syncs()).isEqualTo(0);
+            journal.onWinNotice(notice(notification(1), 0), 1, true);
+            assertThat(journal.syncs()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void testSyncsWhenIdle(@TempDir Path directory) throws Exception {
+        WinNoticeJournal journal = new WinNoticeJournal(directory, 1 << 16, 1 << 20, 500);
+        try (WinNoticeRing ring = new WinNoticeRing(64, 16, journal)) {
+            assertThat(ring.publish(notification(0))).isTrue();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (journal.records() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertThat(journal.syncs()).isEqualTo(0);
+            // Nothing else arrives, so the record is only synced once the handler's thread notices the interval is up
+            while (journal.syncs() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertThat(journal.syncs()).isEqualTo(1);
+        }
+        journal.close();
+    }
+
+    @Test
+    void testReopenStartsNewSegment(@TempDir Path directory) throws IOException {
+        for (int run = 0; run < 2; run++) {
+            try (WinNoticeJournal journal = new WinNoticeJournal(directory, 1024, 1 << 20, 60000)) {
+                journal.onWinNotice(notice(notification(run), 0), 0, true);
+            }
+        }
+        assertThat(WinNoticeJournal.segments(directory)).hasSize(2);
+        List<WinNotice> notices = readAll(directory);
+        assertThat(notices).extracting(WinNotice::getAuctionID).containsExactly(0L, 1L);
+    }
+
+    @Test
+    void testCorruptRecordEndsSegment(@TempDir Path directory) throws IOException {
+        try (WinNoticeJournal journal = new WinNoticeJournal(directory, 1 << 16, 1 << 20, 60000)) {
+            for (int i = 0; i < 3; i++) {
+                journal.onWinNotice(notice(notification(i), 0), i, true);
+            }
+        }
+        Path segment = WinNoticeJournal.segments(directory).get(0);
+        int firstLength = ByteBuffer.wrap(Files.readAllBytes(segment)).getInt();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // Flip a byte in the second record's body
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 2 * WinNoticeJournal.HEADER_BYTES + firstLength + 20);
+        }
+        try (WinNoticeJournal.Reader reader = WinNoticeJournal.read(directory)) {
+            assertThat(reader.next().getAuctionID()).isEqualTo(0);
+            assertThat(reader.hasNext()).isFalse();
+            assertThat(reader.corrupt()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void testFromConfig(@TempDir Path directory) throws IOException {
+        assertThat(WinNoticeJournal.fromConfig(ConfigFactory.load().getConfig("bid-valuator.winnotice.journal"))).isNull();
+        try (WinNoticeJournal journal = WinNoticeJournal.fromConfig(ConfigFactory.parseMap(Collections.singletonMap("directory", directory.resolve("journal").toString()))
+                .withFallback(ConfigFactory.load().getConfig("bid-valuator.winnotice.journal")))) {
+            assertThat(journal).isNotNull();
+            assertThat(Files.isDirectory(directory.resolve("journal"))).isTrue();
+        }
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new WinNoticeJournal(directory, 100, 1, 1));
+    }
+
+    @Test
+    void testThroughRing(@TempDir Path directory) throws Exception {
+        WinNoticeJournal journal = new WinNoticeJournal(directory, 1 << 16, 1 << 20, 10);
+        try (WinNoticeRing ring = new WinNoticeRing(64, 16, journal)) {
+            for (int i = 0; i < 200; i++) {
+                while (!ring.publish(notification(i))) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        journal.close();
+        assertThat(readAll(directory)).extracting(WinNotice::getAuctionID).hasSize(200).isSorted();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2019 MediaMath
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.mediamath.bid_valuator.winnotice;
+
+import com.mediamath.winnotice.Winnotice.WinNotification;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class WinNoticeRingTest {
+    private static WinNotification notification(long auctionID, long strategyID) {
+        return WinNotification.newBuilder()
+                .setAuctionID(auctionID)
+                .setStrategyID(strategyID)
+                .setBidPriceCpm(2.5)
+                .setClearPriceCpm(1.25)
+                .setTotalSpend(0.00125)
+                .build();
+    }
+
+    // Records each notice's auction id, and how many batches it was handed them in
+    private static final class Recorder implements WinNoticeHandler {
+        final List<Long> auctionIDs = Collections.synchronizedList(new ArrayList<>());
+        volatile int batches = 0;
+        long expectedSequence = 0;
+
+        @Override
+        public void onWinNotice(WinNotice notice, long sequence, boolean endOfBatch) {
+            assertThat(sequence).isEqualTo(expectedSequence++);
+            auctionIDs.add(notice.getAuctionID());
+            if (endOfBatch) {
+                batches++;
+            }
+        }
+    }
+
+    @Test
+    void testCopiesNotices() {
+        WinNotice notice = new WinNotice();
+        WinNotification notification = WinNotification.newBuilder()
+                .setExchangeAuctionID("x1")
+                .setAuctionID(2)
+                .setClearPriceCpm(1.5)
+                .setStrategyID(9)
+                .build();
+        notice.copyFrom(notification, 1234);
+        assertThat(notice.getReceivedMillis()).isEqualTo(1234);
+        assertThat(notice.getExchangeAuctionID()).isEqualTo("x1");
+        assertThat(notice.getClearPriceCpm()).isEqualTo(1.5);
+        assertThat(notice.has(WinNotification.STRATEGYID_FIELD_NUMBER)).isTrue();
+        assertThat(notice.has(WinNotification.CAMPAIGNID_FIELD_NUMBER)).isFalse();
+        assertThat(notice.getCampaignID()).isEqualTo(0);
+        assertThat(notice.toWinNotification()).isEqualTo(notification);
+
+        // Reusing the slot leaves nothing of the previous notice behind
+        notice.copyFrom(WinNotification.newBuilder().setCampaignID(8).build(), 5678);
+        assertThat(notice.has(WinNotification.STRATEGYID_FIELD_NUMBER)).isFalse();
+        assertThat(notice.getExchangeAuctionID()).isEmpty();
+        assertThat(notice.toWinNotification()).isEqualTo(WinNotification.newBuilder().setCampaignID(8).build());
+    }
+
+    @Test
+    void testEveryHandlerSeesEveryNoticeInOrder() throws Exception {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        WinTotals totals = new WinTotals();
+        int threads = 8;
+        int perThread = 20000;
+        WinNoticeRing ring = new WinNoticeRing(1024, 64, first, second, totals);
+        assertThat(ring.capacity()).isEqualTo(1024);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> publishers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long base = (long) t * perThread;
+            publishers.add(executor.submit(() -> {
+                int published = 0;
+                for (int i = 0; i < perThread; i++) {
+                    // Retries until there is room, so nothing is lost
+                    while (!ring.publish(notification(base + i, 1))) {
+                        Thread.yield();
+                    }
+                    published++;
+                }
+                return published;
+            }));
+        }
+        for (Future<Integer> publisher : publishers) {
+            assertThat(publisher.get(30, TimeUnit.SECONDS)).isEqualTo(perThread);
+        }
+        executor.shutdown();
+        ring.close();
+
+        long total = (long) threads * perThread;
+        assertThat(ring.published()).isEqualTo(total);
+        assertThat(ring.backlog()).isEqualTo(0);
+        assertThat(first.auctionIDs).hasSize((int) total).doesNotHaveDuplicates();
+        assertThat(second.auctionIDs).isEqualTo(first.auctionIDs);
+        // Each publisher's notices come out in the order it published them
+        long[] last = new long[threads];
+        Arrays.fill(last, -1);
+        for (long auctionID : first.auctionIDs) {
+            int t = (int) (auctionID / perThread);
+            assertThat(auctionID).isGreaterThan(last[t]);
+            last[t] = auctionID;
+        }
+        assertThat(first.batches).isLessThan((int) total);
+        assertThat(totals.wins()).isEqualTo(total);
+        assertThat(totals.clearPriceMicros()).isEqualTo(total * 1_250_000);
+        assertThat(totals.bidPriceMicros()).isEqualTo(total * 2_500_000);
+        assertThat(totals.spendMicros()).isEqualTo(total * 1250);
+    }
+
+    @Test
+    void testDropsWhenFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder recorder = new Recorder();
+        WinNoticeRing ring = new WinNoticeRing(4, 16, (notice, sequence, endOfBatch) -> {
+            blocked.countDown();
+            release.await();
+        }, recorder);
+
+        assertThat(ring.publish(notification(0, 1))).isTrue();
+        assertThat(blocked.await(10, TimeUnit.SECONDS)).isTrue();
+        // The stuck handler holds the first slot, so three more fit
+        for (int i = 1; i < 4; i++) {
+            assertThat(ring.publish(notification(i, 1))).isTrue();
+        }
+        assertThat(ring.publish(notification(4, 1))).isFalse();
+        assertThat(ring.dropped()).isEqualTo(1);
+        assertThat(ring.backlog()).isEqualTo(4);
+
+        release.countDown();
+        ring.close();
+        assertThat(recorder.auctionIDs).containsExactly(0L, 1L, 2L, 3L);
+        assertThat(ring.publish(notification(5, 1))).isFalse();
+        assertThat(ring.dropped()).isEqualTo(2);
+    }
+
+    @Test
+    void testHandlerErrorsAreCounted() throws Exception {
+        Recorder recorder = new Recorder();
+        WinNoticeRing ring = new WinNoticeRing(8, 8, (notice, sequence, endOfBatch) -> {
+            if (notice.getAuctionID() == 1) {
+                throw new IllegalStateException("Failed on purpose");
+            }
+        }, recorder);
+        for (int i = 0; i < 3; i++) {
+            assertThat(ring.publish(notification(i, 1))).isTrue();
+        }
+        ring.close();
+        assertThat(ring.errors()).isEqualTo(1);
+        assertThat(recorder.auctionIDs).containsExactly(0L, 1L, 2L);
+    }
+
+    @Test
+    void testConfig() throws InterruptedException {
+        WinNoticeRing ring = WinNoticeRing.fromConfig(ConfigFactory.load().getConfig("bid-valuator.winnotice"));
+        assertThat(ring.capacity()).isEqualTo(65536);
+        ring.close();
+        assertThat(WinNoticeRing.whenFull(ConfigFactory.parseString("when-full = reject"))).isEqualTo(WinNoticeRing.WhenFull.REJECT);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> WinNoticeRing.whenFull(ConfigFactory.parseString("when-full = block")));
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> new WinNoticeRing(0, 1));
+    }
+}